@@ -19,7 +19,10 @@
 
 package org.apache.james.mailbox;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.james.mailbox.exception.BadCredentialsException;
 import org.apache.james.mailbox.exception.MailboxException;
@@ -27,6 +30,7 @@ import org.apache.james.mailbox.exception.MailboxExistsException;
 import org.apache.james.mailbox.exception.MailboxNotFoundException;
 import org.apache.james.mailbox.exception.UnsupportedRightException;
 import org.apache.james.mailbox.model.MailboxACL;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MailboxMetaData;
 import org.apache.james.mailbox.model.MailboxPath;
 import org.apache.james.mailbox.model.MailboxQuery;
@@ -188,6 +192,22 @@ public interface MailboxManager extends RequestAware, MailboxListenerSupport {
      */
     boolean mailboxExists(MailboxPath mailboxPath, MailboxSession session) throws MailboxException;
 
+    /**
+     * Return the {@link MailboxCounters} of all the given mailboxes in one
+     * call. Mailboxes which do not exist are not contained in the returned
+     * {@link Map}.
+     * 
+     * @param mailboxPaths
+     *            not null
+     * @param counters
+     *            the counters to compute, not null
+     * @param session
+     *            the context for this call, not null
+     * @return counters, not null
+     * @throws MailboxException
+     */
+    Map<MailboxPath, MailboxCounters> getMailboxCounters(Collection<MailboxPath> mailboxPaths, Set<MailboxCounters.Counter> counters, MailboxSession session) throws MailboxException;
+
     /**
      * Creates a new system session.<br>
      * A system session is intended to be used for programmatic access.<br>
@@ -24,12 +24,14 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.mail.Flags;
 
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.exception.UnsupportedCriteriaException;
 import org.apache.james.mailbox.model.MailboxACL;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.MessageResult;
 import org.apache.james.mailbox.model.MessageResult.FetchGroup;
@@ -181,6 +183,20 @@ public interface MessageManager {
      */
     MetaData getMetaData(boolean resetRecent, MailboxSession mailboxSession, MessageManager.MetaData.FetchGroup fetchGroup) throws MailboxException;
 
+    /**
+     * Return the current {@link MailboxCounters} of the mailbox. This is
+     * cheaper than {@link #getMetaData(boolean, MailboxSession, org.apache.james.mailbox.MessageManager.MetaData.FetchGroup)}
+     * if only the counters are needed, like for a STATUS command.
+     * 
+     * @param mailboxSession
+     *            context, not null
+     * @param counters
+     *            the counters to compute, not null
+     * @return counters, not null
+     * @throws MailboxException
+     */
+    MailboxCounters getMailboxCounters(MailboxSession mailboxSession, Set<MailboxCounters.Counter> counters) throws MailboxException;
+
     /**
      * Meta data about the current state of the mailbox.
      */
@@ -0,0 +1,87 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailbox.model;
+
+/**
+ * Counters of a mailbox, as needed by IMAP STATUS or a mailbox listing.
+ * 
+ * Unlike {@link org.apache.james.mailbox.MessageManager.MetaData} the counters
+ * do not contain any per-message data. Only the requested {@link Counter}'s are
+ * computed, the others are returned as <code>-1</code>. Backends which
+ * maintain some of the counters return them without reading the messages,
+ * the others compute them on demand.
+ */
+public interface MailboxCounters {
+
+    /**
+     * The counters which can be requested. The uid validity is always
+     * returned.
+     */
+    enum Counter {
+        MESSAGES, UNSEEN, RECENT, HIGHEST_MODSEQ, UID_NEXT
+    }
+
+    /**
+     * Return the count of messages in the mailbox, or -1 if
+     * {@link Counter#MESSAGES} was not requested
+     * 
+     * @return messageCount
+     */
+    long getMessageCount();
+
+    /**
+     * Return the count of messages without the \Seen flag, or -1 if
+     * {@link Counter#UNSEEN} was not requested
+     * 
+     * @return unseenCount
+     */
+    long getUnseenCount();
+
+    /**
+     * Return the count of messages with the \Recent flag, or -1 if
+     * {@link Counter#RECENT} was not requested
+     * 
+     * @return recentCount
+     */
+    long getRecentCount();
+
+    /**
+     * Return the highest mod-sequence of the mailbox, or -1 if
+     * {@link Counter#HIGHEST_MODSEQ} was not requested
+     * 
+     * @return highestModSeq
+     */
+    long getHighestModSeq();
+
+    /**
+     * Return the uid which will be assigned to the next message, or -1 if
+     * {@link Counter#UID_NEXT} was not requested
+     * 
+     * @return uidNext
+     */
+    long getUidNext();
+
+    /**
+     * Return the uid validity of the mailbox the counters belong to
+     * 
+     * @return uidValidity
+     */
+    long getUidValidity();
+}
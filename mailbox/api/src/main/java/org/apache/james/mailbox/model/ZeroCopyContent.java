@@ -0,0 +1,53 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailbox.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Optional extension of {@link Content} for backends which are able to hand out
+ * the octets of the content without copying them through an {@link java.io.InputStream}.
+ * 
+ * Callers should first try {@link #getByteBuffer()}, then {@link #getFileChannel()},
+ * and fall back to {@link #getInputStream()} if both return <code>null</code>.
+ */
+public interface ZeroCopyContent extends Content {
+
+    /**
+     * Return a read-only {@link ByteBuffer} holding exactly the octets of this
+     * content, or <code>null</code> if the content is not held in memory.
+     * 
+     * @return buffer or null
+     * @throws IOException
+     */
+    ByteBuffer getByteBuffer() throws IOException;
+
+    /**
+     * Return a newly opened {@link FileChannel} positioned at the first octet of
+     * this content, or <code>null</code> if the content is not stored in a
+     * plain file. The caller is responsible for closing the channel.
+     * 
+     * @return channel or null
+     * @throws IOException
+     */
+    FileChannel getFileChannel() throws IOException;
+}
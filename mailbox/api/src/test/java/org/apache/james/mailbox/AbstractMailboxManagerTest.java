@@ -21,17 +21,29 @@ package org.apache.james.mailbox;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.Map;
 
 import javax.mail.Flags;
+import javax.mail.util.SharedByteArrayInputStream;
 
 import org.apache.james.mailbox.exception.BadCredentialsException;
+import org.apache.james.mailbox.MessageManager.FlagsUpdateMode;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.mock.MockMailboxManager;
 import org.apache.james.mailbox.model.MailboxConstants;
+import org.apache.james.mailbox.model.MailboxCounters;
+import org.apache.james.mailbox.model.FetchGroupImpl;
 import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResultIterator;
 import org.junit.After;
 import org.junit.Test;
 import org.slf4j.LoggerFactory;
@@ -202,6 +214,62 @@ public abstract class AbstractMailboxManagerTest {
         assertThat(getMailboxManager().mailboxExists(nestedFolder, session)).isTrue();
         getMailboxManager().getMailbox(MailboxPath.inbox(session), session).appendMessage(new ByteArrayInputStream("Subject: test\r\n\r\ntestmail".getBytes()), new Date(), session, false, new Flags());
     }
+
+    @Test
+    public void appendingSharedInputStreamShouldStoreTheWholeMessage() throws MailboxException, IOException {
+        session = getMailboxManager().createSystemSession(USER_1, LoggerFactory.getLogger("Test"));
+        MailboxPath inbox = MailboxPath.inbox(session);
+        getMailboxManager().createMailbox(inbox, session);
+        MessageManager messageManager = getMailboxManager().getMailbox(inbox, session);
+        byte[] message = "Subject: test\r\n\r\ntestmail".getBytes();
+
+        messageManager.appendMessage(new SharedByteArrayInputStream(message), new Date(), session, false, new Flags());
+
+        MessageResultIterator messages = messageManager.getMessages(MessageRange.all(), FetchGroupImpl.FULL_CONTENT, session);
+        MessageResult result = messages.next();
+        assertThat(result.getSize()).isEqualTo(message.length);
+        assertThat(toByteArray(result.getFullContent().getInputStream())).isEqualTo(message);
+        assertThat(messages.hasNext()).isFalse();
+    }
+
+    @Test
+    public void mailboxCountersShouldFollowAppendsFlagUpdatesCopiesAndExpunges() throws MailboxException {
+        session = getMailboxManager().createSystemSession(USER_1, LoggerFactory.getLogger("Test"));
+        MailboxPath inbox = MailboxPath.inbox(session);
+        MailboxPath archive = new MailboxPath(inbox, "INBOX.archive");
+        getMailboxManager().createMailbox(inbox, session);
+        getMailboxManager().createMailbox(archive, session);
+        MessageManager messageManager = getMailboxManager().getMailbox(inbox, session);
+        byte[] message = "Subject: test\r\n\r\ntestmail".getBytes();
+        long first = messageManager.appendMessage(new ByteArrayInputStream(message), new Date(), session, true, new Flags());
+        messageManager.appendMessage(new ByteArrayInputStream(message), new Date(), session, true, new Flags(Flags.Flag.SEEN));
+        messageManager.appendMessage(new ByteArrayInputStream(message), new Date(), session, false, new Flags());
+
+        messageManager.setFlags(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.ADD, MessageRange.one(first), session);
+        getMailboxManager().copyMessages(MessageRange.all(), inbox, archive, session);
+        messageManager.setFlags(new Flags(Flags.Flag.DELETED), FlagsUpdateMode.ADD, MessageRange.one(first), session);
+        messageManager.expunge(MessageRange.all(), session);
+
+        Map<MailboxPath, MailboxCounters> counters = getMailboxManager().getMailboxCounters(Arrays.asList(inbox, archive),
+            EnumSet.allOf(MailboxCounters.Counter.class), session);
+        assertThat(counters.get(inbox).getMessageCount()).isEqualTo(2);
+        assertThat(counters.get(inbox).getUnseenCount()).isEqualTo(1);
+        assertThat(counters.get(inbox).getRecentCount()).isEqualTo(1);
+        assertThat(counters.get(archive).getMessageCount()).isEqualTo(3);
+        assertThat(counters.get(archive).getUnseenCount()).isEqualTo(1);
+        assertThat(counters.get(archive).getRecentCount()).isEqualTo(3);
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
     
     protected abstract void createMailboxManager() throws MailboxException, IOException;
     
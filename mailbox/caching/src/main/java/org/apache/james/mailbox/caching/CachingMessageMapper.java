@@ -1,13 +1,17 @@
 package org.apache.james.mailbox.caching;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.UpdatedFlags;
 import org.apache.james.mailbox.store.FlagsUpdateCalculator;
+import org.apache.james.mailbox.store.SimpleMailboxCounters;
 import org.apache.james.mailbox.store.mail.MessageMapper;
 import org.apache.james.mailbox.store.mail.model.MailboxId;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
@@ -121,6 +125,17 @@ public class CachingMessageMapper<Id extends MailboxId> implements MessageMapper
         return cache.getHighestModSeq(mailbox, underlying);
     }
 
+    @Override
+    public MailboxCounters getMailboxCounters(Mailbox<Id> mailbox, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        // use the cached values where possible
+        return SimpleMailboxCounters.compute(this, mailbox, counters);
+    }
+
+    @Override
+    public Map<Id, MailboxCounters> getMailboxCounters(Collection<Mailbox<Id>> mailboxes, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        return SimpleMailboxCounters.computeEach(this, mailboxes, counters);
+    }
+
     private void invalidateMetadata(Mailbox<Id> mailbox) {
         cache.invalidate(mailbox);
 
@@ -55,6 +55,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
@@ -65,7 +66,6 @@ import java.util.stream.Collectors;
 
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
-import javax.mail.util.SharedByteArrayInputStream;
 
 import com.google.common.base.Throwables;
 import org.apache.james.backends.cassandra.init.CassandraTypesProvider;
@@ -80,10 +80,12 @@ import org.apache.james.mailbox.cassandra.table.CassandraMailboxCountersTable;
 import org.apache.james.mailbox.cassandra.table.CassandraMessageTable;
 import org.apache.james.mailbox.cassandra.table.CassandraMessageTable.Properties;
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.UpdatedFlags;
 import org.apache.james.mailbox.store.FlagsUpdateCalculator;
+import org.apache.james.mailbox.store.SimpleMailboxCounters;
 import org.apache.james.mailbox.store.SimpleMessageMetaData;
 import org.apache.james.mailbox.store.mail.MessageMapper;
 import org.apache.james.mailbox.store.mail.ModSeqProvider;
@@ -93,6 +95,7 @@ import org.apache.james.mailbox.store.mail.model.MailboxMessage;
 import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
 import org.apache.james.mailbox.store.mail.model.impl.SimpleMailboxMessage;
 import org.apache.james.mailbox.store.mail.model.impl.SimpleProperty;
+import org.apache.james.mailbox.store.streaming.SharedByteBufferInputStream;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
@@ -170,6 +173,47 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
             .iterator();
     }
 
+    @Override
+    public MailboxCounters getMailboxCounters(Mailbox<CassandraId> mailbox, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        long count = -1;
+        long unseen = -1;
+        if (counters.contains(MailboxCounters.Counter.MESSAGES) || counters.contains(MailboxCounters.Counter.UNSEEN)) {
+            long[] stored = readCounters(mailbox);
+            count = counters.contains(MailboxCounters.Counter.MESSAGES) ? stored[0] : -1;
+            unseen = counters.contains(MailboxCounters.Counter.UNSEEN) ? stored[1] : -1;
+        }
+        return new SimpleMailboxCounters(count, unseen,
+            counters.contains(MailboxCounters.Counter.RECENT) ? findRecentMessageUidsInMailbox(mailbox).size() : -1,
+            counters.contains(MailboxCounters.Counter.HIGHEST_MODSEQ) ? getHighestModSeq(mailbox) : -1,
+            counters.contains(MailboxCounters.Counter.UID_NEXT) ? getLastUid(mailbox) + 1 : -1,
+            mailbox.getUidValidity());
+    }
+
+    @Override
+    public Map<CassandraId, MailboxCounters> getMailboxCounters(Collection<Mailbox<CassandraId>> mailboxes, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        return SimpleMailboxCounters.computeEach(this, mailboxes, counters);
+    }
+
+    private long[] readCounters(Mailbox<CassandraId> mailbox) {
+        // read both counters with a single query
+        ResultSet results = session.execute(
+            select(CassandraMailboxCountersTable.COUNT, CassandraMailboxCountersTable.UNSEEN)
+                .from(CassandraMailboxCountersTable.TABLE_NAME)
+                .where(eq(CassandraMailboxCountersTable.MAILBOX_ID, mailbox.getMailboxId().asUuid())));
+        long count = 0;
+        long unseen = 0;
+        if (!results.isExhausted()) {
+            Row row = results.one();
+            if (!row.isNull(CassandraMailboxCountersTable.COUNT)) {
+                count = row.getLong(CassandraMailboxCountersTable.COUNT);
+            }
+            if (!row.isNull(CassandraMailboxCountersTable.UNSEEN)) {
+                unseen = row.getLong(CassandraMailboxCountersTable.UNSEEN);
+            }
+        }
+        return new long[] { count, unseen };
+    }
+
     @Override
     public List<Long> findRecentMessageUidsInMailbox(Mailbox<CassandraId> mailbox) throws MailboxException {
         return CassandraUtils.convertToStream(session.execute(selectAll(mailbox).and((eq(RECENT, true)))))
@@ -282,7 +326,7 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
                 row.getDate(INTERNAL_DATE),
                 row.getInt(FULL_CONTENT_OCTETS),
                 row.getInt(BODY_START_OCTET),
-                new SharedByteArrayInputStream(getFullContent(row)),
+                new SharedByteBufferInputStream(getFullContent(row)),
                 getFlags(row),
                 getPropertyBuilder(row),
                 CassandraId.of(row.getUUID(MAILBOX_ID)));
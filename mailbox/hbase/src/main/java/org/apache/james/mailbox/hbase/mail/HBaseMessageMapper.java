@@ -42,11 +42,13 @@ import static org.apache.james.mailbox.hbase.HBaseUtils.metadataToPut;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.mail.Flags;
 
@@ -67,11 +69,13 @@ import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.hbase.HBaseId;
 import org.apache.james.mailbox.hbase.io.ChunkOutputStream;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.MessageRange.Type;
 import org.apache.james.mailbox.model.UpdatedFlags;
 import org.apache.james.mailbox.store.FlagsUpdateCalculator;
+import org.apache.james.mailbox.store.SimpleMailboxCounters;
 import org.apache.james.mailbox.store.SimpleMessageMetaData;
 import org.apache.james.mailbox.store.mail.MessageMapper;
 import org.apache.james.mailbox.store.mail.ModSeqProvider;
@@ -588,6 +592,24 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         return modSeqProvider.highestModSeq(mailboxSession, mailbox);
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.mailbox.store.mail.MessageMapper#getMailboxCounters(org.apache.james.mailbox.store.mail.model.Mailbox, java.util.Set)
+     */
+    @Override
+    public MailboxCounters getMailboxCounters(Mailbox<HBaseId> mailbox, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        return SimpleMailboxCounters.compute(this, mailbox, counters);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.mailbox.store.mail.MessageMapper#getMailboxCounters(java.util.Collection, java.util.Set)
+     */
+    @Override
+    public Map<HBaseId, MailboxCounters> getMailboxCounters(Collection<Mailbox<HBaseId>> mailboxes, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        return SimpleMailboxCounters.computeEach(this, mailboxes, counters);
+    }
+
     /**
      * Save the {@link MailboxMessage} for the given {@link Mailbox} and return the {@link MessageMetaData}
      *
@@ -18,10 +18,17 @@
  ****************************************************************/
 package org.apache.james.mailbox.jpa.mail;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Flags;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -37,9 +44,11 @@ import org.apache.james.mailbox.jpa.mail.model.openjpa.AbstractJPAMailboxMessage
 import org.apache.james.mailbox.jpa.mail.model.openjpa.JPAEncryptedMailboxMessage;
 import org.apache.james.mailbox.jpa.mail.model.openjpa.JPAMailboxMessage;
 import org.apache.james.mailbox.jpa.mail.model.openjpa.JPAStreamingMailboxMessage;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.MessageRange.Type;
+import org.apache.james.mailbox.store.SimpleMailboxCounters;
 import org.apache.james.mailbox.store.SimpleMessageMetaData;
 import org.apache.james.mailbox.store.mail.AbstractMessageMapper;
 import org.apache.james.mailbox.store.mail.MessageMapper;
@@ -55,6 +64,8 @@ import org.apache.openjpa.persistence.ArgumentException;
 public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements MessageMapper<JPAId> {
     protected EntityManagerFactory entityManagerFactory;
     protected EntityManager entityManager;
+    /** Changes of the counters per mailbox id, applied to the mailbox rows on commit */
+    private final Map<Long, long[]> counterChanges = new HashMap<Long, long[]>();
 
     public JPAMessageMapper(final MailboxSession session, final UidProvider<JPAId> uidProvider,
             ModSeqProvider<JPAId> modSeqProvider, final EntityManagerFactory entityManagerFactory) {
@@ -79,6 +90,7 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
      * @see org.apache.james.mailbox.store.transaction.TransactionalMapper#begin()
      */
     protected void begin() throws MailboxException {
+        counterChanges.clear();
         try {
             getEntityManager().getTransaction().begin();
         } catch (PersistenceException e) {
@@ -87,10 +99,12 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
     }
 
     /**
-     * Commit the Transaction and close the EntityManager
+     * Apply the counter changes of the Transaction and commit it. The counters are
+     * updated last so the mailbox rows are only locked for the commit itself
      */
     protected void commit() throws MailboxException {
         try {
+            applyCounterChanges();
             getEntityManager().getTransaction().commit();
         } catch (PersistenceException e) {
             throw new MailboxException("Commit of transaction failed", e);
@@ -101,6 +115,7 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
      * @see org.apache.james.mailbox.store.transaction.TransactionalMapper#rollback()
      */
     protected void rollback() throws MailboxException {
+        counterChanges.clear();
         EntityTransaction transaction = entityManager.getTransaction();
         // check if we have a transaction to rollback
         if (transaction.isActive()) {
@@ -179,6 +194,151 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
         }
     }
 
+    /**
+     * Read the counters maintained in the mailbox row
+     * 
+     * @see org.apache.james.mailbox.store.mail.AbstractMessageMapper#getMailboxCounters(Mailbox, Set)
+     */
+    @Override
+    public MailboxCounters getMailboxCounters(Mailbox<JPAId> mailbox, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        MailboxCounters result = getMailboxCounters(Collections.singletonList(mailbox), counters).get(mailbox.getMailboxId());
+        if (result == null) {
+            throw new MailboxException("Mailbox " + mailbox + " not found");
+        }
+        return result;
+    }
+
+    /**
+     * Read the counters maintained in the mailbox rows of all mailboxes with one query. Mailboxes
+     * which no longer exist are left out.
+     * 
+     * @see org.apache.james.mailbox.store.mail.AbstractMessageMapper#getMailboxCounters(Collection, Set)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<JPAId, MailboxCounters> getMailboxCounters(Collection<Mailbox<JPAId>> mailboxes, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        final Map<JPAId, MailboxCounters> result = new LinkedHashMap<JPAId, MailboxCounters>();
+        if (mailboxes.isEmpty()) {
+            return result;
+        }
+        try {
+            final List<Long> ids = new ArrayList<Long>(mailboxes.size());
+            for (Mailbox<JPAId> mailbox : mailboxes) {
+                ids.add(mailbox.getMailboxId().getRawId());
+            }
+            final Map<Long, Object[]> rows = new HashMap<Long, Object[]>();
+            for (Object[] row : (List<Object[]>) getEntityManager().createNamedQuery("findMailboxCounters")
+                    .setParameter("idsParam", ids).getResultList()) {
+                rows.put((Long) row[0], row);
+            }
+            for (Mailbox<JPAId> mailbox : mailboxes) {
+                Object[] row = rows.get(mailbox.getMailboxId().getRawId());
+                if (row != null) {
+                    result.put(mailbox.getMailboxId(), toMailboxCounters(mailbox, row, counters));
+                }
+            }
+            return result;
+        } catch (PersistenceException e) {
+            throw new MailboxException("Read of the counters failed for mailboxes " + mailboxes, e);
+        }
+    }
+
+    private MailboxCounters toMailboxCounters(Mailbox<JPAId> mailbox, Object[] row, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        long[] stored;
+        if (row[1] != null) {
+            stored = new long[] { (Long) row[1], (Long) row[2], (Long) row[3] };
+            long[] changes = counterChanges.get(mailbox.getMailboxId().getRawId());
+            if (changes != null) {
+                for (int i = 0; i < stored.length; i++) {
+                    stored[i] += changes[i];
+                }
+            }
+        } else if (getEntityManager().getTransaction().isActive()) {
+            // the counts may already include the pending changes, so only store them
+            // from a transaction of their own
+            stored = countMessages(mailbox);
+        } else {
+            stored = initCounters(mailbox);
+        }
+        return new SimpleMailboxCounters(
+            counters.contains(MailboxCounters.Counter.MESSAGES) ? stored[0] : -1,
+            counters.contains(MailboxCounters.Counter.UNSEEN) ? stored[1] : -1,
+            counters.contains(MailboxCounters.Counter.RECENT) ? stored[2] : -1,
+            counters.contains(MailboxCounters.Counter.HIGHEST_MODSEQ) ? (Long) row[4] : -1,
+            counters.contains(MailboxCounters.Counter.UID_NEXT) ? (Long) row[5] + 1 : -1,
+            mailbox.getUidValidity());
+    }
+
+    /**
+     * Count the messages of a mailbox which was created before the counters existed and store the
+     * counters in its row. The row is locked by resetting the counters first, so the counter changes of
+     * concurrent transactions are applied on top of the counted values once they commit.
+     */
+    private long[] initCounters(Mailbox<JPAId> mailbox) throws MailboxException {
+        final long id = mailbox.getMailboxId().getRawId();
+        final EntityTransaction transaction = getEntityManager().getTransaction();
+        try {
+            transaction.begin();
+            getEntityManager().createNamedQuery("resetUnknownMailboxCounters").setParameter("idParam", id).executeUpdate();
+            long[] counted = countMessages(mailbox);
+            getEntityManager().createNamedQuery("setMailboxCounters")
+                .setParameter("idParam", id)
+                .setParameter("messagesParam", counted[0])
+                .setParameter("unseenParam", counted[1])
+                .setParameter("recentParam", counted[2])
+                .executeUpdate();
+            transaction.commit();
+            return counted;
+        } catch (PersistenceException e) {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw new MailboxException("Init of the counters failed in mailbox " + mailbox, e);
+        }
+    }
+
+    private long[] countMessages(Mailbox<JPAId> mailbox) throws MailboxException {
+        return new long[] {
+            countMessagesInMailbox(mailbox),
+            countUnseenMessagesInMailbox(mailbox),
+            findRecentMessageUidsInMailbox(mailbox).size() };
+    }
+
+    /**
+     * Remember the changes and apply them to the mailbox row on commit
+     * 
+     * @see org.apache.james.mailbox.store.mail.AbstractMessageMapper#updateCounters(Mailbox, long, long, long)
+     */
+    @Override
+    protected void updateCounters(Mailbox<JPAId> mailbox, long messages, long unseen, long recent) {
+        long[] changes = counterChanges.get(mailbox.getMailboxId().getRawId());
+        if (changes == null) {
+            changes = new long[3];
+            counterChanges.put(mailbox.getMailboxId().getRawId(), changes);
+        }
+        changes[0] += messages;
+        changes[1] += unseen;
+        changes[2] += recent;
+    }
+
+    private void applyCounterChanges() {
+        try {
+            for (Map.Entry<Long, long[]> entry : counterChanges.entrySet()) {
+                long[] changes = entry.getValue();
+                if (changes[0] != 0 || changes[1] != 0 || changes[2] != 0) {
+                    getEntityManager().createNamedQuery("updateMailboxCounters")
+                        .setParameter("idParam", entry.getKey())
+                        .setParameter("messagesParam", changes[0])
+                        .setParameter("unseenParam", changes[1])
+                        .setParameter("recentParam", changes[2])
+                        .executeUpdate();
+                }
+            }
+        } finally {
+            counterChanges.clear();
+        }
+    }
+
     /**
      * @see org.apache.james.mailbox.store.mail.MessageMapper#delete(org.apache.james.mailbox.store.mail.model.Mailbox,
      *      MailboxMessage)
@@ -186,6 +346,7 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
     public void delete(Mailbox<JPAId> mailbox, MailboxMessage<JPAId> message) throws MailboxException {
         try {
             getEntityManager().remove(message);
+            updateCounters(mailbox, -1, message.isSeen() ? 0 : -1, message.isRecent() ? -1 : 0);
         } catch (PersistenceException e) {
             throw new MailboxException("Delete of message " + message + " failed in mailbox " + mailbox, e);
         }
@@ -257,6 +418,10 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
                 deleteDeletedMessagesInMailbox(mailbox);
                 break;
             }
+            for (MessageMetaData metaData : data.values()) {
+                Flags flags = metaData.getFlags();
+                updateCounters(mailbox, -1, flags.contains(Flags.Flag.SEEN) ? 0 : -1, flags.contains(Flags.Flag.RECENT) ? -1 : 0);
+            }
 
             return data;
         } catch (PersistenceException e) {
@@ -57,7 +57,15 @@ import org.apache.james.mailbox.store.mail.model.Mailbox;
     @NamedQuery(name="findHighestModSeq",
         query="SELECT mailbox.highestModSeq FROM Mailbox mailbox WHERE mailbox.mailboxId = :idParam"),
     @NamedQuery(name="findLastUid",
-        query="SELECT mailbox.lastUid FROM Mailbox mailbox WHERE mailbox.mailboxId = :idParam")
+        query="SELECT mailbox.lastUid FROM Mailbox mailbox WHERE mailbox.mailboxId = :idParam"),
+    @NamedQuery(name="findMailboxCounters",
+        query="SELECT mailbox.mailboxId, mailbox.messageCount, mailbox.unseenCount, mailbox.recentCount, mailbox.highestModSeq, mailbox.lastUid FROM Mailbox mailbox WHERE mailbox.mailboxId IN :idsParam"),
+    @NamedQuery(name="updateMailboxCounters",
+        query="UPDATE Mailbox mailbox SET mailbox.messageCount = mailbox.messageCount + :messagesParam, mailbox.unseenCount = mailbox.unseenCount + :unseenParam, mailbox.recentCount = mailbox.recentCount + :recentParam WHERE mailbox.mailboxId = :idParam"),
+    @NamedQuery(name="resetUnknownMailboxCounters",
+        query="UPDATE Mailbox mailbox SET mailbox.messageCount = 0, mailbox.unseenCount = 0, mailbox.recentCount = 0 WHERE mailbox.mailboxId = :idParam AND mailbox.messageCount IS NULL"),
+    @NamedQuery(name="setMailboxCounters",
+        query="UPDATE Mailbox mailbox SET mailbox.messageCount = :messagesParam, mailbox.unseenCount = :unseenParam, mailbox.recentCount = :recentParam WHERE mailbox.mailboxId = :idParam")
 })
 public class JPAMailbox implements Mailbox<JPAId> {
     
@@ -94,6 +102,22 @@ public class JPAMailbox implements Mailbox<JPAId> {
     @Basic(optional = false)
     @Column(name = "MAILBOX_HIGHEST_MODSEQ", nullable = false)
     private long highestModSeq;
+
+    /**
+     * The message counters are maintained by the JPAMessageMapper with bulk updates only. They are
+     * <code>null</code> for mailboxes which were created before the counters existed.
+     */
+    @Basic(optional = true)
+    @Column(name = "MAILBOX_MESSAGE_COUNT", nullable = true, updatable = false)
+    private Long messageCount;
+
+    @Basic(optional = true)
+    @Column(name = "MAILBOX_UNSEEN_COUNT", nullable = true, updatable = false)
+    private Long unseenCount;
+
+    @Basic(optional = true)
+    @Column(name = "MAILBOX_RECENT_COUNT", nullable = true, updatable = false)
+    private Long recentCount;
     
     /**
      * JPA only
@@ -109,6 +133,9 @@ public class JPAMailbox implements Mailbox<JPAId> {
         this.user = path.getUser();
         this.namespace = path.getNamespace();
         this.uidValidity = uidValidity;
+        this.messageCount = 0L;
+        this.unseenCount = 0L;
+        this.recentCount = 0L;
     }
 
     /**
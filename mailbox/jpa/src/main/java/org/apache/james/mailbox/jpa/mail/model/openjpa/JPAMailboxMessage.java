@@ -21,6 +21,8 @@ package org.apache.james.mailbox.jpa.mail.model.openjpa;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 
 import javax.mail.Flags;
@@ -36,11 +38,12 @@ import org.apache.commons.io.IOUtils;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.jpa.mail.model.JPAMailbox;
 import org.apache.james.mailbox.store.mail.model.MailboxMessage;
+import org.apache.james.mailbox.store.mail.model.ZeroCopyMessage;
 import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
 
 @Entity(name="MailboxMessage")
 @Table(name="JAMES_MAIL")
-public class JPAMailboxMessage extends AbstractJPAMailboxMessage {
+public class JPAMailboxMessage extends AbstractJPAMailboxMessage implements ZeroCopyMessage {
 
     /** The value for the body field. Lazy loaded */
     /** We use a max length to represent 1gb data. Thats prolly overkill, but who knows */
@@ -93,4 +96,27 @@ public class JPAMailboxMessage extends AbstractJPAMailboxMessage {
         return new ByteArrayInputStream(header);
     }
 
+    /**
+     * Header and body are stored as two separate arrays, so the full content can not be exposed without copying
+     */
+    @Override
+    public ByteBuffer getFullContentBuffer() throws IOException {
+        return null;
+    }
+
+    @Override
+    public ByteBuffer getBodyContentBuffer() throws IOException {
+        return ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+
+    @Override
+    public FileChannel getFullContentChannel() throws IOException {
+        return null;
+    }
+
+    @Override
+    public FileChannel getBodyContentChannel() throws IOException {
+        return null;
+    }
+
 }
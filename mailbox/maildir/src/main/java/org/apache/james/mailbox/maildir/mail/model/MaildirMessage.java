@@ -20,9 +20,9 @@ package org.apache.james.mailbox.maildir.mail.model;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.james.mailbox.maildir.MaildirMessageName;
-import org.apache.james.mailbox.store.mail.model.Message;
 import org.apache.james.mailbox.store.mail.model.MessageId;
 import org.apache.james.mailbox.store.mail.model.Property;
+import org.apache.james.mailbox.store.mail.model.ZeroCopyMessage;
 import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
 import org.apache.james.mailbox.store.streaming.CountingInputStream;
 import org.apache.james.mailbox.store.streaming.LimitingFileInputStream;
@@ -40,10 +40,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 import java.util.List;
 
-public class MaildirMessage implements Message {
+public class MaildirMessage implements ZeroCopyMessage {
 
     private final MaildirMessageName messageName;
     private int bodyStartOctet;
@@ -259,6 +261,28 @@ public class MaildirMessage implements Message {
 
     }
 
+    @Override
+    public ByteBuffer getFullContentBuffer() throws IOException {
+        return null;
+    }
+
+    @Override
+    public ByteBuffer getBodyContentBuffer() throws IOException {
+        return null;
+    }
+
+    @Override
+    public FileChannel getFullContentChannel() throws IOException {
+        return new FileInputStream(messageName.getFile()).getChannel();
+    }
+
+    @Override
+    public FileChannel getBodyContentChannel() throws IOException {
+        FileChannel channel = getFullContentChannel();
+        channel.position(getBodyStartOctet());
+        return channel;
+    }
+
     private int getBodyStartOctet() {
         parseMessage();
         return bodyStartOctet;
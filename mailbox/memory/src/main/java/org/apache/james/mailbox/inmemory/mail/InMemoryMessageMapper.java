@@ -25,7 +25,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
@@ -33,8 +36,10 @@ import javax.mail.Flags.Flag;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.inmemory.InMemoryId;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.store.SimpleMailboxCounters;
 import org.apache.james.mailbox.store.SimpleMessageMetaData;
 import org.apache.james.mailbox.store.mail.AbstractMessageMapper;
 import org.apache.james.mailbox.store.mail.ModSeqProvider;
@@ -46,12 +51,14 @@ import org.apache.james.mailbox.store.mail.model.impl.SimpleMailboxMessage;
 public class InMemoryMessageMapper extends AbstractMessageMapper<InMemoryId> {
 
     private final Map<InMemoryId, Map<Long, MailboxMessage<InMemoryId>>> mailboxByUid;
+    private final ConcurrentMap<InMemoryId, Counters> countersByMailbox;
     private static final int INITIAL_SIZE = 256;
 
     public InMemoryMessageMapper(MailboxSession session, UidProvider<InMemoryId> uidProvider,
             ModSeqProvider<InMemoryId> modSeqProvider) {
         super(session, uidProvider, modSeqProvider);
         this.mailboxByUid = new ConcurrentHashMap<InMemoryId, Map<Long, MailboxMessage<InMemoryId>>>(INITIAL_SIZE);
+        this.countersByMailbox = new ConcurrentHashMap<InMemoryId, Counters>(INITIAL_SIZE);
     }
 
     private Map<Long, MailboxMessage<InMemoryId>> getMembershipByUidForMailbox(Mailbox<InMemoryId> mailbox) {
@@ -63,6 +70,18 @@ public class InMemoryMessageMapper extends AbstractMessageMapper<InMemoryId> {
         return membershipByUid;
     }
 
+    private Counters getCountersForMailbox(Mailbox<InMemoryId> mailbox) {
+        Counters counters = countersByMailbox.get(mailbox.getMailboxId());
+        if (counters == null) {
+            counters = new Counters();
+            Counters existing = countersByMailbox.putIfAbsent(mailbox.getMailboxId(), counters);
+            if (existing != null) {
+                counters = existing;
+            }
+        }
+        return counters;
+    }
+
     /**
      * @see org.apache.james.mailbox.store.mail.MessageMapper#countMessagesInMailbox(org.apache.james.mailbox.store.mail.model.Mailbox)
      */
@@ -74,13 +93,23 @@ public class InMemoryMessageMapper extends AbstractMessageMapper<InMemoryId> {
      * @see org.apache.james.mailbox.store.mail.MessageMapper#countUnseenMessagesInMailbox(org.apache.james.mailbox.store.mail.model.Mailbox)
      */
     public long countUnseenMessagesInMailbox(Mailbox<InMemoryId> mailbox) throws MailboxException {
-        long count = 0;
-        for (MailboxMessage<InMemoryId> member : getMembershipByUidForMailbox(mailbox).values()) {
-            if (!member.isSeen()) {
-                count++;
-            }
-        }
-        return count;
+        return getCountersForMailbox(mailbox).unseen.get();
+    }
+
+    /**
+     * Read the maintained message counters without iterating over the messages
+     * 
+     * @see org.apache.james.mailbox.store.mail.AbstractMessageMapper#getMailboxCounters(org.apache.james.mailbox.store.mail.model.Mailbox, java.util.Set)
+     */
+    @Override
+    public MailboxCounters getMailboxCounters(Mailbox<InMemoryId> mailbox, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        Counters maintained = getCountersForMailbox(mailbox);
+        long count = counters.contains(MailboxCounters.Counter.MESSAGES) ? getMembershipByUidForMailbox(mailbox).size() : -1;
+        long unseen = counters.contains(MailboxCounters.Counter.UNSEEN) ? maintained.unseen.get() : -1;
+        long recent = counters.contains(MailboxCounters.Counter.RECENT) ? maintained.recent.get() : -1;
+        long highestModSeq = counters.contains(MailboxCounters.Counter.HIGHEST_MODSEQ) ? getHighestModSeq(mailbox) : -1;
+        long uidNext = counters.contains(MailboxCounters.Counter.UID_NEXT) ? getLastUid(mailbox) + 1 : -1;
+        return new SimpleMailboxCounters(count, unseen, recent, highestModSeq, uidNext, mailbox.getUidValidity());
     }
 
     /**
@@ -88,7 +117,20 @@ public class InMemoryMessageMapper extends AbstractMessageMapper<InMemoryId> {
      *      MailboxMessage)
      */
     public void delete(Mailbox<InMemoryId> mailbox, MailboxMessage<InMemoryId> message) throws MailboxException {
-        getMembershipByUidForMailbox(mailbox).remove(message.getUid());
+        MailboxMessage<InMemoryId> removed = getMembershipByUidForMailbox(mailbox).remove(message.getUid());
+        if (removed != null) {
+            updateCounters(mailbox, -1, removed.isSeen() ? 0 : -1, removed.isRecent() ? -1 : 0);
+        }
+    }
+
+    /**
+     * @see org.apache.james.mailbox.store.mail.AbstractMessageMapper#updateCounters(org.apache.james.mailbox.store.mail.model.Mailbox, long, long, long)
+     */
+    @Override
+    protected void updateCounters(Mailbox<InMemoryId> mailbox, long messages, long unseen, long recent) {
+        Counters counters = getCountersForMailbox(mailbox);
+        counters.unseen.addAndGet(unseen);
+        counters.recent.addAndGet(recent);
     }
 
     /**
@@ -188,6 +230,7 @@ public class InMemoryMessageMapper extends AbstractMessageMapper<InMemoryId> {
 
     public void deleteAll() {
         mailboxByUid.clear();
+        countersByMailbox.clear();
     }
 
     /**
@@ -257,4 +300,12 @@ public class InMemoryMessageMapper extends AbstractMessageMapper<InMemoryId> {
      */
     protected void rollback() throws MailboxException {
     }
+
+    /**
+     * The unseen and recent counts of a mailbox. The message count is the size of its membership map.
+     */
+    private static final class Counters {
+        private final AtomicLong unseen = new AtomicLong();
+        private final AtomicLong recent = new AtomicLong();
+    }
 }
@@ -0,0 +1,144 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailbox.store;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxCounters;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.MailboxId;
+
+public class SimpleMailboxCounters implements MailboxCounters {
+
+    /**
+     * Compute the requested counters with the count methods of the given
+     * {@link MessageMapper}. Counters which were not requested are set to -1.
+     * 
+     * @param mapper
+     * @param mailbox
+     * @param counters
+     * @return mailboxCounters
+     * @throws MailboxException
+     */
+    public static <Id extends MailboxId> MailboxCounters compute(MessageMapper<Id> mapper, Mailbox<Id> mailbox, Set<Counter> counters) throws MailboxException {
+        long messageCount = -1;
+        long unseenCount = -1;
+        long recentCount = -1;
+        long highestModSeq = -1;
+        long uidNext = -1;
+        if (counters.contains(Counter.MESSAGES)) {
+            messageCount = mapper.countMessagesInMailbox(mailbox);
+        }
+        if (counters.contains(Counter.UNSEEN)) {
+            unseenCount = mapper.countUnseenMessagesInMailbox(mailbox);
+        }
+        if (counters.contains(Counter.RECENT)) {
+            recentCount = mapper.findRecentMessageUidsInMailbox(mailbox).size();
+        }
+        if (counters.contains(Counter.HIGHEST_MODSEQ)) {
+            highestModSeq = mapper.getHighestModSeq(mailbox);
+        }
+        if (counters.contains(Counter.UID_NEXT)) {
+            uidNext = mapper.getLastUid(mailbox) + 1;
+        }
+        return new SimpleMailboxCounters(messageCount, unseenCount, recentCount, highestModSeq, uidNext, mailbox.getUidValidity());
+    }
+
+    /**
+     * Read the requested counters of each given {@link Mailbox} with
+     * {@link MessageMapper#getMailboxCounters(Mailbox, Set)}.
+     * 
+     * @param mapper
+     * @param mailboxes
+     * @param counters
+     * @return mailboxCounters keyed by the id of the mailboxes
+     * @throws MailboxException
+     */
+    public static <Id extends MailboxId> Map<Id, MailboxCounters> computeEach(MessageMapper<Id> mapper, Collection<Mailbox<Id>> mailboxes, Set<Counter> counters) throws MailboxException {
+        Map<Id, MailboxCounters> result = new LinkedHashMap<Id, MailboxCounters>();
+        for (Mailbox<Id> mailbox : mailboxes) {
+            result.put(mailbox.getMailboxId(), mapper.getMailboxCounters(mailbox, counters));
+        }
+        return result;
+    }
+
+    private final long messageCount;
+    private final long unseenCount;
+    private final long recentCount;
+    private final long highestModSeq;
+    private final long uidNext;
+    private final long uidValidity;
+
+    public SimpleMailboxCounters(long messageCount, long unseenCount, long recentCount, long highestModSeq, long uidNext, long uidValidity) {
+        this.messageCount = messageCount;
+        this.unseenCount = unseenCount;
+        this.recentCount = recentCount;
+        this.highestModSeq = highestModSeq;
+        this.uidNext = uidNext;
+        this.uidValidity = uidValidity;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.MailboxCounters#getMessageCount()
+     */
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.MailboxCounters#getUnseenCount()
+     */
+    public long getUnseenCount() {
+        return unseenCount;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.MailboxCounters#getRecentCount()
+     */
+    public long getRecentCount() {
+        return recentCount;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.MailboxCounters#getHighestModSeq()
+     */
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.MailboxCounters#getUidNext()
+     */
+    public long getUidNext() {
+        return uidNext;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.MailboxCounters#getUidValidity()
+     */
+    public long getUidValidity() {
+        return uidValidity;
+    }
+}
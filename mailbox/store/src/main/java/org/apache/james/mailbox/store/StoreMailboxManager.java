@@ -20,11 +20,15 @@
 package org.apache.james.mailbox.store;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -47,6 +51,7 @@ import org.apache.james.mailbox.exception.MailboxExistsException;
 import org.apache.james.mailbox.exception.MailboxNotFoundException;
 import org.apache.james.mailbox.model.MailboxACL;
 import org.apache.james.mailbox.model.MailboxConstants;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MailboxMetaData;
 import org.apache.james.mailbox.model.MailboxMetaData.Selectability;
 import org.apache.james.mailbox.model.MailboxPath;
@@ -602,6 +607,34 @@ public class StoreMailboxManager<Id extends MailboxId> implements MailboxManager
 
     }
 
+    @Override
+    public Map<MailboxPath, MailboxCounters> getMailboxCounters(Collection<MailboxPath> mailboxPaths, Set<MailboxCounters.Counter> requested, MailboxSession session) throws MailboxException {
+        // resolve all mailboxes first so the MessageMapper can read the
+        // counters of all of them at once
+        final MailboxMapper<Id> mailboxMapper = mailboxSessionMapperFactory.getMailboxMapper(session);
+        final Map<MailboxPath, Mailbox<Id>> mailboxes = new LinkedHashMap<MailboxPath, Mailbox<Id>>();
+        for (MailboxPath mailboxPath : mailboxPaths) {
+            try {
+                Mailbox<Id> mailbox = mailboxMapper.findMailboxByPath(mailboxPath);
+                if (mailbox != null) {
+                    mailboxes.put(mailboxPath, mailbox);
+                }
+            } catch (MailboxNotFoundException e) {
+                session.getLog().debug("Mailbox '" + mailboxPath + "' not found, skip its counters");
+            }
+        }
+        final Map<Id, MailboxCounters> countersById = mailboxSessionMapperFactory.getMessageMapper(session).getMailboxCounters(mailboxes.values(), requested);
+        final Map<MailboxPath, MailboxCounters> counters = new LinkedHashMap<MailboxPath, MailboxCounters>();
+        for (Map.Entry<MailboxPath, Mailbox<Id>> entry : mailboxes.entrySet()) {
+            MailboxCounters mailboxCounters = countersById.get(entry.getValue().getMailboxId());
+            // the mailbox may have been deleted in the meantime
+            if (mailboxCounters != null) {
+                counters.put(entry.getKey(), mailboxCounters);
+            }
+        }
+        return counters;
+    }
+
     @Override
     public void addListener(MailboxPath path, MailboxListener listener, MailboxSession session) throws MailboxException {
         delegatingListener.addListener(path, listener, session);
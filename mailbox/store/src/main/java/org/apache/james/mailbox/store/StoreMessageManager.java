@@ -28,6 +28,7 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -51,6 +52,7 @@ import org.apache.james.mailbox.exception.ReadOnlyException;
 import org.apache.james.mailbox.exception.UnsupportedRightException;
 import org.apache.james.mailbox.model.MailboxACL;
 import org.apache.james.mailbox.model.MailboxACL.MailboxACLRights;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.MessageResult.FetchGroup;
@@ -248,27 +250,38 @@ public class StoreMessageManager<Id extends MailboxId> implements org.apache.jam
      * @see org.apache.james.mailbox.MessageManager#appendMessage(java.io.InputStream,
      *      java.util.Date, org.apache.james.mailbox.MailboxSession, boolean,
      *      javax.mail.Flags)
+     *
+     * A message given as {@link SharedInputStream} is read in place, any other
+     * stream is copied to a temporary file first.
      */
     public long appendMessage(final InputStream msgIn, Date internalDate, final MailboxSession mailboxSession, final boolean isRecent, final Flags flagsToBeSet) throws MailboxException {
 
         File file = null;
-        TeeInputStream tmpMsgIn = null;
+        InputStream tmpMsgIn = null;
         BodyOffsetInputStream bIn = null;
         FileOutputStream out = null;
-        SharedFileInputStream contentIn = null;
+        InputStream contentIn = null;
 
         if (!isWriteable(mailboxSession)) {
             throw new ReadOnlyException(new StoreMailboxPath<Id>(getMailboxEntity()), mailboxSession.getPathDelimiter());
         }
 
         try {
-            // Create a temporary file and copy the message to it. We will work
-            // with the file as
-            // source for the InputStream
-            file = File.createTempFile("imap", ".msg");
-            out = new FileOutputStream(file);
+            if (msgIn instanceof SharedInputStream) {
+                // The message can be read again, so there is no need to copy
+                // it. This allows to append it to many mailboxes without
+                // spooling it for each of them
+                SharedInputStream sharedIn = (SharedInputStream) msgIn;
+                tmpMsgIn = sharedIn.newStream(sharedIn.getPosition(), -1);
+            } else {
+                // Create a temporary file and copy the message to it. We will work
+                // with the file as
+                // source for the InputStream
+                file = File.createTempFile("imap", ".msg");
+                out = new FileOutputStream(file);
 
-            tmpMsgIn = new TeeInputStream(msgIn, out);
+                tmpMsgIn = new TeeInputStream(msgIn, out);
+            }
 
             bIn = new BodyOffsetInputStream(tmpMsgIn);
             // Disable line length... This should be handled by the smtp server
@@ -359,7 +372,7 @@ public class StoreMessageManager<Id extends MailboxId> implements org.apache.jam
                 internalDate = new Date();
             }
             byte[] discard = new byte[4096];
-            while (tmpMsgIn.read(discard) != -1) {
+            while (bIn.read(discard) != -1) {
                 // consume the rest of the stream so everything get copied to
                 // the file now
                 // via the TeeInputStream
@@ -368,10 +381,17 @@ public class StoreMessageManager<Id extends MailboxId> implements org.apache.jam
             if (bodyStartOctet == -1) {
                 bodyStartOctet = 0;
             }
-            contentIn = new SharedFileInputStream(file);
-            final int size = (int) file.length();
+            final int size;
+            if (file == null) {
+                SharedInputStream sharedIn = (SharedInputStream) msgIn;
+                contentIn = sharedIn.newStream(sharedIn.getPosition(), -1);
+                size = (int) bIn.getReadBytes();
+            } else {
+                contentIn = new SharedFileInputStream(file);
+                size = (int) file.length();
+            }
 
-            final MailboxMessage<Id> message = createMessage(internalDate, size, bodyStartOctet, contentIn, flags, propertyBuilder);
+            final MailboxMessage<Id> message = createMessage(internalDate, size, bodyStartOctet, (SharedInputStream) contentIn, flags, propertyBuilder);
 
             new QuotaChecker<Id>(quotaManager, quotaRootResolver, mailbox).tryAddition(1, size);
 
@@ -395,6 +415,7 @@ public class StoreMessageManager<Id extends MailboxId> implements org.apache.jam
         } finally {
             IOUtils.closeQuietly(bIn);
             IOUtils.closeQuietly(tmpMsgIn);
+            IOUtils.closeQuietly(msgIn);
             IOUtils.closeQuietly(out);
             IOUtils.closeQuietly(contentIn);
 
@@ -485,6 +506,13 @@ public class StoreMessageManager<Id extends MailboxId> implements org.apache.jam
         return new MailboxMetaData(recent, permanentFlags, uidValidity, uidNext, highestModSeq, messageCount, unseenCount, firstUnseen, isWriteable(mailboxSession), isModSeqPermanent(mailboxSession), resolvedAcl);
     }
 
+    /**
+     * @see MessageManager#getMailboxCounters(MailboxSession, Set)
+     */
+    public MailboxCounters getMailboxCounters(MailboxSession mailboxSession, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        return mapperFactory.getMessageMapper(mailboxSession).getMailboxCounters(getMailboxEntity(), counters);
+    }
+
     /**
      * Check if the given {@link Flags} contains {@link Flags} which are not
      * included in the returned {@link Flags} of
@@ -19,17 +19,22 @@
 package org.apache.james.mailbox.store.mail;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.mail.Flags;
 
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.UpdatedFlags;
 import org.apache.james.mailbox.store.FlagsUpdateCalculator;
+import org.apache.james.mailbox.store.SimpleMailboxCounters;
 import org.apache.james.mailbox.store.mail.model.MailboxId;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.MailboxMessage;
@@ -65,6 +70,40 @@ public abstract class AbstractMessageMapper<Id extends MailboxId> extends Transa
     public long getLastUid(Mailbox<Id> mailbox) throws MailboxException {
         return uidProvider.lastUid(mailboxSession, mailbox);
     }
+
+    /**
+     * Build the requested {@link MailboxCounters} out of the count methods. Sub classes should override
+     * this if they can read the counters in one go.
+     * 
+     * @see org.apache.james.mailbox.store.mail.MessageMapper#getMailboxCounters(org.apache.james.mailbox.store.mail.model.Mailbox, java.util.Set)
+     */
+    public MailboxCounters getMailboxCounters(Mailbox<Id> mailbox, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        return SimpleMailboxCounters.compute(this, mailbox, counters);
+    }
+
+    /**
+     * Read the counters of each {@link Mailbox} with {@link #getMailboxCounters(Mailbox, Set)}. Sub classes
+     * should override this if they can read the counters of several mailboxes in one go.
+     * 
+     * @see org.apache.james.mailbox.store.mail.MessageMapper#getMailboxCounters(java.util.Collection, java.util.Set)
+     */
+    public Map<Id, MailboxCounters> getMailboxCounters(Collection<Mailbox<Id>> mailboxes, Set<MailboxCounters.Counter> counters) throws MailboxException {
+        return SimpleMailboxCounters.computeEach(this, mailboxes, counters);
+    }
+
+    /**
+     * Called after this class added a message to the {@link Mailbox} or changed the flags of one of its
+     * messages. Sub classes which maintain the message counters of a mailbox apply the given changes here
+     * and take care of deleted messages themselves. Does nothing by default.
+     * 
+     * @param mailbox
+     * @param messages change of the message count
+     * @param unseen change of the count of messages without the \Seen flag
+     * @param recent change of the count of messages with the \Recent flag
+     * @throws MailboxException
+     */
+    protected void updateCounters(Mailbox<Id> mailbox, long messages, long unseen, long recent) throws MailboxException {
+    }
     
     /**
      * @see org.apache.james.mailbox.store.mail.MessageMapper#updateFlags(org.apache.james.mailbox.store.mail.model.Mailbox, javax.mail.Flags, boolean, boolean, org.apache.james.mailbox.model.MessageRange)
@@ -89,6 +128,7 @@ public abstract class AbstractMessageMapper<Id extends MailboxId> extends Transa
                 // increase the mod-seq as we changed the flags
                 member.setModSeq(modSeq);
                 save(mailbox, member);
+                updateCounters(mailbox, 0, unseenChange(originalFlags, newFlags), recentChange(originalFlags, newFlags));
             }
 
             
@@ -113,6 +153,7 @@ public abstract class AbstractMessageMapper<Id extends MailboxId> extends Transa
             message.setModSeq(modSeqProvider.nextModSeq(mailboxSession, mailbox));
         }
         MessageMetaData data = save(mailbox, message);
+        updateCounters(mailbox, 1, message.isSeen() ? 0 : 1, message.isRecent() ? 1 : 0);
        
         return data;
         
@@ -129,10 +170,29 @@ public abstract class AbstractMessageMapper<Id extends MailboxId> extends Transa
             modSeq = modSeqProvider.nextModSeq(mailboxSession, mailbox);
         }
         final MessageMetaData metaData = copy(mailbox, uid, modSeq, original);  
+        Flags flags = metaData.getFlags();
+        updateCounters(mailbox, 1, flags.contains(Flags.Flag.SEEN) ? 0 : 1, flags.contains(Flags.Flag.RECENT) ? 1 : 0);
         
         return metaData;
     }
 
+    private static long unseenChange(Flags originalFlags, Flags newFlags) {
+        return -flagChange(originalFlags, newFlags, Flags.Flag.SEEN);
+    }
+
+    private static long recentChange(Flags originalFlags, Flags newFlags) {
+        return flagChange(originalFlags, newFlags, Flags.Flag.RECENT);
+    }
+
+    private static long flagChange(Flags originalFlags, Flags newFlags, Flags.Flag flag) {
+        boolean before = originalFlags.contains(flag);
+        boolean after = newFlags.contains(flag);
+        if (before == after) {
+            return 0;
+        }
+        return after ? 1 : -1;
+    }
+
    
     
     
@@ -18,11 +18,14 @@
  ****************************************************************/
 package org.apache.james.mailbox.store.mail;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.UpdatedFlags;
@@ -179,6 +182,28 @@ public interface MessageMapper<Id extends MailboxId> extends Mapper {
      * @throws MailboxException
      */
     long getHighestModSeq(Mailbox<Id> mailbox) throws MailboxException;
+
+    /**
+     * Return the requested {@link MailboxCounters} of the {@link Mailbox}. Implementations which
+     * maintain some of the counters should read them at once if their storage allows it.
+     * 
+     * @param mailbox
+     * @param counters the counters to compute
+     * @return counters
+     * @throws MailboxException
+     */
+    MailboxCounters getMailboxCounters(Mailbox<Id> mailbox, Set<MailboxCounters.Counter> counters) throws MailboxException;
+
+    /**
+     * Return the requested {@link MailboxCounters} of each of the given {@link Mailbox}es, keyed by their id.
+     * Implementations should read the counters of all mailboxes at once if their storage allows it.
+     * 
+     * @param mailboxes
+     * @param counters the counters to compute
+     * @return counters
+     * @throws MailboxException
+     */
+    Map<Id, MailboxCounters> getMailboxCounters(Collection<Mailbox<Id>> mailboxes, Set<MailboxCounters.Counter> counters) throws MailboxException;
     
     /**
      * Specify what data needs to get filled in a {@link MailboxMessage} before returning it
@@ -20,6 +20,8 @@ package org.apache.james.mailbox.store.mail.model;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 import java.util.List;
 
@@ -27,7 +29,7 @@ import javax.mail.Flags;
 
 import org.apache.james.mailbox.store.mail.model.impl.MessageUidComparator;
 
-public abstract class DelegatingMailboxMessage<Id extends MailboxId> implements MailboxMessage<Id> {
+public abstract class DelegatingMailboxMessage<Id extends MailboxId> implements MailboxMessage<Id>, ZeroCopyMessage {
 
     private static final MessageUidComparator MESSAGE_UID_COMPARATOR = new MessageUidComparator();
     
@@ -97,6 +99,38 @@ public abstract class DelegatingMailboxMessage<Id extends MailboxId> implements
         return message.getBodyContent();
     }
 
+    @Override
+    public ByteBuffer getFullContentBuffer() throws IOException {
+        if (message instanceof ZeroCopyMessage) {
+            return ((ZeroCopyMessage) message).getFullContentBuffer();
+        }
+        return null;
+    }
+
+    @Override
+    public ByteBuffer getBodyContentBuffer() throws IOException {
+        if (message instanceof ZeroCopyMessage) {
+            return ((ZeroCopyMessage) message).getBodyContentBuffer();
+        }
+        return null;
+    }
+
+    @Override
+    public FileChannel getFullContentChannel() throws IOException {
+        if (message instanceof ZeroCopyMessage) {
+            return ((ZeroCopyMessage) message).getFullContentChannel();
+        }
+        return null;
+    }
+
+    @Override
+    public FileChannel getBodyContentChannel() throws IOException {
+        if (message instanceof ZeroCopyMessage) {
+            return ((ZeroCopyMessage) message).getBodyContentChannel();
+        }
+        return null;
+    }
+
     @Override
     public String getMediaType() {
         return message.getMediaType();
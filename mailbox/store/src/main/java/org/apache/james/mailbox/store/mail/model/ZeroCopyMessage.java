@@ -0,0 +1,56 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailbox.store.mail.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Optional extension of {@link Message} implemented by backends which keep the
+ * message octets in memory or in a plain file. Methods return <code>null</code>
+ * if the requested representation is not available.
+ * 
+ * @see org.apache.james.mailbox.model.ZeroCopyContent
+ */
+public interface ZeroCopyMessage extends Message {
+
+    /**
+     * Return a read-only {@link ByteBuffer} holding the full content, or null
+     */
+    ByteBuffer getFullContentBuffer() throws IOException;
+
+    /**
+     * Return a read-only {@link ByteBuffer} holding the body content, or null
+     */
+    ByteBuffer getBodyContentBuffer() throws IOException;
+
+    /**
+     * Return a {@link FileChannel} positioned at the start of the full content, or null.
+     * The caller is responsible for closing it.
+     */
+    FileChannel getFullContentChannel() throws IOException;
+
+    /**
+     * Return a {@link FileChannel} positioned at the start of the body content, or null.
+     * The caller is responsible for closing it.
+     */
+    FileChannel getBodyContentChannel() throws IOException;
+}
@@ -24,13 +24,13 @@ import java.util.Date;
 
 import javax.mail.Flags;
 import javax.mail.internet.SharedInputStream;
-import javax.mail.util.SharedByteArrayInputStream;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.store.mail.model.DelegatingMailboxMessage;
 import org.apache.james.mailbox.store.mail.model.MailboxId;
 import org.apache.james.mailbox.store.mail.model.MailboxMessage;
+import org.apache.james.mailbox.store.streaming.SharedByteBufferInputStream;
 
 import com.google.common.base.Objects;
 import com.google.common.primitives.Ints;
@@ -41,15 +41,15 @@ public class SimpleMailboxMessage<Id extends MailboxId> extends DelegatingMailbo
         Date internalDate = original.getInternalDate();
         long size = original.getFullContentOctets();
         Flags flags = original.createFlags();
-        SharedByteArrayInputStream content = copyFullContent(original);
+        SharedByteBufferInputStream content = copyFullContent(original);
         int bodyStartOctet = Ints.checkedCast(original.getFullContentOctets() - original.getBodyOctets());
         PropertyBuilder pBuilder = new PropertyBuilder(original.getProperties());
         return new SimpleMailboxMessage<Id>(internalDate, size, bodyStartOctet, content, flags, pBuilder, mailboxId);
     }
 
-    private static <Id extends MailboxId> SharedByteArrayInputStream copyFullContent(MailboxMessage<Id> original) throws MailboxException {
+    private static <Id extends MailboxId> SharedByteBufferInputStream copyFullContent(MailboxMessage<Id> original) throws MailboxException {
         try {
-            return new SharedByteArrayInputStream(IOUtils.toByteArray(original.getFullContent()));
+            return new SharedByteBufferInputStream(IOUtils.toByteArray(original.getFullContent()));
         } catch (IOException e) {
             throw new MailboxException("Unable to parse message", e);
         }
@@ -18,17 +18,20 @@
  ****************************************************************/
 package org.apache.james.mailbox.store.mail.model.impl;
 
-import org.apache.james.mailbox.store.mail.model.Message;
 import org.apache.james.mailbox.store.mail.model.MessageId;
 import org.apache.james.mailbox.store.mail.model.Property;
+import org.apache.james.mailbox.store.mail.model.ZeroCopyMessage;
+import org.apache.james.mailbox.store.streaming.SharedByteBufferInputStream;
 
 import javax.mail.internet.SharedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 import java.util.List;
 
-public class SimpleMessage implements Message {
+public class SimpleMessage implements ZeroCopyMessage {
 
     private final String subType;
     private final String mediaType;
@@ -104,6 +107,33 @@ public class SimpleMessage implements Message {
         return content.newStream(0, -1);
     }
 
+    @Override
+    public ByteBuffer getFullContentBuffer() throws IOException {
+        return getContentBuffer(0);
+    }
+
+    @Override
+    public ByteBuffer getBodyContentBuffer() throws IOException {
+        return getContentBuffer(bodyStartOctet);
+    }
+
+    private ByteBuffer getContentBuffer(long start) {
+        if (content instanceof SharedByteBufferInputStream) {
+            return ((SharedByteBufferInputStream) content.newStream(start, -1)).asByteBuffer();
+        }
+        return null;
+    }
+
+    @Override
+    public FileChannel getFullContentChannel() throws IOException {
+        return null;
+    }
+
+    @Override
+    public FileChannel getBodyContentChannel() throws IOException {
+        return null;
+    }
+
     @Override
     public List<Property> getProperties() {
         return properties;
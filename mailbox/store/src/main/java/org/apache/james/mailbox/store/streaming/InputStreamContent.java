@@ -20,15 +20,20 @@ package org.apache.james.mailbox.store.streaming;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.james.mailbox.model.Content;
+import org.apache.james.mailbox.model.ZeroCopyContent;
 import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.ZeroCopyMessage;
 
 /**
- * {@link Content} which is stored in a {@link InputStream}
+ * {@link Content} which is stored in a {@link InputStream}. If the {@link Message} is a
+ * {@link ZeroCopyMessage} the octets are also exposed via {@link ZeroCopyContent}
  *
  */
-public final class InputStreamContent implements Content{
+public final class InputStreamContent implements ZeroCopyContent {
 
     private final Message m;
     private final Type type;
@@ -70,4 +75,34 @@ public final class InputStreamContent implements Content{
        
     }
 
+    /**
+     * @see org.apache.james.mailbox.model.ZeroCopyContent#getByteBuffer()
+     */
+    public ByteBuffer getByteBuffer() throws IOException {
+        if (m instanceof ZeroCopyMessage) {
+            switch (type) {
+            case Full:
+                return ((ZeroCopyMessage) m).getFullContentBuffer();
+            default:
+                return ((ZeroCopyMessage) m).getBodyContentBuffer();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.ZeroCopyContent#getFileChannel()
+     */
+    public FileChannel getFileChannel() throws IOException {
+        if (m instanceof ZeroCopyMessage) {
+            switch (type) {
+            case Full:
+                return ((ZeroCopyMessage) m).getFullContentChannel();
+            default:
+                return ((ZeroCopyMessage) m).getBodyContentChannel();
+            }
+        }
+        return null;
+    }
+
 }
@@ -0,0 +1,63 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailbox.store.streaming;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * {@link SharedByteArrayInputStream} which allows to access the remaining octets
+ * as {@link ByteBuffer} without copying them.
+ */
+public class SharedByteBufferInputStream extends SharedByteArrayInputStream {
+
+    public SharedByteBufferInputStream(byte[] buf) {
+        super(buf);
+    }
+
+    public SharedByteBufferInputStream(byte[] buf, int offset, int length) {
+        super(buf, offset, length);
+    }
+
+    /**
+     * Return a read-only {@link ByteBuffer} view of the octets which were not read yet
+     * 
+     * @return buffer
+     */
+    public synchronized ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(buf, pos, count - pos).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @see javax.mail.util.SharedByteArrayInputStream#newStream(long, long)
+     */
+    @Override
+    public InputStream newStream(long start, long end) {
+        if (start < 0) {
+            throw new IllegalArgumentException("start < 0");
+        }
+        if (end == -1) {
+            end = count - this.start;
+        }
+        return new SharedByteBufferInputStream(buf, this.start + (int) start, (int) (end - start));
+    }
+}
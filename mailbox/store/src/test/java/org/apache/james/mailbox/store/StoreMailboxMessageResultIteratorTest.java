@@ -22,6 +22,7 @@ package org.apache.james.mailbox.store;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +33,7 @@ import javax.mail.Flags;
 import javax.mail.util.SharedByteArrayInputStream;
 
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.MessageResult;
@@ -163,6 +165,16 @@ public class StoreMailboxMessageResultIteratorTest {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        public MailboxCounters getMailboxCounters(Mailbox<TestId> mailbox, Set<MailboxCounters.Counter> counters) throws MailboxException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<TestId, MailboxCounters> getMailboxCounters(Collection<Mailbox<TestId>> mailboxes, Set<MailboxCounters.Counter> counters) throws MailboxException {
+            throw new UnsupportedOperationException();
+        }
+
         @Override
         public MessageMetaData move(Mailbox<TestId> mailbox, MailboxMessage<TestId> original) throws MailboxException {
             throw new UnsupportedOperationException();
@@ -22,7 +22,9 @@ package org.apache.james.mailbox.store.mail.model;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -32,6 +34,7 @@ import javax.mail.util.SharedByteArrayInputStream;
 import org.apache.james.mailbox.FlagsBuilder;
 import org.apache.james.mailbox.MessageManager.FlagsUpdateMode;
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MailboxPath;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
@@ -142,6 +145,49 @@ public abstract class AbstractMessageMapperTest<Id extends MailboxId> {
         assertThat(messageMapper.countUnseenMessagesInMailbox(benwaInboxMailbox)).isEqualTo(4);
     }
 
+    @Test
+    public void emptyMailboxShouldHaveEmptyCounters() throws MailboxException {
+        MailboxCounters counters = messageMapper.getMailboxCounters(benwaInboxMailbox, EnumSet.allOf(MailboxCounters.Counter.class));
+        assertThat(counters.getMessageCount()).isEqualTo(0);
+        assertThat(counters.getUnseenCount()).isEqualTo(0);
+        assertThat(counters.getRecentCount()).isEqualTo(0);
+        assertThat(counters.getUidNext()).isEqualTo(messageMapper.getLastUid(benwaInboxMailbox) + 1);
+    }
+
+    @Test
+    public void mailboxCountersShouldMatchTheCountMethods() throws MailboxException {
+        saveMessages();
+        messageMapper.updateFlags(benwaInboxMailbox, new FlagsUpdateCalculator(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.REPLACE), MessageRange.one(message1.getUid()));
+        MailboxCounters counters = messageMapper.getMailboxCounters(benwaInboxMailbox, EnumSet.allOf(MailboxCounters.Counter.class));
+        assertThat(counters.getMessageCount()).isEqualTo(5);
+        assertThat(counters.getUnseenCount()).isEqualTo(4);
+        assertThat(counters.getRecentCount()).isEqualTo(messageMapper.findRecentMessageUidsInMailbox(benwaInboxMailbox).size());
+        assertThat(counters.getHighestModSeq()).isEqualTo(messageMapper.getHighestModSeq(benwaInboxMailbox));
+        assertThat(counters.getUidNext()).isEqualTo(message5.getUid() + 1);
+        assertThat(counters.getUidValidity()).isEqualTo(benwaInboxMailbox.getUidValidity());
+    }
+
+    @Test
+    public void mailboxCountersShouldOnlyComputeTheRequestedCounters() throws MailboxException {
+        saveMessages();
+        MailboxCounters counters = messageMapper.getMailboxCounters(benwaInboxMailbox, EnumSet.of(MailboxCounters.Counter.MESSAGES));
+        assertThat(counters.getMessageCount()).isEqualTo(5);
+        assertThat(counters.getUnseenCount()).isEqualTo(-1);
+        assertThat(counters.getRecentCount()).isEqualTo(-1);
+        assertThat(counters.getHighestModSeq()).isEqualTo(-1);
+        assertThat(counters.getUidNext()).isEqualTo(-1);
+        assertThat(counters.getUidValidity()).isEqualTo(benwaInboxMailbox.getUidValidity());
+    }
+
+    @Test
+    public void mailboxCountersShouldBeReadForEachMailbox() throws MailboxException {
+        saveMessages();
+        Map<Id, MailboxCounters> counters = messageMapper.getMailboxCounters(Arrays.<Mailbox<Id>>asList(benwaInboxMailbox, benwaWorkMailbox), EnumSet.allOf(MailboxCounters.Counter.class));
+        assertThat(counters.get(benwaInboxMailbox.getMailboxId()).getMessageCount()).isEqualTo(5);
+        assertThat(counters.get(benwaWorkMailbox.getMailboxId()).getMessageCount()).isEqualTo(1);
+        assertThat(counters.get(benwaWorkMailbox.getMailboxId()).getUidNext()).isEqualTo(message6.getUid() + 1);
+    }
+
     @Test
     public void deletedMessagesShouldBeRemovedFromStorage() throws MailboxException {
         saveMessages();
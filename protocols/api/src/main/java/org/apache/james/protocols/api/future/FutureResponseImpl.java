@@ -166,4 +166,23 @@ public class FutureResponseImpl implements FutureResponse{
         }
     }
 
+    /**
+     * Set the given {@link Response} like {@link #setResponse(Response)}. If it is a
+     * {@link FutureResponse} itself it is set once it is ready.
+     * 
+     * @param response
+     */
+    public void completeWith(Response response) {
+        if (response instanceof FutureResponse) {
+            ((FutureResponse) response).addListener(new ResponseListener() {
+
+                public void onResponse(FutureResponse response) {
+                    setResponse(response);
+                }
+            });
+        } else {
+            setResponse(response);
+        }
+    }
+
 }
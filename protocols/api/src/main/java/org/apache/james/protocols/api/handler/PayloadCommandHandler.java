@@ -0,0 +1,48 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.handler;
+
+import java.nio.ByteBuffer;
+
+import org.apache.james.protocols.api.ProtocolSession;
+
+/**
+ * {@link CommandHandler} for commands which are followed by a payload of an announced length, like the BDAT command
+ * of the SMTP CHUNKING extension (RFC 3030). The payload is not split in lines by the transport but handed as it is
+ * received to the {@link PayloadLineHandler} which the {@link CommandHandler} pushes for it.
+ */
+public interface PayloadCommandHandler<Session extends ProtocolSession> extends CommandHandler<Session> {
+
+    /**
+     * Return the length of the payload which follows the given command line. This is called by the transport for the
+     * received lines before they get processed, so the result must only depend on the given line.
+     * 
+     * @param line the line including the line delimiter
+     * @return length of the payload, or 0 if the line does not announce one
+     */
+    long getPayloadLength(ByteBuffer line);
+
+    /**
+     * {@link LineHandler} which consumes the payload of a command. It is called for every received part of the
+     * payload, whatever its size, and must pop itself once the whole payload was consumed.
+     */
+    interface PayloadLineHandler<S extends ProtocolSession> extends LineHandler<S> {
+    }
+}
@@ -0,0 +1,52 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.message.response;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link Literal} which may be able to expose its octets without copying them
+ * through an {@link java.io.InputStream}. Both methods return <code>null</code>
+ * if the representation is not available, in which case
+ * {@link #getInputStream()} must be used.
+ */
+public interface ZeroCopyLiteral extends Literal {
+
+    /**
+     * Return a read-only {@link ByteBuffer} holding exactly {@link #size()}
+     * octets, or <code>null</code>
+     * 
+     * @return buffer
+     * @throws IOException
+     */
+    ByteBuffer getByteBuffer() throws IOException;
+
+    /**
+     * Return a {@link FileChannel} positioned at the first octet of the literal,
+     * or <code>null</code>. Only {@link #size()} octets must be written from
+     * it. The caller is responsible for closing the channel.
+     * 
+     * @return channel
+     * @throws IOException
+     */
+    FileChannel getFileChannel() throws IOException;
+}
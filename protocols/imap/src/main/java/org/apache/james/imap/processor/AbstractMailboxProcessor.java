@@ -269,6 +269,15 @@ abstract public class AbstractMailboxProcessor<M extends ImapRequest> extends Ab
         }
     }
 
+    /**
+     * Enable CONDSTORE for the session without sending the HIGHESTMODSEQ
+     * 
+     * @param session
+     */
+    protected void condstoreEnablingCommand(ImapSession session) {
+        EnableProcessor.getEnabledCapabilities(session).add(ImapConstants.SUPPORTS_CONDSTORE);
+    }
+
     protected void condstoreEnablingCommand(ImapSession session, Responder responder, MetaData metaData, boolean sendHighestModSeq) {
         Set<String> enabled = EnableProcessor.getEnabledCapabilities(session);
         if (!enabled.contains(ImapConstants.SUPPORTS_CONDSTORE)) {
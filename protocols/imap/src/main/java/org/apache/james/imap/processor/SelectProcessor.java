@@ -22,6 +22,7 @@ package org.apache.james.imap.processor;
 import org.apache.james.imap.api.message.response.StatusResponseFactory;
 import org.apache.james.imap.api.process.ImapProcessor;
 import org.apache.james.imap.message.request.SelectRequest;
+import org.apache.james.imap.processor.base.SharedUidIndexRegistry;
 import org.apache.james.mailbox.MailboxManager;
 
 public class SelectProcessor extends AbstractSelectionProcessor<SelectRequest> {
@@ -30,4 +31,8 @@ public class SelectProcessor extends AbstractSelectionProcessor<SelectRequest> {
         super(SelectRequest.class, next, mailboxManager, statusResponseFactory, false);
     }
 
+    public SelectProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory statusResponseFactory, final SharedUidIndexRegistry indexRegistry) {
+        super(SelectRequest.class, next, mailboxManager, statusResponseFactory, false, indexRegistry);
+    }
+
 }
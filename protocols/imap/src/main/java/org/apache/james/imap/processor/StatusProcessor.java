@@ -19,6 +19,9 @@
 
 package org.apache.james.imap.processor;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 import org.apache.james.imap.api.ImapCommand;
 import org.apache.james.imap.api.ImapSessionUtils;
 import org.apache.james.imap.api.display.HumanReadableText;
@@ -32,6 +35,7 @@ import org.apache.james.mailbox.MailboxManager;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.MessageManager;
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MailboxPath;
 import org.slf4j.Logger;
 
@@ -62,24 +66,20 @@ public class StatusProcessor extends AbstractMailboxProcessor<StatusRequest> {
 
             final MailboxManager mailboxManager = getMailboxManager();
             final MessageManager mailbox = mailboxManager.getMailbox(mailboxPath, ImapSessionUtils.getMailboxSession(session));
-            final MessageManager.MetaData.FetchGroup fetchGroup;
-            if (statusDataItems.isUnseen()) {
-                fetchGroup = MessageManager.MetaData.FetchGroup.UNSEEN_COUNT;
-            } else {
-                fetchGroup = MessageManager.MetaData.FetchGroup.NO_UNSEEN;
-            }
-            final MessageManager.MetaData metaData = mailbox.getMetaData(false, mailboxSession, fetchGroup);
-
-            final Long messages = messages(statusDataItems, metaData);
-            final Long recent = recent(statusDataItems, metaData);
-            final Long uidNext = uidNext(statusDataItems, metaData);
-            final Long uidValidity = uidValidity(statusDataItems, metaData);
-            final Long unseen = unseen(statusDataItems, metaData);
-            final Long highestModSeq = highestModSeq(statusDataItems, metaData);
+
+            // STATUS only needs the requested counters, so don't load the full meta data
+            final MailboxCounters counters = mailbox.getMailboxCounters(mailboxSession, requestedCounters(statusDataItems));
+
+            final Long messages = messages(statusDataItems, counters);
+            final Long recent = recent(statusDataItems, counters);
+            final Long uidNext = uidNext(statusDataItems, counters);
+            final Long uidValidity = uidValidity(statusDataItems, counters);
+            final Long unseen = unseen(statusDataItems, counters);
+            final Long highestModSeq = highestModSeq(statusDataItems, counters);
             
             // Enable CONDSTORE as this is a CONDSTORE enabling command
             if (highestModSeq != null) {
-                condstoreEnablingCommand(session, responder, metaData, false); 
+                condstoreEnablingCommand(session); 
             }
             final MailboxStatusResponse response = new MailboxStatusResponse(messages, recent, uidNext, highestModSeq, uidValidity, unseen, request.getMailboxName());
             responder.respond(response);
@@ -94,20 +94,40 @@ public class StatusProcessor extends AbstractMailboxProcessor<StatusRequest> {
         }
     }
 
-    private Long unseen(final StatusDataItems statusDataItems, final MessageManager.MetaData metaData) throws MailboxException {
+    private Set<MailboxCounters.Counter> requestedCounters(final StatusDataItems statusDataItems) {
+        final Set<MailboxCounters.Counter> counters = EnumSet.noneOf(MailboxCounters.Counter.class);
+        if (statusDataItems.isMessages()) {
+            counters.add(MailboxCounters.Counter.MESSAGES);
+        }
+        if (statusDataItems.isUnseen()) {
+            counters.add(MailboxCounters.Counter.UNSEEN);
+        }
+        if (statusDataItems.isRecent()) {
+            counters.add(MailboxCounters.Counter.RECENT);
+        }
+        if (statusDataItems.isHighestModSeq()) {
+            counters.add(MailboxCounters.Counter.HIGHEST_MODSEQ);
+        }
+        if (statusDataItems.isUidNext()) {
+            counters.add(MailboxCounters.Counter.UID_NEXT);
+        }
+        return counters;
+    }
+
+    private Long unseen(final StatusDataItems statusDataItems, final MailboxCounters counters) {
         final Long unseen;
         if (statusDataItems.isUnseen()) {
-            unseen = metaData.getUnseenCount();
+            unseen = counters.getUnseenCount();
         } else {
             unseen = null;
         }
         return unseen;
     }
 
-    private Long uidValidity(final StatusDataItems statusDataItems, final MessageManager.MetaData metaData) throws MailboxException {
+    private Long uidValidity(final StatusDataItems statusDataItems, final MailboxCounters counters) {
         final Long uidValidity;
         if (statusDataItems.isUidValidity()) {
-            uidValidity = metaData.getUidValidity();
+            uidValidity = counters.getUidValidity();
         } else {
             uidValidity = null;
         }
@@ -115,10 +135,10 @@ public class StatusProcessor extends AbstractMailboxProcessor<StatusRequest> {
     }
 
 
-    private Long highestModSeq(final StatusDataItems statusDataItems, final MessageManager.MetaData metaData) throws MailboxException {
+    private Long highestModSeq(final StatusDataItems statusDataItems, final MailboxCounters counters) {
         final Long highestModSeq;
         if (statusDataItems.isHighestModSeq()) {
-            highestModSeq = metaData.getHighestModSeq();
+            highestModSeq = counters.getHighestModSeq();
         } else {
             highestModSeq = null;
         }
@@ -126,30 +146,30 @@ public class StatusProcessor extends AbstractMailboxProcessor<StatusRequest> {
     }
 
     
-    private Long uidNext(final StatusDataItems statusDataItems, final MessageManager.MetaData metaData) throws MailboxException {
+    private Long uidNext(final StatusDataItems statusDataItems, final MailboxCounters counters) {
         final Long uidNext;
         if (statusDataItems.isUidNext()) {
-            uidNext = metaData.getUidNext();
+            uidNext = counters.getUidNext();
         } else {
             uidNext = null;
         }
         return uidNext;
     }
 
-    private Long recent(final StatusDataItems statusDataItems, final MessageManager.MetaData metaData) throws MailboxException {
+    private Long recent(final StatusDataItems statusDataItems, final MailboxCounters counters) {
         final Long recent;
         if (statusDataItems.isRecent()) {
-            recent = metaData.countRecent();
+            recent = counters.getRecentCount();
         } else {
             recent = null;
         }
         return recent;
     }
 
-    private Long messages(final StatusDataItems statusDataItems, final MessageManager.MetaData metaData) throws MailboxException {
+    private Long messages(final StatusDataItems statusDataItems, final MailboxCounters counters) {
         final Long messages;
         if (statusDataItems.isMessages()) {
-            messages = metaData.getMessageCount();
+            messages = counters.getMessageCount();
         } else {
             messages = null;
         }
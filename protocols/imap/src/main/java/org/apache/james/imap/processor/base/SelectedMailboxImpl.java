@@ -22,79 +22,69 @@ package org.apache.james.imap.processor.base;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import javax.mail.Flags;
-import javax.mail.Flags.Flag;
 
 import org.apache.james.imap.api.ImapSessionUtils;
 import org.apache.james.imap.api.process.ImapSession;
 import org.apache.james.imap.api.process.SelectedMailbox;
-import org.apache.james.mailbox.MailboxListener;
 import org.apache.james.mailbox.MailboxManager;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
-import org.apache.james.mailbox.model.FetchGroupImpl;
 import org.apache.james.mailbox.model.MailboxPath;
-import org.apache.james.mailbox.model.MessageRange;
-import org.apache.james.mailbox.model.MessageResult;
-import org.apache.james.mailbox.model.MessageResultIterator;
-import org.apache.james.mailbox.model.UpdatedFlags;
 
 /**
  * Default implementation of {@link SelectedMailbox}
+ * 
+ * The uids and the events of the mailbox are kept by a {@link SharedUidIndex}
+ * which is shared by all sessions which selected the mailbox. This class only
+ * keeps the state which is specific to the session, and catches up with the
+ * changes of the mailbox via its {@link SharedUidIndex.Cursor} each time it is
+ * accessed.
  */
-public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
+public class SelectedMailboxImpl implements SelectedMailbox {
 
     private final Set<Long> recentUids = new TreeSet<Long>();
 
     private boolean recentUidRemoved = false;
 
-    private final MailboxManager mailboxManager;
+    private final SharedUidIndexRegistry registry;
 
     private MailboxPath path;
 
     private final ImapSession session;
-    
 
-    private final static Flags FLAGS = new Flags();
-    static {
-        FLAGS.add(Flags.Flag.ANSWERED);
-        FLAGS.add(Flags.Flag.DELETED);
-        FLAGS.add(Flags.Flag.DRAFT);
-        FLAGS.add(Flags.Flag.FLAGGED);
-        FLAGS.add(Flags.Flag.SEEN);
-    }
-    
     private final long sessionId;
     private final Set<Long> flagUpdateUids = new TreeSet<Long>();
-    private final Flags.Flag uninterestingFlag = Flags.Flag.RECENT;
     private final Set<Long> expungedUids = new TreeSet<Long>();
 
     private boolean isDeletedByOtherSession = false;
     private boolean sizeChanged = false;
     private boolean silentFlagChanges = false;
-    private final Flags applicableFlags = new Flags(FLAGS);
 
     private boolean applicableFlagsChanged;
-    
-    private final SortedMap<Integer, Long> msnToUid =new TreeMap<Integer, Long>();
 
-    private final SortedMap<Long, Integer> uidToMsn = new TreeMap<Long, Integer>();
+    private SharedUidIndex index;
+    private SharedUidIndex.Cursor cursor;
 
-    private long highestUid = 0;
+    /**
+     * Uids which were expunged from the mailbox but still have a msn in this
+     * session, as the EXPUNGE response was not sent yet
+     */
+    private final TreeSet<Long> pendingExpungedUids = new TreeSet<Long>();
 
-    private int highestMsn = 0;
-    
     public SelectedMailboxImpl(final MailboxManager mailboxManager, final ImapSession session, final MailboxPath path) throws MailboxException {
+        this(new SharedUidIndexRegistry(mailboxManager), session, path);
+    }
+
+    public SelectedMailboxImpl(final SharedUidIndexRegistry registry, final ImapSession session, final MailboxPath path) throws MailboxException {
         this.session = session;
         this.sessionId = ImapSessionUtils.getMailboxSession(session).getSessionId();
-        this.mailboxManager = mailboxManager;
+        this.registry = registry;
         
         // Ignore events from our session
         setSilentFlagChanges(true);
@@ -102,104 +92,97 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
         init();
     }
 
-    @Override
-    public ListenerType getType() {
-        return ListenerType.MAILBOX;
-    }
-
-    @Override
-    public ExecutionMode getExecutionMode() {
-        return ExecutionMode.SYNCHRONOUS;
-    }
-
     private void init() throws MailboxException {
         MailboxSession mailboxSession = ImapSessionUtils.getMailboxSession(session);
         
-        mailboxManager.addListener(path, this, mailboxSession);
-
-        MessageResultIterator messages = mailboxManager.getMailbox(path, mailboxSession).getMessages(MessageRange.all(), FetchGroupImpl.MINIMAL, mailboxSession);
+        SharedUidIndex index = registry.acquire(path, mailboxSession);
         synchronized (this) {
-            while(messages.hasNext()) {
-                MessageResult mr = messages.next();
-                applicableFlags.add(mr.getFlags());
-                add(mr.getUid());
-            }
-            
-          
-            // \RECENT is not a applicable flag in imap so remove it from the list
-            applicableFlags.remove(Flags.Flag.RECENT);
+            this.index = index;
+            this.cursor = index.openCursor();
         }
-       
-    }
-
-    private void add(int msn, long uid) {
-        if (uid > highestUid) {
-            highestUid = uid;
-        }
-        msnToUid.put(msn, uid);
-        uidToMsn.put(uid, msn);
     }
 
     /**
-     * Expunge the message with the given uid
-     * 
-     * @param uid
+     * Apply the changes of the mailbox which were not seen by this session
+     * yet
      */
-    private void expunge(final long uid) {
-        final int msn = msn(uid);
-        remove(msn, uid);
-        final List<Integer> renumberMsns = new ArrayList<Integer>(msnToUid.tailMap(msn + 1).keySet());
-        for (final Integer msnInteger : renumberMsns) {
-            int aMsn = msnInteger.intValue();
-            long aUid = uid(aMsn);
-            remove(aMsn, aUid);
-            add(aMsn - 1, aUid);
+    private void sync() {
+        if (cursor == null) {
+            return;
+        }
+        final UidMsnIndex before = cursor.getUids();
+        final List<SharedUidIndex.Change> changes = index.poll(cursor);
+        if (changes.isEmpty()) {
+            return;
+        }
+        Set<Long> added = null;
+        for (SharedUidIndex.Change change : changes) {
+            switch (change.getType()) {
+            case ADDED:
+                sizeChanged = true;
+                if (added == null) {
+                    added = new HashSet<Long>();
+                }
+                added.addAll(change.getUids());
+                break;
+            case EXPUNGED:
+                expungedUids.addAll(change.getUids());
+                for (Long uid : change.getUids()) {
+                    // the uid keeps its msn till the EXPUNGE response was sent
+                    if (before.getMsn(uid) != NO_SUCH_MESSAGE || (added != null && added.contains(uid))) {
+                        pendingExpungedUids.add(uid);
+                    }
+                }
+                break;
+            case FLAGS_UPDATED:
+                if (sessionId != change.getSessionId() || !silentFlagChanges) {
+                    flagUpdateUids.addAll(change.getUids());
+                }
+                recentUids.addAll(change.getRecentUids());
+                if (change.isApplicableFlagsChanged()) {
+                    applicableFlagsChanged = true;
+                }
+                break;
+            case DELETED:
+                if (sessionId != change.getSessionId()) {
+                    isDeletedByOtherSession = true;
+                }
+                break;
+            case RENAMED:
+                path = change.getPath();
+                break;
+            }
         }
-        highestMsn--;
-    }
-
-    private void remove(int msn, long uid) {
-        uidToMsn.remove(uid);
-        msnToUid.remove(msn);
     }
 
-    /**
-     * Add the give uid
-     * 
-     * @param uid
-     */
-    private void add(long uid) {
-        if (!uidToMsn.containsKey(uid)) {
-            highestMsn++;
-            add(highestMsn, uid);
+    private UidMsnIndex uids() {
+        sync();
+        if (cursor == null) {
+            return UidMsnIndex.EMPTY;
         }
+        return cursor.getUids();
     }
 
-    /**
-     * @see org.apache.james.mailbox.MailboxListener#event(org.apache.james.mailbox.MailboxListener.Event)
-     */
-
-
     /**
      * @see SelectedMailbox#getFirstUid()
      */
     public synchronized long getFirstUid() {
-        if (uidToMsn.isEmpty()) {
-            return -1;
-        } else {
-            return uidToMsn.firstKey();
+        long first = uids().getFirstUid();
+        if (!pendingExpungedUids.isEmpty() && (first == -1 || pendingExpungedUids.first() < first)) {
+            first = pendingExpungedUids.first();
         }
+        return first;
     }
 
     /**
      * @see SelectedMailbox#getLastUid()
      */
     public synchronized long getLastUid() {
-        if (uidToMsn.isEmpty()) {
-            return -1;
-        } else {
-            return uidToMsn.lastKey();
+        long last = uids().getLastUid();
+        if (!pendingExpungedUids.isEmpty() && pendingExpungedUids.last() > last) {
+            last = pendingExpungedUids.last();
         }
+        return last;
     }
 
 
@@ -207,16 +190,19 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
     public synchronized void deselect() {
         MailboxSession mailboxSession = ImapSessionUtils.getMailboxSession(session);
 
-        try {
-            mailboxManager.removeListener(path, this, mailboxSession);
-        } catch (MailboxException e) {
-            if (session.getLog().isInfoEnabled()) {
-                session.getLog().info("Unable to remove listener " + this + " from mailbox while closing it", e);
+        if (index != null) {
+            try {
+                registry.release(index, mailboxSession);
+            } catch (MailboxException e) {
+                if (session.getLog().isInfoEnabled()) {
+                    session.getLog().info("Unable to remove listener " + index + " from mailbox while closing it", e);
+                }
             }
+            index = null;
+            cursor = null;
         }
         
-        uidToMsn.clear();
-        msnToUid.clear();
+        pendingExpungedUids.clear();
         flagUpdateUids.clear();
 
         expungedUids.clear();
@@ -267,6 +253,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     
     public synchronized MailboxPath getPath() {
+        sync();
         return path;
     }
 
@@ -281,6 +268,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     
     public synchronized boolean isRecent(long uid) {
+        sync();
         return recentUids.contains(uid);
     }
 
@@ -306,6 +294,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      * @see org.apache.james.imap.api.process.SelectedMailbox#resetEvents()
      */
     public synchronized void resetEvents() {
+        sync();
         sizeChanged = false;
         flagUpdateUids.clear();
         isDeletedByOtherSession = false;
@@ -318,37 +307,18 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     
     public synchronized  int remove(Long uid) {
-        final int result = msn(uid);
-        expunge(uid);
-        return result;
+        final int msn = msn(uid);
+        if (!pendingExpungedUids.remove(uid)) {
+            // only expunged uids lose their msn
+            return NO_SUCH_MESSAGE;
+        }
+        return msn;
     }
 
 
 
-    private boolean interestingFlags(UpdatedFlags updated) {
-        boolean result;
-        final Iterator<Flags.Flag> it = updated.systemFlagIterator();
-        if (it.hasNext()) {
-            final Flags.Flag flag = it.next();
-            if (flag.equals(uninterestingFlag)) {
-                result = false;
-            } else {
-                result = true;
-            }
-        } else {
-            result = false;
-        }
-        // See if we need to check the user flags
-        if (result == false) {
-            final Iterator<String> userIt = updated.userFlagIterator();
-            result = userIt.hasNext();
-        }
-        return result;
-    }
-
-    
-    
     public synchronized void resetExpungedUids() {
+        // no sync here, expunges which were not reported yet must keep their msn
         expungedUids.clear();
     }
 
@@ -370,6 +340,8 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      *            ignored, false otherwise
      */
     public synchronized final void setSilentFlagChanges(boolean silentFlagChanges) {
+        // the changes which happened so far are seen with the old mode
+        sync();
         this.silentFlagChanges = silentFlagChanges;
     }
 
@@ -380,6 +352,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     
     public synchronized final boolean isSizeChanged() {
+        sync();
         return sizeChanged;
     }
 
@@ -391,6 +364,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     
     public synchronized final boolean isDeletedByOtherSession() {
+        sync();
         return isDeletedByOtherSession;
     }
 
@@ -401,6 +375,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     
     public synchronized Collection<Long> flagUpdateUids() {
+        sync();
         // copy the TreeSet to fix possible
         // java.util.ConcurrentModificationException
         // See IMAP-278
@@ -415,6 +390,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     
     public synchronized Collection<Long> expungedUids() {
+        sync();
         // copy the TreeSet to fix possible
         // java.util.ConcurrentModificationException
         // See IMAP-278
@@ -427,11 +403,15 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
 
     
     public synchronized Flags getApplicableFlags() {
-        return applicableFlags;
+        if (index == null) {
+            return new Flags();
+        }
+        return index.getApplicableFlags();
     }
 
     
     public synchronized boolean hasNewApplicableFlags() {
+        sync();
         return applicableFlagsChanged;
     }
 
@@ -441,115 +421,42 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
     }
 
     
-    public synchronized void event(Event event) {
-
-        // Check if the event was for the mailbox we are observing
-        if (event.getMailboxPath().equals(getPath())) {
-            final long eventSessionId = event.getSession().getSessionId();
-            if (event instanceof MessageEvent) {
-                final MessageEvent messageEvent = (MessageEvent) event;
-                // final List<Long> uids = messageEvent.getUids();
-                if (messageEvent instanceof Added) {
-                    sizeChanged = true;
-                    final List<Long> uids = ((Added) event).getUids();
-                    for (Long uid : uids) {
-                        add(uid);
-                    }
-                } else if (messageEvent instanceof FlagsUpdated) {
-                    FlagsUpdated updated = (FlagsUpdated) messageEvent;
-                    List<UpdatedFlags> uFlags = updated.getUpdatedFlags();
-                    if (sessionId != eventSessionId || !silentFlagChanges) {
-
-                        for (UpdatedFlags u : uFlags) {
-                            if (interestingFlags(u)) {
-                                flagUpdateUids.add(u.getUid());
-                            }
-                        }
-                    }
-
-                    SelectedMailbox sm = session.getSelected();
-                    if (sm != null) {
-                        // We need to add the UID of the message to the recent
-                        // list if we receive an flag update which contains a
-                        // \RECENT flag
-                        // See IMAP-287
-                        List<UpdatedFlags> uflags = updated.getUpdatedFlags();
-                        for (UpdatedFlags u : uflags) {
-                            Iterator<Flag> flags = u.systemFlagIterator();
-
-                            while (flags.hasNext()) {
-                                if (Flag.RECENT.equals(flags.next())) {
-                                    MailboxPath path = sm.getPath();
-                                    if (path != null && path.equals(event.getMailboxPath())) {
-                                        sm.addRecent(u.getUid());
-                                    }
-                                }
-                            }
-
-
-                        }
-                    }
-                    
-                    int size = applicableFlags.getUserFlags().length;
-                    FlagsUpdated updatedF = (FlagsUpdated) messageEvent;
-                    List<UpdatedFlags> flags = updatedF.getUpdatedFlags();
-
-                    for (UpdatedFlags flag : flags) {
-                        applicableFlags.add(flag.getNewFlags());
-
-                    }
-
-                    // \RECENT is not a applicable flag in imap so remove it
-                    // from the list
-                    applicableFlags.remove(Flags.Flag.RECENT);
-
-                    if (size < applicableFlags.getUserFlags().length) {
-                        applicableFlagsChanged = true;
-                    }
-                    
-                    
-                } else if (messageEvent instanceof Expunged) {
-                    expungedUids.addAll(messageEvent.getUids());
-                    
-                }
-            } else if (event instanceof MailboxDeletion) {
-                if (eventSessionId != sessionId) {
-                    isDeletedByOtherSession = true;
-                }
-            } else if (event instanceof MailboxRenamed) {
-                final MailboxRenamed mailboxRenamed = (MailboxRenamed) event;
-                path = mailboxRenamed.getNewPath();
-            }
-        }
-    }
-
-    
     public synchronized int msn(long uid) {
-        Integer msn = uidToMsn.get(uid);
-        if (msn != null) {
-            return msn.intValue();
-        } else {
-            return SelectedMailbox.NO_SUCH_MESSAGE;
+        final UidMsnIndex uids = uids();
+        final int msn = uids.getMsn(uid);
+        if (msn != NO_SUCH_MESSAGE) {
+            return msn + pendingExpungedUids.headSet(uid).size();
+        }
+        if (pendingExpungedUids.contains(uid)) {
+            return uids.countLower(uid) + pendingExpungedUids.headSet(uid).size() + 1;
         }
+        return NO_SUCH_MESSAGE;
     }
 
     
     public synchronized long uid(int msn) {
-        if (msn == -1) {
-            return SelectedMailbox.NO_SUCH_MESSAGE;
+        final UidMsnIndex uids = uids();
+        if (msn < 1) {
+            return NO_SUCH_MESSAGE;
         }
-        Long uid = msnToUid.get(msn);
-        if (uid != null) {
-            return uid.longValue();
-        } else {
-            return SelectedMailbox.NO_SUCH_MESSAGE;
+        // merge the shared uids with the pending expunged ones
+        final int position = msn - 1;
+        int pending = 0;
+        for (Long uid : pendingExpungedUids) {
+            final int uidPosition = uids.countLower(uid) + pending;
+            if (uidPosition == position) {
+                return uid;
+            } else if (uidPosition > position) {
+                return uids.getUid(position - pending + 1);
+            }
+            pending++;
         }
+        return uids.getUid(position - pending + 1);
     }
 
     
     public synchronized long existsCount() {
-        return uidToMsn.size();
+        return uids().size() + pendingExpungedUids.size();
     }
-    
 
 }
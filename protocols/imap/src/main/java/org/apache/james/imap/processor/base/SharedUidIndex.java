@@ -0,0 +1,341 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.FetchGroupImpl;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResultIterator;
+import org.apache.james.mailbox.model.UpdatedFlags;
+
+/**
+ * State of a mailbox which is shared by all the sessions which selected it.
+ * 
+ * Only this {@link MailboxListener} is registered for the mailbox, so every
+ * {@link org.apache.james.mailbox.MailboxListener.Event} is processed once per
+ * mailbox instead of once per session. It keeps a copy-on-write
+ * {@link UidMsnIndex} of the mailbox and appends a {@link Change} for each
+ * event to a linked list. Each session reads the changes it did not see yet
+ * via its own {@link Cursor}. Changes which were read by all cursors are not
+ * referenced anymore and get garbage collected.
+ * 
+ * Instances are managed by the {@link SharedUidIndexRegistry}.
+ */
+public class SharedUidIndex implements MailboxListener {
+
+    private final static Flags FLAGS = new Flags();
+    static {
+        FLAGS.add(Flags.Flag.ANSWERED);
+        FLAGS.add(Flags.Flag.DELETED);
+        FLAGS.add(Flags.Flag.DRAFT);
+        FLAGS.add(Flags.Flag.FLAGGED);
+        FLAGS.add(Flags.Flag.SEEN);
+    }
+
+    private final SharedUidIndexRegistry registry;
+    private volatile MailboxPath path;
+    private UidMsnIndex uids = UidMsnIndex.EMPTY;
+    private final Flags applicableFlags = new Flags(FLAGS);
+    private Change tail = new Change(null, -1);
+    private boolean loaded = false;
+
+    /**
+     * Number of sessions which reference this index, guarded by the registry
+     */
+    int references;
+
+    SharedUidIndex(SharedUidIndexRegistry registry, MailboxPath path) {
+        this.registry = registry;
+        this.path = path;
+    }
+
+    public ListenerType getType() {
+        return ListenerType.MAILBOX;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return ExecutionMode.SYNCHRONOUS;
+    }
+
+    public MailboxPath getPath() {
+        return path;
+    }
+
+    /**
+     * Register the index as {@link MailboxListener} and load the uids of the
+     * mailbox, if this was not done yet
+     * 
+     * @param mailboxManager
+     * @param mailboxSession
+     * @throws MailboxException
+     */
+    synchronized void load(MailboxManager mailboxManager, MailboxSession mailboxSession) throws MailboxException {
+        if (loaded) {
+            return;
+        }
+        mailboxManager.addListener(path, this, mailboxSession);
+        try {
+            List<Long> result = new ArrayList<Long>();
+            MessageResultIterator messages = mailboxManager.getMailbox(path, mailboxSession).getMessages(MessageRange.all(), FetchGroupImpl.MINIMAL, mailboxSession);
+            while (messages.hasNext()) {
+                MessageResult mr = messages.next();
+                applicableFlags.add(mr.getFlags());
+                result.add(mr.getUid());
+            }
+            // \RECENT is not a applicable flag in imap so remove it from the list
+            applicableFlags.remove(Flags.Flag.RECENT);
+            uids = uids.add(result);
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                mailboxManager.removeListener(path, this, mailboxSession);
+            }
+        }
+    }
+
+    /**
+     * Open a {@link Cursor} which starts at the current state of the mailbox
+     * 
+     * @return cursor
+     */
+    synchronized Cursor openCursor() {
+        return new Cursor(tail, uids);
+    }
+
+    /**
+     * Return the {@link Change}'s the given {@link Cursor} did not see yet and
+     * move it to the current state of the mailbox
+     * 
+     * @param cursor
+     * @return changes
+     */
+    public List<Change> poll(Cursor cursor) {
+        if (cursor.last.next == null) {
+            return Collections.emptyList();
+        }
+        synchronized (this) {
+            List<Change> changes = new ArrayList<Change>();
+            for (Change change = cursor.last.next; change != null; change = change.next) {
+                changes.add(change);
+            }
+            cursor.last = tail;
+            cursor.uids = uids;
+            return changes;
+        }
+    }
+
+    /**
+     * Return a copy of the flags which are applicable in the mailbox
+     * 
+     * @return flags
+     */
+    public synchronized Flags getApplicableFlags() {
+        return new Flags(applicableFlags);
+    }
+
+    private void append(Change change) {
+        tail.next = change;
+        tail = change;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.MailboxListener#event(org.apache.james.mailbox.MailboxListener.Event)
+     */
+    public synchronized void event(Event event) {
+        // Check if the event was for the mailbox we are observing
+        if (!event.getMailboxPath().equals(path)) {
+            return;
+        }
+        final long sessionId = event.getSession().getSessionId();
+        if (event instanceof Added) {
+            List<Long> added = ((Added) event).getUids();
+            uids = uids.add(added);
+            Change change = new Change(Change.Type.ADDED, sessionId);
+            change.uids = added;
+            append(change);
+        } else if (event instanceof Expunged) {
+            List<Long> expunged = ((Expunged) event).getUids();
+            uids = uids.remove(expunged);
+            Change change = new Change(Change.Type.EXPUNGED, sessionId);
+            change.uids = expunged;
+            append(change);
+        } else if (event instanceof FlagsUpdated) {
+            append(flagsUpdated(sessionId, ((FlagsUpdated) event).getUpdatedFlags()));
+        } else if (event instanceof MailboxDeletion) {
+            append(new Change(Change.Type.DELETED, sessionId));
+            registry.deleted(this);
+        } else if (event instanceof MailboxRenamed) {
+            MailboxPath oldPath = path;
+            path = ((MailboxRenamed) event).getNewPath();
+            Change change = new Change(Change.Type.RENAMED, sessionId);
+            change.path = path;
+            append(change);
+            registry.renamed(this, oldPath);
+        }
+    }
+
+    private Change flagsUpdated(long sessionId, List<UpdatedFlags> updatedFlags) {
+        Change change = new Change(Change.Type.FLAGS_UPDATED, sessionId);
+        List<Long> interesting = new ArrayList<Long>();
+        List<Long> recent = new ArrayList<Long>();
+        int size = applicableFlags.getUserFlags().length;
+        for (UpdatedFlags u : updatedFlags) {
+            if (interestingFlags(u)) {
+                interesting.add(u.getUid());
+            }
+            // We need to add the UID of the message to the recent
+            // list if we receive an flag update which contains a
+            // \RECENT flag
+            // See IMAP-287
+            Iterator<Flags.Flag> flags = u.systemFlagIterator();
+            while (flags.hasNext()) {
+                if (Flags.Flag.RECENT.equals(flags.next())) {
+                    recent.add(u.getUid());
+                }
+            }
+            applicableFlags.add(u.getNewFlags());
+        }
+        // \RECENT is not a applicable flag in imap so remove it
+        // from the list
+        applicableFlags.remove(Flags.Flag.RECENT);
+
+        change.uids = interesting;
+        change.recentUids = recent;
+        change.applicableFlagsChanged = size < applicableFlags.getUserFlags().length;
+        return change;
+    }
+
+    private boolean interestingFlags(UpdatedFlags updated) {
+        final Iterator<Flags.Flag> it = updated.systemFlagIterator();
+        if (it.hasNext() && !it.next().equals(Flags.Flag.RECENT)) {
+            return true;
+        }
+        // See if we need to check the user flags
+        return updated.userFlagIterator().hasNext();
+    }
+
+    /**
+     * Position of a session in the {@link Change}'s of a {@link SharedUidIndex}
+     */
+    public final static class Cursor {
+        private Change last;
+        private UidMsnIndex uids;
+
+        private Cursor(Change last, UidMsnIndex uids) {
+            this.last = last;
+            this.uids = uids;
+        }
+
+        /**
+         * Return the uids of the mailbox as they were when the cursor was
+         * moved the last time
+         * 
+         * @return uids
+         */
+        public UidMsnIndex getUids() {
+            return uids;
+        }
+    }
+
+    /**
+     * A change of the mailbox, as it is seen by the sessions
+     */
+    public final static class Change {
+
+        public enum Type {
+            ADDED, EXPUNGED, FLAGS_UPDATED, DELETED, RENAMED
+        }
+
+        private final Type type;
+        private final long sessionId;
+        private List<Long> uids = Collections.emptyList();
+        private List<Long> recentUids = Collections.emptyList();
+        private boolean applicableFlagsChanged;
+        private MailboxPath path;
+        private volatile Change next;
+
+        private Change(Type type, long sessionId) {
+            this.type = type;
+            this.sessionId = sessionId;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Return the id of the {@link MailboxSession} which caused the change
+         * 
+         * @return sessionId
+         */
+        public long getSessionId() {
+            return sessionId;
+        }
+
+        /**
+         * Return the added or expunged uids, or the uids of which interesting
+         * flags were updated
+         * 
+         * @return uids
+         */
+        public List<Long> getUids() {
+            return uids;
+        }
+
+        /**
+         * Return the uids of which the \RECENT flag was updated
+         * 
+         * @return recentUids
+         */
+        public List<Long> getRecentUids() {
+            return recentUids;
+        }
+
+        /**
+         * Return true if new flags became applicable in the mailbox
+         * 
+         * @return applicableFlagsChanged
+         */
+        public boolean isApplicableFlagsChanged() {
+            return applicableFlagsChanged;
+        }
+
+        /**
+         * Return the new path of a renamed mailbox
+         * 
+         * @return path
+         */
+        public MailboxPath getPath() {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxPath;
+
+/**
+ * Keeps one {@link SharedUidIndex} per selected mailbox, for as long as at
+ * least one session selected it. One instance should be shared by all the
+ * processors which select mailboxes.
+ */
+public class SharedUidIndexRegistry {
+
+    private final MailboxManager mailboxManager;
+    private final Map<MailboxPath, SharedUidIndex> indexes = new HashMap<MailboxPath, SharedUidIndex>();
+
+    public SharedUidIndexRegistry(MailboxManager mailboxManager) {
+        this.mailboxManager = mailboxManager;
+    }
+
+    /**
+     * Return the {@link SharedUidIndex} of the given mailbox, which gets
+     * loaded if no other session selected the mailbox yet. It must be
+     * released via {@link #release(SharedUidIndex, MailboxSession)} once it is
+     * not used anymore.
+     * 
+     * @param path
+     * @param mailboxSession
+     * @return index
+     * @throws MailboxException
+     */
+    public SharedUidIndex acquire(MailboxPath path, MailboxSession mailboxSession) throws MailboxException {
+        SharedUidIndex index;
+        synchronized (indexes) {
+            index = indexes.get(path);
+            if (index == null) {
+                index = new SharedUidIndex(this, path);
+                indexes.put(path, index);
+            }
+            index.references++;
+        }
+        boolean loaded = false;
+        try {
+            // loading is done outside of the registry lock, so a big mailbox
+            // does not block the selection of other mailboxes
+            index.load(mailboxManager, mailboxSession);
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                release(index, mailboxSession);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Release the given {@link SharedUidIndex}. It is unregistered once no
+     * session references it anymore.
+     * 
+     * @param index
+     * @param mailboxSession
+     * @throws MailboxException
+     */
+    public void release(SharedUidIndex index, MailboxSession mailboxSession) throws MailboxException {
+        synchronized (indexes) {
+            if (--index.references > 0) {
+                return;
+            }
+            if (indexes.get(index.getPath()) == index) {
+                indexes.remove(index.getPath());
+            }
+        }
+        mailboxManager.removeListener(index.getPath(), index, mailboxSession);
+    }
+
+    /**
+     * The mailbox of the given index was deleted, so a new mailbox with the
+     * same path must use a new index
+     * 
+     * @param index
+     */
+    void deleted(SharedUidIndex index) {
+        synchronized (indexes) {
+            if (indexes.get(index.getPath()) == index) {
+                indexes.remove(index.getPath());
+            }
+        }
+    }
+
+    /**
+     * The mailbox of the given index was renamed
+     * 
+     * @param index
+     * @param oldPath
+     */
+    void renamed(SharedUidIndex index, MailboxPath oldPath) {
+        synchronized (indexes) {
+            if (indexes.get(oldPath) == index) {
+                indexes.remove(oldPath);
+                if (!indexes.containsKey(index.getPath())) {
+                    indexes.put(index.getPath(), index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the count of mailboxes which are currently selected
+     * 
+     * @return count
+     */
+    public int size() {
+        synchronized (indexes) {
+            return indexes.size();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.james.imap.api.process.SelectedMailbox;
+
+/**
+ * Maps the uids of a selected mailbox to message sequence numbers.
+ * 
+ * The uids are kept in a sorted <code>long</code> array, so the msn of an uid
+ * is its position in the array (starting at 1). This needs 8 bytes per message
+ * instead of two boxed map entries.
+ * 
+ * Instances are immutable: {@link #add(Collection)} and
+ * {@link #remove(Collection)} return a copy, so one instance can be shared by
+ * all the sessions which selected the mailbox. See {@link SharedUidIndex}.
+ */
+public final class UidMsnIndex {
+
+    public final static UidMsnIndex EMPTY = new UidMsnIndex(new long[0]);
+
+    private final long[] uids;
+
+    private UidMsnIndex(long[] uids) {
+        this.uids = uids;
+    }
+
+    /**
+     * Return a copy of this index which contains the given uids too. This
+     * instance is returned if all of them are already known.
+     * 
+     * @param added
+     * @return index
+     */
+    public UidMsnIndex add(Collection<Long> added) {
+        long[] result = new long[uids.length + added.size()];
+        System.arraycopy(uids, 0, result, 0, uids.length);
+        int size = uids.length;
+        boolean sorted = true;
+        for (Long uid : added) {
+            if (Arrays.binarySearch(uids, uid) < 0) {
+                // uids are most of the time added in ascending order
+                sorted &= size == 0 || result[size - 1] < uid;
+                result[size++] = uid;
+            }
+        }
+        if (size == uids.length) {
+            return this;
+        }
+        if (!sorted) {
+            Arrays.sort(result, 0, size);
+            size = removeDuplicates(result, size);
+        }
+        return new UidMsnIndex(Arrays.copyOf(result, size));
+    }
+
+    private static int removeDuplicates(long[] sorted, int size) {
+        int result = 0;
+        for (int i = 0; i < size; i++) {
+            if (result == 0 || sorted[result - 1] != sorted[i]) {
+                sorted[result++] = sorted[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return a copy of this index without the given uids. This instance is
+     * returned if none of them is known.
+     * 
+     * @param removed
+     * @return index
+     */
+    public UidMsnIndex remove(Collection<Long> removed) {
+        boolean[] drop = null;
+        int dropped = 0;
+        for (Long uid : removed) {
+            int index = Arrays.binarySearch(uids, uid);
+            if (index >= 0) {
+                if (drop == null) {
+                    drop = new boolean[uids.length];
+                }
+                if (!drop[index]) {
+                    drop[index] = true;
+                    dropped++;
+                }
+            }
+        }
+        if (dropped == 0) {
+            return this;
+        }
+        long[] result = new long[uids.length - dropped];
+        int size = 0;
+        for (int i = 0; i < uids.length; i++) {
+            if (!drop[i]) {
+                result[size++] = uids[i];
+            }
+        }
+        return new UidMsnIndex(result);
+    }
+
+    /**
+     * Return the msn of the given uid
+     * 
+     * @param uid
+     * @return msn or {@link SelectedMailbox#NO_SUCH_MESSAGE}
+     */
+    public int getMsn(long uid) {
+        int index = Arrays.binarySearch(uids, uid);
+        if (index < 0) {
+            return SelectedMailbox.NO_SUCH_MESSAGE;
+        }
+        return index + 1;
+    }
+
+    /**
+     * Return the count of uids which are lower than the given uid
+     * 
+     * @param uid
+     * @return count
+     */
+    public int countLower(long uid) {
+        int index = Arrays.binarySearch(uids, uid);
+        if (index < 0) {
+            return -(index + 1);
+        }
+        return index;
+    }
+
+    /**
+     * Return the uid of the given msn
+     * 
+     * @param msn
+     * @return uid or {@link SelectedMailbox#NO_SUCH_MESSAGE}
+     */
+    public long getUid(int msn) {
+        if (msn < 1 || msn > uids.length) {
+            return SelectedMailbox.NO_SUCH_MESSAGE;
+        }
+        return uids[msn - 1];
+    }
+
+    /**
+     * Return the lowest uid or -1 if the index is empty
+     * 
+     * @return firstUid
+     */
+    public long getFirstUid() {
+        if (uids.length == 0) {
+            return -1;
+        }
+        return uids[0];
+    }
+
+    /**
+     * Return the highest uid or -1 if the index is empty
+     * 
+     * @return lastUid
+     */
+    public long getLastUid() {
+        if (uids.length == 0) {
+            return -1;
+        }
+        return uids[uids.length - 1];
+    }
+
+    public int size() {
+        return uids.length;
+    }
+
+    public boolean isEmpty() {
+        return uids.length == 0;
+    }
+}
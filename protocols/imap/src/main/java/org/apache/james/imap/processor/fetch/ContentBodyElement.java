@@ -24,12 +24,16 @@ package org.apache.james.imap.processor.fetch;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.james.imap.message.response.FetchResponse.BodyElement;
+import org.apache.james.imap.message.response.ZeroCopyLiteral;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.model.Content;
+import org.apache.james.mailbox.model.ZeroCopyContent;
 
-class ContentBodyElement implements BodyElement {
+class ContentBodyElement implements BodyElement, ZeroCopyLiteral {
     private final String name;
 
     protected final Content content;
@@ -66,4 +70,24 @@ class ContentBodyElement implements BodyElement {
     public InputStream getInputStream() throws IOException {
         return content.getInputStream();
     }
-}
\ No newline at end of file
+
+    /**
+     * @see org.apache.james.imap.message.response.ZeroCopyLiteral#getByteBuffer()
+     */
+    public ByteBuffer getByteBuffer() throws IOException {
+        if (content instanceof ZeroCopyContent) {
+            return ((ZeroCopyContent) content).getByteBuffer();
+        }
+        return null;
+    }
+
+    /**
+     * @see org.apache.james.imap.message.response.ZeroCopyLiteral#getFileChannel()
+     */
+    public FileChannel getFileChannel() throws IOException {
+        if (content instanceof ZeroCopyContent) {
+            return ((ZeroCopyContent) content).getFileChannel();
+        }
+        return null;
+    }
+}
@@ -22,6 +22,7 @@ package org.apache.james.imap.processor.fetch;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.james.imap.api.ImapCommand;
 import org.apache.james.imap.api.ImapConstants;
@@ -52,6 +53,12 @@ import org.apache.james.mailbox.model.MessageResultIterator;
 
 public class FetchProcessor extends AbstractMailboxProcessor<FetchRequest> {
 
+    /**
+     * {@link ImapSession} attribute holding the {@link FetchReadAhead} of the
+     * session. If not set, messages are loaded one batch after the other.
+     */
+    public final static String READ_AHEAD = "org.apache.james.imap.processor.fetch.READ_AHEAD";
+
     public FetchProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory factory) {
         super(FetchRequest.class, next, mailboxManager, factory);
     }
@@ -155,42 +162,72 @@ public class FetchProcessor extends AbstractMailboxProcessor<FetchRequest> {
         final FetchResponseBuilder builder = new FetchResponseBuilder(new EnvelopeBuilder(session.getLog()));
         FetchGroup resultToFetch = getFetchGroup(fetch);
 
+        final FetchReadAhead readAhead = getReadAhead(session);
+
         for (MessageRange range : ranges) {
             MessageResultIterator messages = mailbox.getMessages(range, resultToFetch, mailboxSession);
-            while (messages.hasNext()) {
-                final MessageResult result = messages.next();
-
-                //skip unchanged messages - this should be filtered at the mailbox level to take advantage of indexes
-                if (fetch.isModSeq() && result.getModSeq() <= fetch.getChangedSince()) {
-                    continue;
-                }
-
+            if (readAhead != null) {
                 try {
-                    final FetchResponse response = builder.build(fetch, result, mailbox, session, useUids);
-                    responder.respond(response);
-                } catch (MessageRangeException e) {
-                    // we can't for whatever reason find the message so
-                    // just skip it and log it to debug
-                    if (session.getLog().isDebugEnabled()) {
-                        session.getLog().debug("Unable to find message with uid " + result.getUid(), e);
-                    }
-                } catch (MailboxException e) {
-                    // we can't for whatever reason find parse all requested parts of the message. This may because it was deleted while try to access the parts.
-                    // So we just skip it 
-                    //
-                    // See IMAP-347
+                    messages = new ReadAheadMessageResultIterator(messages, readAhead);
+                } catch (RejectedExecutionException e) {
+                    // All read-ahead threads are busy, so just load the messages one after the other
                     if (session.getLog().isDebugEnabled()) {
-                        session.getLog().debug("Unable to fetch message with uid " + result.getUid() + ", so skip it", e);
+                        session.getLog().debug("Unable to load messages ahead, fallback to sequential loading", e);
                     }
                 }
             }
+            try {
+                processMessages(session, mailbox, messages, fetch, useUids, builder, responder);
+            } finally {
+                if (messages instanceof ReadAheadMessageResultIterator) {
+                    ((ReadAheadMessageResultIterator) messages).close();
+                }
+            }
+        }
 
-            // Throw the exception if we received one
-            if (messages.getException() != null) {
-                throw messages.getException();
+    }
+
+    private FetchReadAhead getReadAhead(ImapSession session) {
+        Object readAhead = session.getAttribute(READ_AHEAD);
+        if (readAhead instanceof FetchReadAhead && ((FetchReadAhead) readAhead).getBudget() > 0) {
+            return (FetchReadAhead) readAhead;
+        }
+        return null;
+    }
+
+    private void processMessages(final ImapSession session, final MessageManager mailbox, final MessageResultIterator messages, final FetchData fetch, final boolean useUids, final FetchResponseBuilder builder, final Responder responder) throws MailboxException {
+        while (messages.hasNext()) {
+            final MessageResult result = messages.next();
+
+            //skip unchanged messages - this should be filtered at the mailbox level to take advantage of indexes
+            if (fetch.isModSeq() && result.getModSeq() <= fetch.getChangedSince()) {
+                continue;
+            }
+
+            try {
+                final FetchResponse response = builder.build(fetch, result, mailbox, session, useUids);
+                responder.respond(response);
+            } catch (MessageRangeException e) {
+                // we can't for whatever reason find the message so
+                // just skip it and log it to debug
+                if (session.getLog().isDebugEnabled()) {
+                    session.getLog().debug("Unable to find message with uid " + result.getUid(), e);
+                }
+            } catch (MailboxException e) {
+                // we can't for whatever reason find parse all requested parts of the message. This may because it was deleted while try to access the parts.
+                // So we just skip it 
+                //
+                // See IMAP-347
+                if (session.getLog().isDebugEnabled()) {
+                    session.getLog().debug("Unable to fetch message with uid " + result.getUid() + ", so skip it", e);
+                }
             }
         }
 
+        // Throw the exception if we received one
+        if (messages.getException() != null) {
+            throw messages.getException();
+        }
     }
 
     protected FetchGroup getFetchGroup(FetchData fetch) {
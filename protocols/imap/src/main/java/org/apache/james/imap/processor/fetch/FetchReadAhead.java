@@ -0,0 +1,94 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.imap.processor.fetch;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Read-ahead state of one {@link org.apache.james.imap.api.process.ImapSession}.
+ * 
+ * The {@link Executor} is shared by all sessions and owned by the server which
+ * created it. The budget of octets is enforced over all FETCH commands of the
+ * session: every {@link ReadAheadMessageResultIterator} of the session counts
+ * its buffered {@link org.apache.james.mailbox.model.MessageResult}'s against
+ * it, and no new one is loaded while it is used up.
+ */
+public class FetchReadAhead {
+
+    private final Executor executor;
+    private final long budget;
+    private long usedOctets = 0;
+
+    public FetchReadAhead(Executor executor, long budget) {
+        this.executor = executor;
+        this.budget = budget;
+    }
+
+    /**
+     * Return the {@link Executor} which is used to load the messages
+     * 
+     * @return executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Return the max count of octets the session may load ahead
+     * 
+     * @return budget
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Return the count of octets which are currently loaded ahead
+     * 
+     * @return usedOctets
+     */
+    public synchronized long getUsedOctets() {
+        return usedOctets;
+    }
+
+    /**
+     * Return true if another message may be loaded. The caller must hold the
+     * lock of this instance
+     */
+    boolean hasRoom() {
+        return usedOctets < budget;
+    }
+
+    /**
+     * Count the given octets against the budget. The caller must hold the lock
+     * of this instance
+     */
+    void acquire(long octets) {
+        usedOctets += octets;
+    }
+
+    /**
+     * Give the given octets back to the budget and wake up the waiting
+     * producers. The caller must hold the lock of this instance
+     */
+    void release(long octets) {
+        usedOctets -= octets;
+        notifyAll();
+    }
+}
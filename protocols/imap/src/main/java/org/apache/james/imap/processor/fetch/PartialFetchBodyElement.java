@@ -22,13 +22,16 @@ package org.apache.james.imap.processor.fetch;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.james.imap.message.response.FetchResponse.BodyElement;
+import org.apache.james.imap.message.response.ZeroCopyLiteral;
 
 /**
  * Wraps full content to implement a partial fetch.
  */
-final class PartialFetchBodyElement implements BodyElement {
+final class PartialFetchBodyElement implements BodyElement, ZeroCopyLiteral {
 
     private final BodyElement delegate;
 
@@ -77,6 +80,40 @@ final class PartialFetchBodyElement implements BodyElement {
         return new LimitingInputStream(delegate.getInputStream(), firstOctet, size());
     }
 
+    /**
+     * @see org.apache.james.imap.message.response.ZeroCopyLiteral#getByteBuffer()
+     */
+    public ByteBuffer getByteBuffer() throws IOException {
+        if (delegate instanceof ZeroCopyLiteral) {
+            ByteBuffer buffer = ((ZeroCopyLiteral) delegate).getByteBuffer();
+            if (buffer != null) {
+                long size = size();
+                if (size == 0) {
+                    return ByteBuffer.allocate(0);
+                }
+                ByteBuffer partial = buffer.duplicate();
+                partial.position(partial.position() + (int) firstOctet);
+                partial.limit(partial.position() + (int) size);
+                return partial.slice();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @see org.apache.james.imap.message.response.ZeroCopyLiteral#getFileChannel()
+     */
+    public FileChannel getFileChannel() throws IOException {
+        if (delegate instanceof ZeroCopyLiteral) {
+            FileChannel channel = ((ZeroCopyLiteral) delegate).getFileChannel();
+            if (channel != null && size() > 0) {
+                channel.position(channel.position() + firstOctet);
+            }
+            return channel;
+        }
+        return null;
+    }
+
     private final class LimitingInputStream extends FilterInputStream {
         private long pos = 0;
         private final long length;
@@ -0,0 +1,214 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResultIterator;
+
+/**
+ * {@link MessageResultIterator} which loads the {@link MessageResult}'s of the
+ * wrapped {@link MessageResultIterator} in the background while the caller
+ * encodes and writes the previous ones.
+ * 
+ * The read-ahead is bounded by the budget of octets (based on
+ * {@link MessageResult#getSize()}) of the session's {@link FetchReadAhead}, so
+ * a big FETCH can not fill up the heap. A message is only loaded while the
+ * budget is not used up, so at most one message more than the budget allows
+ * is held. At least one {@link MessageResult} is always loaded ahead, even if
+ * it is bigger than the budget.
+ * 
+ * {@link #close()} MUST be called once the caller is done with the iterator,
+ * so the background loading stops if the iteration was aborted and the
+ * buffered octets are given back to the budget. It waits until the background
+ * loading has stopped, so the wrapped {@link MessageResultIterator} is not used
+ * anymore once it returns.
+ */
+public class ReadAheadMessageResultIterator implements MessageResultIterator {
+
+    private final MessageResultIterator delegate;
+    private final FetchReadAhead readAhead;
+
+    private final LinkedList<MessageResult> buffer = new LinkedList<MessageResult>();
+    private long bufferedOctets = 0;
+    private boolean done = false;
+    private boolean closed = false;
+    private Thread producer;
+    private MailboxException exception;
+    private RuntimeException failure;
+
+    public ReadAheadMessageResultIterator(MessageResultIterator delegate, Executor executor, long budget) {
+        this(delegate, new FetchReadAhead(executor, budget));
+    }
+
+    /**
+     * Start loading the messages of the given {@link MessageResultIterator}
+     * on the executor of the {@link FetchReadAhead}
+     * 
+     * @throws RejectedExecutionException
+     *             if the executor does not accept more read-aheads
+     */
+    public ReadAheadMessageResultIterator(MessageResultIterator delegate, FetchReadAhead readAhead) {
+        this.delegate = delegate;
+        this.readAhead = readAhead;
+        readAhead.getExecutor().execute(new Runnable() {
+            public void run() {
+                readAhead();
+            }
+        });
+    }
+
+    private void readAhead() {
+        synchronized (readAhead) {
+            if (closed) {
+                // closed before the read-ahead was started
+                done = true;
+                return;
+            }
+            producer = Thread.currentThread();
+        }
+        try {
+            while (awaitRoom() && delegate.hasNext()) {
+                MessageResult result = delegate.next();
+                synchronized (readAhead) {
+                    if (closed) {
+                        return;
+                    }
+                    buffer.add(result);
+                    bufferedOctets += result.getSize();
+                    readAhead.acquire(result.getSize());
+                    readAhead.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            synchronized (readAhead) {
+                failure = e;
+            }
+        } finally {
+            synchronized (readAhead) {
+                if (exception == null) {
+                    exception = delegate.getException();
+                }
+                producer = null;
+                done = true;
+                readAhead.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait till the budget of the session allows to load another message
+     * 
+     * @return false if the iterator was closed in the meantime
+     */
+    private boolean awaitRoom() throws InterruptedException {
+        synchronized (readAhead) {
+            while (!closed && !readAhead.hasRoom()) {
+                readAhead.wait();
+            }
+            return !closed;
+        }
+    }
+
+    /**
+     * @see java.util.Iterator#hasNext()
+     */
+    public boolean hasNext() {
+        synchronized (readAhead) {
+            try {
+                while (buffer.isEmpty() && !done && !closed) {
+                    readAhead.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                return false;
+            }
+            if (buffer.isEmpty() && failure != null) {
+                throw failure;
+            }
+            return !buffer.isEmpty();
+        }
+    }
+
+    /**
+     * @see java.util.Iterator#next()
+     */
+    public MessageResult next() {
+        synchronized (readAhead) {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            MessageResult result = buffer.removeFirst();
+            bufferedOctets -= result.getSize();
+            readAhead.release(result.getSize());
+            return result;
+        }
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.MessageResultIterator#getException()
+     */
+    public MailboxException getException() {
+        synchronized (readAhead) {
+            return exception;
+        }
+    }
+
+    /**
+     * Stop the background loading, wait until it has stopped and drop all
+     * {@link MessageResult}'s which were loaded but not consumed yet
+     */
+    public void close() {
+        synchronized (readAhead) {
+            if (!closed) {
+                closed = true;
+                buffer.clear();
+                readAhead.release(bufferedOctets);
+                bufferedOctets = 0;
+                if (producer != null) {
+                    producer.interrupt();
+                }
+                readAhead.notifyAll();
+            }
+            try {
+                while (producer != null) {
+                    readAhead.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Read only
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("Read only");
+    }
+}
@@ -26,12 +26,14 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.mail.Flags;
 
@@ -53,9 +55,11 @@ import org.apache.james.mailbox.model.MailboxACL.MailboxACLCommand;
 import org.apache.james.mailbox.model.MailboxACL.MailboxACLEntryKey;
 import org.apache.james.mailbox.model.MailboxACL.MailboxACLRight;
 import org.apache.james.mailbox.model.MailboxACL.MailboxACLRights;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MailboxMetaData;
 import org.apache.james.mailbox.model.MailboxPath;
 import org.apache.james.mailbox.model.MailboxQuery;
+import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.MessageResult;
 import org.apache.james.mailbox.model.MessageResult.FetchGroup;
@@ -72,11 +76,13 @@ public class MailboxEventAnalyserTest {
 
     
     private MailboxPath mailboxPath = new MailboxPath("namespace", "user", "name");
+    private MailboxListener listener;
+    private int registeredListeners;
     private final MailboxManager mockManager = new MailboxManager() {
         
         
         public void removeListener(MailboxPath mailboxPath, MailboxListener listner, MailboxSession session) throws MailboxException {
-            
+            registeredListeners--;
         }
         
         
@@ -86,7 +92,8 @@ public class MailboxEventAnalyserTest {
         
         
         public void addListener(MailboxPath mailboxPath, MailboxListener listener, MailboxSession session) throws MailboxException {
-            
+            MailboxEventAnalyserTest.this.listener = listener;
+            registeredListeners++;
         }
         
         
@@ -121,6 +128,10 @@ public class MailboxEventAnalyserTest {
             throw new UnsupportedOperationException("Not implemented");
 
         }
+
+        public Map<MailboxPath, MailboxCounters> getMailboxCounters(Collection<MailboxPath> mailboxPaths, Set<MailboxCounters.Counter> counters, MailboxSession session) throws MailboxException {
+            throw new UnsupportedOperationException("Not implemented");
+        }
         
         
         public void logout(MailboxSession session, boolean force) throws MailboxException {
@@ -299,6 +310,10 @@ public class MailboxEventAnalyserTest {
                     throw new UnsupportedOperationException("Not implemented");
 
                 }
+
+                public MailboxCounters getMailboxCounters(MailboxSession mailboxSession, Set<MailboxCounters.Counter> counters) throws MailboxException {
+                    throw new UnsupportedOperationException("Not implemented");
+                }
             };
         }
         
@@ -506,7 +521,7 @@ public class MailboxEventAnalyserTest {
 
         final MailboxListener.Event event = new MailboxListener.Event(mSession, mailboxPath) {};
       
-        analyser.event(event);
+        listener.event(event);
         assertFalse(analyser.isSizeChanged());
     }
 
@@ -518,7 +533,7 @@ public class MailboxEventAnalyserTest {
         
         SelectedMailboxImpl analyser = new SelectedMailboxImpl(mockManager, imapsession, mailboxPath);
         
-        analyser.event(new FakeMailboxListenerAdded(mSession, Arrays.asList(11L), mailboxPath));
+        listener.event(new FakeMailboxListenerAdded(mSession, Arrays.asList(11L), mailboxPath));
         assertTrue(analyser.isSizeChanged());
     }
 
@@ -530,7 +545,7 @@ public class MailboxEventAnalyserTest {
         
         SelectedMailboxImpl analyser = new SelectedMailboxImpl(mockManager, imapsession, mailboxPath);
         
-        analyser.event(new FakeMailboxListenerAdded(mSession,  Arrays.asList(11L), mailboxPath));
+        listener.event(new FakeMailboxListenerAdded(mSession,  Arrays.asList(11L), mailboxPath));
         analyser.resetEvents();
         assertFalse(analyser.isSizeChanged());
     }
@@ -545,7 +560,7 @@ public class MailboxEventAnalyserTest {
         
         final FakeMailboxListenerFlagsUpdate update = new FakeMailboxListenerFlagsUpdate(
                 mSession,  Arrays.asList(90L),  Arrays.asList(new UpdatedFlags(90, -1, new Flags(), new Flags())), mailboxPath);
-        analyser.event(update);
+        listener.event(update);
         assertNotNull(analyser.flagUpdateUids());
         assertFalse(analyser.flagUpdateUids().iterator().hasNext());
     }
@@ -561,7 +576,7 @@ public class MailboxEventAnalyserTest {
         
         final FakeMailboxListenerFlagsUpdate update = new FakeMailboxListenerFlagsUpdate(
                 new MyMailboxSession(41), Arrays.asList(uid), Arrays.asList(new UpdatedFlags(uid, -1, new Flags(), new Flags(Flags.Flag.ANSWERED))), mailboxPath);
-        analyser.event(update);
+        listener.event(update);
         final Iterator<Long> iterator = analyser.flagUpdateUids().iterator();
         assertNotNull(iterator);
         assertTrue(iterator.hasNext());
@@ -578,8 +593,8 @@ public class MailboxEventAnalyserTest {
         
         final FakeMailboxListenerFlagsUpdate update = new FakeMailboxListenerFlagsUpdate(
                 mSession, Arrays.asList(uid), Arrays.asList(new UpdatedFlags(uid, -1, new Flags(), new Flags(Flags.Flag.ANSWERED))), mailboxPath);
-        analyser.event(update);
-        analyser.event(update);
+        listener.event(update);
+        listener.event(update);
         analyser.deselect();
         assertNotNull(analyser.flagUpdateUids());
         assertFalse(analyser.flagUpdateUids().iterator().hasNext());
@@ -596,9 +611,9 @@ public class MailboxEventAnalyserTest {
         
         final FakeMailboxListenerFlagsUpdate update = new FakeMailboxListenerFlagsUpdate(
                 new MyMailboxSession(BASE_SESSION_ID), Arrays.asList(uid), Arrays.asList(new UpdatedFlags(uid, -1, new Flags(), new Flags(Flags.Flag.ANSWERED))), mailboxPath);
-        analyser.event(update);
+        listener.event(update);
         analyser.setSilentFlagChanges(true);
-        analyser.event(update);
+        listener.event(update);
         final Iterator<Long> iterator = analyser.flagUpdateUids().iterator();
         assertNotNull(iterator);
         assertTrue(iterator.hasNext());
@@ -616,9 +631,9 @@ public class MailboxEventAnalyserTest {
         
         final FakeMailboxListenerFlagsUpdate update = new FakeMailboxListenerFlagsUpdate(
                 mSession, Arrays.asList(345L), Arrays.asList(new UpdatedFlags(345, -1, new Flags(), new Flags())), mailboxPath);
-        analyser.event(update);
+        listener.event(update);
         analyser.setSilentFlagChanges(true);
-        analyser.event(update);
+        listener.event(update);
         final Iterator<Long> iterator = analyser.flagUpdateUids().iterator();
         assertNotNull(iterator);
         assertFalse(iterator.hasNext());
@@ -633,7 +648,7 @@ public class MailboxEventAnalyserTest {
         
         final FakeMailboxListenerFlagsUpdate update = new FakeMailboxListenerFlagsUpdate(
                 mSession, Arrays.asList(886L), Arrays.asList(new UpdatedFlags(886, -1, new Flags(), new Flags(Flags.Flag.RECENT))), mailboxPath);
-        analyser.event(update);
+        listener.event(update);
         final Iterator<Long> iterator = analyser.flagUpdateUids().iterator();
         assertNotNull(iterator);
         assertFalse(iterator.hasNext());
@@ -645,4 +660,79 @@ public class MailboxEventAnalyserTest {
     public MailboxACLRights myRights(MailboxSession session) throws MailboxException {
         return null;
     }
+
+    private MailboxListener.Expunged expunged(MailboxSession session, final List<Long> uids) {
+        return new MailboxListener.Expunged(session, mailboxPath) {
+            public List<Long> getUids() {
+                return uids;
+            }
+
+            public MessageMetaData getMetaData(long uid) {
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void testSessionsShouldShareOneListenerPerMailbox() throws Exception {
+        SharedUidIndexRegistry registry = new SharedUidIndexRegistry(mockManager);
+        SelectedMailboxImpl first = new SelectedMailboxImpl(registry, new MyImapSession(new MyMailboxSession(1)), mailboxPath);
+        SelectedMailboxImpl second = new SelectedMailboxImpl(registry, new MyImapSession(new MyMailboxSession(2)), mailboxPath);
+        assertEquals(1, registeredListeners);
+
+        listener.event(new FakeMailboxListenerAdded(new MyMailboxSession(3), Arrays.asList(2L, 3L), mailboxPath));
+        assertTrue(first.isSizeChanged());
+        assertTrue(second.isSizeChanged());
+        assertEquals(3, first.existsCount());
+        assertEquals(3, second.existsCount());
+
+        first.deselect();
+        assertEquals(1, registeredListeners);
+        second.deselect();
+        assertEquals(0, registeredListeners);
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testExpungedUidShouldKeepItsMsnTillItWasRemovedBySession() throws Exception {
+        SharedUidIndexRegistry registry = new SharedUidIndexRegistry(mockManager);
+        SelectedMailboxImpl first = new SelectedMailboxImpl(registry, new MyImapSession(new MyMailboxSession(1)), mailboxPath);
+        SelectedMailboxImpl second = new SelectedMailboxImpl(registry, new MyImapSession(new MyMailboxSession(2)), mailboxPath);
+
+        MyMailboxSession other = new MyMailboxSession(3);
+        listener.event(new FakeMailboxListenerAdded(other, Arrays.asList(2L, 3L, 4L), mailboxPath));
+        listener.event(expunged(other, Arrays.asList(2L, 4L)));
+
+        assertEquals(Arrays.asList(2L, 4L), new ArrayList<Long>(first.expungedUids()));
+        assertEquals(4, first.existsCount());
+        assertEquals(2, first.uid(2));
+        assertEquals(3, first.msn(3));
+
+        assertEquals(2, first.remove(2L));
+        assertEquals(2, first.msn(3));
+        assertEquals(3, first.uid(2));
+        assertEquals(4, first.uid(3));
+        assertEquals(3, first.remove(4L));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, first.remove(4L));
+        assertEquals(2, first.existsCount());
+        assertEquals(3, first.getLastUid());
+
+        // the other session still needs to send its EXPUNGE responses
+        assertEquals(4, second.existsCount());
+        assertEquals(3, second.msn(3));
+        assertEquals(4, second.getLastUid());
+    }
+
+    @Test
+    public void testSessionShouldSeeTheMailboxAsItWasWhenSelected() throws Exception {
+        SharedUidIndexRegistry registry = new SharedUidIndexRegistry(mockManager);
+        SelectedMailboxImpl first = new SelectedMailboxImpl(registry, new MyImapSession(new MyMailboxSession(1)), mailboxPath);
+        listener.event(new FakeMailboxListenerAdded(new MyMailboxSession(3), Arrays.asList(2L), mailboxPath));
+
+        SelectedMailboxImpl second = new SelectedMailboxImpl(registry, new MyImapSession(new MyMailboxSession(2)), mailboxPath);
+        assertTrue(first.isSizeChanged());
+        assertFalse(second.isSizeChanged());
+        assertEquals(2, second.existsCount());
+        assertEquals(2, second.msn(2));
+    }
 }
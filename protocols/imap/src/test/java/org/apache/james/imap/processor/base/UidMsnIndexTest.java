@@ -0,0 +1,99 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.james.imap.api.process.SelectedMailbox;
+import org.junit.Test;
+
+public class UidMsnIndexTest {
+
+    @Test
+    public void testEmpty() {
+        UidMsnIndex index = UidMsnIndex.EMPTY;
+        assertTrue(index.isEmpty());
+        assertEquals(-1, index.getFirstUid());
+        assertEquals(-1, index.getLastUid());
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.getUid(1));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.getMsn(1));
+    }
+
+    @Test
+    public void testAdd() {
+        List<Long> uids = new ArrayList<Long>();
+        for (long uid = 1; uid <= 100; uid++) {
+            uids.add(uid * 2);
+        }
+        UidMsnIndex index = UidMsnIndex.EMPTY.add(uids);
+        // duplicates are ignored
+        assertSame(index, index.add(Arrays.asList(10L)));
+
+        assertEquals(100, index.size());
+        assertEquals(2, index.getFirstUid());
+        assertEquals(200, index.getLastUid());
+        assertEquals(5, index.getMsn(10));
+        assertEquals(10, index.getUid(5));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.getMsn(11));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.getUid(101));
+        assertEquals(5, index.countLower(11));
+        assertEquals(4, index.countLower(10));
+    }
+
+    @Test
+    public void testAddOutOfOrder() {
+        UidMsnIndex index = UidMsnIndex.EMPTY.add(Arrays.asList(30L));
+        index = index.add(Arrays.asList(10L, 20L, 10L));
+
+        assertEquals(3, index.size());
+        assertEquals(1, index.getMsn(10));
+        assertEquals(2, index.getMsn(20));
+        assertEquals(3, index.getMsn(30));
+    }
+
+    @Test
+    public void testAddShouldNotChangeTheOriginal() {
+        UidMsnIndex index = UidMsnIndex.EMPTY.add(Arrays.asList(1L, 5L));
+        index.add(Arrays.asList(3L));
+        index.remove(Arrays.asList(1L));
+
+        assertEquals(2, index.size());
+        assertEquals(2, index.getMsn(5));
+    }
+
+    @Test
+    public void testRemoveRenumbers() {
+        UidMsnIndex index = UidMsnIndex.EMPTY.add(Arrays.asList(1L, 5L, 7L, 9L));
+
+        UidMsnIndex removed = index.remove(Arrays.asList(5L));
+        assertSame(removed, removed.remove(Arrays.asList(5L)));
+        assertEquals(3, removed.size());
+        assertEquals(1, removed.getMsn(1));
+        assertEquals(2, removed.getMsn(7));
+        assertEquals(3, removed.getMsn(9));
+        assertEquals(9, removed.getUid(3));
+    }
+}
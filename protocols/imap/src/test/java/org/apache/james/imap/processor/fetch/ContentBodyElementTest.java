@@ -0,0 +1,87 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.james.mailbox.model.ZeroCopyContent;
+import org.junit.Test;
+
+public class ContentBodyElementTest {
+
+    private static final byte[] CONTENT = "0123456789".getBytes();
+
+    private static class ByteBufferContent implements ZeroCopyContent {
+
+        public InputStream getInputStream() throws IOException {
+            return new ByteArrayInputStream(CONTENT);
+        }
+
+        public long size() {
+            return CONTENT.length;
+        }
+
+        public ByteBuffer getByteBuffer() throws IOException {
+            return ByteBuffer.wrap(CONTENT).asReadOnlyBuffer();
+        }
+
+        public FileChannel getFileChannel() throws IOException {
+            return null;
+        }
+    }
+
+    @Test
+    public void getByteBufferShouldReturnNullWhenContentIsNotZeroCopy() throws Exception {
+        ContentBodyElement element = new ContentBodyElement("Name", new EmptyContent());
+        assertNull(element.getByteBuffer());
+        assertNull(element.getFileChannel());
+    }
+
+    @Test
+    public void getByteBufferShouldExposeWholeContent() throws Exception {
+        ContentBodyElement element = new ContentBodyElement("Name", new ByteBufferContent());
+        assertEquals(ByteBuffer.wrap(CONTENT), element.getByteBuffer());
+    }
+
+    @Test
+    public void partialGetByteBufferShouldOnlyExposeRequestedOctets() throws Exception {
+        PartialFetchBodyElement element = new PartialFetchBodyElement(new ContentBodyElement("Name", new ByteBufferContent()), 2, 5);
+        assertEquals(ByteBuffer.wrap("23456".getBytes()), element.getByteBuffer());
+    }
+
+    @Test
+    public void partialGetByteBufferShouldBeEmptyWhenStartIsMoreThanSize() throws Exception {
+        PartialFetchBodyElement element = new PartialFetchBodyElement(new ContentBodyElement("Name", new ByteBufferContent()), 20, 5);
+        assertEquals(0, element.getByteBuffer().remaining());
+    }
+
+    @Test
+    public void partialGetByteBufferShouldBeTruncatedAtEndOfContent() throws Exception {
+        PartialFetchBodyElement element = new PartialFetchBodyElement(new ContentBodyElement("Name", new ByteBufferContent()), 8, 5);
+        assertEquals(ByteBuffer.wrap("89".getBytes()), element.getByteBuffer());
+    }
+}
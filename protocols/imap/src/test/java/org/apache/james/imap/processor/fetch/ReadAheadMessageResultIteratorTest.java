@@ -0,0 +1,227 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResultIterator;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadAheadMessageResultIteratorTest {
+
+    private static class ListMessageResultIterator implements MessageResultIterator {
+
+        private final Iterator<MessageResult> results;
+        private final MailboxException exception;
+        private final AtomicInteger loaded = new AtomicInteger();
+
+        public ListMessageResultIterator(List<MessageResult> results, MailboxException exception) {
+            this.results = results.iterator();
+            this.exception = exception;
+        }
+
+        public boolean hasNext() {
+            return results.hasNext();
+        }
+
+        public MessageResult next() {
+            loaded.incrementAndGet();
+            return results.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public MailboxException getException() {
+            return exception;
+        }
+    }
+
+    private Mockery mockery = new JUnit4Mockery();
+
+    private ExecutorService executor;
+
+    private int mockCount = 0;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private List<MessageResult> results(int count, final long size) {
+        List<MessageResult> results = new ArrayList<MessageResult>();
+        for (int i = 0; i < count; i++) {
+            final MessageResult result = mockery.mock(MessageResult.class, "result" + mockCount++);
+            mockery.checking(new Expectations() {{
+                allowing(result).getSize(); will(returnValue(size));
+            }});
+            results.add(result);
+        }
+        return results;
+    }
+
+    @Test
+    public void iteratorShouldReturnAllResultsInOrder() throws Exception {
+        List<MessageResult> results = results(10, 100);
+        ReadAheadMessageResultIterator iterator = new ReadAheadMessageResultIterator(new ListMessageResultIterator(results, null), executor, 250);
+
+        for (MessageResult result : results) {
+            assertTrue(iterator.hasNext());
+            assertSame(result, iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+        assertNull(iterator.getException());
+        iterator.close();
+    }
+
+    @Test
+    public void iteratorShouldReturnResultsBiggerThanBudget() throws Exception {
+        List<MessageResult> results = results(3, 1000);
+        ReadAheadMessageResultIterator iterator = new ReadAheadMessageResultIterator(new ListMessageResultIterator(results, null), executor, 10);
+
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertEquals(3, count);
+        iterator.close();
+    }
+
+    @Test
+    public void iteratorShouldExposeExceptionOfDelegate() throws Exception {
+        MailboxException exception = new MailboxException();
+        ReadAheadMessageResultIterator iterator = new ReadAheadMessageResultIterator(new ListMessageResultIterator(results(1, 10), exception), executor, 100);
+
+        assertTrue(iterator.hasNext());
+        iterator.next();
+        assertFalse(iterator.hasNext());
+        assertSame(exception, iterator.getException());
+        iterator.close();
+    }
+
+    @Test
+    public void closeShouldStopReadAhead() throws Exception {
+        ReadAheadMessageResultIterator iterator = new ReadAheadMessageResultIterator(new ListMessageResultIterator(results(10, 100), null), executor, 100);
+
+        iterator.close();
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void closeShouldWaitUntilTheReadAheadStopped() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        MessageResultIterator blocking = new ListMessageResultIterator(results(1, 100), null) {
+            @Override
+            public boolean hasNext() {
+                running.incrementAndGet();
+                try {
+                    loading.countDown();
+                    // blocks like a slow mailbox until the read-ahead is interrupted
+                    new CountDownLatch(1).await();
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+        ReadAheadMessageResultIterator iterator = new ReadAheadMessageResultIterator(blocking, executor, 100);
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        iterator.close();
+        assertEquals(0, running.get());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void readAheadShouldNotLoadMoreThanTheBudgetAllows() throws Exception {
+        FetchReadAhead readAhead = new FetchReadAhead(executor, 250);
+        ListMessageResultIterator messages = new ListMessageResultIterator(results(10, 100), null);
+        ReadAheadMessageResultIterator iterator = new ReadAheadMessageResultIterator(messages, readAhead);
+
+        awaitUsedOctets(readAhead, 300);
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(3, messages.loaded.get());
+
+        iterator.next();
+        awaitUsedOctets(readAhead, 300);
+        assertEquals(4, messages.loaded.get());
+
+        iterator.close();
+        assertEquals(0, readAhead.getUsedOctets());
+    }
+
+    @Test
+    public void budgetShouldBeSharedByAllIteratorsOfTheSession() throws Exception {
+        FetchReadAhead readAhead = new FetchReadAhead(executor, 250);
+        ReadAheadMessageResultIterator first = new ReadAheadMessageResultIterator(new ListMessageResultIterator(results(10, 100), null), readAhead);
+        awaitUsedOctets(readAhead, 300);
+
+        ListMessageResultIterator messages = new ListMessageResultIterator(results(10, 100), null);
+        ReadAheadMessageResultIterator second = new ReadAheadMessageResultIterator(messages, readAhead);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        // the budget is used by the first iterator
+        assertEquals(0, messages.loaded.get());
+
+        first.close();
+        assertTrue(second.hasNext());
+        second.close();
+        assertEquals(0, readAhead.getUsedOctets());
+    }
+
+    private void awaitUsedOctets(FetchReadAhead readAhead, long octets) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (readAhead.getUsedOctets() != octets && System.currentTimeMillis() < end) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertEquals(octets, readAhead.getUsedOctets());
+    }
+}
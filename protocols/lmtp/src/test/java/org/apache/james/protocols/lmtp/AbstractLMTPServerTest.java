@@ -88,6 +88,18 @@ public abstract class AbstractLMTPServerTest extends AbstractSMTPServerTest{
     }
 
 
+    @Override
+    public void testChunking() throws Exception {
+        // Disable, LMTP does not support BDAT
+    }
+
+
+    @Override
+    public void testChunkingWithoutRecipient() throws Exception {
+        // Disable, LMTP does not support BDAT
+    }
+
+
     @Override
     public void testMailWithoutBrackets() throws Exception {
         TestMessageHook hook = new TestMessageHook();
@@ -161,6 +173,45 @@ public abstract class AbstractLMTPServerTest extends AbstractSMTPServerTest{
     }
 
 
+    @Override
+    public void testAsyncMessageHookDeclinedUsesTheDefaultResponse() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        try {
+            server = createServer(createProtocol(createAsyncMessageHook(HookResult.declined())), address);
+            server.bind();
+            
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            assertTrue(SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            
+            client.helo("localhost");
+            assertTrue(SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            client.setSender(SENDER);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            client.addRecipient(RCPT2);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            // LMTP answers per recipient, a recipient nobody delivered to gets a temporary error
+            assertFalse(client.sendShortMessageData(MSG1));
+            int[] replies = ((LMTPClient)client).getReplies();
+            assertEquals("Expected one reply", 1, replies.length);
+            assertTrue(SMTPReply.isNegativeTransient(replies[0]));
+
+            client.quit();
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            client.disconnect();
+
+        } finally {
+            if (server != null) {
+                server.unbind();
+            }
+        }
+    }
+
     @Test
     public void testEhloNotSupported() throws Exception {
         TestMessageHook hook = new TestMessageHook();
@@ -33,9 +33,12 @@ import org.apache.james.protocols.api.future.FutureResponse;
 import org.apache.james.protocols.api.handler.ConnectHandler;
 import org.apache.james.protocols.api.handler.DisconnectHandler;
 import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.handler.PayloadCommandHandler;
 import org.apache.james.protocols.api.handler.ProtocolHandlerChain;
 import org.apache.james.protocols.api.handler.ProtocolHandlerResultHandler;
 import org.apache.james.protocols.netty.NettyProtocolTransport;
+import org.apache.james.protocols.netty.ProtocolFrameDecoder.Pipelining;
+import org.apache.james.protocols.netty.SuspendedLines.LineProcessor;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandler.Sharable;
@@ -51,7 +54,7 @@ import org.jboss.netty.handler.codec.frame.TooLongFrameException;
  * {@link ChannelUpstreamHandler} which is used by the SMTPServer and other line based protocols
  */
 @Sharable
-public class BasicChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
+public class BasicChannelUpstreamHandler extends SimpleChannelUpstreamHandler implements LineProcessor {
     protected final Protocol protocol;
     protected final ProtocolHandlerChain chain;
     protected final Encryption secure;
@@ -127,10 +130,36 @@ public class BasicChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
 
     /**
      * Call the {@link LineHandler} 
+     * 
+     * While the {@link FutureResponse} returned for a previous line is not ready the session is suspended, see
+     * {@link SuspendedLines}. The responses to pipelined lines are aggregated, see {@link ProtocolFrameDecoder}.
      */
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof Pipelining) {
+            ProtocolTransport transport = ((ProtocolSessionImpl) ctx.getAttachment()).getProtocolTransport();
+            if (transport instanceof NettyProtocolTransport) {
+                if (e.getMessage() == Pipelining.START) {
+                    ((NettyProtocolTransport) transport).aggregateWrites();
+                } else {
+                    ((NettyProtocolTransport) transport).flushAggregatedWrites();
+                }
+            }
+            return;
+        }
+        if (SuspendedLines.offer(ctx.getChannel(), (ChannelBuffer) e.getMessage())) {
+            return;
+        }
+        processLine(ctx, (ChannelBuffer) e.getMessage());
+        
+        super.messageReceived(ctx, e);
+    }
+
+    /**
+     * @see SuspendedLines.LineProcessor#processLine(ChannelHandlerContext, ChannelBuffer)
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public boolean processLine(ChannelHandlerContext ctx, ChannelBuffer buf) {
         ProtocolSession pSession = (ProtocolSession) ctx.getAttachment();
         LinkedList<LineHandler> lineHandlers = chain.getHandlers(LineHandler.class);
         LinkedList<ProtocolHandlerResultHandler> resultHandlers = chain.getHandlers(ProtocolHandlerResultHandler.class);
@@ -138,14 +167,16 @@ public class BasicChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
         
         if (lineHandlers.size() > 0) {
         
-            ChannelBuffer buf = (ChannelBuffer) e.getMessage();      
-            
             LineHandler lHandler=  (LineHandler) lineHandlers.getLast();
             long start = System.currentTimeMillis();            
             Response response = lHandler.onLine(pSession,buf.toByteBuffer());
             long executionTime = System.currentTimeMillis() - start;
 
             for (ProtocolHandlerResultHandler resultHandler : resultHandlers) {
+                // Nothing to handle, like for a command which waits for its payload
+                if (response == null) {
+                    break;
+                }
                 // Disable till PROTOCOLS-37 is implemented
                 if (response instanceof FutureResponse) {
                     pSession.getLogger().debug("ProtocolHandlerResultHandler are not supported for FutureResponse yet");
@@ -156,13 +187,21 @@ public class BasicChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
             if (response != null) {
                 // TODO: This kind of sucks but I was able to come up with something more elegant here
                 ((ProtocolSessionImpl)pSession).getProtocolTransport().writeResponse(response, pSession);
+
+                return SuspendedLines.suspendIfPending(ctx.getChannel(), response);
             }
 
         }
-        
-        super.messageReceived(ctx, e);
+        return false;
     }
 
+    /**
+     * Return the {@link PayloadCommandHandler}'s of the {@link ProtocolHandlerChain}, see {@link ProtocolFrameDecoder}
+     */
+    @SuppressWarnings("rawtypes")
+    List<PayloadCommandHandler> getPayloadCommandHandlers() {
+        return chain.getHandlers(PayloadCommandHandler.class);
+    }
 
     @Override
     public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
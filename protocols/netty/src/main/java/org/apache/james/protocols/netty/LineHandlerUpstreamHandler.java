@@ -22,6 +22,8 @@ import org.apache.james.protocols.api.ProtocolSessionImpl;
 import org.apache.james.protocols.api.ProtocolSession;
 import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.handler.PayloadCommandHandler.PayloadLineHandler;
+import org.apache.james.protocols.netty.SuspendedLines.LineProcessor;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
@@ -33,7 +35,7 @@ import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
  *
  * @param <S>
  */
-public class LineHandlerUpstreamHandler<S extends ProtocolSession> extends SimpleChannelUpstreamHandler {
+public class LineHandlerUpstreamHandler<S extends ProtocolSession> extends SimpleChannelUpstreamHandler implements LineProcessor {
 
     private final LineHandler<S> handler;
     private final S session;
@@ -45,13 +47,36 @@ public class LineHandlerUpstreamHandler<S extends ProtocolSession> extends Simpl
     
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {        
+        if (!(e.getMessage() instanceof ChannelBuffer)) {
+            // let the core handler take care of it
+            ctx.sendUpstream(e);
+            return;
+        }
         ChannelBuffer buf = (ChannelBuffer) e.getMessage();      
+        if (SuspendedLines.offer(ctx.getChannel(), buf)) {
+            return;
+        }
+        processLine(ctx, buf);
+    }
+
+    /**
+     * Return true if the {@link LineHandler} consumes the payload of a command, see {@link ProtocolFrameDecoder}
+     */
+    boolean isPayloadHandler() {
+        return handler instanceof PayloadLineHandler;
+    }
 
+    /**
+     * @see SuspendedLines.LineProcessor#processLine(ChannelHandlerContext, ChannelBuffer)
+     */
+    public boolean processLine(ChannelHandlerContext ctx, ChannelBuffer buf) {
         Response response = handler.onLine(session, buf.toByteBuffer()); 
         if (response != null) {
             // TODO: This kind of sucks but I was not able to come up with something more elegant here
             ((ProtocolSessionImpl)session).getProtocolTransport().writeResponse(response, session);
+            return SuspendedLines.suspendIfPending(ctx.getChannel(), response);
         }
+        return false;
     }
 
 }
@@ -24,7 +24,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.net.ssl.SSLEngine;
 
@@ -32,6 +34,7 @@ import org.apache.james.protocols.api.AbstractProtocolTransport;
 import org.apache.james.protocols.api.CombinedInputStream;
 import org.apache.james.protocols.api.ProtocolSession;
 import org.apache.james.protocols.api.handler.LineHandler;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFutureListener;
@@ -47,6 +50,8 @@ public class NettyProtocolTransport extends AbstractProtocolTransport {
     private final Channel channel;
     private final SSLEngine engine;
     private int lineHandlerCount = 0;
+    private final Object writeLock = new Object();
+    private List<ChannelBuffer> aggregatedWrites;
     
     public NettyProtocolTransport(Channel channel, SSLEngine engine) {
         this.channel = channel;
@@ -108,23 +113,66 @@ public class NettyProtocolTransport extends AbstractProtocolTransport {
         channel.getPipeline().addFirst(HandlerConstants.SSL_HANDLER, filter);
     }
 
+    /**
+     * Aggregate everything which gets written from now on until {@link #flushAggregatedWrites()} is called. This is
+     * used while processing pipelined requests, so their responses are written back with one write.
+     */
+    void aggregateWrites() {
+        synchronized (writeLock) {
+            if (aggregatedWrites == null) {
+                aggregatedWrites = new ArrayList<ChannelBuffer>();
+            }
+        }
+    }
+
+    /**
+     * Write everything which was aggregated since {@link #aggregateWrites()} was called and stop aggregating
+     */
+    void flushAggregatedWrites() {
+        synchronized (writeLock) {
+            if (aggregatedWrites != null) {
+                List<ChannelBuffer> buffers = aggregatedWrites;
+                aggregatedWrites = null;
+                if (!buffers.isEmpty()) {
+                    channel.write(ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()])));
+                }
+            }
+        }
+    }
+
     @Override
     protected void writeToClient(byte[] bytes, ProtocolSession session, boolean startTLS) {
-        if (startTLS) {
-            prepareStartTLS();
+        synchronized (writeLock) {
+            if (startTLS) {
+                // the SslHandler must only see what is written from now on
+                flushAggregatedWrites();
+                prepareStartTLS();
+            } else if (aggregatedWrites != null) {
+                aggregatedWrites.add(ChannelBuffers.wrappedBuffer(bytes));
+                return;
+            }
+            channel.write(ChannelBuffers.wrappedBuffer(bytes));
         }
-        channel.write(ChannelBuffers.wrappedBuffer(bytes));
-        
     }
 
     @Override
     protected void close() {
-        channel.write(ChannelBuffers.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        synchronized (writeLock) {
+            flushAggregatedWrites();
+            channel.write(ChannelBuffers.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
     }
 
 
     @Override
     protected void writeToClient(InputStream in, ProtocolSession session, boolean startTLS) {
+        synchronized (writeLock) {
+            flushAggregatedWrites();
+            writeStreamToClient(in, startTLS);
+        }
+    }
+
+    private void writeStreamToClient(InputStream in, boolean startTLS) {
         if (startTLS) {
             prepareStartTLS();
         }
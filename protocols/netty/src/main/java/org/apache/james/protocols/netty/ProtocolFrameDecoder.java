@@ -0,0 +1,132 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.netty;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.james.protocols.api.handler.PayloadCommandHandler;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
+
+/**
+ * {@link DelimiterBasedFrameDecoder} which splits the received data in lines, keeping the CRLF delimiter.
+ * 
+ * The payload announced by a command line (see {@link PayloadCommandHandler}) is not split in lines but passed on
+ * as it is received. The decision is taken while decoding, because the command itself may still wait in the
+ * {@link org.jboss.netty.handler.execution.ExecutionHandler} when its payload arrives.
+ * 
+ * If more than one frame is decoded from the received data, which means the client pipelines its requests, the
+ * frames are surrounded by {@link Pipelining#START} and {@link Pipelining#END}. The responses to them are then
+ * written back with one write, see {@link NettyProtocolTransport#aggregateWrites()}.
+ */
+public class ProtocolFrameDecoder extends DelimiterBasedFrameDecoder {
+
+    /**
+     * Messages fired around the frames decoded from pipelined requests
+     */
+    enum Pipelining {
+        START,
+        END
+    }
+
+    @SuppressWarnings("rawtypes")
+    private List<PayloadCommandHandler> payloadHandlers;
+    private long payloadRemaining;
+    private boolean pipelining;
+
+    public ProtocolFrameDecoder(int maxLineLength) {
+        super(maxLineLength, false, Delimiters.lineDelimiter());
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        try {
+            super.messageReceived(ctx, e);
+        } finally {
+            if (pipelining) {
+                pipelining = false;
+                Channels.fireMessageReceived(ctx, Pipelining.END);
+            }
+        }
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        ChannelBuffer frame;
+        if (payloadRemaining > 0) {
+            int length = (int) Math.min(payloadRemaining, buffer.readableBytes());
+            payloadRemaining -= length;
+            frame = buffer.readBytes(length);
+        } else {
+            frame = (ChannelBuffer) super.decode(ctx, channel, buffer);
+            if (frame == null) {
+                return null;
+            }
+            payloadRemaining = getPayloadLength(ctx.getPipeline(), frame);
+        }
+
+        if (!pipelining && buffer.readable()) {
+            pipelining = true;
+            Channels.fireMessageReceived(ctx, Pipelining.START);
+        }
+        return frame;
+    }
+
+    /**
+     * Return the length of the payload announced by the given line, or 0 if the line is not a command which announces one
+     */
+    @SuppressWarnings("rawtypes")
+    private long getPayloadLength(ChannelPipeline pipeline, ChannelBuffer line) {
+        // Lines which are consumed by a pushed LineHandler are no commands. The LineHandler of a payload is ignored as
+        // it may not be popped yet when the next command is decoded
+        LineHandlerUpstreamHandler<?> lineHandler = pipeline.get(LineHandlerUpstreamHandler.class);
+        if (lineHandler != null && !lineHandler.isPayloadHandler()) {
+            return 0;
+        }
+        for (PayloadCommandHandler handler : getPayloadHandlers(pipeline)) {
+            long length = handler.getPayloadLength(line.toByteBuffer());
+            if (length > 0) {
+                return length;
+            }
+        }
+        return 0;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private List<PayloadCommandHandler> getPayloadHandlers(ChannelPipeline pipeline) {
+        if (payloadHandlers == null) {
+            ChannelHandler coreHandler = pipeline.get(HandlerConstants.CORE_HANDLER);
+            if (coreHandler instanceof BasicChannelUpstreamHandler) {
+                payloadHandlers = ((BasicChannelUpstreamHandler) coreHandler).getPayloadCommandHandlers();
+            } else {
+                payloadHandlers = Collections.EMPTY_LIST;
+            }
+        }
+        return payloadHandlers;
+    }
+}
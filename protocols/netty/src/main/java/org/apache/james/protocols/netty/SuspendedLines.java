@@ -0,0 +1,140 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.netty;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.ChannelPipeline;
+
+/**
+ * Suspends a session while the {@link FutureResponse} returned for one of its
+ * lines is not ready: reading from the {@link Channel} is paused and the lines
+ * already received are queued. Once the {@link FutureResponse} is ready they
+ * are handed in order to the first {@link LineProcessor} of the
+ * {@link ChannelPipeline}, so asynchronous handlers do not hold a thread while
+ * waiting and the client can not overtake a pending response.
+ */
+final class SuspendedLines {
+
+    private static final ChannelLocal<SuspendedLines> SUSPENDED_LINES = new ChannelLocal<SuspendedLines>(true) {
+
+        @Override
+        protected SuspendedLines initialValue(Channel channel) {
+            return new SuspendedLines();
+        }
+    };
+
+    private final Queue<ChannelBuffer> lines = new LinkedList<ChannelBuffer>();
+    private boolean suspended;
+
+    private SuspendedLines() {
+    }
+
+    /**
+     * Queue the line if the session of the {@link Channel} is suspended
+     * 
+     * @return <code>true</code> if the line was queued and must not be processed now
+     */
+    static boolean offer(Channel channel, ChannelBuffer line) {
+        SuspendedLines suspendedLines = SUSPENDED_LINES.get(channel);
+        synchronized (suspendedLines) {
+            if (suspendedLines.suspended) {
+                suspendedLines.lines.add(line.copy());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Suspend the session of the {@link Channel} if the {@link Response} is a {@link FutureResponse} which is not
+     * ready yet
+     * 
+     * @return <code>true</code> if the session got suspended
+     */
+    static boolean suspendIfPending(final Channel channel, Response response) {
+        if (response instanceof FutureResponse && !((FutureResponse) response).isReady()) {
+            final SuspendedLines suspendedLines = SUSPENDED_LINES.get(channel);
+            synchronized (suspendedLines) {
+                suspendedLines.suspended = true;
+            }
+            channel.setReadable(false);
+            ((FutureResponse) response).addListener(new ResponseListener() {
+
+                public void onResponse(FutureResponse response) {
+                    suspendedLines.resume(channel);
+                }
+            });
+            return true;
+        }
+        return false;
+    }
+
+    private void resume(Channel channel) {
+        while (true) {
+            ChannelBuffer line;
+            synchronized (this) {
+                line = lines.poll();
+                if (line == null) {
+                    suspended = false;
+                    break;
+                }
+            }
+            ChannelHandlerContext ctx = getLineProcessorContext(channel.getPipeline());
+            if (ctx != null && ((LineProcessor) ctx.getHandler()).processLine(ctx, line)) {
+                return;
+            }
+        }
+        if (channel.isOpen()) {
+            channel.setReadable(true);
+        }
+    }
+
+    private ChannelHandlerContext getLineProcessorContext(ChannelPipeline pipeline) {
+        for (String name : pipeline.getNames()) {
+            ChannelHandlerContext ctx = pipeline.getContext(name);
+            if (ctx != null && ctx.getHandler() instanceof LineProcessor) {
+                return ctx;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Handler of the {@link ChannelPipeline} which consumes the received lines
+     */
+    interface LineProcessor {
+
+        /**
+         * Process the line and write back the {@link Response}
+         * 
+         * @return <code>true</code> if the session got suspended by the {@link Response}
+         */
+        boolean processLine(ChannelHandlerContext ctx, ChannelBuffer line);
+    }
+}
@@ -24,11 +24,15 @@ import java.util.List;
 
 import org.apache.james.protocols.api.Request;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
 import org.apache.james.protocols.api.handler.CommandHandler;
 import org.apache.james.protocols.api.handler.ExtensibleHandler;
 import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
+import org.apache.james.protocols.smtp.hook.FutureHookResult.HookResultListener;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookResultHook;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
@@ -55,13 +59,7 @@ public abstract class AbstractHookableCmdHandler<Hook extends org.apache.james.p
         Response response = doFilterChecks(session, command, parameters);
 
         if (response == null) {
-
-            response = processHooks(session, command, parameters);
-            if (response == null) {
-                return doCoreCmd(session, command, parameters);
-            } else {
-                return response;
-            }
+            return processHooks(session, command, parameters, 0);
         } else {
             return response;
         }
@@ -69,7 +67,11 @@ public abstract class AbstractHookableCmdHandler<Hook extends org.apache.james.p
     }
 
     /**
-     * Process all hooks for the given command
+     * Process all hooks for the given command, starting at the given index, and execute the core command if none of them
+     * returned a result.
+     * 
+     * If a hook returns a {@link FutureHookResult} which is not ready yet a {@link FutureResponse} is returned. It gets
+     * populated once the remaining hooks and the core command got executed.
      * 
      * @param session
      *            the SMTPSession object
@@ -77,71 +79,117 @@ public abstract class AbstractHookableCmdHandler<Hook extends org.apache.james.p
      *            the command
      * @param parameters
      *            the paramaters
+     * @param index
+     *            the index of the first hook to execute
      * @return SMTPResponse
      */
-    private Response processHooks(SMTPSession session, String command,
-            String parameters) {
+    private Response processHooks(final SMTPSession session, final String command,
+            final String parameters, int index) {
         List<Hook> hooks = getHooks();
         if (hooks != null) {
             int count = hooks.size();
-            int i = 0;
+            int i = index;
             while (i < count) {
-                Hook rawHook = hooks.get(i);
+                final Hook rawHook = hooks.get(i);
                 session.getLogger().debug("executing hook " + rawHook.getClass().getName());
-                long start = System.currentTimeMillis();
+                final long start = System.currentTimeMillis();
 
-                HookResult hRes = callHook(rawHook, session, parameters);
-                long executionTime = System.currentTimeMillis() - start;
+                FutureHookResult futureResult = callHookAsync(rawHook, session, parameters);
+                if (!futureResult.isReady()) {
+                    final int next = i + 1;
+                    final FutureResponseImpl futureResponse = new FutureResponseImpl();
+                    futureResult.addListener(new HookResultListener() {
 
-                if (rHooks != null) {
-                    for (HookResultHook rHook : rHooks) {
-                        session.getLogger().debug("executing hook " + rHook);
-                        hRes = rHook.onHookResult(session, hRes, executionTime, rawHook);
-                    }
+                        public void onHookResult(FutureHookResult result) {
+                            long executionTime = System.currentTimeMillis() - start;
+                            Response response = processHookResult(session, command, parameters, rawHook, result.getHookResult(), executionTime);
+                            if (response == null) {
+                                response = processHooks(session, command, parameters, next);
+                            }
+                            if (response == null) {
+                                // the core command did not answer, which the client can not wait for
+                                session.getLogger().error("No response for command " + command + " after an asynchronous hook");
+                                response = session.newFatalErrorResponse();
+                            }
+                            futureResponse.completeWith(response);
+                        }
+                    });
+                    return futureResponse;
                 }
 
-                // call the core cmd if we receive a ok return code of the hook so no other hooks are executed
-                if ((hRes.getResult() & HookReturnCode.OK) == HookReturnCode.OK) {
-                    final Response response = doCoreCmd(session, command, parameters);
-                    if ((hRes.getResult() & HookReturnCode.DISCONNECT) == HookReturnCode.DISCONNECT) {
-                        return new Response() {
+                long executionTime = System.currentTimeMillis() - start;
+                Response response = processHookResult(session, command, parameters, rawHook, futureResult.getHookResult(), executionTime);
+                if (response != null) {
+                    return response;
+                }
+                i++;
+            }
+        }
+        return doCoreCmd(session, command, parameters);
+    }
 
-                            /*
-                             * (non-Javadoc)
-                             * @see org.apache.james.protocols.api.Response#isEndSession()
-                             */
-                            public boolean isEndSession() {
-                                return true;
-                            }
+    /**
+     * Process the {@link HookResult} of a hook and return the {@link Response} to write back or <code>null</code> if the
+     * next hook should get executed
+     */
+    private Response processHookResult(SMTPSession session, String command, String parameters, Hook rawHook, HookResult hRes, long executionTime) {
+        if (rHooks != null) {
+            for (HookResultHook rHook : rHooks) {
+                session.getLogger().debug("executing hook " + rHook);
+                hRes = rHook.onHookResult(session, hRes, executionTime, rawHook);
+            }
+        }
 
-                            /*
-                             * (non-Javadoc)
-                             * @see org.apache.james.protocols.api.Response#getRetCode()
-                             */
-                            public String getRetCode() {
-                                return response.getRetCode();
-                            }
+        // call the core cmd if we receive a ok return code of the hook so no other hooks are executed
+        if ((hRes.getResult() & HookReturnCode.OK) == HookReturnCode.OK) {
+            final Response response = doCoreCmd(session, command, parameters);
+            if ((hRes.getResult() & HookReturnCode.DISCONNECT) == HookReturnCode.DISCONNECT) {
+                return new Response() {
 
-                            /*
-                             * (non-Javadoc)
-                             * @see org.apache.james.protocols.api.Response#getLines()
-                             */
-                            public List<CharSequence> getLines() {
-                                return response.getLines();
-                            }
-                        };
+                    /*
+                     * (non-Javadoc)
+                     * @see org.apache.james.protocols.api.Response#isEndSession()
+                     */
+                    public boolean isEndSession() {
+                        return true;
                     }
-                    return response;
-                } else {
-                    SMTPResponse res = calcDefaultSMTPResponse(hRes);
-                    if (res != null) {
-                        return res;
+
+                    /*
+                     * (non-Javadoc)
+                     * @see org.apache.james.protocols.api.Response#getRetCode()
+                     */
+                    public String getRetCode() {
+                        return response.getRetCode();
                     }
-                }
-                i++;
+
+                    /*
+                     * (non-Javadoc)
+                     * @see org.apache.james.protocols.api.Response#getLines()
+                     */
+                    public List<CharSequence> getLines() {
+                        return response.getLines();
+                    }
+                };
             }
+            return response;
+        } else {
+            return calcDefaultSMTPResponse(hRes);
         }
-        return null;
+    }
+
+    /**
+     * Make the effective call to an hook, allowing the result to be computed asynchronously.
+     * 
+     * This implementation wraps the result of {@link #callHook(org.apache.james.protocols.smtp.hook.Hook, SMTPSession, String)}.
+     * Sub-classes supporting asynchronous hooks may override this.
+     * 
+     * @param rawHook the hook
+     * @param session the session
+     * @param parameters the parameters
+     * @return the result
+     */
+    protected FutureHookResult callHookAsync(Hook rawHook, SMTPSession session, String parameters) {
+        return new FutureHookResult(callHook(rawHook, session, parameters));
     }
 
     /**
@@ -0,0 +1,366 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.api.Request;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.ExtensibleHandler;
+import org.apache.james.protocols.api.handler.PayloadCommandHandler;
+import org.apache.james.protocols.api.handler.WiringException;
+import org.apache.james.protocols.smtp.SMTPResponse;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.core.esmtp.EhloExtension;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+
+/**
+ * Handles the BDAT command of the CHUNKING extension (RFC 3030).
+ * 
+ * The chunks are consumed as they are received and passed line by line to the {@link DataLineFilter}'s of the
+ * {@link DataCmdHandler}, dot-stuffed like they would have been received by DATA. So the message is processed the
+ * same way for both commands.
+ */
+public class BdatCmdHandler implements PayloadCommandHandler<SMTPSession>, ExtensibleHandler, EhloExtension {
+
+    /**
+     * The {@link State#Transaction} attachment which holds the state of the message received by BDAT
+     */
+    public final static String CHUNKS = "BDAT_CHUNKS";
+
+    private static final Collection<String> COMMANDS = Collections.unmodifiableCollection(Arrays.asList("BDAT"));
+    private static final List<String> ESMTP_FEATURES = Collections.unmodifiableList(Arrays.asList("CHUNKING"));
+    private static final Response SYNTAX_ERROR = new SMTPResponse(SMTPRetCode.SYNTAX_ERROR_ARGUMENTS, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_INVALID_ARG)+" Usage: BDAT <chunk-size> [LAST]").immutable();
+    private static final Response ERROR_PROCESSING_MESSAGE = new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT,DSNStatus.UNDEFINED_STATUS)+" Error processing message").immutable();
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private DataCmdHandler dataCmdHandler;
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+
+    }
+
+    @Override
+    public void destroy() {
+
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.PayloadCommandHandler#getPayloadLength(java.nio.ByteBuffer)
+     */
+    public long getPayloadLength(ByteBuffer line) {
+        // check the command name before the line gets decoded
+        if (line.remaining() < 6 || (line.get(line.position()) | 0x20) != 'b') {
+            return 0;
+        }
+        byte[] bytes = new byte[line.remaining()];
+        line.duplicate().get(bytes);
+        String cmdString = new String(bytes, US_ASCII).trim();
+        int spaceIndex = cmdString.indexOf(" ");
+        if (spaceIndex > 0 && COMMANDS.contains(cmdString.substring(0, spaceIndex).toUpperCase(Locale.US))) {
+            Chunk chunk = Chunk.parse(cmdString.substring(spaceIndex + 1));
+            if (chunk != null) {
+                return chunk.size;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Handle the BDAT command. The response is returned once the whole chunk was consumed, even if it gets rejected.
+     */
+    public Response onCommand(SMTPSession session, Request request) {
+        Chunk chunk = Chunk.parse(request.getArgument());
+        if (chunk == null) {
+            return SYNTAX_ERROR;
+        }
+
+        Chunks chunks = (Chunks) session.getAttachment(CHUNKS, State.Transaction);
+        Response failure = null;
+        if (chunks == null) {
+            failure = dataCmdHandler.doDATAFilter(session, null);
+            if (failure == null) {
+                // first chunk of the message
+                chunks = new Chunks();
+                session.setAttachment(CHUNKS, chunks, State.Transaction);
+                chunks.failure = dataCmdHandler.prepareData(session);
+            }
+        }
+
+        ChunkHandler handler = new ChunkHandler(chunk, chunks, failure);
+        if (chunk.size == 0) {
+            return handler.complete(session);
+        }
+        session.pushLineHandler(handler);
+        return null;
+    }
+
+    /**
+     * Pass the complete lines of the given data to the {@link DataLineFilter}'s and keep the rest till more data was received
+     * 
+     * @return response if the message was rejected, or null
+     */
+    private Response onData(SMTPSession session, Chunks chunks, ByteBuffer data) {
+        byte[] bytes;
+        int offset;
+        int end;
+        if (data.hasArray()) {
+            bytes = data.array();
+            offset = data.arrayOffset() + data.position();
+            end = offset + data.remaining();
+        } else {
+            bytes = new byte[data.remaining()];
+            data.get(bytes);
+            offset = 0;
+            end = bytes.length;
+        }
+
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            // LF ends a line like it does for DATA
+            if (bytes[i] == '\n') {
+                Response response = onDataLine(session, chunks, bytes, lineStart, i + 1 - lineStart);
+                if (response != null) {
+                    return response;
+                }
+                lineStart = i + 1;
+            }
+        }
+
+        int length = end - lineStart;
+        if (length > 0) {
+            if (chunks.partialLength + length > MAX_LINE_LENGTH) {
+                return session.newLineTooLongResponse();
+            }
+            if (chunks.partialLine == null || chunks.partialLine.length < chunks.partialLength + length) {
+                byte[] partialLine = new byte[Math.max(chunks.partialLength + length, 128)];
+                if (chunks.partialLength > 0) {
+                    System.arraycopy(chunks.partialLine, 0, partialLine, 0, chunks.partialLength);
+                }
+                chunks.partialLine = partialLine;
+            }
+            System.arraycopy(bytes, lineStart, chunks.partialLine, chunks.partialLength, length);
+            chunks.partialLength += length;
+        }
+        return null;
+    }
+
+    private Response onDataLine(SMTPSession session, Chunks chunks, byte[] bytes, int offset, int length) {
+        if (chunks.partialLength > 0) {
+            // the line started in a part of the data which was received before
+            byte[] line = new byte[chunks.partialLength + length];
+            System.arraycopy(chunks.partialLine, 0, line, 0, chunks.partialLength);
+            System.arraycopy(bytes, offset, line, chunks.partialLength, length);
+            chunks.partialLength = 0;
+            bytes = line;
+            offset = 0;
+            length = line.length;
+        }
+
+        ByteBuffer line;
+        if (bytes[offset] == '.') {
+            if (length == 2) {
+                // ".<LF>" must not be mistaken for the end of the data once it is dot-stuffed
+                line = ByteBuffer.wrap(new byte[] { '.', '.', '\r', '\n' });
+            } else {
+                byte[] stuffed = new byte[length + 1];
+                stuffed[0] = '.';
+                System.arraycopy(bytes, offset, stuffed, 1, length);
+                line = ByteBuffer.wrap(stuffed);
+            }
+        } else {
+            line = ByteBuffer.wrap(bytes, offset, length).slice();
+        }
+        return dataCmdHandler.getLineHandler().onLine(session, line);
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.CommandHandler#getImplCommands()
+     */
+    public Collection<String> getImplCommands() {
+        return COMMANDS;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.esmtp.EhloExtension#getImplementedEsmtpFeatures(org.apache.james.protocols.smtp.SMTPSession)
+     */
+    public List<String> getImplementedEsmtpFeatures(SMTPSession session) {
+        return ESMTP_FEATURES;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.ExtensibleHandler#getMarkerInterfaces()
+     */
+    public List<Class<?>> getMarkerInterfaces() {
+        List<Class<?>> classes = new LinkedList<Class<?>>();
+        classes.add(DataCmdHandler.class);
+        return classes;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.ExtensibleHandler#wireExtensions(java.lang.Class, java.util.List)
+     */
+    public void wireExtensions(Class<?> interfaceName, List<?> extension) throws WiringException {
+        if (DataCmdHandler.class.equals(interfaceName)) {
+            if (extension.isEmpty()) {
+                throw new WiringException("BDAT needs a DataCmdHandler to process the message data");
+            }
+            this.dataCmdHandler = (DataCmdHandler) extension.get(0);
+        }
+    }
+
+    /**
+     * The arguments of a BDAT command
+     */
+    private static final class Chunk {
+        private final long size;
+        private final boolean last;
+
+        private Chunk(long size, boolean last) {
+            this.size = size;
+            this.last = last;
+        }
+
+        /**
+         * Parse the given arguments, returns null if they are invalid
+         */
+        private static Chunk parse(String argument) {
+            if (argument == null) {
+                return null;
+            }
+            String[] args = argument.trim().split(" +");
+            if (args.length > 2 || args[0].length() == 0 || args[0].length() > 18) {
+                return null;
+            }
+            for (int i = 0; i < args[0].length(); i++) {
+                if (!Character.isDigit(args[0].charAt(i))) {
+                    return null;
+                }
+            }
+            if (args.length == 2 && !args[1].equalsIgnoreCase("LAST")) {
+                return null;
+            }
+            return new Chunk(Long.parseLong(args[0]), args.length == 2);
+        }
+    }
+
+    /**
+     * State of the message received by BDAT
+     */
+    private static final class Chunks {
+        private Response failure;
+        private byte[] partialLine;
+        private int partialLength;
+    }
+
+    /**
+     * Consumes the payload of one BDAT command
+     */
+    private final class ChunkHandler implements PayloadLineHandler<SMTPSession> {
+
+        private final Chunk chunk;
+        private final Chunks chunks;
+        private Response failure;
+        private long remaining;
+
+        public ChunkHandler(Chunk chunk, Chunks chunks, Response failure) {
+            this.chunk = chunk;
+            this.chunks = chunks;
+            this.failure = chunks == null ? failure : chunks.failure;
+            this.remaining = chunk.size;
+        }
+
+        public Response onLine(SMTPSession session, ByteBuffer data) {
+            int pushed = session.getPushedLineHandlerCount();
+            remaining -= data.remaining();
+            if (failure == null) {
+                failure = onData(session, chunks, data);
+                chunks.failure = failure;
+            }
+
+            if (remaining > 0) {
+                if (session.getPushedLineHandlerCount() < pushed) {
+                    // the DataLineFilter's ended the message early and popped this handler,
+                    // but the rest of the chunk must still be consumed
+                    session.pushLineHandler(this);
+                }
+                return null;
+            }
+
+            Response response = complete(session);
+            if (session.getPushedLineHandlerCount() == pushed) {
+                session.popLineHandler();
+            }
+            return response;
+        }
+
+        /**
+         * Called once the chunk was consumed. The last chunk ends the message like the "." line of DATA.
+         */
+        private Response complete(SMTPSession session) {
+            Response response = failure;
+            if (response == null && chunk.last) {
+                if (chunks.partialLength > 0) {
+                    // the message does not end with a line break
+                    response = onData(session, chunks, ByteBuffer.wrap(new byte[] { '\r', '\n' }));
+                }
+                if (response == null) {
+                    response = dataCmdHandler.getLineHandler().onLine(session, ByteBuffer.wrap(new byte[] { '.', '\r', '\n' }));
+                    if (response == null) {
+                        response = ERROR_PROCESSING_MESSAGE;
+                    }
+                    // the transaction state was reset by the DataLineFilter's
+                    return response;
+                }
+            }
+
+            if (response == null) {
+                return new SMTPResponse(SMTPRetCode.MAIL_OK, DSNStatus.getStatus(DSNStatus.SUCCESS,DSNStatus.UNDEFINED_STATUS) + " " + chunk.size + " octets received");
+            }
+            if (chunk.last) {
+                session.resetState();
+            }
+            return response;
+        }
+
+        @Override
+        public void init(Configuration config) throws ConfigurationException {
+
+        }
+
+        @Override
+        public void destroy() {
+
+        }
+    }
+}
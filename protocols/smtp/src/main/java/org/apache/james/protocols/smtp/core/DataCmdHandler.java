@@ -52,6 +52,7 @@ public class DataCmdHandler implements CommandHandler<SMTPSession>, ExtensibleHa
     private static final Response NO_RECIPIENT = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_OTHER)+" No recipients specified").immutable();
     private static final Response NO_SENDER = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_OTHER)+" No sender specified").immutable();
     private static final Response UNEXPECTED_ARG = new SMTPResponse(SMTPRetCode.SYNTAX_ERROR_COMMAND_UNRECOGNIZED, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_INVALID_ARG)+" Unexpected argument provided with DATA command").immutable();
+    private static final Response MIXED_WITH_BDAT = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_OTHER)+" DATA can not be used after BDAT").immutable();
     private static final Response DATA_READY = new SMTPResponse(SMTPRetCode.DATA_READY, "Ok Send data ending with <CRLF>.<CRLF>").immutable();
     private static final Collection<String> COMMANDS = Collections.unmodifiableCollection(Arrays.asList("DATA"));
 
@@ -126,6 +127,9 @@ public class DataCmdHandler implements CommandHandler<SMTPSession>, ExtensibleHa
      *
      */
     public Response onCommand(SMTPSession session, Request request) {
+        if (session.getAttachment(BdatCmdHandler.CHUNKS, ProtocolSession.State.Transaction) != null) {
+            return MIXED_WITH_BDAT;
+        }
         String parameters = request.getArgument();
         Response response = doDATAFilter(session,parameters);
         
@@ -145,14 +149,29 @@ public class DataCmdHandler implements CommandHandler<SMTPSession>, ExtensibleHa
      * @param session SMTP session object
      * @param argument the argument passed in with the command by the SMTP client
      */
-    @SuppressWarnings("unchecked")
     protected Response doDATA(SMTPSession session, String argument) {
-        MailEnvelope env = createEnvelope(session, (MailAddress) session.getAttachment(SMTPSession.SENDER,ProtocolSession.State.Transaction), new ArrayList<MailAddress>((Collection<MailAddress>)session.getAttachment(SMTPSession.RCPT_LIST,ProtocolSession.State.Transaction)));
-        session.setAttachment(MAILENV, env,ProtocolSession.State.Transaction);
+        Response response = prepareData(session);
+        if (response != null) {
+            return response;
+        }
         session.pushLineHandler(lineHandler);
         
         return DATA_READY;
     }
+
+    /**
+     * Prepare the {@link SMTPSession} for receiving the message data of the current transaction. This is
+     * also used by the {@link BdatCmdHandler}.
+     * 
+     * @param session SMTP session object
+     * @return response if the message data can not be received, or null
+     */
+    @SuppressWarnings("unchecked")
+    protected Response prepareData(SMTPSession session) {
+        MailEnvelope env = createEnvelope(session, (MailAddress) session.getAttachment(SMTPSession.SENDER,ProtocolSession.State.Transaction), new ArrayList<MailAddress>((Collection<MailAddress>)session.getAttachment(SMTPSession.RCPT_LIST,ProtocolSession.State.Transaction)));
+        session.setAttachment(MAILENV, env,ProtocolSession.State.Transaction);
+        return null;
+    }
     
     protected MailEnvelope createEnvelope(SMTPSession session, MailAddress sender, List<MailAddress> recipients) {
         MailEnvelopeImpl env = new MailEnvelopeImpl();
@@ -31,6 +31,9 @@ import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.james.protocols.api.ProtocolSession;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
 import org.apache.james.protocols.api.handler.ExtensibleHandler;
 import org.apache.james.protocols.api.handler.LineHandler;
 import org.apache.james.protocols.api.handler.WiringException;
@@ -39,6 +42,9 @@ import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.AsyncMessageHook;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
+import org.apache.james.protocols.smtp.hook.FutureHookResult.HookResultListener;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookResultHook;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
@@ -85,7 +91,17 @@ public class DataLineMessageHookHandler implements DataLineFilter, ExtensibleHan
                 
                 Response response = processExtensions(session, env);
                 session.popLineHandler();
-                session.resetState();
+                if (response instanceof FutureResponse) {
+                    // the hooks may still access the transaction state
+                    ((FutureResponse) response).addListener(new ResponseListener() {
+
+                        public void onResponse(FutureResponse response) {
+                            session.resetState();
+                        }
+                    });
+                } else {
+                    session.resetState();
+                }
                 return response;
                 
             // DotStuffing.
@@ -113,9 +129,10 @@ public class DataLineMessageHookHandler implements DataLineFilter, ExtensibleHan
     private byte[] readBytes(ByteBuffer line) {
         line.rewind();
         byte[] bline;
-        if (line.hasArray()) {
+        if (line.hasArray() && line.arrayOffset() == 0 && line.remaining() == line.array().length) {
             bline = line.array();
         } else {
+            // the line is only a part of the array
             bline = new byte[line.remaining()];
             line.get(bline);
         }
@@ -129,35 +146,67 @@ public class DataLineMessageHookHandler implements DataLineFilter, ExtensibleHan
        
 
         if (mail != null && messageHandlers != null) {
-            for (Object messageHandler : messageHandlers) {
-                MessageHook rawHandler = (MessageHook) messageHandler;
-                session.getLogger().debug("executing message handler " + rawHandler);
-
-                long start = System.currentTimeMillis();
-                HookResult hRes = rawHandler.onMessage(session, mail);
-                long executionTime = System.currentTimeMillis() - start;
-
-                if (rHooks != null) {
-                    for (Object rHook : rHooks) {
-                        session.getLogger().debug("executing hook " + rHook);
-                        hRes = ((HookResultHook) rHook).onHookResult(session, hRes, executionTime, rawHandler);
+            return processMessageHooks(session, mail, 0);
+        }
+        
+        return null;
+    }
+
+    /**
+     * Call the {@link MessageHook}'s starting at the given index. A {@link FutureResponse} is returned if an
+     * {@link AsyncMessageHook} did not complete yet.
+     */
+    private Response processMessageHooks(final SMTPSession session, final MailEnvelopeImpl mail, int index) {
+        for (int i = index; i < messageHandlers.size(); i++) {
+            final MessageHook rawHandler = (MessageHook) messageHandlers.get(i);
+            session.getLogger().debug("executing message handler " + rawHandler);
+
+            final long start = System.currentTimeMillis();
+            FutureHookResult futureResult;
+            if (rawHandler instanceof AsyncMessageHook) {
+                futureResult = ((AsyncMessageHook) rawHandler).onMessageAsync(session, mail);
+            } else {
+                futureResult = new FutureHookResult(rawHandler.onMessage(session, mail));
+            }
+
+            if (!futureResult.isReady()) {
+                final int next = i + 1;
+                final FutureResponseImpl futureResponse = new FutureResponseImpl();
+                futureResult.addListener(new HookResultListener() {
+
+                    public void onHookResult(FutureHookResult result) {
+                        Response response = processHookResult(session, rawHandler, result.getHookResult(), System.currentTimeMillis() - start);
+                        if (response == null) {
+                            response = processMessageHooks(session, mail, next);
+                        }
+                        futureResponse.completeWith(response);
                     }
-                }
+                });
+                return futureResponse;
+            }
 
-                SMTPResponse response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(hRes);
+            Response response = processHookResult(session, rawHandler, futureResult.getHookResult(), System.currentTimeMillis() - start);
 
-                // if the response is received, stop processing of command
-                // handlers
-                if (response != null) {
-                    return response;
-                }
+            // if the response is received, stop processing of command
+            // handlers
+            if (response != null) {
+                return response;
             }
+        }
 
-            // Not queue the message!
-            return AbstractHookableCmdHandler.calcDefaultSMTPResponse(new HookResult(HookReturnCode.DENY));
+        // Not queue the message!
+        return AbstractHookableCmdHandler.calcDefaultSMTPResponse(new HookResult(HookReturnCode.DENY));
+    }
+
+    private SMTPResponse processHookResult(SMTPSession session, MessageHook rawHandler, HookResult hRes, long executionTime) {
+        if (rHooks != null) {
+            for (Object rHook : rHooks) {
+                session.getLogger().debug("executing hook " + rHook);
+                hRes = ((HookResultHook) rHook).onHookResult(session, hRes, executionTime, rawHandler);
+            }
         }
-        
-        return null;
+
+        return AbstractHookableCmdHandler.calcDefaultSMTPResponse(hRes);
     }
 
     /**
@@ -36,6 +36,8 @@ import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.AsyncRcptHook;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.RcptHook;
 
@@ -250,6 +252,19 @@ public class RcptCmdHandler extends AbstractHookableCmdHandler<RcptHook> impleme
                 (MailAddress) session.getAttachment(CURRENT_RECIPIENT, State.Transaction));
     }
 
+    /**
+     * Call {@link AsyncRcptHook#doRcptAsync(SMTPSession, MailAddress, MailAddress)} for asynchronous hooks
+     */
+    @Override
+    protected FutureHookResult callHookAsync(RcptHook rawHook, SMTPSession session, String parameters) {
+        if (rawHook instanceof AsyncRcptHook) {
+            return ((AsyncRcptHook) rawHook).doRcptAsync(session,
+                    (MailAddress) session.getAttachment(SMTPSession.SENDER, State.Transaction),
+                    (MailAddress) session.getAttachment(CURRENT_RECIPIENT, State.Transaction));
+        }
+        return super.callHookAsync(rawHook, session, parameters);
+    }
+
     protected String getDefaultDomain() {
     	return "localhost";
     }
@@ -20,8 +20,11 @@ package org.apache.james.protocols.smtp.core.fastfail;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import org.apache.commons.configuration.Configuration;
@@ -30,14 +33,15 @@ import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.smtp.MailAddress;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.AsyncRcptHook;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
-import org.apache.james.protocols.smtp.hook.RcptHook;
 
 /**
   * Connect handler for DNSRBL processing
   */
-public class DNSRBLHandler implements RcptHook {
+public class DNSRBLHandler implements AsyncRcptHook {
 
     /**
      * The lists of rbl servers to be checked to limit spam
@@ -53,6 +57,8 @@ public class DNSRBLHandler implements RcptHook {
     
     public static final String RBL_DETAIL_MAIL_ATTRIBUTE_NAME = "org.apache.james.smtpserver.rbl.detail";
 
+    private static final String RBL_CHECKED_ATTRIBUTE_NAME = "org.apache.james.smtpserver.rbl.checked";
+
     @Override
     public void init(Configuration config) throws ConfigurationException {
 
@@ -111,76 +117,156 @@ public class DNSRBLHandler implements RcptHook {
      * it will be permitted to send e-mail, otherwise if the remote IP is blacklisted,
      * the sender will only be permitted to send e-mail to postmaster (RFC 2821) or
      * abuse (RFC 2142), unless authenticated.
+     * 
+     * The lists are queried only once per connection, all of them at once
+     * through {@link #resolveAll(Collection)}.
      */
     public void checkDNSRBL(SMTPSession session, String ipAddress) {
-        
+        if (!startCheck(session)) {
+            return;
+        }
+
+        Collection<String> listed = resolveAll(getLookupHostnames(ipAddress));
+        String blocklistedBy = findBlocklisting(session, ipAddress, listed);
+        if (blocklistedBy != null) {
+            Collection<String> txt;
+            // we should try to retrieve details
+            if (getDetail) {
+                txt = resolveTXTRecords(blocklistedBy);
+            } else {
+                txt = Collections.<String>emptyList();
+            }
+            setBlocklisted(session, txt);
+        }
+    }
+
+    /**
+     * Return <code>true</code> if the lists need to be queried for the connection of the given session and mark the
+     * connection as checked. Connections which are allowed to relay are never checked
+     * 
+     * @param session
+     * @return check
+     */
+    protected boolean startCheck(SMTPSession session) {
         /*
          * don't check against rbllists if the client is allowed to relay..
          * This whould make no sense.
          */
         if (session.isRelayingAllowed()) {
             session.getLogger().info("Ipaddress " + session.getRemoteAddress().getAddress() + " is allowed to relay. Don't check it");
-            return;
+            return false;
         }
-        
-        if (whitelist != null || blacklist != null) {
-            StringBuffer sb = new StringBuffer();
-            StringTokenizer st = new StringTokenizer(ipAddress, " .", false);
-            while (st.hasMoreTokens()) {
-                sb.insert(0, st.nextToken() + ".");
+
+        if (session.getAttachment(RBL_CHECKED_ATTRIBUTE_NAME, State.Connection) != null) {
+            return false;
+        }
+        session.setAttachment(RBL_CHECKED_ATTRIBUTE_NAME, "true", State.Connection);
+        return whitelist != null || blacklist != null;
+    }
+
+    /**
+     * Return the hostnames to query for the given ip address, the ones of the whitelist first
+     * 
+     * @param ipAddress
+     * @return hostnames
+     */
+    protected List<String> getLookupHostnames(String ipAddress) {
+        String reversedOctets = reverseOctets(ipAddress);
+        List<String> hostnames = new ArrayList<String>();
+        if (whitelist != null) {
+            for (String rbl : whitelist) {
+                hostnames.add(reversedOctets + rbl);
             }
-            String reversedOctets = sb.toString();
-
-            if (whitelist != null) {
-                String[] rblList = whitelist;
-                for (String rbl : rblList) {
-                    if (resolve(reversedOctets + rbl)) {
-                        if (session.getLogger().isInfoEnabled()) {
-                            session.getLogger().info("Connection from " + ipAddress + " whitelisted by " + rbl);
-                        }
-
-                        return;
-                    } else {
-                        if (session.getLogger().isDebugEnabled()) {
-                            session.getLogger().debug("IpAddress " + session.getRemoteAddress().getAddress() + " not listed on " + rbl);
-                        }
+        }
+        if (blacklist != null) {
+            for (String rbl : blacklist) {
+                hostnames.add(reversedOctets + rbl);
+            }
+        }
+        return hostnames;
+    }
+
+    /**
+     * Return the hostname which blocklists the ip address, given the resolvable hostnames returned by the lookups. 
+     * 
+     * @param session
+     * @param ipAddress
+     * @param listed the resolvable hostnames
+     * @return hostname or <code>null</code> if the ip address is whitelisted or not blocklisted
+     */
+    protected String findBlocklisting(SMTPSession session, String ipAddress, Collection<String> listed) {
+        String reversedOctets = reverseOctets(ipAddress);
+        if (whitelist != null) {
+            String[] rblList = whitelist;
+            for (String rbl : rblList) {
+                if (listed.contains(reversedOctets + rbl)) {
+                    if (session.getLogger().isInfoEnabled()) {
+                        session.getLogger().info("Connection from " + ipAddress + " whitelisted by " + rbl);
+                    }
+
+                    return null;
+                } else {
+                    if (session.getLogger().isDebugEnabled()) {
+                        session.getLogger().debug("IpAddress " + session.getRemoteAddress().getAddress() + " not listed on " + rbl);
                     }
                 }
             }
+        }
 
-            if (blacklist != null) {
-                String[] rblList = blacklist;
-                for (String rbl : rblList) {
-                    if (resolve(reversedOctets + rbl)) {
-                        if (session.getLogger().isInfoEnabled()) {
-                            session.getLogger().info("Connection from " + ipAddress + " restricted by " + rbl + " to SMTP AUTH/postmaster/abuse.");
-                        }
-
-                        // we should try to retrieve details
-                        if (getDetail) {
-                            Collection<String> txt = resolveTXTRecords(reversedOctets + rbl);
-
-                            // Check if we found a txt record
-                            if (!txt.isEmpty()) {
-                                // Set the detail
-                                String blocklistedDetail = txt.iterator().next().toString();
-
-                                session.setAttachment(RBL_DETAIL_MAIL_ATTRIBUTE_NAME, blocklistedDetail, State.Connection);
-                            }
-                        }
-
-                        session.setAttachment(RBL_BLOCKLISTED_MAIL_ATTRIBUTE_NAME, "true", State.Connection);
-                        return;
-                    } else {
-                        // if it is unknown, it isn't blocked
-                        if (session.getLogger().isDebugEnabled()) {
-                            session.getLogger().debug("unknown host exception thrown:" + rbl);
-                        }
+        if (blacklist != null) {
+            String[] rblList = blacklist;
+            for (String rbl : rblList) {
+                if (listed.contains(reversedOctets + rbl)) {
+                    if (session.getLogger().isInfoEnabled()) {
+                        session.getLogger().info("Connection from " + ipAddress + " restricted by " + rbl + " to SMTP AUTH/postmaster/abuse.");
+                    }
+                    return reversedOctets + rbl;
+                } else {
+                    // if it is unknown, it isn't blocked
+                    if (session.getLogger().isDebugEnabled()) {
+                        session.getLogger().debug("unknown host exception thrown:" + rbl);
                     }
-
                 }
+
             }
         }
+        return null;
+    }
+
+    /**
+     * Mark the connection as blocklisted
+     * 
+     * @param session
+     * @param txt the TXT records of the blocklisting hostname, used as detail
+     */
+    protected void setBlocklisted(SMTPSession session, Collection<String> txt) {
+        // Check if we found a txt record
+        if (!txt.isEmpty()) {
+            // Set the detail
+            String blocklistedDetail = txt.iterator().next().toString();
+
+            session.setAttachment(RBL_DETAIL_MAIL_ATTRIBUTE_NAME, blocklistedDetail, State.Connection);
+        }
+
+        session.setAttachment(RBL_BLOCKLISTED_MAIL_ATTRIBUTE_NAME, "true", State.Connection);
+    }
+
+    /**
+     * Return <code>true</code> if the TXT records of a blocklisting hostname should be retrieved
+     * 
+     * @return getDetail
+     */
+    protected boolean isGetDetail() {
+        return getDetail;
+    }
+
+    private String reverseOctets(String ipAddress) {
+        StringBuffer sb = new StringBuffer();
+        StringTokenizer st = new StringTokenizer(ipAddress, " .", false);
+        while (st.hasMoreTokens()) {
+            sb.insert(0, st.nextToken() + ".");
+        }
+        return sb.toString();
     }
     
     /**
@@ -188,7 +274,26 @@ public class DNSRBLHandler implements RcptHook {
      */
     public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
         checkDNSRBL(session, session.getRemoteAddress().getAddress().getHostAddress());
-    
+        return getRcptResult(session);
+    }
+
+    /**
+     * This implementation checks the lists in the calling thread. Sub-classes may override this to not block while
+     * waiting for the lookups.
+     * 
+     * @see org.apache.james.protocols.smtp.hook.AsyncRcptHook#doRcptAsync(org.apache.james.protocols.smtp.SMTPSession, org.apache.james.protocols.smtp.MailAddress, org.apache.james.protocols.smtp.MailAddress)
+     */
+    public FutureHookResult doRcptAsync(SMTPSession session, MailAddress sender, MailAddress rcpt) {
+        return new FutureHookResult(doRcpt(session, sender, rcpt));
+    }
+
+    /**
+     * Return the {@link HookResult} for a recipient of a connection which was checked already
+     * 
+     * @param session
+     * @return result
+     */
+    protected HookResult getRcptResult(SMTPSession session) {
         if (!session.isRelayingAllowed()) {
             String blocklisted = (String) session.getAttachment(RBL_BLOCKLISTED_MAIL_ATTRIBUTE_NAME, State.Connection);
     
@@ -223,6 +328,25 @@ public class DNSRBLHandler implements RcptHook {
         }
     }
     
+    /**
+     * Return the given hostnames which are resolvable.
+     * 
+     * This implementation checks them one after the other using {@link #resolve(String)}. Sub-classes may override this
+     * to issue all lookups in parallel.
+     * 
+     * @param hostnames
+     * @return resolvable hostnames
+     */
+    protected Collection<String> resolveAll(Collection<String> hostnames) {
+        Collection<String> resolvable = new HashSet<String>();
+        for (String hostname : hostnames) {
+            if (resolve(hostname)) {
+                resolvable.add(hostname);
+            }
+        }
+        return resolvable;
+    }
+
     /**
      * Return a {@link Collection} which holds all TXT records for the ip. This is most times used to add details for a RBL entry.
      * 
@@ -0,0 +1,284 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.smtp.core.fastfail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+
+/**
+ * {@link AbstractGreylistHandler} which keeps the greylist in memory.
+ * <p>
+ * Triplets are keyed on the /24 network of the client (for IPv4), the sender
+ * and the recipient, so lookups are a single hash access. Each triplet is
+ * also registered in a time bucket of {@link #setBucketWidth(long)} ms. Expiry
+ * drops whole buckets instead of scanning every entry, which means an entry
+ * may outlive its lifetime by at most one bucket width.
+ * <p>
+ * The content can be saved with {@link #writeSnapshot(OutputStream)} and
+ * loaded again with {@link #readSnapshot(InputStream)}.
+ */
+public class InMemoryGreylistHandler extends AbstractGreylistHandler {
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /** 10 minutes */
+    private long bucketWidth = 600000;
+
+    private final ConcurrentMap<Triplet, Entry> entries = new ConcurrentHashMap<Triplet, Entry>();
+
+    /** Buckets of the triplets which were never seen twice */
+    private final ConcurrentNavigableMap<Long, Set<Triplet>> unconfirmedBuckets = new ConcurrentSkipListMap<Long, Set<Triplet>>();
+
+    /** Buckets of the auto whitelisted triplets */
+    private final ConcurrentNavigableMap<Long, Set<Triplet>> confirmedBuckets = new ConcurrentSkipListMap<Long, Set<Triplet>>();
+
+    /**
+     * Set the width of the time buckets used for expiry
+     * 
+     * @param bucketWidth
+     *            The width in ms
+     */
+    public void setBucketWidth(long bucketWidth) {
+        if (bucketWidth < 1) {
+            throw new IllegalArgumentException("Bucket width must be positive");
+        }
+        this.bucketWidth = bucketWidth;
+    }
+
+    /**
+     * Return the number of stored triplets
+     * 
+     * @return size
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the key used for the given client address. IPv4 addresses are
+     * reduced to their /24 network, as clients of the same provider often
+     * retry from a different host of the same pool.
+     * 
+     * @param ipAddress
+     *            The ipAddress of the client
+     * @return network
+     */
+    protected String getNetwork(String ipAddress) {
+        int index = ipAddress.lastIndexOf('.');
+        if (index > 0 && ipAddress.indexOf(':') < 0) {
+            return ipAddress.substring(0, index);
+        }
+        return ipAddress;
+    }
+
+    @Override
+    protected Iterator<String> getGreyListData(String ipAddress, String sender, String recip) throws Exception {
+        Entry entry = entries.get(new Triplet(getNetwork(ipAddress), sender, recip));
+        if (entry == null) {
+            return Collections.<String>emptyList().iterator();
+        }
+        return Arrays.asList(String.valueOf(entry.time), String.valueOf(entry.count)).iterator();
+    }
+
+    @Override
+    protected void insertTriplet(String ipAddress, String sender, String recip, int count, long createTime) throws Exception {
+        store(new Triplet(getNetwork(ipAddress), sender, recip), new Entry(createTime, count));
+    }
+
+    @Override
+    protected void updateTriplet(String ipAddress, String sender, String recip, int count, long time) throws Exception {
+        store(new Triplet(getNetwork(ipAddress), sender, recip), new Entry(time, count + 1));
+    }
+
+    @Override
+    protected void cleanupAutoWhiteListGreyList(long time) throws Exception {
+        dropBuckets(confirmedBuckets, time);
+        dropBuckets(unconfirmedBuckets, time);
+    }
+
+    @Override
+    protected void cleanupGreyList(long time) throws Exception {
+        dropBuckets(unconfirmedBuckets, time);
+    }
+
+    private void store(Triplet triplet, Entry entry) {
+        Entry old = entries.put(triplet, entry);
+        if (old != null && (old.isConfirmed() != entry.isConfirmed() || bucket(old.time) != bucket(entry.time))) {
+            Set<Triplet> oldBucket = getBuckets(old).get(bucket(old.time));
+            if (oldBucket != null) {
+                oldBucket.remove(triplet);
+            }
+        }
+        ConcurrentNavigableMap<Long, Set<Triplet>> buckets = getBuckets(entry);
+        Long key = bucket(entry.time);
+        Set<Triplet> bucket = buckets.get(key);
+        if (bucket == null) {
+            Set<Triplet> newBucket = Collections.newSetFromMap(new ConcurrentHashMap<Triplet, Boolean>());
+            bucket = buckets.putIfAbsent(key, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        bucket.add(triplet);
+    }
+
+    /**
+     * Drop all buckets which only contain entries older than the given time
+     */
+    private void dropBuckets(ConcurrentNavigableMap<Long, Set<Triplet>> buckets, long time) {
+        long limit = bucket(time);
+        Map.Entry<Long, Set<Triplet>> first;
+        while ((first = buckets.firstEntry()) != null && first.getKey() < limit) {
+            if (buckets.remove(first.getKey(), first.getValue())) {
+                for (Triplet triplet : first.getValue()) {
+                    Entry entry = entries.get(triplet);
+                    // The triplet may have been updated meanwhile, so only remove it if it still belongs to this bucket
+                    if (entry != null && getBuckets(entry) == buckets && bucket(entry.time) == first.getKey()) {
+                        entries.remove(triplet, entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private ConcurrentNavigableMap<Long, Set<Triplet>> getBuckets(Entry entry) {
+        return entry.isConfirmed() ? confirmedBuckets : unconfirmedBuckets;
+    }
+
+    private long bucket(long time) {
+        return time / bucketWidth;
+    }
+
+    /**
+     * Write all stored triplets to the given {@link OutputStream}. The stream
+     * is not closed.
+     * 
+     * @param out
+     *            The stream to write to
+     * @throws IOException
+     */
+    public void writeSnapshot(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(SNAPSHOT_VERSION);
+        for (Map.Entry<Triplet, Entry> e : entries.entrySet()) {
+            Triplet triplet = e.getKey();
+            Entry entry = e.getValue();
+            data.writeBoolean(true);
+            data.writeUTF(triplet.network);
+            data.writeUTF(triplet.sender);
+            data.writeUTF(triplet.recip);
+            data.writeLong(entry.time);
+            data.writeInt(entry.count);
+        }
+        data.writeBoolean(false);
+        data.flush();
+    }
+
+    /**
+     * Add all triplets of a snapshot written by
+     * {@link #writeSnapshot(OutputStream)}. The stream is not closed.
+     * 
+     * @param in
+     *            The stream to read from
+     * @throws IOException
+     */
+    public void readSnapshot(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported greylist snapshot version " + version);
+        }
+        while (data.readBoolean()) {
+            Triplet triplet = new Triplet(data.readUTF(), data.readUTF(), data.readUTF());
+            long time = data.readLong();
+            int count = data.readInt();
+            store(triplet, new Entry(time, count));
+        }
+    }
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+        
+    }
+
+    @Override
+    public void destroy() {
+        
+    }
+
+    private static final class Triplet {
+        private final String network;
+        private final String sender;
+        private final String recip;
+        private final int hashCode;
+
+        private Triplet(String network, String sender, String recip) {
+            this.network = network;
+            this.sender = sender;
+            this.recip = recip;
+            this.hashCode = 31 * (31 * network.hashCode() + sender.hashCode()) + recip.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Triplet)) {
+                return false;
+            }
+            Triplet that = (Triplet) obj;
+            return hashCode == that.hashCode && network.equals(that.network) && sender.equals(that.sender) && recip.equals(that.recip);
+        }
+    }
+
+    private static final class Entry {
+        private final long time;
+        private final int count;
+
+        private Entry(long time, int count) {
+            this.time = time;
+            this.count = count;
+        }
+
+        private boolean isConfirmed() {
+            return count > 0;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.hook;
+
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPSession;
+
+/**
+ * {@link RcptHook} which is able to compute its result without blocking the
+ * calling thread, for example while waiting for a remote service.
+ * 
+ * The RCPT command handler calls {@link #doRcptAsync(SMTPSession, MailAddress, MailAddress)}
+ * instead of {@link #doRcpt(SMTPSession, MailAddress, MailAddress)}. The later
+ * is still used by callers which can not deal with asynchronous results and
+ * usually just waits for {@link FutureHookResult#getHookResult()}.
+ */
+public interface AsyncRcptHook extends RcptHook {
+
+    /**
+     * Return the {@link FutureHookResult} of the hook
+     * 
+     * @param session the SMTPSession
+     * @param sender the sender MailAddress
+     * @param rcpt the recipient MailAddress
+     * @return result
+     */
+    FutureHookResult doRcptAsync(SMTPSession session, MailAddress sender, MailAddress rcpt);
+
+}
@@ -0,0 +1,146 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.hook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link HookResult} which may be computed asynchronously, returned by the
+ * asynchronous hooks like {@link AsyncRcptHook} or {@link AsyncMessageHook}.
+ * 
+ * While the result is not ready the session is suspended: no further command
+ * of the client is processed and the response is written once the registered
+ * {@link HookResultListener}'s got notified.
+ */
+public class FutureHookResult {
+
+    private HookResult result;
+    private List<HookResultListener> listeners;
+    private int waiters;
+
+    /**
+     * Create a {@link FutureHookResult} which will get populated later via
+     * {@link #setHookResult(HookResult)}
+     */
+    public FutureHookResult() {
+    }
+
+    /**
+     * Create an already ready {@link FutureHookResult}
+     * 
+     * @param result
+     */
+    public FutureHookResult(HookResult result) {
+        this.result = result;
+    }
+
+    /**
+     * Return <code>true</code> once the {@link HookResult} is available and
+     * {@link #getHookResult()} will not block any more
+     * 
+     * @return ready
+     */
+    public synchronized boolean isReady() {
+        return result != null;
+    }
+
+    /**
+     * Return the {@link HookResult}, waiting for it if needed
+     * 
+     * @return result
+     */
+    public synchronized HookResult getHookResult() {
+        while (!isReady()) {
+            try {
+                waiters++;
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiters--;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add a {@link HookResultListener} which will get notified once
+     * {@link #isReady()} is true. If the result is already available the
+     * listener is notified directly
+     * 
+     * @param listener
+     */
+    public void addListener(HookResultListener listener) {
+        synchronized (this) {
+            if (!isReady()) {
+                if (listeners == null) {
+                    listeners = new ArrayList<HookResultListener>();
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onHookResult(this);
+    }
+
+    /**
+     * Set the {@link HookResult}. All waiting threads and registered
+     * {@link HookResultListener}'s get notified. Only the first call has an
+     * effect
+     * 
+     * @param result
+     */
+    public void setHookResult(HookResult result) {
+        if (result == null) {
+            throw new IllegalArgumentException("HookResult must not be null");
+        }
+        List<HookResultListener> toNotify;
+        synchronized (this) {
+            if (isReady()) {
+                return;
+            }
+            this.result = result;
+            toNotify = listeners;
+            listeners = null;
+            if (waiters > 0) {
+                notifyAll();
+            }
+        }
+        if (toNotify != null) {
+            for (HookResultListener listener : toNotify) {
+                listener.onHookResult(this);
+            }
+        }
+    }
+
+    /**
+     * Listener which will get notified once the {@link FutureHookResult#isReady()} returns <code>true</code>
+     */
+    public interface HookResultListener {
+
+        /**
+         * The {@link FutureHookResult} is ready
+         * 
+         * @param result
+         */
+        void onHookResult(FutureHookResult result);
+    }
+}
@@ -40,6 +40,9 @@ import org.apache.james.protocols.api.handler.ProtocolHandler;
 import org.apache.james.protocols.api.handler.WiringException;
 import org.apache.james.protocols.api.utils.MockLogger;
 import org.apache.james.protocols.api.utils.TestUtils;
+import org.apache.james.protocols.smtp.hook.AsyncMessageHook;
+import org.apache.james.protocols.smtp.hook.AsyncRcptHook;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
 import org.apache.james.protocols.smtp.hook.HeloHook;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
@@ -768,6 +771,159 @@ public abstract class AbstractSMTPServerTest {
         
     }
     
+    @Test
+    public void testAsyncRcptHook() throws Exception {
+        RcptHook hook = new AsyncRcptHook() {
+
+            @Override
+            public void init(Configuration config) throws ConfigurationException {
+
+            }
+
+            @Override
+            public void destroy() {
+
+            }
+
+            public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
+                return doRcptAsync(session, sender, rcpt).getHookResult();
+            }
+
+            public FutureHookResult doRcptAsync(SMTPSession session, MailAddress sender, MailAddress rcpt) {
+                if (RCPT1.equals(rcpt.toString())) {
+                    return completeLater(new HookResult(HookReturnCode.DENY));
+                } else {
+                    return completeLater(new HookResult(HookReturnCode.DECLINED));
+                }
+            }
+
+        };
+        
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        
+        ProtocolServer server = null;
+        try {
+            server = createServer(createProtocol(hook), address);  
+            server.bind();
+            
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            
+           
+            client.helo("localhost");
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            client.setSender(SENDER);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            client.addRecipient(RCPT1);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isNegativePermanent(client.getReplyCode()));
+
+         
+            client.addRecipient(RCPT2);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            
+            client.quit();
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            client.disconnect();
+
+        } finally {
+            if (server != null) {
+                server.unbind();
+            }
+        }
+        
+    }
+
+    @Test
+    public void testAsyncMessageHook() throws Exception {
+        TestMessageHook testHook = new TestMessageHook();
+
+        MessageHook hook = createAsyncMessageHook(new HookResult(HookReturnCode.DENYSOFT));
+        
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        try {
+            server = createServer(createProtocol(hook, testHook), address);
+            server.bind();
+            
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            
+           
+            client.helo("localhost");
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            client.setSender(SENDER);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+         
+            client.addRecipient(RCPT2);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            assertFalse(client.sendShortMessageData(MSG1));
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isNegativeTransient(client.getReplyCode()));
+            
+            client.quit();
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            client.disconnect();
+
+            Iterator<MailEnvelope> queued = testHook.getQueued().iterator();
+            assertFalse(queued.hasNext());
+
+
+        } finally {
+            if (server != null) {
+                server.unbind();
+            }
+        }
+        
+    }
+
+    @Test
+    public void testAsyncMessageHookDeclinedUsesTheDefaultResponse() throws Exception {
+        MessageHook hook = createAsyncMessageHook(HookResult.declined());
+        
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        try {
+            server = createServer(createProtocol(hook), address);
+            server.bind();
+            
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            
+            client.helo("localhost");
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            client.setSender(SENDER);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+         
+            client.addRecipient(RCPT2);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            // same as when all synchronous message hooks declined
+            assertFalse(client.sendShortMessageData(MSG1));
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isNegativePermanent(client.getReplyCode()));
+            
+            client.quit();
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            client.disconnect();
+
+        } finally {
+            if (server != null) {
+                server.unbind();
+            }
+        }
+        
+    }
+
     @Test
     public void testNullSender() throws Exception {
 
@@ -1067,6 +1223,104 @@ public abstract class AbstractSMTPServerTest {
         
     }
     
+    @Test
+    public void testChunking() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        try {
+            server = createServer(createProtocol(hook), address);  
+            server.bind();
+            
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            assertTrue(SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            
+            client.sendCommand("EHLO localhost");
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            assertTrue("Reply="+ client.getReplyString(), client.getReplyString().contains("CHUNKING"));
+
+            // the line starting with a dot and the last line span two chunks. The CRLF appended
+            // by the client ends the last chunk
+            String msg = MSG1 + "\r\n.dotted line\r\nlast line";
+            int split = msg.indexOf(".dotted") + 3;
+            String chunk1 = msg.substring(0, 13);
+            String chunk2 = msg.substring(13, split);
+            String chunk3 = msg.substring(split);
+            
+            // pipeline the whole transaction
+            client.sendCommand("MAIL FROM:<" + SENDER + ">\r\n"
+                    + "RCPT TO:<" + RCPT1 + ">\r\n"
+                    + "BDAT " + chunk1.length() + "\r\n" + chunk1
+                    + "BDAT " + chunk2.length() + "\r\n" + chunk2
+                    + "BDAT " + (chunk3.length() + 2) + " LAST\r\n" + chunk3);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            for (int i = 0; i < 4; i++) {
+                client.getReply();
+                assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            }
+            
+            client.quit();
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            client.disconnect();
+
+            Iterator<MailEnvelope> queued = hook.getQueued().iterator();
+            assertTrue(queued.hasNext());
+            
+            MailEnvelope env = queued.next();
+            checkEnvelope(env, SENDER, Arrays.asList(RCPT1), msg);
+            assertFalse(queued.hasNext());
+
+        } finally {
+            if (server != null) {
+                server.unbind();
+            }
+        }
+        
+    }
+
+    @Test
+    public void testChunkingWithoutRecipient() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        try {
+            server = createServer(createProtocol(hook), address);  
+            server.bind();
+            
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            assertTrue(SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            
+            client.helo("localhost");
+            assertTrue(SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            client.setSender(SENDER);
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            // the rejected chunk must still be consumed and not be taken as command
+            client.sendCommand("BDAT 6 LAST\r\nQUIT");
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isNegativePermanent(client.getReplyCode()));
+
+            client.noop();
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+
+            client.quit();
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            client.disconnect();
+
+            assertFalse(hook.getQueued().iterator().hasNext());
+
+        } finally {
+            if (server != null) {
+                server.unbind();
+            }
+        }
+        
+    }
+    
     protected SMTPClient createClient() {
         return new SMTPClient();
     }
@@ -1080,6 +1334,52 @@ public abstract class AbstractSMTPServerTest {
         chain.wireExtensibleHandlers();
         return new SMTPProtocol(chain, new SMTPConfigurationImpl(), new MockLogger());
     }
+
+    /**
+     * Return a {@link FutureHookResult} which another thread completes with the given {@link HookResult} a bit later
+     */
+    protected static FutureHookResult completeLater(final HookResult hookResult) {
+        final FutureHookResult result = new FutureHookResult();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                result.setHookResult(hookResult);
+            }
+        }.start();
+        return result;
+    }
+
+    /**
+     * Return an {@link AsyncMessageHook} which completes every message with the given {@link HookResult} a bit later
+     */
+    protected static MessageHook createAsyncMessageHook(final HookResult hookResult) {
+        return new AsyncMessageHook() {
+
+            @Override
+            public void init(Configuration config) throws ConfigurationException {
+
+            }
+
+            @Override
+            public void destroy() {
+
+            }
+
+            public HookResult onMessage(SMTPSession session, MailEnvelope mail) {
+                return onMessageAsync(session, mail).getHookResult();
+            }
+
+            public FutureHookResult onMessageAsync(SMTPSession session, MailEnvelope mail) {
+                return completeLater(hookResult);
+            }
+
+        };
+    }
     
     protected static void checkEnvelope(MailEnvelope env, String sender, List<String> recipients, String msg) throws IOException {
         assertEquals(sender, env.getSender().toString());
@@ -256,6 +256,27 @@ public class DNSRBLHandlerTest {
         assertNull(mockedSMTPSession.getAttachment(RBL_DETAIL_MAIL_ATTRIBUTE_NAME, State.Connection));
         assertNull("Not blocked", mockedSMTPSession.getAttachment(RBL_BLOCKLISTED_MAIL_ATTRIBUTE_NAME, State.Connection));
     }
+
+    // lists are queried once per connection
+    @Test
+    public void testListsQueriedOncePerConnection() throws MailAddressException {
+        final List<String> lookups = new ArrayList<String>();
+        DNSRBLHandler rbl = new DNSRBLHandler() {
+            @Override
+            protected Collection<String> resolveAll(Collection<String> hostnames) {
+                lookups.addAll(hostnames);
+                return hostnames;
+            }
+        };
+        setupMockedSMTPSession(new MailAddress("any@domain"));
+
+        rbl.setBlacklist(new String[] { "bl.spamcop.net.", "dnsbl.sorbs.net." });
+        rbl.doRcpt(mockedSMTPSession, null, new MailAddress("test@localhost"));
+        rbl.doRcpt(mockedSMTPSession, null, new MailAddress("test2@localhost"));
+
+        assertEquals(2, lookups.size());
+        assertNotNull("Blocked", mockedSMTPSession.getAttachment(RBL_BLOCKLISTED_MAIL_ATTRIBUTE_NAME, State.Connection));
+    }
    
 
 }
@@ -0,0 +1,141 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.smtp.core.fastfail;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InMemoryGreylistHandlerTest {
+
+    private InMemoryGreylistHandler handler;
+    private MailAddress sender;
+    private MailAddress recipient;
+
+    private SMTPSession setupMockedSession(final String ipAddress) {
+        return new BaseFakeSMTPSession() {
+
+            public boolean isRelayingAllowed() {
+                return false;
+            }
+
+            public InetSocketAddress getRemoteAddress() {
+                return new InetSocketAddress(ipAddress, 10000);
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new InMemoryGreylistHandler();
+        sender = new MailAddress("sender@example.org");
+        recipient = new MailAddress("recipient@example.com");
+    }
+
+    @Test
+    public void testRejectNewTriplet() {
+        int result = handler.doRcpt(setupMockedSession("192.168.1.1"), sender, recipient).getResult();
+
+        assertEquals("Temporary rejected", HookReturnCode.DENYSOFT, result);
+        assertEquals(1, handler.size());
+    }
+
+    @Test
+    public void testRejectRetryWithinTempBlockTime() {
+        handler.doRcpt(setupMockedSession("192.168.1.1"), sender, recipient);
+        int result = handler.doRcpt(setupMockedSession("192.168.1.1"), sender, recipient).getResult();
+
+        assertEquals("Temporary rejected", HookReturnCode.DENYSOFT, result);
+    }
+
+    @Test
+    public void testAcceptRetryFromSameNetwork() {
+        handler.setTempBlockTime(0);
+        handler.doRcpt(setupMockedSession("192.168.1.1"), sender, recipient);
+        int result = handler.doRcpt(setupMockedSession("192.168.1.2"), sender, recipient).getResult();
+
+        assertEquals("Accepted", HookReturnCode.DECLINED, result);
+    }
+
+    @Test
+    public void testRejectRetryFromOtherNetwork() {
+        handler.setTempBlockTime(0);
+        handler.doRcpt(setupMockedSession("192.168.1.1"), sender, recipient);
+        int result = handler.doRcpt(setupMockedSession("192.168.2.1"), sender, recipient).getResult();
+
+        assertEquals("Temporary rejected", HookReturnCode.DENYSOFT, result);
+    }
+
+    @Test
+    public void testCleanupGreyListDropsOnlyUnconfirmedTriplets() throws Exception {
+        handler.setBucketWidth(1000);
+        handler.insertTriplet("192.168.1.1", "a@example.org", "b@example.com", 0, 1000);
+        handler.insertTriplet("192.168.1.1", "c@example.org", "d@example.com", 0, 1000);
+        handler.updateTriplet("192.168.1.1", "c@example.org", "d@example.com", 0, 1500);
+        handler.insertTriplet("192.168.1.1", "e@example.org", "f@example.com", 0, 2000);
+
+        handler.cleanupGreyList(2000);
+
+        assertEquals(2, handler.size());
+        assertEquals(false, handler.getGreyListData("192.168.1.1", "a@example.org", "b@example.com").hasNext());
+        assertEquals(true, handler.getGreyListData("192.168.1.1", "c@example.org", "d@example.com").hasNext());
+        assertEquals(true, handler.getGreyListData("192.168.1.1", "e@example.org", "f@example.com").hasNext());
+    }
+
+    @Test
+    public void testCleanupAutoWhiteListDropsAllOldTriplets() throws Exception {
+        handler.setBucketWidth(1000);
+        handler.insertTriplet("192.168.1.1", "a@example.org", "b@example.com", 0, 1000);
+        handler.updateTriplet("192.168.1.1", "a@example.org", "b@example.com", 0, 1500);
+        handler.insertTriplet("192.168.1.1", "c@example.org", "d@example.com", 0, 3000);
+        handler.updateTriplet("192.168.1.1", "c@example.org", "d@example.com", 0, 3500);
+
+        handler.cleanupAutoWhiteListGreyList(3000);
+
+        assertEquals(1, handler.size());
+        assertEquals(true, handler.getGreyListData("192.168.1.1", "c@example.org", "d@example.com").hasNext());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        handler.insertTriplet("192.168.1.1", "a@example.org", "b@example.com", 0, 1000);
+        handler.updateTriplet("192.168.1.1", "c@example.org", "d@example.com", 2, 1500);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        handler.writeSnapshot(out);
+
+        InMemoryGreylistHandler restored = new InMemoryGreylistHandler();
+        restored.readSnapshot(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(2, restored.size());
+        assertEquals("1500", restored.getGreyListData("192.168.1.1", "c@example.org", "d@example.com").next());
+        Iterator<String> data = restored.getGreyListData("192.168.1.9", "c@example.org", "d@example.com");
+        data.next();
+        assertEquals("3", data.next());
+    }
+}
@@ -0,0 +1,87 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct {@link ByteBuffer}'s of a fixed size. At most the given number of buffers get allocated, released
+ * buffers are reused, so the memory used stays bounded and off the heap.
+ */
+public class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * @param bufferSize the size of each buffer
+     * @param maxBuffers the maximal count of buffers to allocate
+     */
+    public DirectBufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Return a cleared buffer, or <code>null</code> if all buffers are in use
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        while (true) {
+            int count = allocated.get();
+            if (count >= maxBuffers) {
+                return null;
+            }
+            if (allocated.compareAndSet(count, count + 1)) {
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+    }
+
+    /**
+     * Give back a buffer obtained by {@link #acquire()}
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    /**
+     * Return the count of buffers which can be acquired at the moment
+     */
+    public int getAvailableBuffers() {
+        return maxBuffers - allocated.get() + free.size();
+    }
+}
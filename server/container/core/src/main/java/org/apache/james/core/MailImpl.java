@@ -39,6 +39,7 @@ import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -110,6 +111,11 @@ public class MailImpl implements Disposable, Mail {
      * Attributes added to this MailImpl instance
      */
     private Map<String, Object> attributes;
+    /**
+     * True if the attributes map is shared with a copy of this MailImpl and
+     * must be copied before it gets modified
+     */
+    private boolean attributesShared;
 
     /**
      * A constructor that creates a new, uninitialized MailImpl
@@ -155,7 +161,6 @@ public class MailImpl implements Disposable, Mail {
      * @param newName
      * @throws MessagingException
      */
-    @SuppressWarnings("unchecked")
     public MailImpl(Mail mail, String newName) throws MessagingException {
         this(newName, mail.getSender(), mail.getRecipients(), mail.getMessage());
         setRemoteHost(mail.getRemoteHost());
@@ -163,12 +168,25 @@ public class MailImpl implements Disposable, Mail {
         setLastUpdated(mail.getLastUpdated());
         try {
             if (mail instanceof MailImpl) {
-                setAttributesRaw((HashMap<String, Object>) cloneSerializableObject(((MailImpl) mail).getAttributesRaw()));
+                MailImpl source = (MailImpl) mail;
+                if (hasImmutableValues(source.attributes)) {
+                    // nothing can change behind our back, so share the map
+                    // until one of the mails modifies it
+                    attributes = source.attributes;
+                    attributesShared = true;
+                    source.attributesShared = true;
+                } else {
+                    HashMap<String, Object> attribs = new HashMap<String, Object>();
+                    for (Map.Entry<String, Object> entry : source.attributes.entrySet()) {
+                        attribs.put(entry.getKey(), copyAttributeValue(entry.getValue()));
+                    }
+                    setAttributesRaw(attribs);
+                }
             } else {
                 HashMap<String, Object> attribs = new HashMap<String, Object>();
                 for (Iterator<String> i = mail.getAttributeNames(); i.hasNext(); ) {
                     String hashKey = i.next();
-                    attribs.put(hashKey, cloneSerializableObject(mail.getAttribute(hashKey)));
+                    attribs.put(hashKey, copyAttributeValue(mail.getAttribute(hashKey)));
                 }
                 setAttributesRaw(attribs);
             }
@@ -553,6 +571,7 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public Map<String, Object> getAttributesRaw() {
+        unshareAttributes();
         return attributes;
     }
 
@@ -571,6 +590,7 @@ public class MailImpl implements Disposable, Mail {
      */
     public void setAttributesRaw(HashMap<String, Object> attr) {
         this.attributes = (attr == null) ? new HashMap<String, Object>() : attr;
+        this.attributesShared = false;
     }
 
     @Override
@@ -580,21 +600,34 @@ public class MailImpl implements Disposable, Mail {
 
     @Override
     public Serializable setAttribute(String key, Serializable object) {
+        unshareAttributes();
         return (Serializable) attributes.put(key, object);
     }
 
     @Override
     public Serializable removeAttribute(String key) {
+        if (!attributes.containsKey(key)) {
+            return null;
+        }
+        unshareAttributes();
         return (Serializable) attributes.remove(key);
     }
 
     @Override
     public void removeAllAttributes() {
-        attributes.clear();
+        if (attributesShared) {
+            attributes = new HashMap<String, Object>();
+            attributesShared = false;
+        } else {
+            attributes.clear();
+        }
     }
 
     @Override
     public Iterator<String> getAttributeNames() {
+        if (attributesShared) {
+            return Collections.unmodifiableSet(attributes.keySet()).iterator();
+        }
         return attributes.keySet().iterator();
     }
 
@@ -603,6 +636,47 @@ public class MailImpl implements Disposable, Mail {
         return !attributes.isEmpty();
     }
 
+    /**
+     * Copy the attributes map before it gets modified if it is shared with
+     * another MailImpl
+     */
+    private void unshareAttributes() {
+        if (attributesShared) {
+            attributes = new HashMap<String, Object>(attributes);
+            attributesShared = false;
+        }
+    }
+
+    /**
+     * Return true if all the given attribute values are known to be
+     * immutable, so a copy of the map can share them
+     */
+    private static boolean hasImmutableValues(Map<String, Object> attributes) {
+        for (Object value : attributes.values()) {
+            if (!isImmutable(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isImmutable(Object o) {
+        return o == null || o instanceof String || o instanceof Boolean || o instanceof Integer || o instanceof Long
+                || o instanceof Short || o instanceof Byte || o instanceof Character || o instanceof Double
+                || o instanceof Float || o instanceof Enum || o instanceof MailAddress;
+    }
+
+    /**
+     * Return the given attribute value if it is immutable or a deep copy of it
+     * otherwise
+     */
+    private static Object copyAttributeValue(Object o) throws IOException, ClassNotFoundException {
+        if (isImmutable(o)) {
+            return o;
+        }
+        return cloneSerializableObject(o);
+    }
+
     /**
      * This methods provide cloning for serializable objects. Mail Attributes
      * are Serializable but not Clonable so we need a deep copy
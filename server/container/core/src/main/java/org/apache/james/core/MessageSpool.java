@@ -0,0 +1,134 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import java.io.File;
+
+/**
+ * Configures where a {@link MimeMessageInputStreamSource} keeps the message content: on the heap up to the
+ * threshold, then in the buffers of a {@link DirectBufferPool} up to the pool threshold if a pool is given, and in a
+ * file of the spool directory beyond that.
+ * <p>
+ * The default spool is configured by the system properties {@value #THRESHOLD_PROPERTY},
+ * {@value #DIRECTORY_PROPERTY}, {@value #POOL_SIZE_PROPERTY} (the size of the pool in bytes, 0 to disable it) and
+ * {@value #POOL_THRESHOLD_PROPERTY}.
+ */
+public class MessageSpool {
+
+    public static final String THRESHOLD_PROPERTY = "james.message.spool.threshold";
+    public static final String DIRECTORY_PROPERTY = "james.message.spool.directory";
+    public static final String POOL_SIZE_PROPERTY = "james.message.spool.pool.size";
+    public static final String POOL_THRESHOLD_PROPERTY = "james.message.spool.pool.threshold";
+
+    /**
+     * 100kb threshold for the heap.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024 * 100;
+
+    /**
+     * 1mb threshold for the pool.
+     */
+    public static final int DEFAULT_POOL_THRESHOLD = 1024 * 1024;
+
+    private static final int POOL_BUFFER_SIZE = 64 * 1024;
+
+    private static volatile MessageSpool defaultSpool;
+
+    private final int threshold;
+    private final File directory;
+    private final DirectBufferPool pool;
+    private final int poolThreshold;
+
+    /**
+     * @param threshold the size up to which the content is kept on the heap
+     * @param directory the directory of the spool files
+     */
+    public MessageSpool(int threshold, File directory) {
+        this(threshold, directory, null, 0);
+    }
+
+    /**
+     * @param threshold the size up to which the content is kept on the heap
+     * @param directory the directory of the spool files
+     * @param pool the pool to keep content bigger than the threshold in, may be <code>null</code>
+     * @param poolThreshold the size up to which the content is kept in the pool
+     */
+    public MessageSpool(int threshold, File directory, DirectBufferPool pool, int poolThreshold) {
+        this.threshold = threshold;
+        this.directory = directory;
+        this.pool = pool;
+        this.poolThreshold = poolThreshold;
+    }
+
+    /**
+     * Return the spool used by default
+     */
+    public static MessageSpool getDefault() {
+        MessageSpool spool = defaultSpool;
+        if (spool == null) {
+            spool = fromSystemProperties();
+            defaultSpool = spool;
+        }
+        return spool;
+    }
+
+    /**
+     * Set the spool to use by default
+     */
+    public static void setDefault(MessageSpool spool) {
+        defaultSpool = spool;
+    }
+
+    private static MessageSpool fromSystemProperties() {
+        int threshold = Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD);
+        File directory = new File(System.getProperty(DIRECTORY_PROPERTY, System.getProperty("java.io.tmpdir")));
+        long poolSize = Long.getLong(POOL_SIZE_PROPERTY, 0);
+        if (poolSize > 0) {
+            DirectBufferPool pool = new DirectBufferPool(POOL_BUFFER_SIZE, (int) Math.max(1, poolSize / POOL_BUFFER_SIZE));
+            return new MessageSpool(threshold, directory, pool, Integer.getInteger(POOL_THRESHOLD_PROPERTY, DEFAULT_POOL_THRESHOLD));
+        }
+        return new MessageSpool(threshold, directory);
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public DirectBufferPool getPool() {
+        return pool;
+    }
+
+    public int getPoolThreshold() {
+        return poolThreshold;
+    }
+
+    /**
+     * Create a new, empty, spooled content
+     * 
+     * @param key the prefix for the name of the spool file
+     */
+    SpoolOutputStream create(String key) {
+        return new SpoolOutputStream(this, key);
+    }
+}
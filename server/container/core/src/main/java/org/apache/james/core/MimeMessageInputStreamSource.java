@@ -19,7 +19,6 @@
 
 package org.apache.james.core;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,43 +26,30 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.mail.MessagingException;
-import javax.mail.util.SharedByteArrayInputStream;
-import javax.mail.util.SharedFileInputStream;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.james.lifecycle.api.Disposable;
 
 /**
  * Takes an input stream and creates a repeatable input stream source for a
  * MimeMessageWrapper. It does this by completely reading the input stream and
- * saving that to data to an {@link DeferredFileOutputStream} with its threshold set to 100kb
+ * saving that data as configured by a {@link MessageSpool}, by default on the
+ * heap up to 100kb and in a temporary file beyond that
  */
 public class MimeMessageInputStreamSource extends MimeMessageSource implements Disposable {
 
     private final List<InputStream> streams = new ArrayList<InputStream>();
 
     /**
-     * A temporary file used to hold the message stream
+     * The spooled message stream
      */
-    private DeferredFileOutputStream out;
+    private SpoolOutputStream out;
 
     /**
      * The full path of the temporary file
      */
     private final String sourceId;
 
-    /**
-     * 100kb threshold for the stream.
-     */
-    private final static int THRESHOLD = 1024 * 100;
-
-    /**
-     * Temporary directory to use
-     */
-    private final static File TMPDIR = new File(System.getProperty("java.io.tmpdir"));
-
     /**
      * Construct a new MimeMessageInputStreamSource from an
      * <code>InputStream</code> that contains the bytes of a MimeMessage.
@@ -73,29 +59,30 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
      * @throws MessagingException if an error occurs while trying to store the stream
      */
     public MimeMessageInputStreamSource(String key, InputStream in) throws MessagingException {
+        this(key, in, MessageSpool.getDefault());
+    }
+
+    /**
+     * Construct a new MimeMessageInputStreamSource from an
+     * <code>InputStream</code> that contains the bytes of a MimeMessage.
+     *
+     * @param key   the prefix for the name of the temp file
+     * @param in    the stream containing the MimeMessage
+     * @param spool the spool to store the stream in
+     * @throws MessagingException if an error occurs while trying to store the stream
+     */
+    public MimeMessageInputStreamSource(String key, InputStream in, MessageSpool spool) throws MessagingException {
         super();
-        // We want to immediately read this into a temporary file
-        // Create a temp file and channel the input stream into it
+        // We want to immediately read this into the spool
+        out = spool.create(key);
         try {
-            out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR);
             IOUtils.copy(in, out);
+            out.close();
             sourceId = key;
         } catch (IOException ioe) {
+            out.dispose();
             throw new MessagingException("Unable to retrieve the data: " + ioe.getMessage(), ioe);
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-
-                    File file = out.getFile();
-                    if (file != null) {
-                        FileUtils.forceDelete(file);
-                    }
-                }
-            } catch (IOException ioe) {
-                // Ignored - logging unavailable to log this non-fatal error.
-            }
-
             try {
                 if (in != null) {
                     in.close();
@@ -108,8 +95,12 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
     }
 
     public MimeMessageInputStreamSource(String key) {
+        this(key, MessageSpool.getDefault());
+    }
+
+    public MimeMessageInputStreamSource(String key, MessageSpool spool) {
         super();
-        out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR);
+        out = spool.create(key);
         sourceId = key;
     }
 
@@ -123,17 +114,12 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
     }
 
     /**
-     * Get an input stream to retrieve the data stored in the temporary file
+     * Get an input stream to retrieve the data stored in the spool
      *
-     * @return a <code>BufferedInputStream</code> containing the data
+     * @return a <code>SharedInputStream</code> containing the data
      */
     public synchronized InputStream getInputStream() throws IOException {
-        InputStream in;
-        if (out.isInMemory()) {
-            in = new SharedByteArrayInputStream(out.getData());
-        } else {
-            in = new SharedFileInputStream(out.getFile());
-        }
+        InputStream in = out.newInputStream();
         streams.add(in);
         return in;
     }
@@ -162,12 +148,7 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
         }
 
         if (out != null) {
-            IOUtils.closeQuietly(out);
-            File file = out.getFile();
-            if (file != null) {
-                FileUtils.deleteQuietly(file);
-                file = null;
-            }
+            out.dispose();
             out = null;
         }
     }
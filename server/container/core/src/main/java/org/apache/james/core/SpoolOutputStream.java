@@ -0,0 +1,355 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * {@link OutputStream} which spools the content as configured by its {@link MessageSpool}, moving it from the heap to
+ * the pool and to a file as it grows
+ */
+final class SpoolOutputStream extends OutputStream {
+
+    private final MessageSpool spool;
+    private final String key;
+    private final byte[] single = new byte[1];
+
+    private ExposedByteArrayOutputStream memory = new ExposedByteArrayOutputStream();
+    private PooledContent pooled;
+    private File file;
+    private FileOutputStream fileOut;
+    private long count;
+
+    SpoolOutputStream(MessageSpool spool, String key) {
+        this.spool = spool;
+        this.key = key;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        long size = count + len;
+        if (file == null) {
+            if (memory != null && size > spool.getThreshold()) {
+                moveToPool(size);
+                if (pooled == null) {
+                    moveToFile();
+                }
+            }
+            if (pooled != null && (size > spool.getPoolThreshold() || !pooled.reserve(len))) {
+                moveToFile();
+            }
+        }
+        if (file != null) {
+            fileOut.write(b, off, len);
+        } else if (pooled != null) {
+            pooled.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+        count = size;
+    }
+
+    private void moveToPool(long size) {
+        DirectBufferPool pool = spool.getPool();
+        if (pool != null && size <= spool.getPoolThreshold()) {
+            PooledContent content = new PooledContent(pool);
+            if (content.reserve(memory.size())) {
+                content.write(memory.buffer(), 0, memory.size());
+                pooled = content;
+                memory = null;
+            }
+        }
+    }
+
+    private void moveToFile() throws IOException {
+        // File.createTempFile needs a prefix of at least 3 characters
+        file = File.createTempFile(key.length() < 3 ? key + "___" : key, ".m64", spool.getDirectory());
+        fileOut = new FileOutputStream(file);
+        if (memory != null) {
+            fileOut.write(memory.buffer(), 0, memory.size());
+            memory = null;
+        } else if (pooled != null) {
+            pooled.writeTo(fileOut.getChannel());
+            pooled.release();
+            pooled = null;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    public synchronized long getByteCount() {
+        return count;
+    }
+
+    /**
+     * Return a {@link SharedInputStream} over the spooled content
+     */
+    public synchronized InputStream newInputStream() throws IOException {
+        if (file != null) {
+            fileOut.flush();
+            return new SharedFileInputStream(file);
+        } else if (pooled != null) {
+            return new PooledInputStream(pooled, 0, count);
+        } else if (memory != null) {
+            return new SharedByteArrayInputStream(memory.buffer(), 0, memory.size());
+        }
+        throw new IOException("Spooled content was disposed");
+    }
+
+    /**
+     * Release the spooled content
+     */
+    public synchronized void dispose() {
+        IOUtils.closeQuietly(fileOut);
+        if (file != null) {
+            FileUtils.deleteQuietly(file);
+        }
+        if (pooled != null) {
+            pooled.release();
+        }
+        file = null;
+        fileOut = null;
+        pooled = null;
+        memory = null;
+    }
+
+    /**
+     * {@link ByteArrayOutputStream} which gives access to its buffer, so it can be read without copying it
+     */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        public byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Content held in the buffers of a {@link DirectBufferPool}
+     */
+    private static final class PooledContent {
+
+        private final DirectBufferPool pool;
+        private final int bufferSize;
+        private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        private long size;
+        private volatile boolean released;
+
+        public PooledContent(DirectBufferPool pool) {
+            this.pool = pool;
+            this.bufferSize = pool.getBufferSize();
+        }
+
+        /**
+         * Acquire the buffers needed to write the given count of bytes
+         * 
+         * @return <code>false</code> if the pool has not enough buffers left
+         */
+        public synchronized boolean reserve(int len) {
+            int needed = (int) ((size + len + bufferSize - 1) / bufferSize);
+            int reserved = buffers.size();
+            while (buffers.size() < needed) {
+                ByteBuffer buffer = pool.acquire();
+                if (buffer == null) {
+                    while (buffers.size() > reserved) {
+                        pool.release(buffers.remove(buffers.size() - 1));
+                    }
+                    return false;
+                }
+                buffers.add(buffer);
+            }
+            return true;
+        }
+
+        /**
+         * Write to the buffers reserved before
+         */
+        public synchronized void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                ByteBuffer buffer = buffers.get((int) (size / bufferSize)).duplicate();
+                buffer.position((int) (size % bufferSize));
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+                size += n;
+            }
+        }
+
+        public synchronized void writeTo(FileChannel channel) throws IOException {
+            long remaining = size;
+            for (ByteBuffer buffer : buffers) {
+                ByteBuffer content = buffer.duplicate();
+                content.position(0);
+                content.limit((int) Math.min(bufferSize, remaining));
+                remaining -= content.remaining();
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+            }
+        }
+
+        /**
+         * Read from the given position of the content
+         */
+        public synchronized void read(long position, byte[] b, int off, int len) throws IOException {
+            if (released) {
+                throw new IOException("Spooled content was disposed");
+            }
+            while (len > 0) {
+                ByteBuffer buffer = buffers.get((int) (position / bufferSize)).duplicate();
+                buffer.position((int) (position % bufferSize));
+                int n = Math.min(len, buffer.remaining());
+                buffer.get(b, off, n);
+                off += n;
+                len -= n;
+                position += n;
+            }
+        }
+
+        public synchronized void release() {
+            released = true;
+            for (ByteBuffer buffer : buffers) {
+                pool.release(buffer);
+            }
+            buffers.clear();
+        }
+    }
+
+    /**
+     * {@link SharedInputStream} over a range of a {@link PooledContent}
+     */
+    private static final class PooledInputStream extends InputStream implements SharedInputStream {
+
+        private final PooledContent content;
+        private final long start;
+        private final long end;
+        private final byte[] single = new byte[1];
+        private long position;
+        private long mark;
+
+        public PooledInputStream(PooledContent content, long start, long end) {
+            this.content = content;
+            this.start = start;
+            this.end = end;
+            this.position = start;
+            this.mark = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (read(single, 0, 1) == -1) {
+                return -1;
+            }
+            return single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int n = (int) Math.min(len, end - position);
+            content.read(position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            mark = position;
+        }
+
+        @Override
+        public void reset() {
+            position = mark;
+        }
+
+        public long getPosition() {
+            return position - start;
+        }
+
+        public InputStream newStream(long start, long end) {
+            if (start < 0) {
+                throw new IllegalArgumentException("start < 0");
+            }
+            if (end == -1) {
+                end = this.end - this.start;
+            }
+            return new PooledInputStream(content, this.start + start, this.start + end);
+        }
+    }
+}
@@ -102,4 +102,48 @@ public class MailImplTest extends MailTestAllImplementations {
         helperTestInitialState(duplicate);
         helperTestMessageSize(duplicate, 0);
     }
+
+    @Test
+    public void testDuplicateAttributesAreIndependent() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setAttribute("string", "value");
+        mail.setAttribute("int", 1);
+
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+        assertEquals("value", duplicate.getAttribute("string"));
+        assertEquals(1, duplicate.getAttribute("int"));
+
+        duplicate.setAttribute("string", "changed");
+        duplicate.removeAttribute("int");
+        mail.setAttribute("new", "attribute");
+
+        assertEquals("value", mail.getAttribute("string"));
+        assertEquals(1, mail.getAttribute("int"));
+        assertEquals("changed", duplicate.getAttribute("string"));
+        assertNull(duplicate.getAttribute("int"));
+        assertNull(duplicate.getAttribute("new"));
+
+        duplicate.removeAllAttributes();
+        assertFalse(duplicate.hasAttributes());
+        assertEquals("attribute", mail.getAttribute("new"));
+    }
+
+    @Test
+    public void testDuplicateDeepCopiesMutableAttributes() throws MessagingException {
+        ArrayList<String> list = new ArrayList<String>();
+        list.add("value");
+        MailImpl mail = new MailImpl();
+        mail.setAttribute("list", list);
+        mail.setAttribute("string", "value");
+
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+        @SuppressWarnings("unchecked")
+        ArrayList<String> copy = (ArrayList<String>) duplicate.getAttribute("list");
+        assertNotSame(list, copy);
+        assertEquals(list, copy);
+        assertEquals("value", duplicate.getAttribute("string"));
+
+        copy.add("other");
+        assertEquals(1, list.size());
+    }
 }
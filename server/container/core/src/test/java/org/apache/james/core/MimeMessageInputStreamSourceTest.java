@@ -0,0 +1,138 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MimeMessageInputStreamSourceTest {
+
+    private static final int THRESHOLD = 1024;
+    private static final int POOL_THRESHOLD = 8 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File spoolDirectory;
+    private DirectBufferPool pool;
+    private MessageSpool spool;
+
+    @Before
+    public void setUp() throws Exception {
+        spoolDirectory = folder.newFolder("spool");
+        pool = new DirectBufferPool(1024, 16);
+        spool = new MessageSpool(THRESHOLD, spoolDirectory, pool, POOL_THRESHOLD);
+    }
+
+    private byte[] message(int size) {
+        byte[] header = "Subject: test\r\n\r\n".getBytes();
+        byte[] message = new byte[size];
+        Arrays.fill(message, (byte) 'a');
+        System.arraycopy(header, 0, message, 0, header.length);
+        return message;
+    }
+
+    @Test
+    public void smallMessageShouldBeKeptOnTheHeap() throws Exception {
+        byte[] message = message(THRESHOLD);
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(message), spool);
+
+        assertThat(IOUtils.toByteArray(source.getInputStream())).isEqualTo(message);
+        assertThat(source.getMessageSize()).isEqualTo(message.length);
+        assertThat(spoolDirectory.list()).isEmpty();
+        assertThat(pool.getAvailableBuffers()).isEqualTo(16);
+        source.dispose();
+    }
+
+    @Test
+    public void midSizeMessageShouldBeKeptInThePool() throws Exception {
+        byte[] message = message(4 * 1024 + 10);
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(message), spool);
+
+        assertThat(IOUtils.toByteArray(source.getInputStream())).isEqualTo(message);
+        assertThat(source.getMessageSize()).isEqualTo(message.length);
+        assertThat(spoolDirectory.list()).isEmpty();
+        assertThat(pool.getAvailableBuffers()).isEqualTo(11);
+
+        source.dispose();
+        assertThat(pool.getAvailableBuffers()).isEqualTo(16);
+    }
+
+    @Test
+    public void pooledStreamShouldBeShared() throws Exception {
+        byte[] message = message(4 * 1024);
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(message), spool);
+
+        InputStream in = source.getInputStream();
+        assertThat(in).isInstanceOf(SharedInputStream.class);
+        InputStream part = ((SharedInputStream) in).newStream(1000, 3000);
+
+        assertThat(IOUtils.toByteArray(part)).isEqualTo(Arrays.copyOfRange(message, 1000, 3000));
+        source.dispose();
+    }
+
+    @Test
+    public void messageShouldBeSpooledToFileWhenPoolIsExhausted() throws Exception {
+        byte[] message = message(4 * 1024);
+        MimeMessageInputStreamSource first = new MimeMessageInputStreamSource("first", new ByteArrayInputStream(message), spool);
+        MimeMessageInputStreamSource second = new MimeMessageInputStreamSource("second", new ByteArrayInputStream(message), spool);
+        MimeMessageInputStreamSource third = new MimeMessageInputStreamSource("third", new ByteArrayInputStream(message), spool);
+        MimeMessageInputStreamSource fourth = new MimeMessageInputStreamSource("fourth", new ByteArrayInputStream(message), spool);
+        MimeMessageInputStreamSource fifth = new MimeMessageInputStreamSource("fifth", new ByteArrayInputStream(message), spool);
+
+        assertThat(spoolDirectory.list()).hasSize(1);
+        assertThat(IOUtils.toByteArray(fifth.getInputStream())).isEqualTo(message);
+
+        first.dispose();
+        second.dispose();
+        third.dispose();
+        fourth.dispose();
+        fifth.dispose();
+        assertThat(spoolDirectory.list()).isEmpty();
+        assertThat(pool.getAvailableBuffers()).isEqualTo(16);
+    }
+
+    @Test
+    public void bigMessageShouldBeSpooledToFile() throws Exception {
+        byte[] message = message(POOL_THRESHOLD + 1);
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(message), spool);
+
+        assertThat(IOUtils.toByteArray(source.getInputStream())).isEqualTo(message);
+        assertThat(source.getMessageSize()).isEqualTo(message.length);
+        assertThat(spoolDirectory.list()).hasSize(1);
+        assertThat(pool.getAvailableBuffers()).isEqualTo(16);
+
+        source.dispose();
+        assertThat(spoolDirectory.list()).isEmpty();
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+
+
+package org.apache.james.sieverepository.api;
+
+import org.apache.james.sieverepository.api.exception.ScriptNotFoundException;
+import org.apache.james.sieverepository.api.exception.StorageException;
+import org.apache.james.sieverepository.api.exception.UserNotFoundException;
+
+/**
+ * <code>StampedSieveRepository</code> is implemented by the {@link SieveRepository}s which can tell
+ * cheaply whether the active script of a user changed, so what is derived from the script content
+ * can be cached. Callers check for it with <code>instanceof</code>.
+ */
+public interface StampedSieveRepository extends SieveRepository {
+
+    /**
+     * Return a stamp for the active script of the given user. It changes whenever another
+     * script gets activated or the active script gets modified.
+     *
+     * @param user
+     * @return stamp
+     * @throws UserNotFoundException
+     * @throws ScriptNotFoundException if there is no active script
+     * @throws StorageException
+     */
+    String getActiveStamp(String user) throws UserNotFoundException, ScriptNotFoundException, StorageException;
+
+}
@@ -30,7 +30,7 @@ import javax.inject.Inject;
 
 import org.apache.james.filesystem.api.FileSystem;
 import org.apache.james.sieverepository.api.ScriptSummary;
-import org.apache.james.sieverepository.api.SieveRepository;
+import org.apache.james.sieverepository.api.StampedSieveRepository;
 import org.apache.james.sieverepository.api.exception.DuplicateException;
 import org.apache.james.sieverepository.api.exception.IsActiveException;
 import org.apache.james.sieverepository.api.exception.QuotaExceededException;
@@ -46,7 +46,7 @@ import org.apache.james.sieverepository.api.exception.UserNotFoundException;
  * associated user.
  */
 @Deprecated
-public class SieveDefaultRepository implements SieveRepository {
+public class SieveDefaultRepository implements StampedSieveRepository {
     private FileSystem fileSystem;
 
     @Inject
@@ -78,6 +78,19 @@ public class SieveDefaultRepository implements SieveRepository {
         }
     }
 
+    @Override
+    public String getActiveStamp(String user) throws UserNotFoundException, ScriptNotFoundException, StorageException {
+        try {
+            File file = retrieveUserFile(user);
+            if (!file.exists()) {
+                throw new ScriptNotFoundException();
+            }
+            return file.lastModified() + ":" + file.length();
+        } catch (FileNotFoundException e) {
+            throw new ScriptNotFoundException();
+        }
+    }
+
     public File retrieveUserFile(String user) throws FileNotFoundException {
         // RFC 5228 permits extensions: .siv .sieve
         String sieveFilePrefix = FileSystem.FILE_PROTOCOL + "sieve/" + user + ".";
@@ -25,6 +25,7 @@ import org.apache.commons.io.IOUtils;
 import org.apache.james.filesystem.api.FileSystem;
 import org.apache.james.sieverepository.api.ScriptSummary;
 import org.apache.james.sieverepository.api.SieveRepository;
+import org.apache.james.sieverepository.api.StampedSieveRepository;
 import org.apache.james.sieverepository.api.exception.DuplicateException;
 import org.apache.james.sieverepository.api.exception.IsActiveException;
 import org.apache.james.sieverepository.api.exception.QuotaExceededException;
@@ -48,6 +49,9 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <code>SieveFileRepository</code> manages sieve scripts stored on the file system.
@@ -55,7 +59,7 @@ import java.util.Scanner;
  * Scripts are stored in sub-directories of the sieve root directory, each with the name of the
  * associated user.
  */
-public class SieveFileRepository implements SieveRepository {
+public class SieveFileRepository implements StampedSieveRepository {
 
     private static final String SIEVE_ROOT = FileSystem.FILE_PROTOCOL + "sieve/";
     private static final String UTF_8 = "UTF-8";
@@ -67,6 +71,10 @@ public class SieveFileRepository implements SieveRepository {
 
     private FileSystem _fileSystem = null;
     private final Object lock = new Object();
+    // Track the modifications done through this repository, as the file time stamps
+    // may be too coarse to notice a script replaced twice in the same second
+    private final AtomicLong modificationCount = new AtomicLong();
+    private final ConcurrentMap<String, Long> lastModifications = new ConcurrentHashMap<String, Long>();
 
     /**
      * Read a file with the specified encoding into a String
@@ -257,6 +265,7 @@ public class SieveFileRepository implements SieveRepository {
             File file = new File(getUserDirectory(user), name);
             haveSpace(user, name, content.length());
             toFile(file, content);
+            modified(user);
         }
     }
 
@@ -274,6 +283,7 @@ public class SieveFileRepository implements SieveRepository {
                 FileUtils.copyFile(oldFile, newFile);
                 if (isActiveFile(user, oldFile)) {
                     setActiveFile(newFile, user, true);
+                    modified(user);
                 }
                 FileUtils.forceDelete(oldFile);
             } catch (IOException ex) {
@@ -294,10 +304,22 @@ public class SieveFileRepository implements SieveRepository {
         return script;
     }
 
+    @Override
+    public String getActiveStamp(final String user) throws UserNotFoundException,
+            ScriptNotFoundException, StorageException {
+        File file = getActiveFile(user);
+        if (!file.exists()) {
+            throw new ScriptNotFoundException("There is no active script.");
+        }
+        Long modification = lastModifications.get(user);
+        return file.getName() + ":" + file.lastModified() + ":" + file.length() + ":" + (modification == null ? 0 : modification);
+    }
+
     @Override
     public void setActive(final String user, final String name) throws UserNotFoundException,
             ScriptNotFoundException, StorageException {
         synchronized (lock) {
+            modified(user);
             // Turn off currently active script, if any
             File oldActive = null;
             try {
@@ -320,6 +342,10 @@ public class SieveFileRepository implements SieveRepository {
         }
     }
 
+    private void modified(String user) {
+        lastModifications.put(user, modificationCount.incrementAndGet());
+    }
+
     protected File getSieveRootDirectory() throws StorageException {
         try {
             return _fileSystem.getFile(SIEVE_ROOT);
@@ -26,12 +26,14 @@ import java.io.InputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.james.sieverepository.api.ScriptSummary;
 import org.apache.james.sieverepository.api.SieveRepository;
+import org.apache.james.sieverepository.api.StampedSieveRepository;
 import org.apache.james.sieverepository.api.exception.DuplicateException;
 import org.apache.james.sieverepository.api.exception.IsActiveException;
 import org.apache.james.sieverepository.api.exception.QuotaExceededException;
 import org.apache.james.sieverepository.api.exception.QuotaNotFoundException;
 import org.apache.james.sieverepository.api.exception.ScriptNotFoundException;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -201,6 +203,33 @@ public abstract class AbstractSieveRepositoryTest {
         sieveRepository.getActive(USER);
     }
 
+    @Test(expected = ScriptNotFoundException.class)
+    public void getActiveStampShouldThrowWhenNoActiveScript() throws Exception {
+        getActiveStamp();
+    }
+
+    @Test
+    public void getActiveStampShouldChangeWhenActiveScriptIsReplaced() throws Exception {
+        sieveRepository.putScript(USER, SCRIPT_NAME, SCRIPT_CONTENT);
+        sieveRepository.setActive(USER, SCRIPT_NAME);
+        String stamp = getActiveStamp();
+        assertThat(getActiveStamp()).isEqualTo(stamp);
+
+        sieveRepository.putScript(USER, SCRIPT_NAME, OTHER_SCRIPT_CONTENT);
+        assertThat(getActiveStamp()).isNotEqualTo(stamp);
+    }
+
+    @Test
+    public void getActiveStampShouldChangeWhenAnotherScriptIsActivated() throws Exception {
+        sieveRepository.putScript(USER, SCRIPT_NAME, SCRIPT_CONTENT);
+        sieveRepository.putScript(USER, OTHER_SCRIPT_NAME, OTHER_SCRIPT_CONTENT);
+        sieveRepository.setActive(USER, SCRIPT_NAME);
+        String stamp = getActiveStamp();
+
+        sieveRepository.setActive(USER, OTHER_SCRIPT_NAME);
+        assertThat(getActiveStamp()).isNotEqualTo(stamp);
+    }
+
     @Test(expected = ScriptNotFoundException.class)
     public void deleteActiveScriptShouldThrowIfScriptDoNotExist() throws Exception {
         sieveRepository.deleteScript(USER, SCRIPT_NAME);
@@ -332,6 +361,11 @@ public abstract class AbstractSieveRepositoryTest {
 
     protected abstract SieveRepository createSieveRepository() throws Exception;
 
+    private String getActiveStamp() throws Exception {
+        Assume.assumeTrue(sieveRepository instanceof StampedSieveRepository);
+        return ((StampedSieveRepository) sieveRepository).getActiveStamp(USER);
+    }
+
     protected abstract void cleanUp() throws Exception;
 
 }
@@ -0,0 +1,65 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.dnsservice.api;
+
+/**
+ * A mail server of a domain, as published by one of its MX records
+ */
+public class MailExchanger {
+
+    /** Time to live of a mail exchanger whose record carried none */
+    public static final long UNKNOWN_TTL = -1;
+
+    private final String hostName;
+    private final int preference;
+    private final long ttl;
+
+    /**
+     * @param hostName
+     *            The host name of the mail server
+     * @param preference
+     *            The preference of the record, lower values are tried first
+     * @param ttl
+     *            The time in ms the record may be cached, or
+     *            {@link #UNKNOWN_TTL}
+     */
+    public MailExchanger(String hostName, int preference, long ttl) {
+        this.hostName = hostName;
+        this.preference = preference;
+        this.ttl = ttl;
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public int getPreference() {
+        return preference;
+    }
+
+    public long getTTL() {
+        return ttl;
+    }
+
+    @Override
+    public String toString() {
+        return preference + " " + hostName;
+    }
+}
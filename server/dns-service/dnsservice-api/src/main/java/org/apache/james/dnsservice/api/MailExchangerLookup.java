@@ -0,0 +1,46 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.dnsservice.api;
+
+import java.util.List;
+
+/**
+ * Optional extension of a {@link DNSService} which exposes the preference and
+ * the time to live of MX records. Callers which cache mail servers use it to
+ * honour the TTL and to randomize mail servers of equal preference
+ * themselves on each use.
+ */
+public interface MailExchangerLookup {
+
+    /**
+     * Return the mail servers of the domain, sorted by preference. Mail
+     * servers of equal preference are returned in the order received.
+     * <p>
+     * As {@link DNSService#findMXRecords(String)}, the domain itself is
+     * returned if it has no MX record but an address.
+     * 
+     * @param hostname
+     *            domain name to look up
+     * @return an unmodifiable list of mail servers, empty if none was found
+     * @throws TemporaryResolutionException
+     *             get thrown on temporary problems
+     */
+    List<MailExchanger> findMailExchangers(String hostname) throws TemporaryResolutionException;
+}
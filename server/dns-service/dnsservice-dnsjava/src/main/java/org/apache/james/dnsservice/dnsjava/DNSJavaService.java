@@ -22,6 +22,8 @@ import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.dnsservice.api.DNSServiceMBean;
+import org.apache.james.dnsservice.api.MailExchanger;
+import org.apache.james.dnsservice.api.MailExchangerLookup;
 import org.apache.james.dnsservice.api.TemporaryResolutionException;
 import org.apache.james.lifecycle.api.Configurable;
 import org.apache.james.lifecycle.api.LogEnabled;
@@ -58,7 +60,7 @@ import java.util.List;
  * Provides DNS client functionality to services running inside James
  */
 @Singleton
-public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled, Configurable {
+public class DNSJavaService implements DNSService, MailExchangerLookup, DNSServiceMBean, LogEnabled, Configurable {
 
     /**
      * A resolver instance used to retrieve DNS records. This is a reference to
@@ -332,6 +334,33 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
         }
     }
 
+    @Override
+    public List<MailExchanger> findMailExchangers(String hostname) throws TemporaryResolutionException {
+        Record answers[] = lookup(hostname, Type.MX, "MX");
+        List<MailExchanger> exchangers = new ArrayList<MailExchanger>();
+        if (answers != null) {
+            MXRecord[] mxAnswers = new MXRecord[answers.length];
+            for (int i = 0; i < answers.length; i++) {
+                mxAnswers[i] = (MXRecord) answers[i];
+            }
+            // the sort is stable, so the received order of equal priorities is kept
+            Arrays.sort(mxAnswers, mxComparator);
+            for (MXRecord mx : mxAnswers) {
+                exchangers.add(new MailExchanger(mx.getTarget().toString(), mx.getPriority(), mx.getTTL() * 1000L));
+            }
+        }
+        if (exchangers.isEmpty()) {
+            // same fallback as findMXRecords
+            try {
+                getByName(hostname);
+                exchangers.add(new MailExchanger(hostname, 0, MailExchanger.UNKNOWN_TTL));
+            } catch (UnknownHostException uhe) {
+                logger.info("Couldn't resolve MX records for domain " + hostname + ".");
+            }
+        }
+        return Collections.unmodifiableList(exchangers);
+    }
+
     /**
      * Looks up DNS records of the specified type for the specified name.
      * <p/>
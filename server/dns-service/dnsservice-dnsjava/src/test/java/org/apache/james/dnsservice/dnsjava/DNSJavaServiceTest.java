@@ -20,6 +20,7 @@ package org.apache.james.dnsservice.dnsjava;
 
 import com.google.common.io.Resources;
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.james.dnsservice.api.MailExchanger;
 import org.junit.After;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -44,6 +45,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 public class DNSJavaServiceTest {
 
@@ -177,6 +179,21 @@ public class DNSJavaServiceTest {
 
     }
 
+    @Test
+    public void testFindMailExchangers() throws Exception {
+        doAnswer(new ZoneCacheLookupRecordsAnswer(loadZone("three-mx.bar.")))
+                .when(mockedCache).lookupRecords(any(Name.class), anyInt(), anyInt());
+        dnsServer.setCache(mockedCache);
+
+        List<MailExchanger> exchangers = dnsServer.findMailExchangers("three-mx.bar.");
+        assertEquals(3, exchangers.size());
+        assertEquals(0, exchangers.get(0).getPreference());
+        assertEquals(0, exchangers.get(1).getPreference());
+        assertEquals("mx3.three-mx.bar.", exchangers.get(2).getHostName());
+        assertEquals(10, exchangers.get(2).getPreference());
+        assertEquals(14400000L, exchangers.get(2).getTTL());
+    }
+
     /**
      * Test for JAMES-1251
      */
@@ -0,0 +1,352 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.dnsservice.library;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.james.dnsservice.api.DNSService;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Non blocking facade over a {@link DNSService}.
+ * <p>
+ * Every lookup is handed to an {@link Executor} and returned as a
+ * {@link ListenableFuture}, so callers that need several answers (DNSRBL or
+ * URIRBL checks for example) can issue all of them at once and wait for the
+ * whole batch with a single deadline, see {@link #getByNames(Collection, long, TimeUnit)}.
+ * Callers which must not block at all use the variants taking a
+ * {@link ScheduledExecutorService}: the deadline is then enforced by a timer.
+ * <p>
+ * Answers are cached: positive answers for <code>positiveTTL</code>
+ * milliseconds, negative answers (unknown host, no TXT record) for
+ * <code>negativeTTL</code> milliseconds. Concurrent lookups of the same name
+ * share a single pending query. Lookups failing for any other reason are not
+ * cached.
+ */
+public class AsyncDNSLookup {
+
+    public static final long DEFAULT_POSITIVE_TTL = TimeUnit.MINUTES.toMillis(10);
+    public static final long DEFAULT_NEGATIVE_TTL = TimeUnit.MINUTES.toMillis(2);
+    public static final int DEFAULT_MAX_CACHE_SIZE = 10000;
+
+    private final DNSService dnsService;
+    private final Executor executor;
+    private final long positiveTTL;
+    private final long negativeTTL;
+    private final int maxCacheSize;
+    private final ConcurrentMap<String, CacheEntry<InetAddress>> addresses = new ConcurrentHashMap<String, CacheEntry<InetAddress>>();
+    private final ConcurrentMap<String, CacheEntry<Collection<String>>> txtRecords = new ConcurrentHashMap<String, CacheEntry<Collection<String>>>();
+
+    public AsyncDNSLookup(DNSService dnsService, Executor executor) {
+        this(dnsService, executor, DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_CACHE_SIZE);
+    }
+
+    public AsyncDNSLookup(DNSService dnsService, Executor executor, long positiveTTL, long negativeTTL, int maxCacheSize) {
+        checkNotNull(dnsService, "DNSService is null");
+        checkNotNull(executor, "Executor is null");
+        this.dnsService = dnsService;
+        this.executor = executor;
+        this.positiveTTL = positiveTTL;
+        this.negativeTTL = negativeTTL;
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * Resolve the given host asynchronously. The returned future fails with an
+     * {@link UnknownHostException} if the host can not be resolved.
+     *
+     * @see DNSService#getByName(String)
+     */
+    public ListenableFuture<InetAddress> getByName(final String host) {
+        return lookup(addresses, host, new Callable<InetAddress>() {
+            @Override
+            public InetAddress call() throws UnknownHostException {
+                return dnsService.getByName(host);
+            }
+        });
+    }
+
+    /**
+     * Retrieve the TXT records of the given host asynchronously.
+     *
+     * @see DNSService#findTXTRecords(String)
+     */
+    public ListenableFuture<Collection<String>> findTXTRecords(final String host) {
+        return lookup(txtRecords, host, new Callable<Collection<String>>() {
+            @Override
+            public Collection<String> call() {
+                return dnsService.findTXTRecords(host);
+            }
+        });
+    }
+
+    /**
+     * Resolve all the given hosts in parallel, waiting at most the given time
+     * for the whole batch.
+     * <p>
+     * Lookups still pending when the timeout expires are not cancelled: their
+     * answers end up in the cache and serve the next callers.
+     *
+     * @return the resolved hosts and their address, in the iteration order of
+     *         <code>hosts</code>. Unknown hosts and hosts which could not be
+     *         resolved in time are not part of the result.
+     */
+    public Map<String, InetAddress> getByNames(Collection<String> hosts, long timeout, TimeUnit unit) throws InterruptedException {
+        Map<String, ListenableFuture<InetAddress>> pending = new LinkedHashMap<String, ListenableFuture<InetAddress>>();
+        for (String host : hosts) {
+            pending.put(host, getByName(host));
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Map<String, InetAddress> resolved = new LinkedHashMap<String, InetAddress>();
+        for (Map.Entry<String, ListenableFuture<InetAddress>> entry : pending.entrySet()) {
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                resolved.put(entry.getKey(), entry.getValue().get(remaining, TimeUnit.NANOSECONDS));
+            } catch (ExecutionException e) {
+                // not resolvable
+            } catch (TimeoutException e) {
+                // not resolved in time
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolve all the given hosts in parallel without blocking. The returned
+     * future completes once every lookup is done or once the timeout expired,
+     * whatever happens first, with the hosts resolved so far.
+     * <p>
+     * Lookups still pending when the timeout expires are not cancelled: their
+     * answers end up in the cache and serve the next callers.
+     *
+     * @param timer the timer used to enforce the deadline
+     * @return the resolved hosts and their address, in the iteration order of
+     *         <code>hosts</code>. The future never fails.
+     */
+    public ListenableFuture<Map<String, InetAddress>> getByNames(Collection<String> hosts, long timeout, TimeUnit unit, ScheduledExecutorService timer) {
+        final Map<String, ListenableFuture<InetAddress>> pending = new LinkedHashMap<String, ListenableFuture<InetAddress>>();
+        for (String host : hosts) {
+            pending.put(host, getByName(host));
+        }
+        return completeBy(Futures.successfulAsList(pending.values()), new Supplier<Map<String, InetAddress>>() {
+            @Override
+            public Map<String, InetAddress> get() {
+                Map<String, InetAddress> resolved = new LinkedHashMap<String, InetAddress>();
+                for (Map.Entry<String, ListenableFuture<InetAddress>> entry : pending.entrySet()) {
+                    InetAddress address = getIfDone(entry.getValue());
+                    if (address != null) {
+                        resolved.put(entry.getKey(), address);
+                    }
+                }
+                return resolved;
+            }
+        }, timeout, unit, timer);
+    }
+
+    /**
+     * Retrieve the TXT records of the given host without blocking. The
+     * returned future completes with an empty {@link Collection} if the lookup
+     * fails or does not complete before the timeout.
+     *
+     * @param timer the timer used to enforce the deadline
+     * @see DNSService#findTXTRecords(String)
+     */
+    public ListenableFuture<Collection<String>> findTXTRecords(String host, long timeout, TimeUnit unit, ScheduledExecutorService timer) {
+        final ListenableFuture<Collection<String>> pending = findTXTRecords(host);
+        return completeBy(pending, new Supplier<Collection<String>>() {
+            @Override
+            public Collection<String> get() {
+                Collection<String> records = getIfDone(pending);
+                if (records == null) {
+                    return Collections.emptyList();
+                }
+                return records;
+            }
+        }, timeout, unit, timer);
+    }
+
+    /**
+     * Drop every cached answer
+     */
+    public void clearCache() {
+        addresses.clear();
+        txtRecords.clear();
+    }
+
+    private static <T> ListenableFuture<T> completeBy(ListenableFuture<?> lookups, final Supplier<T> result, long timeout, TimeUnit unit, ScheduledExecutorService timer) {
+        final SettableFuture<T> future = SettableFuture.create();
+        ScheduledFuture<?> deadline = null;
+        try {
+            deadline = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    future.set(result.get());
+                }
+            }, timeout, unit);
+        } catch (RejectedExecutionException e) {
+            // timer is shut down, only wait for the lookups
+        }
+        final ScheduledFuture<?> scheduled = deadline;
+        lookups.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+                future.set(result.get());
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    private static <T> T getIfDone(ListenableFuture<T> future) {
+        if (!future.isDone()) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private <T> ListenableFuture<T> lookup(final ConcurrentMap<String, CacheEntry<T>> cache, final String key, Callable<T> query) {
+        while (true) {
+            CacheEntry<T> cached = cache.get(key);
+            if (cached != null && !cached.isExpired(System.currentTimeMillis())) {
+                return cached.future;
+            }
+
+            ListenableFutureTask<T> task = ListenableFutureTask.create(query);
+            final CacheEntry<T> entry = new CacheEntry<T>(task);
+            boolean installed;
+            if (cached == null) {
+                installed = cache.putIfAbsent(key, entry) == null;
+            } else {
+                installed = cache.replace(key, cached, entry);
+            }
+            if (!installed) {
+                // Someone else issued the same query meanwhile
+                continue;
+            }
+
+            task.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    onCompletion(cache, key, entry);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            evictIfNeeded(cache);
+
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+            return task;
+        }
+    }
+
+    private <T> void onCompletion(ConcurrentMap<String, CacheEntry<T>> cache, String key, CacheEntry<T> entry) {
+        long now = System.currentTimeMillis();
+        try {
+            T result = entry.future.get();
+            if (result == null || (result instanceof Collection && ((Collection<?>) result).isEmpty())) {
+                entry.expireAt(now + negativeTTL);
+            } else {
+                entry.expireAt(now + positiveTTL);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                entry.expireAt(now + negativeTTL);
+            } else {
+                cache.remove(key, entry);
+            }
+        } catch (Exception e) {
+            cache.remove(key, entry);
+        }
+    }
+
+    private <T> void evictIfNeeded(ConcurrentMap<String, CacheEntry<T>> cache) {
+        if (cache.size() <= maxCacheSize) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<CacheEntry<T>> entries = cache.values().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().isExpired(now)) {
+                entries.remove();
+            }
+        }
+        entries = cache.values().iterator();
+        while (cache.size() > maxCacheSize && entries.hasNext()) {
+            CacheEntry<T> entry = entries.next();
+            if (entry.future.isDone()) {
+                entries.remove();
+            }
+        }
+    }
+
+    private static final class CacheEntry<T> {
+        private final ListenableFuture<T> future;
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        CacheEntry(ListenableFuture<T> future) {
+            this.future = future;
+        }
+
+        void expireAt(long time) {
+            expiresAt = time;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.dnsservice.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.dnsservice.api.mock.MockDNSService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class AsyncDNSLookupTest {
+
+    private static final String LISTED = "2.0.0.127.bl.example.org.";
+    private static final String NOT_LISTED = "1.0.0.127.bl.example.org.";
+    private static final String SLOW = "3.0.0.127.bl.example.org.";
+
+    private final AtomicInteger queries = new AtomicInteger();
+    private final CountDownLatch slowLatch = new CountDownLatch(1);
+    private ExecutorService executor;
+    private ScheduledExecutorService timer;
+    private AsyncDNSLookup lookup;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        timer = Executors.newSingleThreadScheduledExecutor();
+        lookup = new AsyncDNSLookup(new MockDNSService() {
+            @Override
+            public InetAddress getByName(String host) throws UnknownHostException {
+                queries.incrementAndGet();
+                if (LISTED.equals(host)) {
+                    return InetAddress.getByAddress(host, new byte[] { 127, 0, 0, 2 });
+                }
+                if (SLOW.equals(host)) {
+                    try {
+                        slowLatch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return InetAddress.getByAddress(host, new byte[] { 127, 0, 0, 2 });
+                }
+                throw new UnknownHostException(host);
+            }
+
+            @Override
+            public Collection<String> findTXTRecords(String hostname) {
+                queries.incrementAndGet();
+                return Collections.singletonList("listed");
+            }
+        }, executor);
+    }
+
+    @After
+    public void tearDown() {
+        slowLatch.countDown();
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void getByNameShouldReturnTheResolvedAddress() throws Exception {
+        assertEquals(LISTED, lookup.getByName(LISTED).get().getHostName());
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void getByNameShouldFailOnUnknownHost() throws Throwable {
+        try {
+            lookup.getByName(NOT_LISTED).get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void positiveAnswersShouldBeCached() throws Exception {
+        lookup.getByName(LISTED).get();
+        lookup.getByName(LISTED).get();
+
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void negativeAnswersShouldBeCached() throws Exception {
+        lookup.getByNames(Arrays.asList(NOT_LISTED), 1, TimeUnit.SECONDS);
+        lookup.getByNames(Arrays.asList(NOT_LISTED), 1, TimeUnit.SECONDS);
+
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void txtRecordsShouldBeCached() throws Exception {
+        assertEquals(Collections.singletonList("listed"), lookup.findTXTRecords(LISTED).get());
+        lookup.findTXTRecords(LISTED).get();
+
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void expiredAnswersShouldBeQueriedAgain() throws Exception {
+        lookup = new AsyncDNSLookup(new MockDNSService() {
+            @Override
+            public InetAddress getByName(String host) throws UnknownHostException {
+                queries.incrementAndGet();
+                throw new UnknownHostException(host);
+            }
+        }, executor, 0, 0, AsyncDNSLookup.DEFAULT_MAX_CACHE_SIZE);
+
+        lookup.getByNames(Arrays.asList(NOT_LISTED), 1, TimeUnit.SECONDS);
+        lookup.getByNames(Arrays.asList(NOT_LISTED), 1, TimeUnit.SECONDS);
+
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void getByNamesShouldOnlyReturnResolvedHosts() throws Exception {
+        Map<String, InetAddress> resolved = lookup.getByNames(Arrays.asList(NOT_LISTED, LISTED), 1, TimeUnit.SECONDS);
+
+        assertEquals(Collections.singleton(LISTED), resolved.keySet());
+    }
+
+    @Test
+    public void getByNamesShouldNotWaitLongerThanTheTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        Map<String, InetAddress> resolved = lookup.getByNames(Arrays.asList(SLOW, LISTED), 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(Collections.singleton(LISTED), resolved.keySet());
+    }
+
+    @Test
+    public void lateAnswersShouldServeNextCallers() throws Exception {
+        lookup.getByNames(Arrays.asList(SLOW), 50, TimeUnit.MILLISECONDS);
+        slowLatch.countDown();
+
+        assertEquals(SLOW, lookup.getByName(SLOW).get().getHostName());
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void asyncGetByNamesShouldCompleteOnceAllLookupsAreDone() throws Exception {
+        ListenableFuture<Map<String, InetAddress>> resolved = lookup.getByNames(Arrays.asList(NOT_LISTED, LISTED), 1, TimeUnit.MINUTES, timer);
+
+        assertEquals(Collections.singleton(LISTED), resolved.get(5, TimeUnit.SECONDS).keySet());
+    }
+
+    @Test
+    public void asyncGetByNamesShouldCompleteWhenTheTimeoutExpires() throws Exception {
+        ListenableFuture<Map<String, InetAddress>> resolved = lookup.getByNames(Arrays.asList(SLOW, LISTED), 200, TimeUnit.MILLISECONDS, timer);
+
+        assertEquals(Collections.singleton(LISTED), resolved.get(5, TimeUnit.SECONDS).keySet());
+    }
+
+    @Test
+    public void asyncTXTLookupShouldReturnTheRecords() throws Exception {
+        assertEquals(Collections.singletonList("listed"), lookup.findTXTRecords(LISTED, 1, TimeUnit.SECONDS, timer).get(5, TimeUnit.SECONDS));
+    }
+
+}
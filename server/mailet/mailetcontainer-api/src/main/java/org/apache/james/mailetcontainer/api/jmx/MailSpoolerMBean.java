@@ -36,4 +36,40 @@ public interface MailSpoolerMBean {
      */
     int getCurrentSpoolCount();
 
+    /**
+     * Return the number of mails which were dequeued and are waiting for or in
+     * processing
+     * 
+     * @return inFlightCount
+     */
+    int getInFlightCount();
+
+    /**
+     * Return the size in bytes of the mails which were dequeued and are
+     * waiting for or in processing
+     * 
+     * @return inFlightBytes
+     */
+    long getInFlightBytes();
+
+    /**
+     * Return the number of mails processed since startup
+     * 
+     * @return processedCount
+     */
+    long getProcessedCount();
+
+    /**
+     * Return the average time in ms a dequeued mail waited for a spool thread
+     * 
+     * @return averageWaitTime
+     */
+    long getAverageWaitTime();
+
+    /**
+     * Return the average time in ms the processing of a mail took
+     * 
+     * @return averageProcessingTime
+     */
+    long getAverageProcessingTime();
 }
@@ -38,14 +38,23 @@ import org.slf4j.Logger;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import javax.mail.MessagingException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages the mail spool. This class is responsible for retrieving messages
  * from the spool, directing messages to the appropriate processor, and removing
  * them from the spool when processing is complete.
+ * <p/>
+ * A mail is only dequeued once fewer than <code>maxInFlight</code> mails, and
+ * less than <code>maxInFlightBytes</code> bytes of mail, are waiting for or in
+ * processing. Mails which can not be processed right away thus stay in the
+ * queue instead of piling up in memory.
  */
 public class JamesMailSpooler implements Runnable, Disposable, Configurable, LogEnabled, MailSpoolerMBean {
 
@@ -86,6 +95,30 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
 
     private int numDequeueThreads;
 
+    /**
+     * The maximal number of dequeued mails which are waiting for or in
+     * processing
+     */
+    private int maxInFlight;
+
+    /**
+     * The maximal size of dequeued mails which are waiting for or in
+     * processing, or 0 for no limit
+     */
+    private long maxInFlightBytes;
+
+    private Semaphore inFlight;
+
+    private final Object inFlightBytesLock = new Object();
+
+    private long inFlightBytes;
+
+    private final AtomicLong processedCount = new AtomicLong(0);
+
+    private final AtomicLong totalWaitTime = new AtomicLong(0);
+
+    private final AtomicLong totalProcessingTime = new AtomicLong(0);
+
     @Inject
     public void setMailQueueFactory(MailQueueFactory queueFactory) {
         this.queueFactory = queueFactory;
@@ -103,6 +136,12 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         numDequeueThreads = config.getInt("dequeueThreads", 2);
 
         numThreads = config.getInt("threads", 100);
+
+        maxInFlight = config.getInt("maxInFlight", numThreads);
+        if (maxInFlight < numThreads) {
+            throw new ConfigurationException("maxInFlight must not be less than threads");
+        }
+        maxInFlightBytes = config.getLong("maxInFlightBytes", 0);
     }
 
     /**
@@ -120,6 +159,7 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         }
 
         active.set(true);
+        inFlight = new Semaphore(maxInFlight);
         workerService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "spooler", numThreads);
         dequeueService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "dequeuer", numDequeueThreads);
 
@@ -142,56 +182,88 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         }
 
         while (active.get()) {
+            try {
+                // Only dequeue when the mail can be processed soon
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                continue;
+            }
 
-            final MailQueueItem queueItem;
+            boolean dispatched = false;
             try {
-                queueItem = queue.deQueue();
-                workerService.execute(new Runnable() {
+                final MailQueueItem queueItem = queue.deQueue();
+                final long size = getMessageSize(queueItem.getMail());
+                try {
+                    acquireBytes(size);
+                } catch (InterruptedException e) {
+                    queueItem.done(false);
+                    continue;
+                }
+                final long dequeueTime = System.currentTimeMillis();
+                try {
+                    workerService.execute(new Runnable() {
 
-                    @Override
-                    public void run() {
-                        try {
-                            numActive.incrementAndGet();
+                        @Override
+                        public void run() {
+                            try {
+                                numActive.incrementAndGet();
 
-                            // increase count
-                            processingActive.incrementAndGet();
+                                // increase count
+                                processingActive.incrementAndGet();
 
-                            Mail mail = queueItem.getMail();
-                            if (logger.isDebugEnabled()) {
-                                String debugBuffer = "==== Begin processing mail " + mail.getName() + "====";
-                                logger.debug(debugBuffer);
-                            }
+                                long startTime = System.currentTimeMillis();
+                                totalWaitTime.addAndGet(startTime - dequeueTime);
 
-                            try {
-                                mailProcessor.service(mail);
-                                queueItem.done(true);
-                            } catch (Exception e) {
+                                Mail mail = queueItem.getMail();
+                                if (logger.isDebugEnabled()) {
+                                    String debugBuffer = "==== Begin processing mail " + mail.getName() + "====";
+                                    logger.debug(debugBuffer);
+                                }
+
+                                try {
+                                    mailProcessor.service(mail);
+                                    queueItem.done(true);
+                                } catch (Exception e) {
+                                    if (active.get() && logger.isErrorEnabled()) {
+                                        logger.error("Exception processing mail while spooling " + e.getMessage(), e);
+                                    }
+                                    queueItem.done(false);
+
+                                } finally {
+                                    LifecycleUtil.dispose(mail);
+                                    mail = null;
+                                    totalProcessingTime.addAndGet(System.currentTimeMillis() - startTime);
+                                    processedCount.incrementAndGet();
+                                }
+                            } catch (Throwable e) {
                                 if (active.get() && logger.isErrorEnabled()) {
                                     logger.error("Exception processing mail while spooling " + e.getMessage(), e);
-                                }
-                                queueItem.done(false);
 
+                                }
                             } finally {
-                                LifecycleUtil.dispose(mail);
-                                mail = null;
+                                processingActive.decrementAndGet();
+                                numActive.decrementAndGet();
+                                releaseBytes(size);
+                                inFlight.release();
                             }
-                        } catch (Throwable e) {
-                            if (active.get() && logger.isErrorEnabled()) {
-                                logger.error("Exception processing mail while spooling " + e.getMessage(), e);
 
-                            }
-                        } finally {
-                            processingActive.decrementAndGet();
-                            numActive.decrementAndGet();
                         }
-
-                    }
-                });
+                    });
+                    dispatched = true;
+                } catch (RejectedExecutionException e) {
+                    // the spooler is shutting down
+                    releaseBytes(size);
+                    queueItem.done(false);
+                }
             } catch (MailQueueException e1) {
                 if (active.get() && logger.isErrorEnabled()) {
                     logger.error("Exception dequeue mail", e1);
 
                 }
+            } finally {
+                if (!dispatched) {
+                    inFlight.release();
+                }
             }
         }
         if (logger.isInfoEnabled()) {
@@ -229,6 +301,35 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         logger.info(getClass().getName() + " thread shutdown completed.");
     }
 
+    private long getMessageSize(Mail mail) {
+        try {
+            return Math.max(0, mail.getMessageSize());
+        } catch (MessagingException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Wait until the mail fits into the in flight size limit. A mail is always
+     * admitted if no other mail is in flight, so mails bigger than the limit
+     * are still processed.
+     */
+    private void acquireBytes(long size) throws InterruptedException {
+        synchronized (inFlightBytesLock) {
+            while (maxInFlightBytes > 0 && inFlightBytes > 0 && inFlightBytes + size > maxInFlightBytes) {
+                inFlightBytesLock.wait();
+            }
+            inFlightBytes += size;
+        }
+    }
+
+    private void releaseBytes(long size) {
+        synchronized (inFlightBytesLock) {
+            inFlightBytes -= size;
+            inFlightBytesLock.notifyAll();
+        }
+    }
+
     public void setLog(Logger log) {
         this.logger = log;
     }
@@ -242,4 +343,33 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
     public int getCurrentSpoolCount() {
         return processingActive.get();
     }
+
+    @Override
+    public int getInFlightCount() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    @Override
+    public long getInFlightBytes() {
+        synchronized (inFlightBytesLock) {
+            return inFlightBytes;
+        }
+    }
+
+    @Override
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    @Override
+    public long getAverageWaitTime() {
+        long count = processedCount.get();
+        return count == 0 ? 0 : totalWaitTime.get() / count;
+    }
+
+    @Override
+    public long getAverageProcessingTime() {
+        long count = processedCount.get();
+        return count == 0 ? 0 : totalProcessingTime.get() / count;
+    }
 }
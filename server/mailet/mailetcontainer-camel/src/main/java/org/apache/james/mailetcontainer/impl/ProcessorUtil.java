@@ -21,7 +21,11 @@ package org.apache.james.mailetcontainer.impl;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import javax.mail.MessagingException;
 
@@ -90,4 +94,26 @@ public class ProcessorUtil {
             throw new MailetException("The recipient list contains objects other than MailAddress objects");
         }
     }
+
+    /**
+     * Return the recipients which are not part of the matched recipients. The
+     * matched recipients are looked up via a {@link Set} so this stays linear
+     * for big recipient lists.
+     * 
+     * @param recipients
+     *            all recipients of the mail
+     * @param matchedRcpts
+     *            the recipients which were matched
+     * @return remaining recipients, in their original order
+     */
+    public static List<MailAddress> remainingRecipients(Collection<MailAddress> recipients, Collection<MailAddress> matchedRcpts) {
+        Set<MailAddress> matched = new HashSet<MailAddress>(matchedRcpts);
+        List<MailAddress> remaining = new ArrayList<MailAddress>(recipients.size());
+        for (MailAddress rcpt : recipients) {
+            if (!matched.contains(rcpt)) {
+                remaining.add(rcpt);
+            }
+        }
+        return remaining;
+    }
 }
@@ -21,6 +21,7 @@ package org.apache.james.mailetcontainer.impl.camel;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -114,12 +115,11 @@ public class MatcherSplitter {
 
             // check if the matcher matched
             if (matchedRcpts != null && !matchedRcpts.isEmpty()) {
-                List<MailAddress> rcpts = new ArrayList<MailAddress>(mail.getRecipients());
-
-                for (MailAddress matchedRcpt : matchedRcpts) {
-                    // loop through the recipients and remove the recipients
-                    // that matched
-                    rcpts.remove(matchedRcpt);
+                List<MailAddress> rcpts;
+                if (matchedRcpts == mail.getRecipients()) {
+                    rcpts = Collections.emptyList();
+                } else {
+                    rcpts = ProcessorUtil.remainingRecipients(mail.getRecipients(), matchedRcpts);
                 }
 
                 if (rcpts.isEmpty()) {
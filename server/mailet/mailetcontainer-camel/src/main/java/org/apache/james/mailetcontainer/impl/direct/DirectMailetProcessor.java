@@ -0,0 +1,294 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailetcontainer.impl.direct;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.mailetcontainer.impl.MailetConfigImpl;
+import org.apache.james.mailetcontainer.impl.MatcherMailetPair;
+import org.apache.james.mailetcontainer.impl.ProcessorUtil;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.Mailet;
+import org.apache.mailet.MailetConfig;
+import org.apache.mailet.Matcher;
+
+/**
+ * {@link AbstractStateMailetProcessor} implementation which compiles the
+ * configured {@link Matcher} / {@link Mailet} pairs into a flat array of steps
+ * and dispatches the {@link Mail} directly, without any routing engine in
+ * between.
+ * 
+ * The routing semantics are the same as the ones of
+ * {@link org.apache.james.mailetcontainer.impl.camel.CamelMailetProcessor}:
+ * when a {@link Matcher} only matches some of the recipients the {@link Mail}
+ * is split, the matched part runs through the rest of the processor first and
+ * the remaining part is resumed afterwards from a small work-stack.
+ */
+public class DirectMailetProcessor extends AbstractStateMailetProcessor {
+
+    private static final String NO_MATCH = "nomatch";
+    private static final String MATCH_ALL = "matchall";
+    private static final String IGNORE = "ignore";
+
+    private Step[] steps = new Step[0];
+    private Step terminatingStep;
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.api.MailProcessor#service(org.apache.mailet.Mail)
+     */
+    public void service(Mail mail) throws MessagingException {
+        Deque<Continuation> pending = new ArrayDeque<Continuation>();
+        route(mail, 0, false, pending);
+
+        Continuation next;
+        while ((next = pending.poll()) != null) {
+            route(next.mail, next.step, true, pending);
+        }
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor#setupRouting
+     * (java.util.List)
+     */
+    protected void setupRouting(List<MatcherMailetPair> pairs) throws MessagingException {
+        Step[] compiled = new Step[pairs.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            MatcherMailetPair pair = pairs.get(i);
+            compiled[i] = new Step(pair.getMatcher(), pair.getMailet());
+        }
+        steps = compiled;
+        terminatingStep = new Step(null, new TerminatingMailet());
+    }
+
+    /**
+     * Run the given {@link Mail} through the steps, starting at the given
+     * index. Parts split off by a {@link Matcher} are processed right away
+     * while the remaining part is pushed on the work-stack.
+     * 
+     * @param mail
+     * @param from
+     *            index of the first step to run
+     * @param resumed
+     *            true if the {@link Matcher} of the first step was already
+     *            called and did not match
+     * @param pending
+     *            the work-stack
+     * @throws MessagingException
+     */
+    private void route(Mail mail, int from, boolean resumed, Deque<Continuation> pending) throws MessagingException {
+        String state = getState();
+
+        for (int i = from; i < steps.length; i++) {
+            Step step = steps[i];
+
+            boolean matched = false;
+            if (!resumed || i != from) {
+                Mail matchedMail = match(step, mail);
+                if (matchedMail != null) {
+                    matched = true;
+                    if (matchedMail != mail) {
+                        pending.push(new Continuation(mail, i));
+                        mail = matchedMail;
+                    }
+                }
+            }
+
+            if (matched) {
+                service(step, mail);
+            }
+
+            if (Mail.GHOST.equals(mail.getState())) {
+                LifecycleUtil.dispose(mail.getMessage());
+                LifecycleUtil.dispose(mail);
+                return;
+            }
+            if (!state.equals(mail.getState())) {
+                toProcessor(mail);
+                getLogger().debug("End of mailetprocessor for state " + state + " reached");
+                return;
+            }
+        }
+
+        // the mail state did not change till the end of the processor so we
+        // need to call the TerminatingMailet to make sure we don't fall into
+        // an endless loop
+        service(terminatingStep, mail);
+    }
+
+    /**
+     * Call the {@link Matcher} of the given step and split the {@link Mail} if
+     * needed.
+     * 
+     * @return null if nothing matched, the given {@link Mail} if all recipients
+     *         matched or a new {@link Mail} holding the matched recipients
+     * @throws MessagingException
+     */
+    private Mail match(Step step, Mail mail) throws MessagingException {
+        Matcher matcher = step.matcher;
+        List<MailetProcessorListener> listeners = getListeners();
+        Collection<MailAddress> origRcpts = listeners.isEmpty() ? null : new ArrayList<MailAddress>(mail.getRecipients());
+        Collection<MailAddress> matchedRcpts = null;
+        long start = System.currentTimeMillis();
+        MessagingException ex = null;
+
+        try {
+            try {
+                matchedRcpts = matcher.match(mail);
+                if (matchedRcpts != null && matchedRcpts != mail.getRecipients()) {
+                    // Make sure all the objects are MailAddress objects
+                    ProcessorUtil.verifyMailAddresses(matchedRcpts);
+                }
+            } catch (MessagingException me) {
+                ex = me;
+                if (step.onMatchException.equals(NO_MATCH)) {
+                    matchedRcpts = null;
+                } else if (step.onMatchException.equals(MATCH_ALL)) {
+                    matchedRcpts = mail.getRecipients();
+                } else {
+                    ProcessorUtil.handleException(me, mail, matcher.getMatcherConfig().getMatcherName(), step.onMatchException, getLogger());
+                }
+            }
+
+            if (matchedRcpts == null || matchedRcpts.isEmpty()) {
+                return null;
+            }
+            return split(mail, matchedRcpts);
+        } finally {
+            if (origRcpts != null) {
+                long complete = System.currentTimeMillis() - start;
+                Collection<MailAddress> matches = (matchedRcpts == null || matchedRcpts.isEmpty()) ? null : matchedRcpts;
+                for (MailetProcessorListener listener : listeners) {
+                    listener.afterMatcher(matcher, mail.getName(), origRcpts, matches, complete, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Split the matched recipients of the given {@link Mail} into a new
+     * {@link Mail}, or return the given {@link Mail} if all of its recipients
+     * matched
+     */
+    private Mail split(Mail mail, Collection<MailAddress> matchedRcpts) throws MessagingException {
+        Collection<MailAddress> rcpts = mail.getRecipients();
+        if (matchedRcpts == rcpts) {
+            return mail;
+        }
+
+        List<MailAddress> remaining = ProcessorUtil.remainingRecipients(rcpts, matchedRcpts);
+        if (remaining.isEmpty()) {
+            return mail;
+        }
+
+        mail.setRecipients(remaining);
+        Mail newMail = new MailImpl(mail);
+        newMail.setRecipients(matchedRcpts);
+        return newMail;
+    }
+
+    /**
+     * Call the {@link Mailet} of the given step and handle its
+     * {@link MessagingException} as configured
+     */
+    private void service(Step step, Mail mail) throws MessagingException {
+        Mailet mailet = step.mailet;
+        long start = System.currentTimeMillis();
+        MessagingException ex = null;
+        try {
+            mailet.service(mail);
+        } catch (MessagingException me) {
+            ex = me;
+            if (step.onMailetException.equals(IGNORE)) {
+                // ignore the exception and continue
+                // this option should not be used if the mail object can be
+                // changed by the mailet
+                ProcessorUtil.verifyMailAddresses(mail.getRecipients());
+            } else {
+                ProcessorUtil.handleException(me, mail, mailet.getMailetConfig().getMailetName(), step.onMailetException, getLogger());
+            }
+        } finally {
+            List<MailetProcessorListener> listeners = getListeners();
+            if (!listeners.isEmpty()) {
+                long complete = System.currentTimeMillis() - start;
+                for (MailetProcessorListener listener : listeners) {
+                    listener.afterMailet(mailet, mail.getName(), mail.getState(), complete, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * A compiled {@link Matcher} / {@link Mailet} pair with its exception
+     * handling options already resolved
+     */
+    private static final class Step {
+        private final Matcher matcher;
+        private final Mailet mailet;
+        private final String onMatchException;
+        private final String onMailetException;
+
+        Step(Matcher matcher, Mailet mailet) {
+            this.matcher = matcher;
+            this.mailet = mailet;
+            this.onMatchException = getOption(mailet, "onMatchException");
+            this.onMailetException = getOption(mailet, "onMailetException");
+        }
+
+        private static String getOption(Mailet mailet, String name) {
+            String value = null;
+            MailetConfig mailetConfig = mailet.getMailetConfig();
+            if (mailetConfig instanceof MailetConfigImpl) {
+                value = ((MailetConfigImpl) mailetConfig).getInitAttribute(name);
+            }
+            if (value == null) {
+                return Mail.ERROR;
+            }
+            return value.trim().toLowerCase(Locale.US);
+        }
+    }
+
+    /**
+     * The remaining part of a split {@link Mail}, to be resumed at the step
+     * whose {@link Matcher} split it
+     */
+    private static final class Continuation {
+        private final Mail mail;
+        private final int step;
+
+        Continuation(Mail mail, int step) {
+            this.mail = mail;
+            this.step = step;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.james.core.MailImpl;
+import org.apache.james.mailetcontainer.api.MailProcessor;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.mailet.Mail;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class JamesMailSpoolerTest {
+
+    @Test
+    public void testDequeueOnlyUpToMaxInFlight() throws Exception {
+        final AtomicInteger dequeued = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final MailQueue queue = new MailQueue() {
+
+            public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+            }
+
+            public void enQueue(Mail mail) throws MailQueueException {
+            }
+
+            public MailQueueItem deQueue() throws MailQueueException {
+                final MailImpl mail = new MailImpl();
+                mail.setName("mail" + dequeued.incrementAndGet());
+                try {
+                    mail.setMessage(new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream("Subject: test\r\n\r\nbody\r\n".getBytes())));
+                } catch (MessagingException e) {
+                    throw new MailQueueException("Unable to create message", e);
+                }
+                return new MailQueueItem() {
+
+                    public Mail getMail() {
+                        return mail;
+                    }
+
+                    public void done(boolean success) throws MailQueueException {
+                        completed.incrementAndGet();
+                    }
+                };
+            }
+        };
+
+        JamesMailSpooler spooler = new JamesMailSpooler();
+        spooler.setLog(LoggerFactory.getLogger(getClass()));
+        spooler.setMailQueueFactory(new MailQueueFactory() {
+
+            public MailQueue getQueue(String name) {
+                return queue;
+            }
+        });
+        spooler.setMailProcessor(new MailProcessor() {
+
+            public void service(Mail mail) throws MessagingException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        DefaultConfigurationBuilder config = new DefaultConfigurationBuilder();
+        config.load(new ByteArrayInputStream("<spooler><threads>2</threads><dequeueThreads>1</dequeueThreads><maxInFlight>3</maxInFlight></spooler>".getBytes()));
+        spooler.configure(config);
+        spooler.init();
+        try {
+            long timeout = System.currentTimeMillis() + 5000;
+            while (dequeued.get() < 3 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            // give the dequeue thread a chance to exceed the limit
+            Thread.sleep(200);
+
+            assertEquals(3, dequeued.get());
+            assertEquals(3, spooler.getInFlightCount());
+            assertEquals(2, spooler.getCurrentSpoolCount());
+
+            release.countDown();
+            timeout = System.currentTimeMillis() + 5000;
+            while (completed.get() < 3 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertTrue(spooler.getProcessedCount() >= 3);
+        } finally {
+            release.countDown();
+            spooler.dispose();
+        }
+    }
+}
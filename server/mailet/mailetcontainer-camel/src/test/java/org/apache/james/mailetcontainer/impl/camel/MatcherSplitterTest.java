@@ -0,0 +1,124 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailetcontainer.impl.camel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.base.GenericMatcher;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class MatcherSplitterTest {
+
+    private static final int RECIPIENT_COUNT = 1000;
+
+    private Mail createMail() throws MessagingException {
+        List<MailAddress> recipients = new ArrayList<MailAddress>();
+        for (int i = 0; i < RECIPIENT_COUNT; i++) {
+            recipients.add(new MailAddress("user" + i + "@localhost"));
+        }
+        MailImpl mail = new MailImpl(MailImpl.getId(), new MailAddress("sender@localhost"), recipients);
+        mail.setAttribute("attribute", "value");
+        return mail;
+    }
+
+    private List<Mail> split(Mail mail, GenericMatcher matcher) throws MessagingException {
+        return new MatcherSplitter().split(matcher, null, LoggerFactory.getLogger("MockLog"), new CamelMailetProcessor(), mail);
+    }
+
+    @Test
+    public void splitShouldPartitionRecipients() throws MessagingException {
+        Mail mail = createMail();
+
+        List<Mail> mails = split(mail, new EvenRecipientsMatcher());
+
+        assertEquals(2, mails.size());
+        Mail matched = mails.get(0);
+        assertSame(mail, mails.get(1));
+        assertEquals(RECIPIENT_COUNT / 2, matched.getRecipients().size());
+        assertEquals(RECIPIENT_COUNT / 2, mail.getRecipients().size());
+        for (MailAddress rcpt : matched.getRecipients()) {
+            assertTrue(rcpt.getLocalPart(), isEven(rcpt));
+        }
+        for (MailAddress rcpt : mail.getRecipients()) {
+            assertTrue(rcpt.getLocalPart(), !isEven(rcpt));
+        }
+        assertEquals(true, matched.removeAttribute(MatcherSplitter.MATCHER_MATCHED_ATTRIBUTE));
+        assertEquals(null, mail.getAttribute(MatcherSplitter.MATCHER_MATCHED_ATTRIBUTE));
+    }
+
+    @Test
+    public void splitShouldKeepAttributesOfSplitMailsIndependent() throws MessagingException {
+        Mail mail = createMail();
+
+        List<Mail> mails = split(mail, new EvenRecipientsMatcher());
+
+        Mail matched = mails.get(0);
+        assertNotSame(mail, matched);
+        assertEquals("value", matched.getAttribute("attribute"));
+        matched.setAttribute("attribute", "changed");
+        assertEquals("value", mail.getAttribute("attribute"));
+    }
+
+    @Test
+    public void splitShouldNotCopyMailOnFullMatch() throws MessagingException {
+        Mail mail = createMail();
+
+        List<Mail> mails = split(mail, new GenericMatcher() {
+            public Collection<MailAddress> match(Mail mail) {
+                return mail.getRecipients();
+            }
+        });
+
+        assertEquals(1, mails.size());
+        assertSame(mail, mails.get(0));
+        assertEquals(RECIPIENT_COUNT, mail.getRecipients().size());
+        assertEquals(true, mail.getAttribute(MatcherSplitter.MATCHER_MATCHED_ATTRIBUTE));
+    }
+
+    private static boolean isEven(MailAddress rcpt) {
+        return Integer.parseInt(rcpt.getLocalPart().substring("user".length())) % 2 == 0;
+    }
+
+    private static final class EvenRecipientsMatcher extends GenericMatcher {
+        public Collection<MailAddress> match(Mail mail) {
+            List<MailAddress> matched = new ArrayList<MailAddress>();
+            for (MailAddress rcpt : mail.getRecipients()) {
+                if (isEven(rcpt)) {
+                    matched.add(rcpt);
+                }
+            }
+            return matched;
+        }
+    }
+
+}
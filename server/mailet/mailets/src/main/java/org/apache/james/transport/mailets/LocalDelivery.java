@@ -44,6 +44,9 @@ import com.google.common.collect.Lists;
  * This mailet is a composition of RecipientRewriteTable, SieveMailet 
  * and MailboxManager configured to mimic the old "LocalDelivery"
  * James 2.3 behavior.
+ * 
+ * The <code>recipientConcurrency</code> and <code>sieveScriptCacheSize</code>
+ * parameters are handed over to the SieveMailet, see {@link SieveMailet}.
  */
 public class LocalDelivery extends GenericMailet {
     
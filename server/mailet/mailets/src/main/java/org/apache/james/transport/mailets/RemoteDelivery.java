@@ -22,6 +22,7 @@ package org.apache.james.transport.mailets;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.ConnectException;
@@ -43,6 +44,9 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.inject.Inject;
+import javax.management.JMException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
 import javax.mail.Address;
 import javax.mail.MessagingException;
 import javax.mail.SendFailedException;
@@ -65,6 +69,10 @@ import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
 import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.transport.mailets.remoteDelivery.DomainDeliveryScheduler;
+import org.apache.james.transport.mailets.remoteDelivery.OutboundRouteCache;
+import org.apache.james.transport.mailets.remoteDelivery.PooledSMTPTransport;
+import org.apache.james.transport.mailets.remoteDelivery.SMTPTransportPool;
 import org.apache.james.transport.util.MailetContextLog;
 import org.apache.james.transport.util.Patterns;
 import org.apache.james.util.TimeConverter;
@@ -141,6 +149,24 @@ import org.apache.mailet.base.GenericMailet;
  * within the mailet code.<br>
  * Note: This facility should be used with extreme care by expert users with a thorough knowledge of the relevant RFCs and
  * the ability to perform their own problem resolutions.</li>
+ * <li><b>maxConnectionsPerHost</b> (optional) - an Integer for the maximal number of connections kept open to each SMTP server.
+ * If set, connections are reused for several messages, with RSET between them, instead of opening a new connection for each
+ * delivery attempt. Default is 0, which disables the reuse of connections.</li>
+ * <li><b>maxMessagesPerConnection</b> (optional) - an Integer for the number of messages sent over a reused connection before it
+ * is closed. Default is 100.</li>
+ * <li><b>connectionIdleTimeout</b> (optional) - an Integer for the time in milliseconds an unused connection is kept open.
+ * Default is 30000.</li>
+ * <li><b>maxConcurrentDeliveriesPerDomain</b> (optional) - an Integer for the maximal number of concurrent deliveries to one
+ * domain. If set, the delivery threads are shared by per-domain queues, so a slow domain can not block all of them, and fresh
+ * mail of a domain is delivered before its retries. Default is 0, in which case every thread takes the next mail of the queue.</li>
+ * <li><b>circuitBreakerThreshold</b> (optional) - an Integer for the number of consecutive failed deliveries to a domain after
+ * which its mails are deferred for <code>circuitBreakerDelay</code> instead of being attempted. Only used together with
+ * <code>maxConcurrentDeliveriesPerDomain</code>. Default is 5.</li>
+ * <li><b>circuitBreakerDelay</b> (optional) - an Integer for the time in milliseconds mails to a failing domain are deferred.
+ * Default is 300000.</li>
+ * <li><b>mxCacheTime</b> (optional) - an Integer for the maximal time in milliseconds the MX records of a domain are cached,
+ * shorter if their TTL is. Mail servers which failed recently are tried after the others. The cache and the health of the mail
+ * servers are exposed through JMX. Default is 60000, 0 disables the cache.</li>
  * <li><b>debug</b> (optional) - a Boolean (true/false) indicating whether debugging is on. Default is false.</li>
  * </ul>
  */
@@ -260,6 +286,34 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
     private boolean isSSLEnable = false;
 
+    /**
+     * The pool of reusable connections, or null if every delivery attempt
+     * opens its own connection
+     */
+    private SMTPTransportPool transportPool;
+
+    /**
+     * The per-domain scheduler, or null if every thread dequeues on its own
+     */
+    private DomainDeliveryScheduler scheduler;
+
+    /**
+     * The cache of resolved mail servers and their health
+     */
+    private OutboundRouteCache routeCache;
+
+    private String routeCacheMBeanName;
+
+    /**
+     * The sessions of the scheduler workers
+     */
+    private final ThreadLocal<Session> sessions = new ThreadLocal<Session>() {
+        @Override
+        protected Session initialValue() {
+            return obtainSession(createSessionProperties());
+        }
+    };
+
     @Inject
     public void setDomainList(DomainList domainList) {
         this.domainList = domainList;
@@ -438,12 +492,94 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
             usePriority = Boolean.valueOf(prio);
         }
 
+        try {
+            long mxCacheTime = 60000;
+            if (getInitParameter("mxCacheTime") != null) {
+                mxCacheTime = Long.parseLong(getInitParameter("mxCacheTime"));
+            }
+            routeCache = new OutboundRouteCache(dnsServer, mxCacheTime, logAdapter);
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Invalid mxCacheTime setting", e);
+        } catch (NotCompliantMBeanException e) {
+            throw new MessagingException("Unable to create route cache", e);
+        }
+        registerRouteCacheMBean();
+
+        try {
+            int maxConnectionsPerHost = 0;
+            if (getInitParameter("maxConnectionsPerHost") != null) {
+                maxConnectionsPerHost = Integer.parseInt(getInitParameter("maxConnectionsPerHost"));
+            }
+            if (maxConnectionsPerHost > 0) {
+                int maxMessagesPerConnection = 100;
+                if (getInitParameter("maxMessagesPerConnection") != null) {
+                    maxMessagesPerConnection = Integer.parseInt(getInitParameter("maxMessagesPerConnection"));
+                }
+                long connectionIdleTimeout = 30000;
+                if (getInitParameter("connectionIdleTimeout") != null) {
+                    connectionIdleTimeout = Long.parseLong(getInitParameter("connectionIdleTimeout"));
+                }
+                SMTPTransportPool.SessionFactory sessionFactory = new SMTPTransportPool.SessionFactory() {
+                    public Session newSession(Properties properties) {
+                        return obtainSession(properties);
+                    }
+                };
+                transportPool = new SMTPTransportPool(createSessionProperties(), sessionFactory, authUser, authPass, maxConnectionsPerHost, maxMessagesPerConnection,
+                        connectionIdleTimeout, connectionTimeout, SMTPTransportPool.DEFAULT_PROBE_IDLE_TIME, logAdapter);
+            }
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Invalid connection pool setting", e);
+        }
+
         // Start Workers Threads.
         workersThreadCount = Integer.parseInt(getInitParameter("deliveryThreads"));
+
+        try {
+            int maxConcurrentDeliveriesPerDomain = 0;
+            if (getInitParameter("maxConcurrentDeliveriesPerDomain") != null) {
+                maxConcurrentDeliveriesPerDomain = Integer.parseInt(getInitParameter("maxConcurrentDeliveriesPerDomain"));
+            }
+            if (maxConcurrentDeliveriesPerDomain > 0) {
+                int circuitBreakerThreshold = 5;
+                if (getInitParameter("circuitBreakerThreshold") != null) {
+                    circuitBreakerThreshold = Integer.parseInt(getInitParameter("circuitBreakerThreshold"));
+                }
+                long circuitBreakerDelay = 300000;
+                if (getInitParameter("circuitBreakerDelay") != null) {
+                    circuitBreakerDelay = Long.parseLong(getInitParameter("circuitBreakerDelay"));
+                }
+                // Hold enough mails to keep all threads busy while some domains are saturated
+                int maxPending = workersThreadCount * 10;
+                scheduler = new DomainDeliveryScheduler(workersThreadCount, maxConcurrentDeliveriesPerDomain, circuitBreakerThreshold, circuitBreakerDelay, maxPending, logAdapter);
+            }
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Invalid delivery scheduler setting", e);
+        }
         initDeliveryThreads();
     }
 
+    private void registerRouteCacheMBean() {
+        String name = "org.apache.james:type=component,component=mailetcontainer,name=remotedelivery,mailet=" + ObjectName.quote(getMailetName());
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(routeCache, new ObjectName(name));
+            routeCacheMBeanName = name;
+        } catch (JMException e) {
+            // Another RemoteDelivery with the same name is already registered
+            log("Unable to register route cache MBean " + name + ": " + e.getMessage());
+        }
+    }
+
     private void initDeliveryThreads() {
+        if (scheduler != null) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    dispatch();
+                }
+            }, "Remote delivery dispatcher");
+            t.start();
+            workersThreads.add(t);
+            return;
+        }
         for (int a = 0; a < workersThreadCount; a++) {
             String threadName = "Remote delivery thread (" + a + ")";
             Thread t = new Thread(this, threadName);
@@ -706,9 +842,105 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         for (Thread t : workersThreads) {
             t.interrupt();
         }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        if (routeCacheMBeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(routeCacheMBeanName));
+            } catch (JMException e) {
+                log("Unable to unregister route cache MBean " + routeCacheMBeanName, e);
+            }
+            routeCacheMBeanName = null;
+        }
+        if (transportPool != null) {
+            transportPool.close();
+        }
         notifyAll();
     }
 
+    /**
+     * Moves the mails of the outgoing queue to the per-domain queues of the
+     * scheduler
+     */
+    private void dispatch() {
+        try {
+            while (!Thread.interrupted() && !destroyed) {
+                try {
+                    scheduler.reserve();
+                    MailQueueItem queueItem;
+                    try {
+                        queueItem = queue.deQueue();
+                    } catch (MailQueueException e) {
+                        scheduler.cancelReservation();
+                        throw e;
+                    }
+                    Mail mail = queueItem.getMail();
+                    Collection<MailAddress> recipients = mail.getRecipients();
+                    String domain = recipients.isEmpty() ? "" : recipients.iterator().next().getDomain().toLowerCase(Locale.US);
+                    int retries = 0;
+                    try {
+                        retries = Integer.parseInt(mail.getErrorMessage());
+                    } catch (NumberFormatException e) {
+                        // not retried yet
+                    }
+                    scheduler.schedule(domain, retries > 0, new QueuedDelivery(queueItem));
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable e) {
+                    if (!destroyed) {
+                        log("Exception caught in RemoteDelivery.dispatch()", e);
+                    }
+                }
+            }
+        } finally {
+            // Restore the thread state to non-interrupted.
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * A dequeued mail waiting in the scheduler
+     */
+    private final class QueuedDelivery implements DomainDeliveryScheduler.Delivery {
+        private final MailQueueItem queueItem;
+
+        private QueuedDelivery(MailQueueItem queueItem) {
+            this.queueItem = queueItem;
+        }
+
+        public boolean deliver() {
+            try {
+                return processMail(queueItem, sessions.get());
+            } catch (MailQueueException e) {
+                // Already logged. This is no failure of the destination, so
+                // do not count it for its circuit breaker
+                return true;
+            }
+        }
+
+        public void defer(long delay) {
+            Mail mail = queueItem.getMail();
+            try {
+                queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
+                queueItem.done(true);
+            } catch (MailQueueException e) {
+                log("Unable to defer mail " + mail.getName(), e);
+                cancel();
+            } finally {
+                LifecycleUtil.dispose(mail);
+            }
+        }
+
+        public void cancel() {
+            try {
+                queueItem.done(false);
+            } catch (MailQueueException e) {
+                log("Unable to give back mail " + queueItem.getMail().getName(), e);
+            }
+        }
+    }
+
     /**
      * Handles checking the outgoing spool for new mail and delivering them if
      * there are any
@@ -717,6 +949,123 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
     public void run() {
 
         // Checks the pool and delivers a mail message
+        final Session session = obtainSession(createSessionProperties());
+        try {
+            while (!Thread.interrupted() && !destroyed) {
+                try {
+                    // Get the 'mail' object that is ready for deliverying. If
+                    // no
+                    // message is
+                    // ready, the 'accept' will block until message is ready.
+                    // The amount
+                    // of time to block is determined by the 'getWaitTime'
+                    // method of the
+                    // MultipleDelayFilter.
+                    MailQueueItem queueItem = queue.deQueue();
+                    processMail(queueItem, session);
+                } catch (Throwable e) {
+                    if (!destroyed) {
+                        log("Exception caught in RemoteDelivery.run()", e);
+                    }
+                }
+            }
+        } finally {
+            // Restore the thread state to non-interrupted.
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Deliver the dequeued mail and store it back into the queue if it needs
+     * to be retried
+     *
+     * @param queueItem the dequeued item
+     * @param session javax.mail.Session
+     * @return boolean Whether the delivery was successful or failed
+     *         permanently
+     * @throws MailQueueException on unexpected errors
+     */
+    private boolean processMail(MailQueueItem queueItem, Session session) throws MailQueueException {
+        Mail mail = queueItem.getMail();
+
+        String key = mail.getName();
+
+        boolean delivered;
+        try {
+            if (isDebug) {
+                String message = Thread.currentThread().getName() + " will process mail " + key;
+                log(message);
+            }
+
+            // Deliver message
+            delivered = deliver(mail, session);
+            if (delivered) {
+                // Message was successfully delivered/fully
+                // failed...
+                // delete it
+                LifecycleUtil.dispose(mail);
+                // workRepository.remove(key);
+            } else {
+                // Something happened that will delay delivery.
+                // Store it back in the retry repository.
+                // workRepository.store(mail);
+                int retries = 0;
+                try {
+                    retries = Integer.parseInt(mail.getErrorMessage());
+                } catch (NumberFormatException e) {
+                    // Something strange was happen with the
+                    // errorMessage..
+                }
+
+                long delay = getNextDelay(retries);
+
+                if (usePriority) {
+                    // Use lowest priority for retries. See JAMES-1311
+                    mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+                }
+                queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
+                LifecycleUtil.dispose(mail);
+
+                // This is an update, so we have to unlock and
+                // notify or this mail is kept locked by this
+                // thread.
+                // workRepository.unlock(key);
+
+                // Note: We do not notify because we updated an
+                // already existing mail and we are now free to
+                // handle
+                // more mails.
+                // Furthermore this mail should not be processed now
+                // because we have a retry time scheduling.
+            }
+
+            // Clear the object handle to make sure it recycles
+            // this object.
+            mail = null;
+            queueItem.done(true);
+        } catch (Exception e) {
+            // Prevent unexpected exceptions from causing looping by
+            // removing message from outgoing.
+            // DO NOT CHANGE THIS to catch Error! For example, if
+            // there were an OutOfMemory condition caused because
+            // something else in the server was abusing memory, we
+            // would
+            // not want to start purging the retrying spool!
+            log("Exception caught in RemoteDelivery.run()", e);
+            LifecycleUtil.dispose(mail);
+            // workRepository.remove(key);
+            queueItem.done(false);
+            throw new MailQueueException("Unable to perform dequeue", e);
+        }
+        return delivered;
+    }
+
+    /**
+     * Create the JavaMail properties used for delivery
+     *
+     * @return props
+     */
+    private Properties createSessionProperties() {
         Properties props = new Properties();
         // Not needed for production environment
         props.put("mail.debug", "false");
@@ -761,99 +1110,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
         props.putAll(defprops);
 
-        final Session session = obtainSession(props);
-        try {
-            while (!Thread.interrupted() && !destroyed) {
-                try {
-                    // Get the 'mail' object that is ready for deliverying. If
-                    // no
-                    // message is
-                    // ready, the 'accept' will block until message is ready.
-                    // The amount
-                    // of time to block is determined by the 'getWaitTime'
-                    // method of the
-                    // MultipleDelayFilter.
-                    MailQueueItem queueItem = queue.deQueue();
-                    Mail mail = queueItem.getMail();
-
-                    String key = mail.getName();
-
-                    try {
-                        if (isDebug) {
-                            String message = Thread.currentThread().getName() + " will process mail " + key;
-                            log(message);
-                        }
-
-                        // Deliver message
-                        if (deliver(mail, session)) {
-                            // Message was successfully delivered/fully
-                            // failed...
-                            // delete it
-                            LifecycleUtil.dispose(mail);
-                            // workRepository.remove(key);
-                        } else {
-                            // Something happened that will delay delivery.
-                            // Store it back in the retry repository.
-                            // workRepository.store(mail);
-                            int retries = 0;
-                            try {
-                                retries = Integer.parseInt(mail.getErrorMessage());
-                            } catch (NumberFormatException e) {
-                                // Something strange was happen with the
-                                // errorMessage..
-                            }
-
-                            long delay = getNextDelay(retries);
-
-                            if (usePriority) {
-                                // Use lowest priority for retries. See JAMES-1311
-                                mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
-                            }
-                            queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
-                            LifecycleUtil.dispose(mail);
-
-                            // This is an update, so we have to unlock and
-                            // notify or this mail is kept locked by this
-                            // thread.
-                            // workRepository.unlock(key);
-
-                            // Note: We do not notify because we updated an
-                            // already existing mail and we are now free to
-                            // handle
-                            // more mails.
-                            // Furthermore this mail should not be processed now
-                            // because we have a retry time scheduling.
-                        }
-
-                        // Clear the object handle to make sure it recycles
-                        // this object.
-                        mail = null;
-                        queueItem.done(true);
-                    } catch (Exception e) {
-                        // Prevent unexpected exceptions from causing looping by
-                        // removing message from outgoing.
-                        // DO NOT CHANGE THIS to catch Error! For example, if
-                        // there were an OutOfMemory condition caused because
-                        // something else in the server was abusing memory, we
-                        // would
-                        // not want to start purging the retrying spool!
-                        log("Exception caught in RemoteDelivery.run()", e);
-                        LifecycleUtil.dispose(mail);
-                        // workRepository.remove(key);
-                        queueItem.done(false);
-                        throw new MailQueueException("Unable to perform dequeue", e);
-                    }
-
-                } catch (Throwable e) {
-                    if (!destroyed) {
-                        log("Exception caught in RemoteDelivery.run()", e);
-                    }
-                }
-            }
-        } finally {
-            // Restore the thread state to non-interrupted.
-            Thread.interrupted();
-        }
+        return props;
     }
 
     /**
@@ -897,7 +1154,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
                 // Lookup the possible targets
                 try {
-                    targetServers = new MXHostAddressIterator(dnsServer.findMXRecords(host).iterator(), dnsServer, false, logAdapter);
+                    targetServers = routeCache.getHostAddresses(host.toLowerCase(Locale.US));
                 } catch (TemporaryResolutionException e) {
                     log("Temporary problem looking up mail server for host: " + host);
                     String exceptionBuffer = "Temporary problem looking up mail server for host: " + host + ".  I cannot determine where to send this message.";
@@ -924,12 +1181,14 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     }
                 }
             } else {
-                targetServers = getGatewaySMTPHostAddresses(gatewayServer);
+                targetServers = routeCache.orderByHealth(getGatewaySMTPHostAddresses(gatewayServer));
             }
 
             MessagingException lastError = null;
 
             while (targetServers.hasNext()) {
+                HostAddress outgoingMailServer = targetServers.next();
+                long attemptStart = System.currentTimeMillis();
                 try {
 
                     Properties props = session.getProperties();
@@ -940,7 +1199,6 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                         props.put("mail.smtp.from", sender);
                     }
 
-                    HostAddress outgoingMailServer = targetServers.next();
                     StringBuilder logMessageBuffer = new StringBuilder(256).append("Attempting delivery of ").append(mail.getName()).append(" to host ").append(outgoingMailServer.getHostName()).append(" at ").append(outgoingMailServer.getHost()).append(" from ").append(props.get("mail.smtp.from"))
                             .append(" for addresses ").append(Arrays.asList(addr));
                     log(logMessageBuffer.toString());
@@ -955,11 +1213,20 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     // NOTIFY= after RCPT TO line.
 
                     SMTPTransport transport = null;
+                    boolean reusable = false;
+                    boolean sent = false;
                     try {
-                        transport =  (SMTPTransport) session.getTransport(outgoingMailServer);
-                        transport.setLocalHost( props.getProperty("mail.smtp.localhost", heloName) );
+                        if (transportPool == null) {
+                            transport =  (SMTPTransport) session.getTransport(outgoingMailServer);
+                            transport.setLocalHost( props.getProperty("mail.smtp.localhost", heloName) );
+                        }
                         try {
-                            if (authUser != null) {
+                            if (transport == null) {
+                                // Reuse an open connection to this server if possible
+                                PooledSMTPTransport pooled = transportPool.borrow(outgoingMailServer);
+                                pooled.setEnvelopeFrom(props.getProperty("mail.smtp.from"));
+                                transport = pooled;
+                            } else if (authUser != null) {
                                 transport.connect(outgoingMailServer.getHostName(), authUser, authPass);
                             } else {
                                 transport.connect();
@@ -979,6 +1246,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                             } else {
                                 log(me.getMessage());
                             }
+                            routeCache.recordFailure(outgoingMailServer);
                             continue;
                         }
                         // if the transport is a SMTPTransport (from sun) some
@@ -1028,9 +1296,24 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                                 log("Error during the conversion to 7 bit.", e);
                             }
                         }
-                        transport.sendMessage(message, addr);
+                        try {
+                            transport.sendMessage(message, addr);
+                        } catch (SendFailedException sfe) {
+                            // The server answered, so the connection can still be used once reset
+                            reusable = true;
+                            throw sfe;
+                        }
+                        reusable = true;
+                        sent = true;
                     } finally {
-                        if (transport != null) {
+                        if (transport instanceof PooledSMTPTransport) {
+                            if (reusable) {
+                                transportPool.release((PooledSMTPTransport) transport, sent);
+                            } else {
+                                transportPool.invalidate((PooledSMTPTransport) transport);
+                            }
+                            transport = null;
+                        } else if (transport != null) {
                             try {
                                 // James-899: transport.close() sends QUIT to
                                 // the server; if that fails
@@ -1050,8 +1333,11 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     logMessageBuffer = new StringBuilder(256).append("Mail (").append(mail.getName()).append(") sent successfully to ").append(outgoingMailServer.getHostName()).append(" at ").append(outgoingMailServer.getHost()).append(" from ").append(props.get("mail.smtp.from")).append(" for ")
                             .append(mail.getRecipients());
                     log(logMessageBuffer.toString());
+                    routeCache.recordSuccess(outgoingMailServer, System.currentTimeMillis() - attemptStart);
                     return true;
                 } catch (SendFailedException sfe) {
+                    // The server answered, so it is reachable
+                    routeCache.recordSuccess(outgoingMailServer, System.currentTimeMillis() - attemptStart);
                     logSendFailedException(sfe);
 
                     if (sfe.getValidSentAddresses() != null) {
@@ -1097,6 +1383,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                         // If it's an IO exception with no nested exception,
                         // it's probably
                         // some socket or weird I/O related problem.
+                        routeCache.recordFailure(outgoingMailServer);
                         lastError = me;
                         continue;
                     }
@@ -18,7 +18,9 @@
  ****************************************************************/
 package org.apache.james.transport.mailets;
 
+import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageInputStream;
+import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.mailbox.MailboxManager;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.MessageManager;
@@ -27,21 +29,58 @@ import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.model.MailboxConstants;
 import org.apache.james.mailbox.model.MailboxPath;
 import org.apache.james.sieverepository.api.SieveRepository;
+import org.apache.james.sieverepository.api.StampedSieveRepository;
+import org.apache.james.sieverepository.api.exception.ScriptNotFoundException;
 import org.apache.james.transport.util.MailetContextLog;
 import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.api.UsersRepositoryException;
+import org.apache.jsieve.ConfigurationManager;
+import org.apache.jsieve.SieveConfigurationException;
+import org.apache.jsieve.SieveFactory;
+import org.apache.jsieve.exception.SieveException;
+import org.apache.jsieve.mailet.ActionDispatcher;
 import org.apache.jsieve.mailet.Poster;
+import org.apache.jsieve.mailet.SieveMailAdapter;
 import org.apache.jsieve.mailet.SieveMailboxMailet;
+import org.apache.jsieve.parser.generated.Node;
+import org.apache.jsieve.parser.generated.ParseException;
+import org.apache.jsieve.parser.generated.TokenMgrError;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.apache.mailet.MailetConfig;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Contains resource bindings.
+ * 
+ * The recipients of a mail are delivered one after the other by default. Set
+ * the <code>recipientConcurrency</code> init parameter to a value greater than
+ * 1 to split the recipients of a mail in that many groups which get delivered
+ * in parallel, by at most that many threads. Recipients which could not be
+ * delivered are sent to the error processor with one mail per group.
+ * 
+ * Set the <code>sieveScriptCacheSize</code> init parameter to keep that many
+ * parsed Sieve scripts in a {@link SieveScriptCache} instead of parsing the
+ * active script of the recipient for each mail. This needs a
+ * {@link StampedSieveRepository}, the parameter is ignored for other
+ * repositories.
  */
 public class SieveMailet extends SieveMailboxMailet implements Poster {
     private final UsersRepository usersRepos;
@@ -49,6 +88,14 @@ public class SieveMailet extends SieveMailboxMailet implements Poster {
     private final SieveRepository sieveRepository;
     private final String folder;
 
+    private boolean consume;
+    private int recipientConcurrency = 1;
+    private ExecutorService deliveryExecutor;
+    private boolean virtualHosting;
+    private SieveScriptCache scriptCache;
+    private SieveFactory factory;
+    private ActionDispatcher actionDispatcher;
+
     public SieveMailet(UsersRepository usersRepos, MailboxManager mailboxManager, SieveRepository sieveRepository, String folder) {
         this.usersRepos = usersRepos;
         this.mailboxManager = mailboxManager;
@@ -60,12 +107,146 @@ public class SieveMailet extends SieveMailboxMailet implements Poster {
     public void init(MailetConfig config) throws MessagingException {
         // ATM Fixed implementation
         try {
-            setLocator(new ResourceLocatorImpl(usersRepos.supportVirtualHosting(), sieveRepository));
+            virtualHosting = usersRepos.supportVirtualHosting();
+            setLocator(new ResourceLocatorImpl(virtualHosting, sieveRepository));
         } catch (UsersRepositoryException e) {
             throw new MessagingException("Unable to access UsersRepository", e);
         }
         setPoster(this);
         super.init(config);
+
+        consume = getInitParameter("consume", true);
+        String concurrency = getInitParameter("recipientConcurrency");
+        if (concurrency != null) {
+            try {
+                recipientConcurrency = Integer.parseInt(concurrency.trim());
+            } catch (NumberFormatException e) {
+                throw new MessagingException("Invalid recipientConcurrency: " + concurrency);
+            }
+            if (recipientConcurrency < 1) {
+                throw new MessagingException("recipientConcurrency must be at least 1");
+            }
+        }
+        if (recipientConcurrency > 1) {
+            // the calling thread delivers one of the groups itself
+            deliveryExecutor = Executors.newFixedThreadPool(recipientConcurrency - 1, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Local delivery thread (" + count.getAndIncrement() + ")");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        int cacheSize = 0;
+        String size = getInitParameter("sieveScriptCacheSize");
+        if (size != null) {
+            try {
+                cacheSize = Integer.parseInt(size.trim());
+            } catch (NumberFormatException e) {
+                throw new MessagingException("Invalid sieveScriptCacheSize: " + size);
+            }
+        }
+        if (cacheSize > 0 && !(sieveRepository instanceof StampedSieveRepository)) {
+            log("The Sieve repository can not tell when scripts change, sieveScriptCacheSize is ignored");
+        } else if (cacheSize > 0) {
+            try {
+                factory = new ConfigurationManager().build();
+            } catch (SieveConfigurationException e) {
+                throw new MessagingException("Unable to configure Sieve", e);
+            }
+            actionDispatcher = new ActionDispatcher();
+            scriptCache = new SieveScriptCache((StampedSieveRepository) sieveRepository, factory, cacheSize);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (deliveryExecutor != null) {
+            deliveryExecutor.shutdown();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Deliver the mail to its recipients. If <code>recipientConcurrency</code>
+     * is configured the recipients are split in groups, and each group is
+     * delivered in parallel by {@link SieveMailboxMailet#service(Mail)} on its
+     * own copy of the mail. Otherwise the recipients are delivered one after
+     * the other.
+     */
+    @Override
+    public void service(Mail mail) throws MessagingException {
+        Collection<MailAddress> recipients = mail.getRecipients();
+        if (deliveryExecutor == null || recipients.size() < 2) {
+            super.service(mail);
+            return;
+        }
+
+        int groupSize = (recipients.size() + recipientConcurrency - 1) / recipientConcurrency;
+        List<List<MailAddress>> groups = Lists.partition(new ArrayList<MailAddress>(recipients), groupSize);
+
+        // The copies are made by the calling thread, as copying a mail
+        // updates the shared state of the original
+        List<Mail> copies = new ArrayList<Mail>(groups.size());
+        try {
+            for (List<MailAddress> group : groups) {
+                Mail copy = new MailImpl(mail, mail.getName());
+                copy.setRecipients(group);
+                copies.add(copy);
+            }
+
+            // the first group is delivered by the calling thread
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 1; i < copies.size(); i++) {
+                futures.add(deliveryExecutor.submit(new GroupDelivery(copies.get(i))));
+            }
+            List<MailAddress> errors = new ArrayList<MailAddress>();
+            try {
+                new GroupDelivery(copies.get(0)).call();
+            } catch (Exception e) {
+                log("Error while storing mail.", e);
+                errors.addAll(groups.get(0));
+            }
+
+            boolean interrupted = false;
+            for (int i = 0; i < futures.size(); i++) {
+                Future<Void> future = futures.get(i);
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        // wait for all groups anyway, the copies are disposed
+                        // afterwards
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        log("Error while storing mail.", e.getCause());
+                        errors.addAll(groups.get(i + 1));
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (!errors.isEmpty()) {
+                // Each group already redirected its failed recipients, only
+                // the groups which failed as a whole are left
+                getMailetContext().sendMail(mail.getSender(), errors, mail.getMessage(), Mail.ERROR);
+            }
+        } finally {
+            for (Mail copy : copies) {
+                LifecycleUtil.dispose(copy);
+            }
+        }
+        if (consume) {
+            // Consume this message
+            mail.setState(Mail.GHOST);
+        }
     }
 
     /**
@@ -99,7 +280,11 @@ public class SieveMailet extends SieveMailboxMailet implements Poster {
      */
     @Override
     public void storeMail(MailAddress sender, MailAddress recipient, Mail mail) throws MessagingException {
-        super.storeMail(sender, recipient, mail);
+        if (scriptCache == null) {
+            super.storeMail(sender, recipient, mail);
+        } else {
+            evaluateCachedScript(recipient, mail);
+        }
         String s;
         if (sender != null) {
             s = sender.toString();
@@ -112,6 +297,63 @@ public class SieveMailet extends SieveMailboxMailet implements Poster {
                 + " in folder " + this.folder);
     }
 
+    /**
+     * Evaluate the cached Sieve script of the recipient against the mail. If
+     * the script can not be loaded the mail is stored in the INBOX of the
+     * recipient. If it can not be parsed or evaluated the recipient gets the
+     * error notification of {@link SieveMailboxMailet} instead.
+     */
+    private void evaluateCachedScript(MailAddress recipient, Mail mail) throws MessagingException {
+        String username = getUsername(recipient);
+        Node script;
+        try {
+            script = scriptCache.get(getSieveUser(username));
+        } catch (ScriptNotFoundException e) {
+            deliverToInbox(username, mail);
+            return;
+        } catch (ParseException e) {
+            notifyFailure(recipient, mail, e);
+            return;
+        } catch (TokenMgrError e) {
+            notifyFailure(recipient, mail, new SieveException(e));
+            return;
+        } catch (Exception e) {
+            log("Cannot load Sieve script of " + username + ". Storing mail in user INBOX.", e);
+            deliverToInbox(username, mail);
+            return;
+        }
+
+        try {
+            factory.evaluate(new SieveMailAdapter(mail, getMailetContext(), actionDispatcher, this), script);
+        } catch (SieveException e) {
+            notifyFailure(recipient, mail, e);
+        }
+    }
+
+    private void notifyFailure(MailAddress recipient, Mail mail, Exception e) throws MessagingException {
+        try {
+            handleFailure(recipient, mail, e);
+        } catch (IOException ioe) {
+            throw new MessagingException("Unable to notify " + recipient + " of the Sieve failure", ioe);
+        }
+    }
+
+    /**
+     * Return the user under which the Sieve scripts of the given username are
+     * stored, see {@link ResourceLocatorImpl}
+     */
+    private String getSieveUser(String username) {
+        int at = username.indexOf('@');
+        if (virtualHosting || at < 0) {
+            return username;
+        }
+        return username.substring(0, at);
+    }
+
+    private void deliverToInbox(String username, Mail mail) throws MessagingException {
+        post("mailbox://" + username + "/", mail.getMessage());
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -224,4 +466,21 @@ public class SieveMailet extends SieveMailboxMailet implements Poster {
         }
     }
 
+    /**
+     * Deliver a copy of the mail to the group of recipients it was created
+     * for
+     */
+    private final class GroupDelivery implements Callable<Void> {
+        private final Mail copy;
+
+        public GroupDelivery(Mail copy) {
+            this.copy = copy;
+        }
+
+        public Void call() throws MessagingException {
+            SieveMailet.super.service(copy);
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,136 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.transport.mailets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.james.sieverepository.api.StampedSieveRepository;
+import org.apache.james.sieverepository.api.exception.ScriptNotFoundException;
+import org.apache.james.sieverepository.api.exception.SieveRepositoryException;
+import org.apache.jsieve.SieveFactory;
+import org.apache.jsieve.parser.generated.Node;
+import org.apache.jsieve.parser.generated.ParseException;
+
+/**
+ * Cache of the parsed active Sieve scripts of the users.
+ * 
+ * Each entry remembers the {@link StampedSieveRepository#getActiveStamp(String)} of
+ * the script it was parsed from, so a script which gets replaced or activated,
+ * for example via the ManageSieve PUTSCRIPT or SETACTIVE commands, is parsed
+ * again on its next use. Once the cache is full the least recently used
+ * entries are evicted.
+ */
+public class SieveScriptCache {
+
+    private final StampedSieveRepository sieveRepository;
+    private final SieveFactory factory;
+    private final Map<String, CachedScript> scripts;
+
+    public SieveScriptCache(StampedSieveRepository sieveRepository, SieveFactory factory, final int maxSize) {
+        this.sieveRepository = sieveRepository;
+        this.factory = factory;
+        this.scripts = new LinkedHashMap<String, CachedScript>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedScript> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Return the parsed active script of the given user
+     * 
+     * @param user
+     * @return script
+     * @throws ScriptNotFoundException
+     *             if the user has no active script
+     * @throws SieveRepositoryException
+     * @throws ParseException
+     * @throws IOException
+     */
+    public Node get(String user) throws SieveRepositoryException, ParseException, IOException {
+        String stamp;
+        try {
+            stamp = sieveRepository.getActiveStamp(user);
+        } catch (ScriptNotFoundException e) {
+            invalidate(user);
+            throw e;
+        }
+
+        CachedScript cached;
+        synchronized (scripts) {
+            cached = scripts.get(user);
+        }
+        if (cached != null && cached.stamp.equals(stamp)) {
+            return cached.script;
+        }
+
+        // parse outside of the lock, the script may be big
+        Node script;
+        InputStream in = sieveRepository.getActive(user);
+        try {
+            script = factory.parse(in);
+        } finally {
+            in.close();
+        }
+        synchronized (scripts) {
+            scripts.put(user, new CachedScript(stamp, script));
+        }
+        return script;
+    }
+
+    /**
+     * Remove the cached script of the given user
+     * 
+     * @param user
+     */
+    public void invalidate(String user) {
+        synchronized (scripts) {
+            scripts.remove(user);
+        }
+    }
+
+    /**
+     * Return the count of cached scripts
+     * 
+     * @return size
+     */
+    public int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    private static final class CachedScript {
+        private final String stamp;
+        private final Node script;
+
+        public CachedScript(String stamp, Node script) {
+            this.stamp = stamp;
+            this.script = script;
+        }
+    }
+
+}
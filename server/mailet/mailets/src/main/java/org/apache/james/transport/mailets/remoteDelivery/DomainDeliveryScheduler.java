@@ -0,0 +1,362 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets.remoteDelivery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+/**
+ * Schedules remote deliveries on a shared pool of worker threads, with one
+ * sub-queue per destination domain.
+ * <p>
+ * Each domain has its own concurrency limit, so a slow or unreachable domain
+ * can only block that many workers while mail to other domains keeps
+ * flowing. Fresh mail of a domain is delivered before its retries.
+ * <p>
+ * Every domain also has a circuit breaker: after a number of consecutive
+ * failed deliveries the circuit opens and the pending deliveries of the
+ * domain are deferred instead of being attempted. Once the delay has passed,
+ * a single delivery is attempted; if it succeeds the circuit closes again.
+ * <p>
+ * The state of a domain is dropped once it has no pending deliveries and its
+ * circuit is not open, so only domains with traffic or an open circuit are
+ * remembered.
+ */
+public class DomainDeliveryScheduler {
+
+    /**
+     * A delivery which was handed to the scheduler
+     */
+    public interface Delivery {
+
+        /**
+         * Attempt the delivery
+         * 
+         * @return <code>true</code> if the destination accepted or
+         *         permanently rejected the mail, <code>false</code> on a
+         *         temporary failure
+         */
+        boolean deliver();
+
+        /**
+         * Postpone the delivery without attempting it, as the circuit of the
+         * domain is open
+         * 
+         * @param delay
+         *            The delay in ms
+         */
+        void defer(long delay);
+
+        /**
+         * Give the delivery back without attempting it, as the scheduler was
+         * shut down
+         */
+        void cancel();
+    }
+
+    private final ExecutorService workers;
+    private final int maxConcurrencyPerDomain;
+    private final int failureThreshold;
+    private final long openCircuitDelay;
+    private final Semaphore capacity;
+    private final Logger logger;
+
+    private final Map<String, DomainQueue> domains = new HashMap<String, DomainQueue>();
+    private long nextPurge;
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param workerCount
+     *            The number of worker threads
+     * @param maxConcurrencyPerDomain
+     *            The maximal number of concurrent deliveries to one domain
+     * @param failureThreshold
+     *            The number of consecutive failures after which the circuit
+     *            of a domain opens
+     * @param openCircuitDelay
+     *            The time in ms the circuit of a domain stays open
+     * @param maxPending
+     *            The maximal number of deliveries held by the scheduler
+     * @param logger
+     *            The logger
+     */
+    public DomainDeliveryScheduler(int workerCount, int maxConcurrencyPerDomain, int failureThreshold, long openCircuitDelay, int maxPending, Logger logger) {
+        this.maxConcurrencyPerDomain = maxConcurrencyPerDomain;
+        this.failureThreshold = failureThreshold;
+        this.openCircuitDelay = openCircuitDelay;
+        this.capacity = new Semaphore(maxPending);
+        this.logger = logger;
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "Remote delivery thread (" + count.getAndIncrement() + ")");
+            }
+        });
+    }
+
+    /**
+     * Wait until the scheduler can accept another delivery. Must be called
+     * before each {@link #schedule(String, boolean, Delivery)}, and should be
+     * called before the mail is dequeued, so the queue keeps the mail while
+     * the scheduler is busy.
+     * 
+     * @throws InterruptedException
+     */
+    public void reserve() throws InterruptedException {
+        capacity.acquire();
+    }
+
+    /**
+     * Give back a capacity obtained by {@link #reserve()} which is not used
+     */
+    public void cancelReservation() {
+        capacity.release();
+    }
+
+    /**
+     * Add a delivery to the sub-queue of the given domain
+     * 
+     * @param domain
+     *            The destination domain
+     * @param retry
+     *            <code>true</code> if the delivery was already attempted
+     *            before
+     * @param delivery
+     *            The delivery
+     */
+    public void schedule(String domain, boolean retry, Delivery delivery) {
+        if (shutdown) {
+            capacity.release();
+            delivery.cancel();
+            return;
+        }
+        List<Delivery> deferred;
+        int runnable;
+        synchronized (this) {
+            purgeIdle();
+            DomainQueue queue = domains.get(domain);
+            if (queue == null) {
+                queue = new DomainQueue();
+                domains.put(domain, queue);
+            }
+            if (retry) {
+                queue.retries.add(delivery);
+            } else {
+                queue.fresh.add(delivery);
+            }
+            deferred = drainIfOpen(queue);
+            runnable = startable(queue);
+        }
+        defer(deferred, domain);
+        start(domain, runnable);
+    }
+
+    /**
+     * Stop all workers. Deliveries which were not started yet are cancelled.
+     */
+    public void shutdown() {
+        shutdown = true;
+        List<Delivery> cancelled = new ArrayList<Delivery>();
+        synchronized (this) {
+            for (DomainQueue queue : domains.values()) {
+                cancelled.addAll(queue.fresh);
+                cancelled.addAll(queue.retries);
+                queue.fresh.clear();
+                queue.retries.clear();
+            }
+            domains.clear();
+        }
+        workers.shutdownNow();
+        for (Delivery delivery : cancelled) {
+            capacity.release();
+            delivery.cancel();
+        }
+    }
+
+    /**
+     * Return the number of domains the scheduler currently keeps a state for
+     */
+    synchronized int getDomainCount() {
+        return domains.size();
+    }
+
+    /**
+     * Remove the idle queues whose circuit has expired. Runs at most once per
+     * open circuit delay. Must be called while holding the lock.
+     */
+    private void purgeIdle() {
+        long now = System.currentTimeMillis();
+        if (now < nextPurge) {
+            return;
+        }
+        nextPurge = now + openCircuitDelay;
+        Iterator<DomainQueue> queues = domains.values().iterator();
+        while (queues.hasNext()) {
+            if (queues.next().isIdle(now)) {
+                queues.remove();
+            }
+        }
+    }
+
+    private void start(String domain, int count) {
+        for (int i = 0; i < count; i++) {
+            workers.execute(new Worker(domain));
+        }
+    }
+
+    /**
+     * Return the number of deliveries of the queue which may be started now,
+     * and mark them as active. Must be called while holding the lock.
+     */
+    private int startable(DomainQueue queue) {
+        int limit = queue.failures >= failureThreshold ? 1 : maxConcurrencyPerDomain;
+        int count = Math.min(queue.fresh.size() + queue.retries.size() - queue.starting, limit - queue.active - queue.starting);
+        if (count <= 0) {
+            return 0;
+        }
+        queue.starting += count;
+        return count;
+    }
+
+    /**
+     * Remove all pending deliveries of the queue if its circuit is open. Must
+     * be called while holding the lock.
+     */
+    private List<Delivery> drainIfOpen(DomainQueue queue) {
+        if (queue.openUntil <= System.currentTimeMillis()) {
+            return null;
+        }
+        List<Delivery> deferred = new ArrayList<Delivery>(queue.fresh);
+        deferred.addAll(queue.retries);
+        queue.fresh.clear();
+        queue.retries.clear();
+        return deferred;
+    }
+
+    private void defer(List<Delivery> deferred, String domain) {
+        if (deferred == null || deferred.isEmpty()) {
+            return;
+        }
+        long delay;
+        synchronized (this) {
+            DomainQueue queue = domains.get(domain);
+            delay = queue == null ? 0 : Math.max(0, queue.openUntil - System.currentTimeMillis());
+        }
+        for (Delivery delivery : deferred) {
+            capacity.release();
+            delivery.defer(delay);
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final String domain;
+
+        private Worker(String domain) {
+            this.domain = domain;
+        }
+
+        public void run() {
+            Delivery delivery;
+            synchronized (DomainDeliveryScheduler.this) {
+                DomainQueue queue = domains.get(domain);
+                if (queue == null) {
+                    return;
+                }
+                queue.starting--;
+                delivery = queue.fresh.poll();
+                if (delivery == null) {
+                    delivery = queue.retries.poll();
+                }
+                if (delivery == null) {
+                    return;
+                }
+                queue.active++;
+            }
+
+            boolean success = false;
+            try {
+                success = delivery.deliver();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error during remote delivery to " + domain, e);
+            } finally {
+                capacity.release();
+                completed(success);
+            }
+        }
+
+        private void completed(boolean success) {
+            List<Delivery> deferred = null;
+            int runnable = 0;
+            synchronized (DomainDeliveryScheduler.this) {
+                DomainQueue queue = domains.get(domain);
+                if (queue == null) {
+                    return;
+                }
+                queue.active--;
+                if (success) {
+                    queue.failures = 0;
+                    queue.openUntil = 0;
+                } else if (++queue.failures >= failureThreshold) {
+                    queue.openUntil = System.currentTimeMillis() + openCircuitDelay;
+                    logger.info("Open circuit for domain " + domain + " after " + queue.failures + " failed deliveries");
+                    deferred = drainIfOpen(queue);
+                }
+                if (queue.isEmpty()) {
+                    // The queue of an open circuit is kept until purgeIdle() finds it expired
+                    if (queue.isIdle(System.currentTimeMillis())) {
+                        domains.remove(domain);
+                    }
+                } else {
+                    runnable = startable(queue);
+                }
+            }
+            defer(deferred, domain);
+            start(domain, runnable);
+        }
+    }
+
+    private static final class DomainQueue {
+        private final LinkedList<Delivery> fresh = new LinkedList<Delivery>();
+        private final LinkedList<Delivery> retries = new LinkedList<Delivery>();
+        private int active;
+        private int starting;
+        private int failures;
+        private long openUntil;
+
+        private boolean isEmpty() {
+            return active == 0 && starting == 0 && fresh.isEmpty() && retries.isEmpty();
+        }
+
+        private boolean isIdle(long now) {
+            return isEmpty() && openUntil <= now;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets.remoteDelivery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.api.MailExchanger;
+import org.apache.james.dnsservice.api.MailExchangerLookup;
+import org.apache.james.dnsservice.api.TemporaryResolutionException;
+import org.apache.james.dnsservice.library.MXHostAddressIterator;
+import org.apache.mailet.HostAddress;
+import org.slf4j.Logger;
+
+/**
+ * Cache of the mail servers of destination domains, which also tracks the
+ * health of each mail server.
+ * <p>
+ * The MX records of a domain are kept for the configured time, or less if
+ * their TTL is shorter. This needs a {@link DNSService} which also implements
+ * {@link MailExchangerLookup}; others are asked on every use. Mail servers of
+ * equal preference are shuffled again on every use, so the load is spread
+ * over them. The addresses of a mail server are only resolved once it is
+ * about to be tried.
+ * <p>
+ * Every delivery attempt reports whether the host could be reached, and the
+ * mail servers are ordered accordingly: hosts which failed since their last
+ * success are tried after all others, the ones with the fewest failures
+ * first. Otherwise the order of the MX records is kept.
+ */
+@SuppressWarnings("deprecation")
+public class OutboundRouteCache extends StandardMBean implements OutboundRouteCacheMBean {
+
+    /** Forget the health of a host which was not used for one day */
+    private static final long HEALTH_EXPIRY = 24 * 60 * 60 * 1000L;
+
+    private final DNSService dnsServer;
+    private final long cacheTime;
+    private final Logger logger;
+
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+    private final ConcurrentMap<String, HostHealth> health = new ConcurrentHashMap<String, HostHealth>();
+    private final ConcurrentMap<String, HostHealth> hostNameHealth = new ConcurrentHashMap<String, HostHealth>();
+
+    private static final Comparator<Candidate<?>> BY_FAILURES = new Comparator<Candidate<?>>() {
+        public int compare(Candidate<?> a, Candidate<?> b) {
+            return a.failures < b.failures ? -1 : (a.failures == b.failures ? 0 : 1);
+        }
+    };
+
+    /**
+     * @param dnsServer
+     *            The DNSService used to resolve the mail servers
+     * @param cacheTime
+     *            The maximal time in ms the MX records of a domain are
+     *            cached. 0 disables the cache.
+     * @param logger
+     *            The logger
+     */
+    public OutboundRouteCache(DNSService dnsServer, long cacheTime, Logger logger) throws NotCompliantMBeanException {
+        super(OutboundRouteCacheMBean.class);
+        this.dnsServer = dnsServer;
+        this.cacheTime = cacheTime;
+        this.logger = logger;
+    }
+
+    /**
+     * Return the addresses of the mail servers of the given domain, ordered by
+     * their health. The addresses of each mail server are resolved when the
+     * iterator reaches it.
+     * 
+     * @param domain
+     *            The destination domain
+     * @return addresses
+     * @throws TemporaryResolutionException
+     *             on temporary DNS problems
+     */
+    public Iterator<HostAddress> getHostAddresses(String domain) throws TemporaryResolutionException {
+        return new ResolvingIterator(orderHostNamesByHealth(getMailServers(domain)).iterator());
+    }
+
+    /**
+     * Return the host names of the mail servers of the given domain, in MX
+     * order
+     */
+    private List<String> getMailServers(String domain) throws TemporaryResolutionException {
+        if (!(dnsServer instanceof MailExchangerLookup)) {
+            return new ArrayList<String>(dnsServer.findMXRecords(domain));
+        }
+        long now = System.currentTimeMillis();
+        Route route = routes.get(domain);
+        if (route == null || route.expires <= now) {
+            List<MailExchanger> exchangers = ((MailExchangerLookup) dnsServer).findMailExchangers(domain);
+            long expires = now + getCacheTime(exchangers);
+            if (exchangers.isEmpty() || expires <= now) {
+                // Do not cache missing entries, the domain may be fixed soon
+                routes.remove(domain);
+                return shuffle(exchangers);
+            }
+            route = new Route(exchangers, expires);
+            routes.put(domain, route);
+            expire(now);
+        }
+        return shuffle(route.exchangers);
+    }
+
+    private long getCacheTime(List<MailExchanger> exchangers) {
+        long time = cacheTime;
+        for (MailExchanger exchanger : exchangers) {
+            if (exchanger.getTTL() != MailExchanger.UNKNOWN_TTL) {
+                time = Math.min(time, exchanger.getTTL());
+            }
+        }
+        return time;
+    }
+
+    /**
+     * Return the host names of the given mail servers, shuffling the ones of
+     * equal preference
+     */
+    private List<String> shuffle(List<MailExchanger> exchangers) {
+        List<String> hostNames = new ArrayList<String>(exchangers.size());
+        List<String> samePreference = new ArrayList<String>();
+        for (int i = 0; i < exchangers.size(); i++) {
+            samePreference.add(exchangers.get(i).getHostName());
+            if (i + 1 == exchangers.size() || exchangers.get(i + 1).getPreference() != exchangers.get(i).getPreference()) {
+                Collections.shuffle(samePreference);
+                hostNames.addAll(samePreference);
+                samePreference.clear();
+            }
+        }
+        return hostNames;
+    }
+
+    private List<String> orderHostNamesByHealth(List<String> hostNames) {
+        List<Candidate<String>> candidates = new ArrayList<Candidate<String>>(hostNames.size());
+        for (String hostName : hostNames) {
+            HostHealth hostHealth = hostNameHealth.get(stripPort(hostName));
+            candidates.add(new Candidate<String>(hostName, hostHealth == null ? 0 : hostHealth.consecutiveFailures));
+        }
+        // The sort is stable, so hosts without failures keep the MX order
+        Collections.sort(candidates, BY_FAILURES);
+        List<String> ordered = new ArrayList<String>(candidates.size());
+        for (Candidate<String> candidate : candidates) {
+            ordered.add(candidate.value);
+        }
+        return ordered;
+    }
+
+    private static String stripPort(String hostName) {
+        int idx = hostName.indexOf(':');
+        return idx > 0 ? hostName.substring(0, idx) : hostName;
+    }
+
+    /**
+     * Order the given addresses by their health
+     * 
+     * @param addresses
+     *            The addresses in the preferred order
+     * @return addresses
+     */
+    public Iterator<HostAddress> orderByHealth(Iterator<HostAddress> addresses) {
+        // Take a snapshot of the failures, as they may change while sorting
+        List<Candidate<HostAddress>> candidates = new ArrayList<Candidate<HostAddress>>();
+        while (addresses.hasNext()) {
+            HostAddress address = addresses.next();
+            candidates.add(new Candidate<HostAddress>(address, getConsecutiveFailures(address)));
+        }
+        // The sort is stable, so hosts without failures keep the MX order
+        Collections.sort(candidates, BY_FAILURES);
+        List<HostAddress> ordered = new ArrayList<HostAddress>(candidates.size());
+        for (Candidate<HostAddress> candidate : candidates) {
+            ordered.add(candidate.value);
+        }
+        return ordered.iterator();
+    }
+
+    /**
+     * Report a successful connection
+     * 
+     * @param address
+     *            The host
+     * @param time
+     *            The time in ms the delivery took
+     */
+    public void recordSuccess(HostAddress address, long time) {
+        getHealth(health, address.toString(), address).success(time);
+        getHealth(hostNameHealth, address.getHostName(), address).success(time);
+    }
+
+    /**
+     * Report a failed connection
+     * 
+     * @param address
+     *            The host
+     */
+    public void recordFailure(HostAddress address) {
+        HostHealth hostHealth = getHealth(health, address.toString(), address);
+        hostHealth.failure();
+        getHealth(hostNameHealth, address.getHostName(), address).failure();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Host " + address.getHostName() + " at " + address.getHost() + " failed " + hostHealth.consecutiveFailures + " times in a row");
+        }
+    }
+
+    private void expire(long now) {
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            if (entry.getValue().expires <= now) {
+                routes.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        expire(health, now);
+        expire(hostNameHealth, now);
+    }
+
+    private void expire(ConcurrentMap<String, HostHealth> healthMap, long now) {
+        for (Map.Entry<String, HostHealth> entry : healthMap.entrySet()) {
+            if (entry.getValue().lastUsed + HEALTH_EXPIRY <= now) {
+                healthMap.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private int getConsecutiveFailures(HostAddress address) {
+        HostHealth hostHealth = health.get(address.toString());
+        return hostHealth == null ? 0 : hostHealth.consecutiveFailures;
+    }
+
+    private HostHealth getHealth(ConcurrentMap<String, HostHealth> healthMap, String key, HostAddress address) {
+        HostHealth hostHealth = healthMap.get(key);
+        if (hostHealth == null) {
+            HostHealth newHealth = new HostHealth(address.getHostName());
+            hostHealth = healthMap.putIfAbsent(key, newHealth);
+            if (hostHealth == null) {
+                hostHealth = newHealth;
+            }
+        }
+        return hostHealth;
+    }
+
+    public int getCachedDomainCount() {
+        return routes.size();
+    }
+
+    public String[] getRoutes(String domain) {
+        Route route = routes.get(domain);
+        if (route == null) {
+            return new String[0];
+        }
+        List<String> result = orderHostNamesByHealth(shuffle(route.exchangers));
+        return result.toArray(new String[result.size()]);
+    }
+
+    public String[] getHostStatistics() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, HostHealth> entry : health.entrySet()) {
+            HostHealth hostHealth = entry.getValue();
+            synchronized (hostHealth) {
+                result.add(hostHealth.hostName + " " + entry.getKey() + " successes=" + hostHealth.successes + " failures=" + hostHealth.failures + " consecutiveFailures=" + hostHealth.consecutiveFailures + " averageTime=" + hostHealth.averageTime);
+            }
+        }
+        Collections.sort(result);
+        return result.toArray(new String[result.size()]);
+    }
+
+    public void clearRoutes() {
+        routes.clear();
+    }
+
+    public void resetHostStatistics() {
+        health.clear();
+        hostNameHealth.clear();
+    }
+
+    /**
+     * Resolves the addresses of each mail server when it is reached
+     */
+    private final class ResolvingIterator implements Iterator<HostAddress> {
+        private final Iterator<String> hostNames;
+        private Iterator<HostAddress> addresses = Collections.<HostAddress>emptyList().iterator();
+
+        private ResolvingIterator(Iterator<String> hostNames) {
+            this.hostNames = hostNames;
+        }
+
+        public boolean hasNext() {
+            while (!addresses.hasNext() && hostNames.hasNext()) {
+                Iterator<String> hostName = Collections.singletonList(hostNames.next()).iterator();
+                addresses = orderByHealth(new MXHostAddressIterator(hostName, dnsServer, false, logger));
+            }
+            return addresses.hasNext();
+        }
+
+        public HostAddress next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return addresses.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class Route {
+        private final List<MailExchanger> exchangers;
+        private final long expires;
+
+        private Route(List<MailExchanger> exchangers, long expires) {
+            this.exchangers = exchangers;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Candidate<T> {
+        private final T value;
+        private final int failures;
+
+        private Candidate(T value, int failures) {
+            this.value = value;
+            this.failures = failures;
+        }
+    }
+
+    private static final class HostHealth {
+        private final String hostName;
+        private long successes;
+        private long failures;
+        private volatile int consecutiveFailures;
+        private long averageTime;
+        private volatile long lastUsed;
+
+        private HostHealth(String hostName) {
+            this.hostName = hostName;
+        }
+
+        private synchronized void success(long time) {
+            successes++;
+            consecutiveFailures = 0;
+            // moving average, weighting the last delivery with 1/8
+            averageTime = successes == 1 ? time : averageTime + (time - averageTime) / 8;
+            lastUsed = System.currentTimeMillis();
+        }
+
+        private synchronized void failure() {
+            failures++;
+            consecutiveFailures++;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+}
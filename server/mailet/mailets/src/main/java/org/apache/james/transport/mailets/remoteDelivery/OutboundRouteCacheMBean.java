@@ -0,0 +1,61 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets.remoteDelivery;
+
+/**
+ * JMX Bean which shows the outbound routes and the health of the remote hosts
+ * known by RemoteDelivery
+ */
+public interface OutboundRouteCacheMBean {
+
+    /**
+     * Return the number of domains whose mail servers are cached
+     * 
+     * @return count
+     */
+    int getCachedDomainCount();
+
+    /**
+     * Return the cached mail servers of the given domain, in the order they
+     * would be tried now
+     * 
+     * @param domain
+     * @return hosts
+     */
+    String[] getRoutes(String domain);
+
+    /**
+     * Return the statistics of all known hosts. Each entry lists the host,
+     * the count of successful and failed connections, the count of failures
+     * since the last success and the average response time in ms.
+     * 
+     * @return statistics
+     */
+    String[] getHostStatistics();
+
+    /**
+     * Remove all cached routes, so they are resolved again on next use
+     */
+    void clearRoutes();
+
+    /**
+     * Forget the health of all hosts
+     */
+    void resetHostStatistics();
+}
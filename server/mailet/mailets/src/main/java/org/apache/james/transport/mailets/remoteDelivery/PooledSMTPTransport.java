@@ -0,0 +1,156 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets.remoteDelivery;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import org.apache.geronimo.javamail.transport.smtp.SMTPConnection;
+import org.apache.geronimo.javamail.transport.smtp.SMTPTransport;
+import org.apache.geronimo.javamail.util.ProtocolProperties;
+
+/**
+ * {@link SMTPTransport} which can be kept open and reused for several
+ * messages by the {@link SMTPTransportPool}.
+ * <p>
+ * Each instance owns its {@link Session}, so the envelope sender can be set per
+ * message without affecting other transports.
+ */
+public class PooledSMTPTransport extends SMTPTransport {
+
+    public static final String NOOP = "NOOP";
+    public static final String RSET = "RSET";
+
+    private final String key;
+    private int sentMessages;
+    private long lastUsed;
+    private boolean resetNeeded;
+
+    public PooledSMTPTransport(Session session, URLName url, String key) {
+        super(session, url);
+        this.key = key;
+        // replace the connection created by SMTPTransport, to be able to probe it
+        this.connection = new ProbingSMTPConnection(props);
+    }
+
+    /**
+     * Return the key of the destination this transport is connected to
+     * 
+     * @return key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Set the address used in the MAIL FROM command of the next message
+     * 
+     * @param from
+     *            The sender or <code>&lt;&gt;</code> for the null sender
+     */
+    public void setEnvelopeFrom(String from) {
+        session.getProperties().put("mail.smtp.from", from);
+    }
+
+    /**
+     * Check that the server still answers on this connection by sending the
+     * given command, {@link #NOOP} or {@link #RSET}. The connection is closed
+     * if the server does not answer with 250.
+     * 
+     * @param command
+     *            The command to send
+     * @return <code>true</code> if the connection can be used
+     */
+    public boolean probe(String command) {
+        return ((ProbingSMTPConnection) connection).probe(command);
+    }
+
+    /**
+     * Return the number of messages sent with this transport
+     * 
+     * @return sentMessages
+     */
+    public int getSentMessages() {
+        return sentMessages;
+    }
+
+    /**
+     * Return the time this transport was last returned to the pool
+     * 
+     * @return lastUsed
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Return <code>true</code> if the last mail transaction may not have
+     * completed and must be aborted with RSET before the next one
+     * 
+     * @return resetNeeded
+     */
+    public boolean isResetNeeded() {
+        return resetNeeded;
+    }
+
+    void markUsed(boolean sent) {
+        if (sent) {
+            sentMessages++;
+        }
+        resetNeeded = !sent;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    void markReset() {
+        resetNeeded = false;
+    }
+
+    /**
+     * {@link SMTPConnection} which is able to send a command outside of a mail
+     * transaction and check its reply
+     */
+    private static final class ProbingSMTPConnection extends SMTPConnection {
+
+        private ProbingSMTPConnection(ProtocolProperties props) {
+            super(props);
+        }
+
+        private boolean probe(String command) {
+            if (socket == null || socket.isClosed()) {
+                return false;
+            }
+            try {
+                sendLine(command);
+                String line = receiveLine();
+                // skip the lines of a multiline reply
+                while (line != null && line.length() > 3 && line.charAt(3) == '-') {
+                    line = receiveLine();
+                }
+                if (line != null && line.startsWith("250")) {
+                    return true;
+                }
+            } catch (MessagingException e) {
+                // the connection is broken
+            }
+            closeServerConnection();
+            return false;
+        }
+    }
+}
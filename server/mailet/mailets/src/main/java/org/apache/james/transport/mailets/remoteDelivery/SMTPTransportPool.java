@@ -0,0 +1,332 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets.remoteDelivery;
+
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.apache.mailet.HostAddress;
+import org.slf4j.Logger;
+
+/**
+ * Pool of connected {@link PooledSMTPTransport}s, keyed by destination host
+ * and port.
+ * <p>
+ * Before a transport is borrowed again its connection is probed: with RSET if
+ * its last mail transaction did not complete, with NOOP if it was idle for
+ * more than <code>probeIdleTime</code> ms. A transport returned moments ago is
+ * handed out without a round trip. The number of connections per destination
+ * is capped, idle transports are closed after the configured idle time and
+ * after they sent the configured number of messages.
+ */
+public class SMTPTransportPool {
+
+    /**
+     * Default time in ms after which an idle connection is probed with NOOP
+     * before it is reused
+     */
+    public static final long DEFAULT_PROBE_IDLE_TIME = 1000;
+
+    private final Properties properties;
+    private final SessionFactory sessionFactory;
+    private final String authUser;
+    private final String authPass;
+    private final int maxConnectionsPerHost;
+    private final int maxMessagesPerConnection;
+    private final long idleTimeout;
+    private final long acquireTimeout;
+    private final long probeIdleTime;
+    private final Logger logger;
+
+    private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    /**
+     * @param properties
+     *            The JavaMail properties used for all transports
+     * @param sessionFactory
+     *            The factory of the JavaMail {@link Session} of each transport
+     * @param authUser
+     *            The user to authenticate with or <code>null</code>
+     * @param authPass
+     *            The password to authenticate with
+     * @param maxConnectionsPerHost
+     *            The maximal number of open connections per destination
+     * @param maxMessagesPerConnection
+     *            The number of messages after which a connection is closed
+     * @param idleTimeout
+     *            The time in ms after which an unused connection is closed
+     * @param acquireTimeout
+     *            The time in ms to wait for a connection if the limit of a
+     *            destination is reached
+     * @param probeIdleTime
+     *            The time in ms after which an idle connection is probed
+     *            with NOOP before it is reused
+     * @param logger
+     *            The logger
+     */
+    public SMTPTransportPool(Properties properties, SessionFactory sessionFactory, String authUser, String authPass, int maxConnectionsPerHost, int maxMessagesPerConnection, long idleTimeout, long acquireTimeout, long probeIdleTime, Logger logger) {
+        this.properties = properties;
+        this.sessionFactory = sessionFactory;
+        this.authUser = authUser;
+        this.authPass = authPass;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+        this.idleTimeout = idleTimeout;
+        this.acquireTimeout = acquireTimeout;
+        this.probeIdleTime = probeIdleTime;
+        this.logger = logger;
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Remote delivery connection evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return a connected transport for the given address. An idle transport is
+     * reused if possible, otherwise a new connection is opened.
+     * 
+     * @param address
+     *            The address of the destination
+     * @return transport
+     * @throws MessagingException
+     *             if no connection could be opened
+     */
+    public PooledSMTPTransport borrow(HostAddress address) throws MessagingException {
+        if (closed) {
+            throw new MessagingException("Connection pool is closed");
+        }
+        String key = address.toString();
+        Destination destination = getDestination(key);
+
+        PooledSMTPTransport transport = pollIdle(destination, 0);
+        if (transport != null) {
+            return transport;
+        }
+        if (!destination.permits.tryAcquire()) {
+            // Wait for another thread to return a connection to the same destination
+            transport = pollIdle(destination, acquireTimeout);
+            if (transport != null) {
+                return transport;
+            }
+            if (!destination.permits.tryAcquire()) {
+                throw new MessagingException("Too many open connections to " + address.getHostName() + " at " + address.getHost());
+            }
+        }
+
+        try {
+            return connect(address, key);
+        } catch (MessagingException e) {
+            destination.permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            destination.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a new connection to the given address
+     * 
+     * @param address
+     *            The address of the destination
+     * @param key
+     *            The key of the destination
+     * @return transport
+     * @throws MessagingException
+     *             if no connection could be opened
+     */
+    protected PooledSMTPTransport connect(HostAddress address, String key) throws MessagingException {
+        PooledSMTPTransport transport = new PooledSMTPTransport(sessionFactory.newSession(copyProperties()), address, key);
+        String localHost = properties.getProperty("mail.smtp.localhost");
+        if (localHost != null) {
+            transport.setLocalHost(localHost);
+        }
+        if (authUser != null) {
+            transport.connect(address.getHostName(), authUser, authPass);
+        } else {
+            transport.connect();
+        }
+        return transport;
+    }
+
+    /**
+     * Return a transport to the pool after a mail transaction
+     * 
+     * @param transport
+     *            The transport
+     * @param sent
+     *            <code>true</code> if the message was sent, <code>false</code>
+     *            if the transaction may still be pending on the server
+     */
+    public void release(PooledSMTPTransport transport, boolean sent) {
+        transport.markUsed(sent);
+        Destination destination = getDestination(transport.getKey());
+        if (closed || transport.getSentMessages() >= maxMessagesPerConnection) {
+            discard(destination, transport);
+        } else {
+            destination.idle.offerFirst(transport);
+            if (closed && destination.idle.remove(transport)) {
+                discard(destination, transport);
+            }
+        }
+    }
+
+    /**
+     * Close a transport which is in an unknown state, for example after an I/O
+     * error during the mail transaction
+     * 
+     * @param transport
+     *            The transport
+     */
+    public void invalidate(PooledSMTPTransport transport) {
+        discard(getDestination(transport.getKey()), transport);
+    }
+
+    /**
+     * Close all idle transports and stop pooling
+     */
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Destination destination : destinations.values()) {
+            PooledSMTPTransport transport;
+            while ((transport = destination.idle.pollFirst()) != null) {
+                discard(destination, transport);
+            }
+        }
+    }
+
+    private PooledSMTPTransport pollIdle(Destination destination, long timeout) throws MessagingException {
+        PooledSMTPTransport transport;
+        try {
+            while ((transport = destination.idle.pollFirst(timeout, TimeUnit.MILLISECONDS)) != null) {
+                if (isUsable(transport)) {
+                    return transport;
+                }
+                logger.debug("Discard broken pooled connection " + transport.getKey());
+                discard(destination, transport);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a connection", e);
+        }
+        return null;
+    }
+
+    private boolean isUsable(PooledSMTPTransport transport) {
+        if (transport.isResetNeeded()) {
+            if (!transport.probe(PooledSMTPTransport.RSET)) {
+                return false;
+            }
+            transport.markReset();
+            return true;
+        }
+        if (System.currentTimeMillis() - transport.getLastUsed() < probeIdleTime) {
+            // returned moments ago, assume the connection is still open
+            return true;
+        }
+        return transport.probe(PooledSMTPTransport.NOOP);
+    }
+
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Destination destination : destinations.values()) {
+            Iterator<PooledSMTPTransport> transports = destination.idle.descendingIterator();
+            while (transports.hasNext()) {
+                PooledSMTPTransport transport = transports.next();
+                if (now - transport.getLastUsed() > idleTimeout && destination.idle.remove(transport)) {
+                    discard(destination, transport);
+                }
+            }
+        }
+    }
+
+    private void discard(Destination destination, PooledSMTPTransport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            // the server may have already closed the connection
+        } finally {
+            destination.permits.release();
+        }
+    }
+
+    private Properties copyProperties() {
+        Properties props = new Properties();
+        props.putAll(properties);
+        return props;
+    }
+
+    private Destination getDestination(String key) {
+        Destination destination = destinations.get(key);
+        if (destination == null) {
+            Destination newDestination = new Destination(maxConnectionsPerHost);
+            destination = destinations.putIfAbsent(key, newDestination);
+            if (destination == null) {
+                destination = newDestination;
+            }
+        }
+        return destination;
+    }
+
+    /**
+     * Create the JavaMail {@link Session} of a new transport
+     */
+    public interface SessionFactory {
+
+        /**
+         * @param properties
+         *            A copy of the JavaMail properties of the pool
+         * @return session
+         */
+        Session newSession(Properties properties);
+    }
+
+    private static final class Destination {
+        private final Semaphore permits;
+        private final LinkedBlockingDeque<PooledSMTPTransport> idle = new LinkedBlockingDeque<PooledSMTPTransport>();
+
+        private Destination(int maxConnections) {
+            this.permits = new Semaphore(maxConnections);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.transport.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.james.sieverepository.api.StampedSieveRepository;
+import org.apache.james.sieverepository.api.exception.ScriptNotFoundException;
+import org.apache.jsieve.ConfigurationManager;
+import org.apache.jsieve.parser.generated.Node;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class SieveScriptCacheTest {
+
+    private static final String USER = "user";
+    private static final String SCRIPT = "keep;";
+
+    private StampedSieveRepository sieveRepository;
+    private SieveScriptCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        sieveRepository = mock(StampedSieveRepository.class);
+        when(sieveRepository.getActive(USER)).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable {
+                return new ByteArrayInputStream(SCRIPT.getBytes("UTF-8"));
+            }
+        });
+        cache = new SieveScriptCache(sieveRepository, new ConfigurationManager().build(), 2);
+    }
+
+    @Test
+    public void getShouldParseScriptOnlyOnceWhenStampDoesNotChange() throws Exception {
+        when(sieveRepository.getActiveStamp(USER)).thenReturn("1");
+
+        Node first = cache.get(USER);
+        Node second = cache.get(USER);
+
+        assertThat(second).isSameAs(first);
+        verify(sieveRepository, times(1)).getActive(USER);
+    }
+
+    @Test
+    public void getShouldParseScriptAgainWhenStampChanges() throws Exception {
+        when(sieveRepository.getActiveStamp(USER)).thenReturn("1", "2");
+
+        Node first = cache.get(USER);
+        Node second = cache.get(USER);
+
+        assertThat(second).isNotSameAs(first);
+        verify(sieveRepository, times(2)).getActive(USER);
+    }
+
+    @Test(expected = ScriptNotFoundException.class)
+    public void getShouldThrowWhenNoActiveScript() throws Exception {
+        when(sieveRepository.getActiveStamp(USER)).thenThrow(new ScriptNotFoundException());
+
+        cache.get(USER);
+    }
+
+    @Test
+    public void getShouldEvictLeastRecentlyUsedScripts() throws Exception {
+        for (String user : new String[] { "a", "b", "c" }) {
+            when(sieveRepository.getActiveStamp(user)).thenReturn("1");
+            when(sieveRepository.getActive(user)).thenReturn(new ByteArrayInputStream(SCRIPT.getBytes("UTF-8")));
+        }
+
+        cache.get("a");
+        cache.get("b");
+        cache.get("a");
+        cache.get("c");
+
+        assertThat(cache.size()).isEqualTo(2);
+        cache.get("a");
+        verify(sieveRepository, times(1)).getActive("a");
+    }
+
+}
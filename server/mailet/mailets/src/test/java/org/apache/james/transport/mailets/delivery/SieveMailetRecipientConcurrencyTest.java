@@ -0,0 +1,165 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.transport.mailets.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.sieverepository.api.SieveRepository;
+import org.apache.james.transport.mailets.SieveMailet;
+import org.apache.james.user.api.UsersRepository;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailContext;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SieveMailetRecipientConcurrencyTest {
+
+    private static final int RECIPIENT_COUNT = 20;
+    private static final MailAddress FAILING_RECIPIENT;
+
+    static {
+        try {
+            FAILING_RECIPIENT = new MailAddress("fail@domain.com");
+        } catch (MessagingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Map<MailAddress, String[]> stored;
+    private Set<String> threads;
+    private FakeMailContext mailContext;
+    private SieveMailet sieveMailet;
+
+    @Before
+    public void setUp() throws Exception {
+        stored = new ConcurrentHashMap<MailAddress, String[]>();
+        threads = new CopyOnWriteArraySet<String>();
+        mailContext = new FakeMailContext();
+        sieveMailet = new SieveMailet(mock(UsersRepository.class), mock(MailboxManager.class), mock(SieveRepository.class), "INBOX") {
+            @Override
+            public void storeMail(MailAddress sender, MailAddress recipient, Mail mail) throws MessagingException {
+                if (recipient.equals(FAILING_RECIPIENT)) {
+                    throw new MessagingException("Unable to store mail");
+                }
+                stored.put(recipient, mail.getMessage().getHeader("Delivered-To"));
+                threads.add(Thread.currentThread().getName());
+            }
+        };
+        Properties properties = new Properties();
+        properties.setProperty("addDeliveryHeader", "Delivered-To");
+        properties.setProperty("recipientConcurrency", "4");
+        sieveMailet.init(new FakeMailetConfig("sieveMailet", mailContext, properties));
+    }
+
+    @After
+    public void tearDown() {
+        sieveMailet.destroy();
+    }
+
+    private Mail createMail(List<MailAddress> recipients) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        message.setSubject("Subject");
+        message.setText("content");
+        message.saveChanges();
+        FakeMail mail = new FakeMail(message);
+        mail.setName("name");
+        mail.setSender(new MailAddress("sender@any.com"));
+        mail.setState(Mail.DEFAULT);
+        mail.setRecipients(recipients);
+        return mail;
+    }
+
+    private List<MailAddress> createRecipients() throws MessagingException {
+        List<MailAddress> recipients = new ArrayList<MailAddress>();
+        for (int i = 0; i < RECIPIENT_COUNT; i++) {
+            recipients.add(new MailAddress("user" + i + "@domain.com"));
+        }
+        return recipients;
+    }
+
+    @Test
+    public void serviceShouldDeliverToAllRecipientsWithTheirOwnDeliveryHeader() throws Exception {
+        List<MailAddress> recipients = createRecipients();
+        Mail mail = createMail(recipients);
+
+        sieveMailet.service(mail);
+
+        assertThat(stored.keySet()).containsOnlyElementsOf(recipients).hasSize(RECIPIENT_COUNT);
+        for (Map.Entry<MailAddress, String[]> entry : stored.entrySet()) {
+            assertThat(entry.getValue()).containsExactly(entry.getKey().toString());
+        }
+        assertThat(mailContext.getSentMails()).isEmpty();
+        assertThat(mail.getState()).isEqualTo(Mail.GHOST);
+    }
+
+    @Test
+    public void serviceShouldSendFailedRecipientsToErrorInOneMail() throws Exception {
+        List<MailAddress> recipients = createRecipients();
+        recipients.add(7, FAILING_RECIPIENT);
+        Mail mail = createMail(recipients);
+
+        sieveMailet.service(mail);
+
+        assertThat(stored).hasSize(RECIPIENT_COUNT);
+        assertThat(mailContext.getSentMails()).hasSize(1);
+        assertThat(mailContext.getSentMails().get(0).getRecipients()).containsExactly(FAILING_RECIPIENT);
+    }
+
+    @Test
+    public void serviceShouldUseAtMostRecipientConcurrencyThreads() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            sieveMailet.service(createMail(createRecipients()));
+        }
+
+        assertThat(threads.size()).isLessThanOrEqualTo(4);
+    }
+
+    @Test
+    public void serviceShouldKeepOriginalDeliveryHeaders() throws Exception {
+        List<MailAddress> recipients = createRecipients();
+        Mail mail = createMail(recipients);
+        mail.getMessage().addHeader("Delivered-To", "original@domain.com");
+
+        sieveMailet.service(mail);
+
+        for (Map.Entry<MailAddress, String[]> entry : stored.entrySet()) {
+            assertThat(entry.getValue()).containsExactly("original@domain.com", entry.getKey().toString());
+        }
+    }
+
+}
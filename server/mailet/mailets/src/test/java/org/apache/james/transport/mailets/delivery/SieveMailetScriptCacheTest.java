@@ -0,0 +1,118 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.transport.mailets.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.sieverepository.api.StampedSieveRepository;
+import org.apache.james.transport.mailets.SieveMailet;
+import org.apache.james.user.api.UsersRepository;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailContext;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Lists;
+
+public class SieveMailetScriptCacheTest {
+
+    private static final String USER = "user@domain.com";
+
+    private StampedSieveRepository sieveRepository;
+    private List<MailAddress> notified;
+    private SieveMailet sieveMailet;
+
+    @Before
+    public void setUp() throws Exception {
+        UsersRepository usersRepository = mock(UsersRepository.class);
+        when(usersRepository.supportVirtualHosting()).thenReturn(true);
+        sieveRepository = mock(StampedSieveRepository.class);
+        when(sieveRepository.getActiveStamp(USER)).thenReturn("1");
+        notified = new CopyOnWriteArrayList<MailAddress>();
+        sieveMailet = new SieveMailet(usersRepository, mock(MailboxManager.class), sieveRepository, "INBOX") {
+            @Override
+            protected void handleFailure(MailAddress recipient, Mail aMail, Exception ex) {
+                notified.add(recipient);
+            }
+        };
+        Properties properties = new Properties();
+        properties.setProperty("sieveScriptCacheSize", "10");
+        sieveMailet.init(new FakeMailetConfig("sieveMailet", new FakeMailContext(), properties));
+    }
+
+    @Test
+    public void brokenScriptShouldNotifyTheRecipient() throws Exception {
+        activeScript("if foo {");
+
+        sieveMailet.service(createMail());
+
+        assertThat(notified).containsExactly(new MailAddress(USER));
+    }
+
+    @Test
+    public void failingScriptShouldNotifyTheRecipient() throws Exception {
+        activeScript("require \"unknown\";");
+
+        sieveMailet.service(createMail());
+
+        assertThat(notified).containsExactly(new MailAddress(USER));
+    }
+
+    private void activeScript(final String script) throws Exception {
+        when(sieveRepository.getActive(USER)).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable {
+                return new ByteArrayInputStream(script.getBytes("UTF-8"));
+            }
+        });
+    }
+
+    private Mail createMail() throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        message.setSubject("Subject");
+        message.setText("content");
+        message.saveChanges();
+        FakeMail mail = new FakeMail(message);
+        mail.setName("name");
+        mail.setSender(new MailAddress("sender@any.com"));
+        mail.setState(Mail.DEFAULT);
+        mail.setRecipients(Lists.newArrayList(new MailAddress(USER)));
+        return mail;
+    }
+
+}
@@ -0,0 +1,215 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets.remoteDelivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class DomainDeliverySchedulerTest {
+
+    private DomainDeliveryScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void slowDomainShouldNotBlockOtherDomains() throws Exception {
+        scheduler = new DomainDeliveryScheduler(3, 1, 5, 60000, 100, LoggerFactory.getLogger(getClass()));
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger slowStarted = new AtomicInteger();
+        CountDownLatch firstSlowStarted = new CountDownLatch(1);
+        CountDownLatch fastDelivered = new CountDownLatch(2);
+
+        for (int i = 0; i < 3; i++) {
+            schedule("slow.com", false, new BlockingDelivery(slowStarted, firstSlowStarted, release));
+        }
+        schedule("fast.com", false, new CountingDelivery(fastDelivered, true));
+        schedule("fast.com", false, new CountingDelivery(fastDelivered, true));
+
+        assertThat(fastDelivered.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(firstSlowStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(slowStarted.get()).isEqualTo(1);
+        release.countDown();
+    }
+
+    @Test
+    public void freshMailShouldBeDeliveredBeforeRetries() throws Exception {
+        scheduler = new DomainDeliveryScheduler(1, 1, 5, 60000, 100, LoggerFactory.getLogger(getClass()));
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch delivered = new CountDownLatch(3);
+        final List<String> order = new CopyOnWriteArrayList<String>();
+
+        schedule("domain.com", false, new BlockingDelivery(new AtomicInteger(), new CountDownLatch(1), release));
+        schedule("domain.com", true, new RecordingDelivery(order, "retry", delivered));
+        schedule("domain.com", false, new RecordingDelivery(order, "fresh", delivered));
+        schedule("domain.com", true, new RecordingDelivery(order, "retry", delivered));
+        release.countDown();
+
+        assertThat(delivered.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(order).containsExactly("fresh", "retry", "retry");
+    }
+
+    @Test
+    public void openCircuitShouldDeferDeliveries() throws Exception {
+        scheduler = new DomainDeliveryScheduler(1, 1, 2, 60000, 100, LoggerFactory.getLogger(getClass()));
+        CountDownLatch failed = new CountDownLatch(2);
+
+        schedule("down.com", false, new CountingDelivery(failed, false));
+        schedule("down.com", false, new CountingDelivery(failed, false));
+        assertThat(failed.await(5, TimeUnit.SECONDS)).isTrue();
+
+        CountingDelivery deferred = new CountingDelivery(new CountDownLatch(1), true);
+        schedule("down.com", false, deferred);
+
+        assertThat(deferred.deferLatch.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(deferred.delay).isGreaterThan(0);
+        assertThat(deferred.delivered.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void idleDomainsShouldBeForgotten() throws Exception {
+        scheduler = new DomainDeliveryScheduler(2, 1, 5, 60000, 100, LoggerFactory.getLogger(getClass()));
+        CountDownLatch delivered = new CountDownLatch(2);
+
+        schedule("up.com", false, new CountingDelivery(delivered, true));
+        schedule("flaky.com", false, new CountingDelivery(delivered, false));
+        assertThat(delivered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        awaitDomainCount(0);
+    }
+
+    @Test
+    public void domainWithAnOpenCircuitShouldBeForgottenOnceItExpired() throws Exception {
+        scheduler = new DomainDeliveryScheduler(1, 1, 1, 100, 100, LoggerFactory.getLogger(getClass()));
+        CountingDelivery failed = new CountingDelivery(new CountDownLatch(1), false);
+
+        schedule("down.com", false, failed);
+        assertThat(failed.delivered.await(5, TimeUnit.SECONDS)).isTrue();
+        awaitDomainCount(1);
+
+        Thread.sleep(200);
+        CountDownLatch delivered = new CountDownLatch(1);
+        schedule("up.com", false, new CountingDelivery(delivered, true));
+        assertThat(delivered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        awaitDomainCount(0);
+    }
+
+    private void awaitDomainCount(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getDomainCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(scheduler.getDomainCount()).isEqualTo(expected);
+    }
+
+    private void schedule(String domain, boolean retry, DomainDeliveryScheduler.Delivery delivery) throws InterruptedException {
+        scheduler.reserve();
+        scheduler.schedule(domain, retry, delivery);
+    }
+
+    private static class CountingDelivery implements DomainDeliveryScheduler.Delivery {
+        private final CountDownLatch delivered;
+        private final boolean result;
+        private final CountDownLatch deferLatch = new CountDownLatch(1);
+        private volatile long delay;
+
+        CountingDelivery(CountDownLatch delivered, boolean result) {
+            this.delivered = delivered;
+            this.result = result;
+        }
+
+        public boolean deliver() {
+            delivered.countDown();
+            return result;
+        }
+
+        public void defer(long delay) {
+            this.delay = delay;
+            deferLatch.countDown();
+        }
+
+        public void cancel() {
+        }
+    }
+
+    private static class BlockingDelivery implements DomainDeliveryScheduler.Delivery {
+        private final AtomicInteger started;
+        private final CountDownLatch startedLatch;
+        private final CountDownLatch release;
+
+        BlockingDelivery(AtomicInteger started, CountDownLatch startedLatch, CountDownLatch release) {
+            this.started = started;
+            this.startedLatch = startedLatch;
+            this.release = release;
+        }
+
+        public boolean deliver() {
+            started.incrementAndGet();
+            startedLatch.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        public void defer(long delay) {
+        }
+
+        public void cancel() {
+        }
+    }
+
+    private static class RecordingDelivery implements DomainDeliveryScheduler.Delivery {
+        private final List<String> order;
+        private final String name;
+        private final CountDownLatch delivered;
+
+        RecordingDelivery(List<String> order, String name, CountDownLatch delivered) {
+            this.order = order;
+            this.name = name;
+            this.delivered = delivered;
+        }
+
+        public boolean deliver() {
+            order.add(name);
+            delivered.countDown();
+            return true;
+        }
+
+        public void defer(long delay) {
+        }
+
+        public void cancel() {
+        }
+    }
+}
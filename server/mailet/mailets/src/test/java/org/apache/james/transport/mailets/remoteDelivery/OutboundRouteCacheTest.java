@@ -0,0 +1,160 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets.remoteDelivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.api.MailExchanger;
+import org.apache.james.dnsservice.api.MailExchangerLookup;
+import org.apache.mailet.HostAddress;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+@SuppressWarnings("deprecation")
+public class OutboundRouteCacheTest {
+
+    private DNSService dnsService;
+    private MailExchangerLookup mailExchangerLookup;
+    private OutboundRouteCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dnsService = mock(DNSService.class, withSettings().extraInterfaces(MailExchangerLookup.class));
+        mailExchangerLookup = (MailExchangerLookup) dnsService;
+        when(mailExchangerLookup.findMailExchangers("domain.com")).thenReturn(Arrays.asList(
+                new MailExchanger("mx1.domain.com", 10, MailExchanger.UNKNOWN_TTL),
+                new MailExchanger("mx2.domain.com", 20, MailExchanger.UNKNOWN_TTL)));
+        when(dnsService.getAllByName("mx1.domain.com")).thenReturn(new InetAddress[] {InetAddress.getByName("10.0.0.1")});
+        when(dnsService.getAllByName("mx2.domain.com")).thenReturn(new InetAddress[] {InetAddress.getByName("10.0.0.2")});
+        cache = new OutboundRouteCache(dnsService, 60000, LoggerFactory.getLogger(getClass()));
+    }
+
+    @Test
+    public void getHostAddressesShouldKeepMXOrder() throws Exception {
+        assertThat(hostNames(cache.getHostAddresses("domain.com"))).containsExactly("mx1.domain.com", "mx2.domain.com");
+    }
+
+    @Test
+    public void getHostAddressesShouldCacheResolvedHosts() throws Exception {
+        cache.getHostAddresses("domain.com");
+        cache.getHostAddresses("domain.com");
+
+        verify(mailExchangerLookup, times(1)).findMailExchangers("domain.com");
+        assertThat(cache.getCachedDomainCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void getHostAddressesShouldNotCacheLongerThanTheTTL() throws Exception {
+        when(mailExchangerLookup.findMailExchangers("domain.com")).thenReturn(Arrays.asList(
+                new MailExchanger("mx1.domain.com", 10, 0)));
+
+        cache.getHostAddresses("domain.com");
+        cache.getHostAddresses("domain.com");
+
+        verify(mailExchangerLookup, times(2)).findMailExchangers("domain.com");
+    }
+
+    @Test
+    public void getHostAddressesShouldShuffleHostsOfEqualPreferenceOnEachUse() throws Exception {
+        when(mailExchangerLookup.findMailExchangers("domain.com")).thenReturn(Arrays.asList(
+                new MailExchanger("mx1.domain.com", 10, MailExchanger.UNKNOWN_TTL),
+                new MailExchanger("mx2.domain.com", 10, MailExchanger.UNKNOWN_TTL)));
+
+        Set<String> firstHosts = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            firstHosts.add(cache.getHostAddresses("domain.com").next().getHostName());
+        }
+
+        assertThat(firstHosts).containsOnly("mx1.domain.com", "mx2.domain.com");
+        verify(mailExchangerLookup, times(1)).findMailExchangers("domain.com");
+    }
+
+    @Test
+    public void getHostAddressesShouldResolveHostsWhenReached() throws Exception {
+        cache.getHostAddresses("domain.com").next();
+
+        verify(dnsService).getAllByName("mx1.domain.com");
+        verify(dnsService, never()).getAllByName("mx2.domain.com");
+    }
+
+    @Test
+    public void getHostAddressesShouldAskAPlainDNSServiceOnEachUse() throws Exception {
+        DNSService plainDnsService = mock(DNSService.class);
+        when(plainDnsService.findMXRecords("domain.com")).thenReturn(Arrays.asList("mx1.domain.com", "mx2.domain.com"));
+        when(plainDnsService.getAllByName("mx1.domain.com")).thenReturn(new InetAddress[] {InetAddress.getByName("10.0.0.1")});
+        when(plainDnsService.getAllByName("mx2.domain.com")).thenReturn(new InetAddress[] {InetAddress.getByName("10.0.0.2")});
+        cache = new OutboundRouteCache(plainDnsService, 60000, LoggerFactory.getLogger(getClass()));
+
+        assertThat(hostNames(cache.getHostAddresses("domain.com"))).containsExactly("mx1.domain.com", "mx2.domain.com");
+        cache.getHostAddresses("domain.com");
+
+        verify(plainDnsService, times(2)).findMXRecords("domain.com");
+    }
+
+    @Test
+    public void failedHostsShouldBeTriedLast() throws Exception {
+        HostAddress mx1 = cache.getHostAddresses("domain.com").next();
+        cache.recordFailure(mx1);
+
+        assertThat(hostNames(cache.getHostAddresses("domain.com"))).containsExactly("mx2.domain.com", "mx1.domain.com");
+    }
+
+    @Test
+    public void successShouldRestoreOrder() throws Exception {
+        HostAddress mx1 = cache.getHostAddresses("domain.com").next();
+        cache.recordFailure(mx1);
+        cache.recordSuccess(mx1, 10);
+
+        assertThat(hostNames(cache.getHostAddresses("domain.com"))).containsExactly("mx1.domain.com", "mx2.domain.com");
+    }
+
+    @Test
+    public void clearRoutesShouldResolveAgain() throws Exception {
+        cache.getHostAddresses("domain.com");
+        cache.clearRoutes();
+        cache.getHostAddresses("domain.com");
+
+        verify(mailExchangerLookup, times(2)).findMailExchangers("domain.com");
+    }
+
+    private List<String> hostNames(Iterator<HostAddress> addresses) {
+        List<String> names = Lists.newArrayList();
+        while (addresses.hasNext()) {
+            names.add(addresses.next().getHostName());
+        }
+        return names;
+    }
+}
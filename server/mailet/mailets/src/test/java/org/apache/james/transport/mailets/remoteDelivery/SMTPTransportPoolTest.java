@@ -0,0 +1,241 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.transport.mailets.remoteDelivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import org.apache.mailet.HostAddress;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class SMTPTransportPoolTest {
+
+    private static final HostAddress MX1 = new HostAddress("mx1.domain.com", "smtp://10.0.0.1:25");
+    private static final HostAddress MX2 = new HostAddress("mx2.domain.com", "smtp://10.0.0.2:25");
+    private static final long NEVER = 60000;
+
+    private final List<FakeTransport> connected = new ArrayList<FakeTransport>();
+    private SMTPTransportPool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void borrowShouldReuseAReleasedTransport() throws Exception {
+        pool = createPool(2, 100, NEVER, NEVER);
+
+        PooledSMTPTransport transport = pool.borrow(MX1);
+        pool.release(transport, true);
+
+        assertThat(pool.borrow(MX1)).isSameAs(transport);
+        assertThat(connected).hasSize(1);
+    }
+
+    @Test
+    public void recentlyReleasedTransportShouldNotBeProbed() throws Exception {
+        pool = createPool(2, 100, NEVER, NEVER);
+
+        FakeTransport transport = (FakeTransport) pool.borrow(MX1);
+        pool.release(transport, true);
+        pool.borrow(MX1);
+
+        assertThat(transport.probes).isEmpty();
+    }
+
+    @Test
+    public void idleTransportShouldBeProbedWithNoop() throws Exception {
+        pool = createPool(2, 100, NEVER, 0);
+
+        FakeTransport transport = (FakeTransport) pool.borrow(MX1);
+        pool.release(transport, true);
+        Thread.sleep(5);
+        pool.borrow(MX1);
+
+        assertThat(transport.probes).containsExactly(PooledSMTPTransport.NOOP);
+    }
+
+    @Test
+    public void incompleteTransactionShouldBeResetBeforeReuse() throws Exception {
+        pool = createPool(2, 100, NEVER, NEVER);
+
+        FakeTransport transport = (FakeTransport) pool.borrow(MX1);
+        pool.release(transport, false);
+
+        assertThat(pool.borrow(MX1)).isSameAs(transport);
+        assertThat(transport.probes).containsExactly(PooledSMTPTransport.RSET);
+        assertThat(transport.isResetNeeded()).isFalse();
+        assertThat(transport.getSentMessages()).isEqualTo(0);
+    }
+
+    @Test
+    public void brokenTransportShouldBeReplaced() throws Exception {
+        pool = createPool(1, 100, NEVER, 0);
+
+        FakeTransport transport = (FakeTransport) pool.borrow(MX1);
+        pool.release(transport, true);
+        transport.alive = false;
+        Thread.sleep(5);
+
+        assertThat(pool.borrow(MX1)).isNotSameAs(transport);
+        assertThat(transport.closed).isTrue();
+        assertThat(connected).hasSize(2);
+    }
+
+    @Test
+    public void transportShouldBeClosedAfterMaxMessages() throws Exception {
+        pool = createPool(1, 2, NEVER, NEVER);
+
+        FakeTransport transport = (FakeTransport) pool.borrow(MX1);
+        pool.release(transport, true);
+        pool.release(pool.borrow(MX1), true);
+
+        assertThat(transport.closed).isTrue();
+        assertThat(pool.borrow(MX1)).isNotSameAs(transport);
+    }
+
+    @Test
+    public void borrowShouldFailWhenTheHostLimitIsReached() throws Exception {
+        pool = createPool(2, 100, NEVER, NEVER);
+
+        pool.borrow(MX1);
+        pool.borrow(MX1);
+
+        try {
+            pool.borrow(MX1);
+            throw new AssertionError("MessagingException expected");
+        } catch (MessagingException e) {
+            assertThat(connected).hasSize(2);
+        }
+    }
+
+    @Test
+    public void hostLimitShouldBeCountedPerDestination() throws Exception {
+        pool = createPool(1, 100, NEVER, NEVER);
+
+        pool.borrow(MX1);
+
+        assertThat(pool.borrow(MX2).getKey()).isEqualTo(MX2.toString());
+    }
+
+    @Test
+    public void borrowShouldWaitForAReleasedTransportWhenTheHostLimitIsReached() throws Exception {
+        pool = createPool(1, 100, NEVER, NEVER, 5000);
+
+        final PooledSMTPTransport transport = pool.borrow(MX1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                pool.release(transport, true);
+            }
+        }.start();
+
+        assertThat(pool.borrow(MX1)).isSameAs(transport);
+    }
+
+    @Test
+    public void invalidatedTransportShouldBeClosedAndFreeItsSlot() throws Exception {
+        pool = createPool(1, 100, NEVER, NEVER);
+
+        FakeTransport transport = (FakeTransport) pool.borrow(MX1);
+        pool.invalidate(transport);
+
+        assertThat(transport.closed).isTrue();
+        assertThat(pool.borrow(MX1)).isNotSameAs(transport);
+    }
+
+    @Test
+    public void evictIdleShouldCloseExpiredTransports() throws Exception {
+        pool = createPool(1, 100, 0, NEVER);
+
+        FakeTransport transport = (FakeTransport) pool.borrow(MX1);
+        pool.release(transport, true);
+        Thread.sleep(5);
+        pool.evictIdle();
+
+        assertThat(transport.closed).isTrue();
+        assertThat(pool.borrow(MX1)).isNotSameAs(transport);
+    }
+
+    @Test
+    public void closeShouldCloseIdleTransports() throws Exception {
+        pool = createPool(1, 100, NEVER, NEVER);
+
+        FakeTransport transport = (FakeTransport) pool.borrow(MX1);
+        pool.release(transport, true);
+        pool.close();
+
+        assertThat(transport.closed).isTrue();
+    }
+
+    private SMTPTransportPool createPool(int maxConnectionsPerHost, int maxMessagesPerConnection, long idleTimeout, long probeIdleTime) {
+        return createPool(maxConnectionsPerHost, maxMessagesPerConnection, idleTimeout, probeIdleTime, 100);
+    }
+
+    private SMTPTransportPool createPool(int maxConnectionsPerHost, int maxMessagesPerConnection, long idleTimeout, long probeIdleTime, long acquireTimeout) {
+        return new SMTPTransportPool(new Properties(), null, null, null, maxConnectionsPerHost, maxMessagesPerConnection, idleTimeout, acquireTimeout, probeIdleTime,
+                LoggerFactory.getLogger(getClass())) {
+            @Override
+            protected PooledSMTPTransport connect(HostAddress address, String key) {
+                FakeTransport transport = new FakeTransport(key);
+                connected.add(transport);
+                return transport;
+            }
+        };
+    }
+
+    private static class FakeTransport extends PooledSMTPTransport {
+        private final List<String> probes = new ArrayList<String>();
+        private volatile boolean alive = true;
+        private volatile boolean closed = false;
+
+        FakeTransport(String key) {
+            super(Session.getInstance(new Properties()), new URLName("smtp", "localhost", 25, null, null, null), key);
+        }
+
+        @Override
+        public boolean probe(String command) {
+            probes.add(command);
+            return alive;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+        }
+    }
+}
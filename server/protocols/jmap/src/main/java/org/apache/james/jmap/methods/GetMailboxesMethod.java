@@ -19,9 +19,12 @@
 
 package org.apache.james.jmap.methods;
 
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.inject.Inject;
@@ -37,9 +40,8 @@ import org.apache.james.jmap.model.mailbox.Role;
 import org.apache.james.jmap.model.mailbox.SortOrder;
 import org.apache.james.mailbox.MailboxManager;
 import org.apache.james.mailbox.MailboxSession;
-import org.apache.james.mailbox.MessageManager;
-import org.apache.james.mailbox.MessageManager.MetaData.FetchGroup;
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxCounters;
 import org.apache.james.mailbox.model.MailboxMetaData;
 import org.apache.james.mailbox.model.MailboxPath;
 import org.apache.james.mailbox.model.MailboxQuery;
@@ -54,10 +56,10 @@ import com.google.common.base.Throwables;
 
 public class GetMailboxesMethod<Id extends MailboxId> implements Method {
 
-    private static final boolean DONT_RESET_RECENT = false;
     private static final Logger LOGGER = LoggerFactory.getLogger(GetMailboxesMethod.class);
     private static final Method.Request.Name METHOD_NAME = Method.Request.name("getMailboxes");
     private static final Method.Response.Name RESPONSE_NAME = Method.Response.name("mailboxes");
+    private static final Set<MailboxCounters.Counter> COUNTERS = EnumSet.of(MailboxCounters.Counter.MESSAGES, MailboxCounters.Counter.UNSEEN);
 
     private final MailboxManager mailboxManager; 
     private final MailboxMapperFactory<Id> mailboxMapperFactory;
@@ -96,10 +98,13 @@ public class GetMailboxesMethod<Id extends MailboxId> implements Method {
     private GetMailboxesResponse getMailboxesResponse(MailboxSession mailboxSession) {
         GetMailboxesResponse.Builder builder = GetMailboxesResponse.builder();
         try {
-            retrieveUserMailboxes(mailboxSession)
+            List<MailboxPath> mailboxPaths = retrieveUserMailboxes(mailboxSession)
                 .stream()
                 .map(MailboxMetaData::getPath)
-                .map(mailboxPath -> mailboxFromMailboxPath(mailboxPath, mailboxSession))
+                .collect(Collectors.toList());
+            Map<MailboxPath, MailboxCounters> mailboxCounters = mailboxManager.getMailboxCounters(mailboxPaths, COUNTERS, mailboxSession);
+            mailboxPaths.stream()
+                .map(mailboxPath -> mailboxFromMailboxPath(mailboxPath, Optional.ofNullable(mailboxCounters.get(mailboxPath)), mailboxSession))
                 .filter(Optional::isPresent)
                 .map(Optional::get)
                 .sorted((m1, m2) -> Integer.compare(m1.getSortOrder(), m2.getSortOrder()))
@@ -116,16 +121,19 @@ public class GetMailboxesMethod<Id extends MailboxId> implements Method {
                 session);
     }
 
-    private Optional<Mailbox> mailboxFromMailboxPath(MailboxPath mailboxPath, MailboxSession mailboxSession) {
+    private Optional<Mailbox> mailboxFromMailboxPath(MailboxPath mailboxPath, Optional<MailboxCounters> mailboxCounters, MailboxSession mailboxSession) {
+        if (!mailboxCounters.isPresent()) {
+            LOGGER.warn("Cannot find mailbox counters for :" + mailboxPath.getName());
+            return Optional.empty();
+        }
         try {
             Optional<Role> role = Role.from(mailboxPath.getName());
-            MessageManager.MetaData mailboxMetaData = getMailboxMetaData(mailboxPath, mailboxSession);
             return Optional.ofNullable(Mailbox.builder()
                     .id(getMailboxId(mailboxPath, mailboxSession))
                     .name(mailboxPath.getName())
                     .role(role)
-                    .unreadMessages(mailboxMetaData.getUnseenCount())
-                    .totalMessages(mailboxMetaData.getMessageCount())
+                    .unreadMessages(mailboxCounters.get().getUnseenCount())
+                    .totalMessages(mailboxCounters.get().getMessageCount())
                     .sortOrder(SortOrder.getSortOrder(role))
                     .build());
         } catch (MailboxException e) {
@@ -141,9 +149,4 @@ public class GetMailboxesMethod<Id extends MailboxId> implements Method {
                 .serialize();
     }
 
-    private MessageManager.MetaData getMailboxMetaData(MailboxPath mailboxPath, MailboxSession mailboxSession) throws MailboxException {
-        return mailboxManager.getMailbox(mailboxPath, mailboxSession)
-                .getMetaData(DONT_RESET_RECENT, mailboxSession, FetchGroup.UNSEEN_COUNT);
-    }
-
 }
@@ -22,19 +22,21 @@ package org.apache.james.imapserver.netty;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 import org.apache.james.imap.encode.ImapResponseWriter;
 import org.apache.james.imap.message.response.Literal;
+import org.apache.james.imap.message.response.ZeroCopyLiteral;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.DefaultFileRegion;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.jboss.netty.handler.codec.compression.ZlibEncoder;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.stream.ChunkedNioFile;
-import org.jboss.netty.handler.stream.ChunkedStream;
 
 /**
  * {@link ImapResponseWriter} implementation which writes the data to a
@@ -58,6 +60,7 @@ public class ChannelImapResponseWriter implements ImapResponseWriter {
      * @see org.apache.james.imap.encode.ImapResponseWriter#write(byte[])
      */
     public void write(byte[] buffer) throws IOException {
+        awaitWritable();
         if (channel.isConnected()) {
             channel.write(ChannelBuffers.wrappedBuffer(buffer));
         }
@@ -67,25 +70,67 @@ public class ChannelImapResponseWriter implements ImapResponseWriter {
      * @see org.apache.james.imap.encode.ImapResponseWriter#write(org.apache.james.imap.message.response.Literal)
      */
     public void write(Literal literal) throws IOException {
+        awaitWritable();
         if (channel.isConnected()) {
+            if (literal instanceof ZeroCopyLiteral && writeZeroCopy((ZeroCopyLiteral) literal)) {
+                return;
+            }
             InputStream in = literal.getInputStream();
             if (in instanceof FileInputStream && channel.getFactory() instanceof NioServerSocketChannelFactory) {
                 FileChannel fc = ((FileInputStream) in).getChannel();
-                   // Zero-copy is only possible if no SSL/TLS  and no COMPRESS is in place
-                //
-                // See JAMES-1305 and JAMES-1306
-                ChannelPipeline cp = channel.getPipeline();
-                if (zeroCopy && cp.get(SslHandler.class) == null && cp.get(ZlibEncoder.class) == null ) {
-                    channel.write(new DefaultFileRegion(fc, fc.position(), literal.size()));
-                } else {
-                    channel.write(new ChunkedNioFile(fc, 8192));
-                }
+                writeFileChannel(fc, literal.size());
             } else {
-                channel.write(new ChunkedStream(literal.getInputStream()));
+                channel.write(new ChunkedLiteralStream(in, literal.size()));
             }
         }
     }
-    
-    
+
+    /**
+     * Suspend the processing of the current request while the client does not
+     * read the data which was already written fast enough.
+     * 
+     * See {@link ImapWriteBufferHandler}
+     */
+    private void awaitWritable() {
+        ChannelHandler handler = channel.getPipeline().get(NettyConstants.WRITE_BUFFER_HANDLER);
+        if (handler instanceof ImapWriteBufferHandler) {
+            ((ImapWriteBufferHandler) handler).awaitWritable(channel);
+        }
+    }
+
+    /**
+     * Write the {@link ZeroCopyLiteral} via a wrapped {@link ByteBuffer} or a
+     * {@link FileChannel} if the backend exposes one of them.
+     * 
+     * @return true if the literal was written
+     */
+    private boolean writeZeroCopy(ZeroCopyLiteral literal) throws IOException {
+        ByteBuffer buffer = literal.getByteBuffer();
+        if (buffer != null) {
+            // Wrapping does not copy the content and works with SSL/TLS and COMPRESS too
+            channel.write(ChannelBuffers.wrappedBuffer(buffer));
+            return true;
+        }
+        if (channel.getFactory() instanceof NioServerSocketChannelFactory) {
+            FileChannel fc = literal.getFileChannel();
+            if (fc != null) {
+                writeFileChannel(fc, literal.size());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeFileChannel(FileChannel fc, long size) throws IOException {
+        // Zero-copy is only possible if no SSL/TLS  and no COMPRESS is in place
+        //
+        // See JAMES-1305 and JAMES-1306
+        ChannelPipeline cp = channel.getPipeline();
+        if (zeroCopy && cp.get(SslHandler.class) == null && cp.get(ZlibEncoder.class) == null ) {
+            channel.write(new DefaultFileRegion(fc, fc.position(), size, true));
+        } else {
+            channel.write(new ChunkedNioFile(fc, fc.position(), size, 8192));
+        }
+    }
 
 }
@@ -0,0 +1,47 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.imapserver.netty;
+
+import java.io.InputStream;
+
+import org.jboss.netty.handler.stream.ChunkedStream;
+
+/**
+ * {@link ChunkedStream} of a literal which knows its length, so the
+ * {@link ImapWriteBufferHandler} can count it while it is queued in the
+ * {@link org.jboss.netty.handler.stream.ChunkedWriteHandler}
+ */
+public class ChunkedLiteralStream extends ChunkedStream {
+
+    private final long length;
+
+    public ChunkedLiteralStream(InputStream in, long length) {
+        super(in);
+        this.length = length;
+    }
+
+    /**
+     * Return the length of the literal
+     * 
+     * @return length
+     */
+    public long getLength() {
+        return length;
+    }
+}
@@ -20,6 +20,8 @@ package org.apache.james.imapserver.netty;
 
 import static org.jboss.netty.channel.Channels.pipeline;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -36,6 +38,9 @@ import org.apache.james.protocols.lib.netty.AbstractConfigurableAsyncServer;
 import org.apache.james.protocols.netty.ChannelGroupHandler;
 import org.apache.james.protocols.netty.ConnectionLimitUpstreamHandler;
 import org.apache.james.protocols.netty.ConnectionPerIpLimitUpstreamHandler;
+import org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.james.util.concurrent.NamedThreadFactory;
+import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
@@ -66,11 +71,22 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
     private boolean plainAuthDisallowed;
     private int timeout;
     private int literalSizeLimit;
+    private long fetchReadAheadBudget;
+    private int fetchReadAheadThreads;
+    private ExecutorService fetchReadAheadExecutor;
+    private int writeBufferHighWaterMark;
+    private int writeBufferLowWaterMark;
+
+    private ImapWriteBufferHandler writeBufferHandler;
 
     public final static int DEFAULT_MAX_LINE_LENGTH = 65536; // Use a big default
     public final static int DEFAULT_IN_MEMORY_SIZE_LIMIT = 10485760; // Use 10MB as default
     public final static int DEFAULT_TIMEOUT = 30 * 60; // default timeout is 30 seconds
     public final static int DEFAULT_LITERAL_SIZE_LIMIT = 0;
+    public final static long DEFAULT_FETCH_READ_AHEAD_BUDGET = 0;
+    public final static int DEFAULT_FETCH_READ_AHEAD_THREADS = 16;
+    public final static int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 65536; // Use the same defaults as netty
+    public final static int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 32768;
 
     @Inject
     public void setImapProcessor(ImapProcessor processor) {
@@ -97,6 +113,17 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
         maxLineLength = configuration.getInt("maxLineLength", DEFAULT_MAX_LINE_LENGTH);
         inMemorySizeLimit = configuration.getInt("inMemorySizeLimit", DEFAULT_IN_MEMORY_SIZE_LIMIT);
         literalSizeLimit = configuration.getInt("literalSizeLimit", DEFAULT_LITERAL_SIZE_LIMIT);
+        fetchReadAheadBudget = configuration.getLong("fetchReadAheadBudget", DEFAULT_FETCH_READ_AHEAD_BUDGET);
+        fetchReadAheadThreads = configuration.getInt("fetchReadAheadThreads", DEFAULT_FETCH_READ_AHEAD_THREADS);
+        if (fetchReadAheadThreads < 1) {
+            throw new ConfigurationException("fetchReadAheadThreads must be greater than 0");
+        }
+        writeBufferHighWaterMark = configuration.getInt("writeBufferHighWaterMark", DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK);
+        writeBufferLowWaterMark = configuration.getInt("writeBufferLowWaterMark", DEFAULT_WRITE_BUFFER_LOW_WATER_MARK);
+        if (writeBufferLowWaterMark < 0 || writeBufferLowWaterMark >= writeBufferHighWaterMark) {
+            throw new ConfigurationException("writeBufferLowWaterMark must be positive and lower than writeBufferHighWaterMark");
+        }
+        writeBufferHandler = new ImapWriteBufferHandler(writeBufferHighWaterMark, writeBufferLowWaterMark);
 
         plainAuthDisallowed = configuration.getBoolean("plainAuthDisallowed", false);
         timeout = configuration.getInt("timeout", DEFAULT_TIMEOUT);
@@ -107,7 +134,25 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
         if (timeout < 0) {
             timeout = 0;
         }
-        
+
+    }
+
+    @Override
+    protected void preInit() throws Exception {
+        super.preInit();
+        if (fetchReadAheadBudget > 0) {
+            // Shared by all sessions and bounded, a FETCH which can not get a thread just loads its messages sequentially
+            fetchReadAheadExecutor = new JMXEnabledThreadPoolExecutor(0, fetchReadAheadThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory("fetch-read-ahead"), getThreadPoolJMXPath());
+        }
+    }
+
+    @Override
+    protected void postDestroy() {
+        super.postDestroy();
+        if (fetchReadAheadExecutor != null) {
+            fetchReadAheadExecutor.shutdownNow();
+            fetchReadAheadExecutor = null;
+        }
     }
 
     /**
@@ -125,6 +170,44 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
         return "IMAP Service";
     }
 
+    @Override
+    protected void configureBootstrap(ServerBootstrap bootstrap) {
+        super.configureBootstrap(bootstrap);
+
+        // Once the high watermark is reached the channel is not writable anymore and
+        // the processing of the request is suspended till the low watermark is reached
+        bootstrap.setOption("child.writeBufferHighWaterMark", writeBufferHighWaterMark);
+        bootstrap.setOption("child.writeBufferLowWaterMark", writeBufferLowWaterMark);
+    }
+
+    /**
+     * @see IMAPServerMBean#getOutboundBufferedBytes()
+     */
+    public long getOutboundBufferedBytes() {
+        return writeBufferHandler.getBufferedOctets();
+    }
+
+    /**
+     * @see IMAPServerMBean#getMaxSessionOutboundBufferedBytes()
+     */
+    public long getMaxSessionOutboundBufferedBytes() {
+        return writeBufferHandler.getMaxChannelBufferedOctets();
+    }
+
+    /**
+     * @see IMAPServerMBean#getSessionOutboundBufferedBytes()
+     */
+    public String[] getSessionOutboundBufferedBytes() {
+        return writeBufferHandler.getChannelBufferedOctets();
+    }
+
+    /**
+     * @see IMAPServerMBean#getOutboundSuspendCount()
+     */
+    public long getOutboundSuspendCount() {
+        return writeBufferHandler.getSuspendCount();
+    }
+
     @Override
     protected ChannelPipelineFactory createPipelineFactory(final ChannelGroup group) {
         
@@ -162,6 +245,9 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
 
                 pipeline.addLast(CHUNK_WRITE_HANDLER, new ChunkedWriteHandler());
 
+                // Placed after the ChunkedWriteHandler so it sees the chunked literals before they are queued
+                pipeline.addLast(WRITE_BUFFER_HANDLER, writeBufferHandler);
+
                 ExecutionHandler ehandler = getExecutionHandler();
                 if (ehandler  != null) {
                     pipeline.addLast(EXECUTION_HANDLER, ehandler);
@@ -186,9 +272,9 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
         ImapChannelUpstreamHandler coreHandler;
         Encryption secure = getEncryption();
         if (secure!= null && secure.isStartTLS()) {
-           coreHandler = new ImapChannelUpstreamHandler(hello, processor, encoder, getLogger(), compress, plainAuthDisallowed, secure.getContext(), getEnabledCipherSuites());
+           coreHandler = new ImapChannelUpstreamHandler(hello, processor, encoder, getLogger(), compress, plainAuthDisallowed, secure.getContext(), getEnabledCipherSuites(), fetchReadAheadExecutor, fetchReadAheadBudget);
         } else {
-           coreHandler = new ImapChannelUpstreamHandler(hello, processor, encoder, getLogger(), compress, plainAuthDisallowed);
+           coreHandler = new ImapChannelUpstreamHandler(hello, processor, encoder, getLogger(), compress, plainAuthDisallowed, null, null, fetchReadAheadExecutor, fetchReadAheadBudget);
         }
         return coreHandler;
     }
@@ -22,4 +22,35 @@ import org.apache.james.protocols.lib.jmx.ServerMBean;
 
 public interface IMAPServerMBean extends ServerMBean {
 
+    /**
+     * Return the count of bytes which were written by all sessions but not
+     * sent to the clients yet
+     * 
+     * @return outboundBufferedBytes
+     */
+    long getOutboundBufferedBytes();
+
+    /**
+     * Return the highest count of bytes which were written by a single
+     * session but not sent to the client yet
+     * 
+     * @return maxSessionOutboundBufferedBytes
+     */
+    long getMaxSessionOutboundBufferedBytes();
+
+    /**
+     * Return the count of bytes which were written but not sent yet for each
+     * session, as <code>remoteAddress=bytes</code>
+     * 
+     * @return sessionOutboundBufferedBytes
+     */
+    String[] getSessionOutboundBufferedBytes();
+
+    /**
+     * Return how often the processing of a request was suspended because the
+     * client did not read the responses fast enough
+     * 
+     * @return outboundSuspendCount
+     */
+    long getOutboundSuspendCount();
 }
@@ -20,6 +20,7 @@ package org.apache.james.imapserver.netty;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
 
 import javax.net.ssl.SSLContext;
 
@@ -32,6 +33,8 @@ import org.apache.james.imap.encode.ImapEncoder;
 import org.apache.james.imap.encode.ImapResponseComposer;
 import org.apache.james.imap.encode.base.ImapResponseComposerImpl;
 import org.apache.james.imap.main.ResponseEncoder;
+import org.apache.james.imap.processor.fetch.FetchProcessor;
+import org.apache.james.imap.processor.fetch.FetchReadAhead;
 import org.apache.james.protocols.api.logger.ProtocolLoggerAdapter;
 import org.apache.james.protocols.api.logger.ProtocolSessionLogger;
 import org.apache.james.protocols.lib.Slf4jLoggerAdapter;
@@ -70,12 +73,20 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
     private final ImapHeartbeatHandler heartbeatHandler = new ImapHeartbeatHandler();
 
     private final boolean plainAuthDisallowed;
+
+    private final Executor fetchReadAheadExecutor;
+
+    private final long fetchReadAheadBudget;
     
     public ImapChannelUpstreamHandler(final String hello, final ImapProcessor processor, ImapEncoder encoder, final Logger logger, boolean compress, boolean plainAuthDisallowed) {
         this(hello, processor, encoder, logger, compress, plainAuthDisallowed, null, null);
     }
 
     public ImapChannelUpstreamHandler(final String hello, final ImapProcessor processor, ImapEncoder encoder, final Logger logger, boolean compress, boolean plainAuthDisallowed, SSLContext context, String[] enabledCipherSuites) {
+        this(hello, processor, encoder, logger, compress, plainAuthDisallowed, context, enabledCipherSuites, null, 0);
+    }
+
+    public ImapChannelUpstreamHandler(final String hello, final ImapProcessor processor, ImapEncoder encoder, final Logger logger, boolean compress, boolean plainAuthDisallowed, SSLContext context, String[] enabledCipherSuites, Executor fetchReadAheadExecutor, long fetchReadAheadBudget) {
         this.logger = logger;
         this.hello = hello;
         this.processor = processor;
@@ -84,6 +95,8 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
         this.enabledCipherSuites = enabledCipherSuites;
         this.compress = compress;
         this.plainAuthDisallowed = plainAuthDisallowed;
+        this.fetchReadAheadExecutor = fetchReadAheadExecutor;
+        this.fetchReadAheadBudget = fetchReadAheadBudget;
     }
 
     private Logger getLogger(Channel channel) {
@@ -93,6 +106,10 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
     @Override
     public void channelBound(final ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
         ImapSession imapsession = new NettyImapSession(ctx.getChannel(), logger, context, enabledCipherSuites, compress, plainAuthDisallowed);
+        if (fetchReadAheadExecutor != null && fetchReadAheadBudget > 0) {
+            // the budget is shared by all the FETCH commands of the session
+            imapsession.setAttribute(FetchProcessor.READ_AHEAD, new FetchReadAhead(fetchReadAheadExecutor, fetchReadAheadBudget));
+        }
         attributes.set(ctx.getChannel(), imapsession);
         super.channelBound(ctx, e);
     }
@@ -176,10 +193,17 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
         ImapResponseComposer response = (ImapResponseComposer) ctx.getAttachment();
         ImapMessage message = (ImapMessage) e.getMessage();
         ChannelPipeline cp = ctx.getPipeline();
+        ImapWriteBufferHandler writeBufferHandler = (ImapWriteBufferHandler) cp.get(NettyConstants.WRITE_BUFFER_HANDLER);
 
         try {
             if (cp.get(NettyConstants.EXECUTION_HANDLER) != null) {
                 cp.addBefore(NettyConstants.EXECUTION_HANDLER, NettyConstants.HEARTBEAT_HANDLER, heartbeatHandler);
+
+                // We are not running in the I/O thread, so it is safe to wait
+                // for the client to read the responses
+                if (writeBufferHandler != null) {
+                    writeBufferHandler.requestStarted(ctx.getChannel());
+                }
             } else {
                 cp.addBefore(NettyConstants.CORE_HANDLER, NettyConstants.HEARTBEAT_HANDLER, heartbeatHandler);
 
@@ -206,6 +230,9 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
             }
         } finally {
             ctx.getPipeline().remove(NettyConstants.HEARTBEAT_HANDLER);
+            if (writeBufferHandler != null) {
+                writeBufferHandler.requestDone(ctx.getChannel());
+            }
         }
 
         super.messageReceived(ctx, e);
@@ -0,0 +1,257 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imapserver.netty;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.FileRegion;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.stream.ChunkedFile;
+import org.jboss.netty.handler.stream.ChunkedNioFile;
+
+/**
+ * {@link SimpleChannelHandler} which keeps track of the octets which were
+ * written to a {@link Channel} but not flushed out to the client yet.
+ * 
+ * It also allows the thread which processes an IMAP request to wait until the
+ * octets buffered for the {@link Channel} dropped below the low watermark, so a
+ * big FETCH does not queue up all its responses in memory when the client reads
+ * slowly.
+ * 
+ * This handler must be placed before the {@link org.jboss.netty.handler.execution.ExecutionHandler}
+ * in the {@link org.jboss.netty.channel.ChannelPipeline}, so the
+ * notifications about writability are received in the I/O thread while the
+ * request processing waits. It must also be placed after the
+ * {@link org.jboss.netty.handler.stream.ChunkedWriteHandler}, so the literals
+ * which are queued there as {@link org.jboss.netty.handler.stream.ChunkedInput}
+ * are counted with their whole length. One instance is shared by all
+ * {@link Channel}'s of a server.
+ */
+public class ImapWriteBufferHandler extends SimpleChannelHandler {
+
+    /**
+     * Maximal time to wait for a notification before checking the
+     * {@link Channel} state again
+     */
+    private final static long MAX_WAIT = 1000;
+
+    private final ChannelLocal<WriteBuffer> buffers = new ChannelLocal<WriteBuffer>(true) {
+        @Override
+        protected WriteBuffer initialValue(Channel channel) {
+            return new WriteBuffer();
+        }
+    };
+
+    private final AtomicLong bufferedOctets = new AtomicLong();
+    private final AtomicLong suspendCount = new AtomicLong();
+
+    private final long highWaterMark;
+    private final long lowWaterMark;
+
+    /**
+     * @param highWaterMark
+     *            octets above which the processing of a request is suspended
+     * @param lowWaterMark
+     *            octets below which the processing of a suspended request is
+     *            resumed
+     */
+    public ImapWriteBufferHandler(long highWaterMark, long lowWaterMark) {
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        final long size = getSize(e.getMessage());
+        if (size > 0) {
+            final WriteBuffer buffer = buffers.get(ctx.getChannel());
+            buffer.octets.addAndGet(size);
+            bufferedOctets.addAndGet(size);
+            e.getFuture().addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    // also called if the write failed, as the octets are not buffered anymore
+                    long octets = buffer.octets.addAndGet(-size);
+                    bufferedOctets.addAndGet(-size);
+                    if (octets <= lowWaterMark && octets + size > lowWaterMark) {
+                        wakeUp(buffer);
+                    }
+                }
+            });
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    private long getSize(Object message) {
+        if (message instanceof ChannelBuffer) {
+            return ((ChannelBuffer) message).readableBytes();
+        } else if (message instanceof FileRegion) {
+            return ((FileRegion) message).getCount();
+        } else if (message instanceof ChunkedLiteralStream) {
+            return ((ChunkedLiteralStream) message).getLength();
+        } else if (message instanceof ChunkedNioFile) {
+            ChunkedNioFile file = (ChunkedNioFile) message;
+            return file.getEndOffset() - file.getCurrentOffset();
+        } else if (message instanceof ChunkedFile) {
+            ChunkedFile file = (ChunkedFile) message;
+            return file.getEndOffset() - file.getCurrentOffset();
+        }
+        return 0;
+    }
+
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        wakeUp(buffers.get(ctx.getChannel()));
+        super.channelInterestChanged(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        WriteBuffer buffer = buffers.remove(ctx.getChannel());
+        if (buffer != null) {
+            wakeUp(buffer);
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    private void wakeUp(WriteBuffer buffer) {
+        synchronized (buffer) {
+            buffer.notifyAll();
+        }
+    }
+
+    /**
+     * Mark the current thread as the one which processes an IMAP request for
+     * the given {@link Channel}. Only this thread will wait in
+     * {@link #awaitWritable(Channel)}, so the I/O threads and the threads
+     * which dispatch mailbox events are never blocked by a slow client.
+     * 
+     * Must not be called from an I/O thread.
+     * 
+     * @param channel
+     */
+    public void requestStarted(Channel channel) {
+        buffers.get(channel).processingThread = Thread.currentThread();
+    }
+
+    /**
+     * The current IMAP request of the {@link Channel} is done
+     * 
+     * @param channel
+     */
+    public void requestDone(Channel channel) {
+        WriteBuffer buffer = buffers.get(channel);
+        if (buffer.processingThread == Thread.currentThread()) {
+            buffer.processingThread = null;
+        }
+    }
+
+    /**
+     * Wait until the {@link Channel} is writable again and its buffered octets
+     * dropped below the low watermark, or it was closed. Returns immediately if
+     * the current thread is not processing an IMAP request for the
+     * {@link Channel}.
+     * 
+     * @param channel
+     */
+    public void awaitWritable(Channel channel) {
+        WriteBuffer buffer = buffers.get(channel);
+        if (channel.isWritable() && buffer.octets.get() <= highWaterMark) {
+            return;
+        }
+        if (buffer.processingThread != Thread.currentThread()) {
+            return;
+        }
+        suspendCount.incrementAndGet();
+        synchronized (buffer) {
+            try {
+                while ((!channel.isWritable() || buffer.octets.get() > lowWaterMark) && channel.isConnected()) {
+                    buffer.wait(MAX_WAIT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Return the octets which are buffered for all {@link Channel}'s
+     * 
+     * @return bufferedOctets
+     */
+    public long getBufferedOctets() {
+        return bufferedOctets.get();
+    }
+
+    /**
+     * Return the highest count of octets which are buffered for a single
+     * {@link Channel}
+     * 
+     * @return maxBufferedOctets
+     */
+    public long getMaxChannelBufferedOctets() {
+        long max = 0;
+        for (Entry<Channel, WriteBuffer> entry : buffers) {
+            max = Math.max(max, entry.getValue().octets.get());
+        }
+        return max;
+    }
+
+    /**
+     * Return the octets which are buffered for each connected
+     * {@link Channel}, as <code>remoteAddress=octets</code>
+     * 
+     * @return bufferedOctets
+     */
+    public String[] getChannelBufferedOctets() {
+        List<String> result = new ArrayList<String>();
+        for (Entry<Channel, WriteBuffer> entry : buffers) {
+            SocketAddress address = entry.getKey().getRemoteAddress();
+            result.add(address + "=" + entry.getValue().octets.get());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Return how often the processing of a request was suspended until the
+     * {@link Channel} was writable again
+     * 
+     * @return suspendCount
+     */
+    public long getSuspendCount() {
+        return suspendCount.get();
+    }
+
+    private final static class WriteBuffer {
+        private final AtomicLong octets = new AtomicLong();
+        private volatile Thread processingThread;
+    }
+}
@@ -38,6 +38,7 @@ public interface NettyConstants {
     String CHUNK_WRITE_HANDLER = "chunkWriteHandler";
     String EXECUTION_HANDLER = "executionHandler";
     String HEARTBEAT_HANDLER = "heartbeatHandler";
+    String WRITE_BUFFER_HANDLER = "writeBufferHandler";
 
     ChannelLocal<Object> attributes = new ChannelLocal<Object>();
 }
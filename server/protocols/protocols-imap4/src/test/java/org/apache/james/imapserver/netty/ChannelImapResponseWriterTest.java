@@ -0,0 +1,203 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.imapserver.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.encode.FetchResponseEncoder;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.imap.encode.base.ImapResponseComposerImpl;
+import org.apache.james.imap.message.response.FetchResponse;
+import org.apache.james.imap.message.response.FetchResponse.BodyElement;
+import org.apache.james.imap.message.response.ZeroCopyLiteral;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.maildir.MaildirFolder;
+import org.apache.james.mailbox.maildir.MaildirMessageName;
+import org.apache.james.mailbox.maildir.mail.model.MaildirMessage;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.ZeroCopyContent;
+import org.apache.james.mailbox.store.streaming.InputStreamContent;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.DefaultChannelPipeline;
+import org.jboss.netty.channel.FileRegion;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class ChannelImapResponseWriterTest {
+
+    private static final String MESSAGE = "Subject: test\r\n\r\nThis is the body of the message\r\n";
+    private static final String MESSAGE_NAME = "1328026049.19146_0.localhost,S=" + MESSAGE.length() + ":2,";
+
+    private File maildir;
+    private MaildirMessage message;
+    private Channel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        maildir = File.createTempFile("maildir", "");
+        maildir.delete();
+        MaildirFolder folder = new MaildirFolder(maildir.getAbsolutePath(), new MailboxPath("#private", "user", "INBOX"), null);
+        folder.getCurFolder().mkdirs();
+        folder.getNewFolder().mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(folder.getCurFolder(), MESSAGE_NAME));
+        try {
+            out.write(MESSAGE.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        message = new MaildirMessage(new MaildirMessageName(folder, MESSAGE_NAME));
+
+        channel = mock(Channel.class);
+        when(channel.isConnected()).thenReturn(true);
+        when(channel.getPipeline()).thenReturn(new DefaultChannelPipeline());
+        when(channel.getFactory()).thenReturn(mock(NioServerSocketChannelFactory.class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(maildir);
+    }
+
+    @Test
+    public void fetchBodyShouldWriteMaildirContentAsFileRegion() throws Exception {
+        List<Object> written = fetch(new ChannelImapResponseWriter(channel), new ContentLiteral("BODY[]", new InputStreamContent(message, InputStreamContent.Type.Full)));
+
+        assertTrue(written.get(1) instanceof FileRegion);
+        assertEquals("* 1 FETCH (UID 1 BODY[] {" + MESSAGE.length() + "}\r\n" + MESSAGE + ")\r\n", toString(written));
+    }
+
+    @Test
+    public void fetchBodyTextShouldOnlyWriteTheBodyOfTheMaildirContent() throws Exception {
+        List<Object> written = fetch(new ChannelImapResponseWriter(channel), new ContentLiteral("BODY[TEXT]", new InputStreamContent(message, InputStreamContent.Type.Body)));
+
+        String body = "This is the body of the message\r\n";
+        assertTrue(written.get(1) instanceof FileRegion);
+        assertEquals("* 1 FETCH (UID 1 BODY[TEXT] {" + body.length() + "}\r\n" + body + ")\r\n", toString(written));
+    }
+
+    @Test
+    public void fetchBodyShouldWriteMaildirContentAsChunksWhenZeroCopyIsDisabled() throws Exception {
+        List<Object> written = fetch(new ChannelImapResponseWriter(channel, false), new ContentLiteral("BODY[]", new InputStreamContent(message, InputStreamContent.Type.Full)));
+
+        assertTrue(written.get(1) instanceof ChunkedInput);
+        assertEquals("* 1 FETCH (UID 1 BODY[] {" + MESSAGE.length() + "}\r\n" + MESSAGE + ")\r\n", toString(written));
+    }
+
+    private List<Object> fetch(ChannelImapResponseWriter writer, BodyElement element) throws Exception {
+        FetchResponse response = new FetchResponse(1, null, 1L, null, null, null, null, null, null, Arrays.asList(element));
+        new FetchResponseEncoder(mock(ImapEncoder.class), false).encode(response, new ImapResponseComposerImpl(writer), mock(ImapSession.class));
+
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(channel, atLeastOnce()).write(captor.capture());
+        return captor.getAllValues();
+    }
+
+    /**
+     * Collect the bytes of everything which was written to the {@link Channel}
+     */
+    private String toString(List<Object> written) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        for (Object o : written) {
+            if (o instanceof ChannelBuffer) {
+                ChannelBuffer buffer = (ChannelBuffer) o;
+                buffer.getBytes(buffer.readerIndex(), out, buffer.readableBytes());
+            } else if (o instanceof FileRegion) {
+                FileRegion region = (FileRegion) o;
+                long position = 0;
+                while (position < region.getCount()) {
+                    position += region.transferTo(target, position);
+                }
+                region.releaseExternalResources();
+            } else if (o instanceof ChunkedInput) {
+                ChunkedInput input = (ChunkedInput) o;
+                while (input.hasNextChunk()) {
+                    ChannelBuffer buffer = (ChannelBuffer) input.nextChunk();
+                    buffer.getBytes(buffer.readerIndex(), out, buffer.readableBytes());
+                }
+                input.close();
+            }
+        }
+        return new String(out.toByteArray(), "US-ASCII");
+    }
+
+    /**
+     * Expose a {@link ZeroCopyContent} as {@link BodyElement}, the same way the
+     * FETCH processor does
+     */
+    private static final class ContentLiteral implements BodyElement, ZeroCopyLiteral {
+
+        private final String name;
+        private final ZeroCopyContent content;
+
+        public ContentLiteral(String name, ZeroCopyContent content) {
+            this.name = name;
+            this.content = content;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long size() throws IOException {
+            try {
+                return content.size();
+            } catch (MailboxException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return content.getInputStream();
+        }
+
+        public ByteBuffer getByteBuffer() throws IOException {
+            return content.getByteBuffer();
+        }
+
+        public FileChannel getFileChannel() throws IOException {
+            return content.getFileChannel();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.imapserver.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImapWriteBufferHandlerTest {
+
+    private ImapWriteBufferHandler handler;
+    private Channel channel;
+    private ChannelHandlerContext ctx;
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new ImapWriteBufferHandler(100, 50);
+        channel = mock(Channel.class);
+        when(channel.isConnected()).thenReturn(true);
+        when(channel.isWritable()).thenReturn(true);
+        when(channel.getCloseFuture()).thenReturn(new DefaultChannelFuture(channel, false));
+        ctx = mock(ChannelHandlerContext.class);
+        when(ctx.getChannel()).thenReturn(channel);
+    }
+
+    private ChannelFuture write(Object message) throws Exception {
+        ChannelFuture future = new DefaultChannelFuture(channel, false);
+        handler.writeRequested(ctx, new DownstreamMessageEvent(channel, future, message, null));
+        return future;
+    }
+
+    @Test
+    public void chunkedLiteralShouldBeCountedWithItsWholeLength() throws Exception {
+        ChannelFuture future = write(new ChunkedLiteralStream(new ByteArrayInputStream(new byte[1000]), 1000));
+        write(ChannelBuffers.wrappedBuffer(new byte[10]));
+
+        assertEquals(1010, handler.getBufferedOctets());
+        assertEquals(1010, handler.getMaxChannelBufferedOctets());
+
+        future.setSuccess();
+        assertEquals(10, handler.getBufferedOctets());
+    }
+
+    @Test
+    public void processingShouldBeSuspendedUntilTheChunkedLiteralWasWritten() throws Exception {
+        ChannelFuture future = write(new ChunkedLiteralStream(new ByteArrayInputStream(new byte[1000]), 1000));
+
+        Thread processing = new Thread() {
+            @Override
+            public void run() {
+                handler.requestStarted(channel);
+                handler.awaitWritable(channel);
+                handler.requestDone(channel);
+            }
+        };
+        processing.start();
+        processing.join(200);
+        assertTrue(processing.isAlive());
+
+        future.setSuccess();
+        processing.join(5000);
+        assertFalse(processing.isAlive());
+        assertEquals(1, handler.getSuspendCount());
+    }
+
+    @Test
+    public void onlyTheProcessingThreadShouldBeSuspended() throws Exception {
+        write(new ChunkedLiteralStream(new ByteArrayInputStream(new byte[1000]), 1000));
+
+        // returns immediately as the current thread does not process a request
+        handler.awaitWritable(channel);
+        assertEquals(0, handler.getSuspendCount());
+    }
+}
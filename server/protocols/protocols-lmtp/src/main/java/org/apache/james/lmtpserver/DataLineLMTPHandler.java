@@ -18,7 +18,12 @@
  ****************************************************************/
 package org.apache.james.lmtpserver;
 
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.james.core.MimeMessageInputStreamSource;
+import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
 import org.apache.james.protocols.api.handler.WiringException;
 import org.apache.james.protocols.lmtp.LMTPMultiResponse;
 import org.apache.james.protocols.lmtp.hook.DeliverToRecipientHook;
@@ -30,55 +35,135 @@ import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.core.AbstractHookableCmdHandler;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.smtpserver.DataLineJamesMessageHookHandler;
+import org.apache.james.smtpserver.SMTPConstants;
+import org.apache.james.util.concurrent.NamedThreadFactory;
 import org.apache.mailet.Mail;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Handler which takes care of deliver the mail to the recipients INBOX
+ * Handler which takes care of deliver the mail to the recipients INBOX.
+ * 
+ * The message is delivered to the recipients concurrently by a bounded pool of
+ * threads. Each delivery reads the spooled message on its own, so it does not
+ * need to get copied or parsed by James for every recipient. The response
+ * lines are returned in the order of the recipients once all deliveries are
+ * done.
  */
 public class DataLineLMTPHandler extends DataLineJamesMessageHookHandler {
 
+    private final static int DEFAULT_DELIVERY_THREADS = 16;
+
     private final List<DeliverToRecipientHook> handlers = new ArrayList<DeliverToRecipientHook>();
 
+    private int deliveryThreads = DEFAULT_DELIVERY_THREADS;
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+        super.init(config);
+        deliveryThreads = config.getInt("deliveryThreads", DEFAULT_DELIVERY_THREADS);
+        if (deliveryThreads < 1) {
+            throw new ConfigurationException("deliveryThreads must be at least 1");
+        }
+    }
 
     @Override
-    protected Response processExtensions(SMTPSession session, final Mail mail) {
-        LMTPMultiResponse mResponse = null;
+    public synchronized void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        super.destroy();
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(deliveryThreads, deliveryThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("DataLineLMTPHandler"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
 
+    @Override
+    protected Response processExtensions(final SMTPSession session, final Mail mail) {
         // build a wrapper around the Mail
-        final ReadOnlyMailEnvelope env = new ReadOnlyMailEnvelope(mail);
+        MimeMessageInputStreamSource mmiss = (MimeMessageInputStreamSource) session.getAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, State.Transaction);
+        final ReadOnlyMailEnvelope env = new ReadOnlyMailEnvelope(mail, mmiss);
 
-        for (org.apache.mailet.MailAddress recipient : mail.getRecipients()) {
-            // TODO: the transformation code between MailAddress is purely to compile. No idea if it does what it's supposed
-            MailAddress recipientAddress;
+        final List<org.apache.mailet.MailAddress> recipients = new ArrayList<org.apache.mailet.MailAddress>(mail.getRecipients());
+        if (recipients.isEmpty()) {
+            return null;
+        }
+        if (recipients.size() == 1) {
+            return new LMTPMultiResponse(deliver(session, recipients.get(0), env));
+        }
+
+        final FutureResponseImpl futureResponse = new FutureResponseImpl();
+        final Response[] responses = new Response[recipients.size()];
+        final AtomicInteger pending = new AtomicInteger(recipients.size());
+
+        for (int i = 0; i < recipients.size(); i++) {
+            final int index = i;
+            Runnable delivery = new Runnable() {
+
+                @Override
+                public void run() {
+                    responses[index] = deliver(session, recipients.get(index), env);
+
+                    // the last delivery to finish sends the responses
+                    if (pending.decrementAndGet() == 0) {
+                        LMTPMultiResponse mResponse = new LMTPMultiResponse(responses[0]);
+                        for (int j = 1; j < responses.length; j++) {
+                            mResponse.addResponse(responses[j]);
+                        }
+                        futureResponse.setResponse(mResponse);
+                    }
+                }
+            };
             try {
-                recipientAddress = new MailAddress(recipient.getLocalPart(), recipient.getDomain());
-            } catch (MailAddressException e) {
-                throw new RuntimeException(e);
+                getExecutor().execute(delivery);
+            } catch (RejectedExecutionException e) {
+                delivery.run();
             }
-            Response response = null;
+        }
+        return futureResponse;
+    }
+
+    /**
+     * Deliver the message to the recipient by calling the wired {@link DeliverToRecipientHook}'s
+     */
+    private Response deliver(SMTPSession session, org.apache.mailet.MailAddress recipient, ReadOnlyMailEnvelope env) {
+        Response response = null;
+        try {
+            // TODO: the transformation code between MailAddress is purely to compile. No idea if it does what it's supposed
+            MailAddress recipientAddress = new MailAddress(recipient.getLocalPart(), recipient.getDomain());
             for (DeliverToRecipientHook handler : handlers) {
                 response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(handler.deliver(session, recipientAddress, env));
                 if (response != null) {
                     break;
                 }
             }
-            if (response == null) {
-                // Add some default response for not handled responses
-                response = new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + "Temporary error deliver message to " + recipient);
-            }
-            if (mResponse == null) {
-                mResponse = new LMTPMultiResponse(response);
-            } else {
-                mResponse.addResponse(response);
-            }
+        } catch (MailAddressException e) {
+            session.getLogger().info("Unable to deliver message to " + recipient, e);
+        } catch (RuntimeException e) {
+            session.getLogger().info("Unable to deliver message to " + recipient, e);
+        }
+        if (response == null) {
+            // Add some default response for not handled responses
+            response = new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + "Temporary error deliver message to " + recipient);
         }
-        return mResponse;
+        return response;
     }
 
     @Override
@@ -98,8 +183,22 @@ public class DataLineLMTPHandler extends DataLineJamesMessageHookHandler {
 
     private final class ReadOnlyMailEnvelope extends MailToMailEnvelopeWrapper {
 
-        public ReadOnlyMailEnvelope(Mail mail) {
+        private final MimeMessageInputStreamSource mmiss;
+
+        public ReadOnlyMailEnvelope(Mail mail, MimeMessageInputStreamSource mmiss) {
             super(mail, null);
+            this.mmiss = mmiss;
+        }
+
+        /**
+         * Return a new stream over the spooled message, so the recipients can read it concurrently
+         */
+        @Override
+        public InputStream getMessageInputStream() throws IOException {
+            if (mmiss == null) {
+                return super.getMessageInputStream();
+            }
+            return mmiss.getInputStream();
         }
 
         @Override
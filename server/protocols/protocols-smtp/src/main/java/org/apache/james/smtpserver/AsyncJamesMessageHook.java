@@ -0,0 +1,42 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.smtpserver;
+
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
+import org.apache.mailet.Mail;
+
+/**
+ * {@link JamesMessageHook} which is able to compute its result without
+ * blocking the calling thread, for example while a remote content scanner
+ * checks the message.
+ * 
+ * {@link #onMessageAsync(SMTPSession, Mail)} is called instead of
+ * {@link #onMessage(SMTPSession, Mail)}. The message is disposed once the
+ * returned {@link FutureHookResult} is ready.
+ */
+public interface AsyncJamesMessageHook extends JamesMessageHook {
+
+    /**
+     * Return the {@link FutureHookResult} of the hook
+     */
+    FutureHookResult onMessageAsync(SMTPSession session, Mail mail);
+
+}
@@ -27,6 +27,7 @@ import org.apache.commons.configuration.ConfigurationException;
 import org.apache.james.protocols.api.handler.CommandDispatcher;
 import org.apache.james.protocols.api.handler.CommandHandlerResultLogger;
 import org.apache.james.protocols.lib.handler.HandlersPackage;
+import org.apache.james.protocols.smtp.core.BdatCmdHandler;
 import org.apache.james.protocols.smtp.core.ExpnCmdHandler;
 import org.apache.james.protocols.smtp.core.HeloCmdHandler;
 import org.apache.james.protocols.smtp.core.HelpCmdHandler;
@@ -60,6 +61,8 @@ public class CoreCmdHandlerLoader implements HandlersPackage {
         commands.add(AUTHCMDHANDLER);
         String DATACMDHANDLER = JamesDataCmdHandler.class.getName();
         commands.add(DATACMDHANDLER);
+        String BDATCMDHANDLER = BdatCmdHandler.class.getName();
+        commands.add(BDATCMDHANDLER);
         String EHLOCMDHANDLER = EhloCmdHandler.class.getName();
         commands.add(EHLOCMDHANDLER);
         String EXPNCMDHANDLER = ExpnCmdHandler.class.getName();
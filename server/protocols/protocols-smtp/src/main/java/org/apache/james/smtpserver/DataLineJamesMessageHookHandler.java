@@ -28,6 +28,9 @@ import org.apache.james.core.MimeMessageInputStreamSource;
 import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
 import org.apache.james.protocols.api.handler.ExtensibleHandler;
 import org.apache.james.protocols.api.handler.LineHandler;
 import org.apache.james.protocols.api.handler.WiringException;
@@ -40,8 +43,13 @@ import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.core.AbstractHookableCmdHandler;
 import org.apache.james.protocols.smtp.core.DataLineFilter;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.AsyncMessageHook;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
+import org.apache.james.protocols.smtp.hook.FutureHookResult.HookResultListener;
+import org.apache.james.protocols.smtp.hook.Hook;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookResultHook;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.protocols.smtp.hook.MessageHook;
 import org.apache.james.smtpserver.model.MailetMailAddressAdapter;
 import org.apache.james.smtpserver.model.ProtocolMailAddressAdapter;
@@ -50,6 +58,7 @@ import org.apache.mailet.Mail;
 import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -63,6 +72,14 @@ import java.util.List;
  */
 public class DataLineJamesMessageHookHandler implements DataLineFilter, ExtensibleHandler {
 
+    /**
+     * Size of the buffer in front of the {@link MimeMessageInputStreamSource}, so the many short lines of the DATA
+     * end up in few large writes to the spool file
+     */
+    private final static int SPOOL_BUFFER_SIZE = 32 * 1024;
+
+    private final static String SPOOL_OUTPUTSTREAM = "org.apache.james.smtpserver.DataLineJamesMessageHookHandler.SPOOL_OUTPUTSTREAM";
+
     private List<JamesMessageHook> messageHandlers;
 
     private List<HookResultHook> rHooks;
@@ -79,19 +96,20 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
 
     }
 
-    public Response onLine(SMTPSession session, ByteBuffer lineByteBuffer, LineHandler<SMTPSession> next) {
-
-        byte[] line = new byte[lineByteBuffer.remaining()];
-        lineByteBuffer.get(line, 0, line.length);
+    public Response onLine(SMTPSession session, ByteBuffer line, LineHandler<SMTPSession> next) {
 
-        MimeMessageInputStreamSource mmiss = (MimeMessageInputStreamSource) session.getAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, State.Transaction);
+        final MimeMessageInputStreamSource mmiss = (MimeMessageInputStreamSource) session.getAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, State.Transaction);
 
         try {
-            OutputStream out = mmiss.getWritableOutputStream();
+            OutputStream out = getSpoolOutputStream(session, mmiss);
+
+            // the line is inspected in place, without copying it first
+            int position = line.position();
+            int length = line.remaining();
 
             // 46 is "."
             // Stream terminated
-            if (line.length == 3 && line[0] == 46) {
+            if (length == 3 && line.get(position) == 46) {
                 out.flush();
                 out.close();
 
@@ -109,12 +127,13 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
                     mailetMailAddressAdapter = new MailetMailAddressAdapter(mailAddress);
                 }
 
-                MailImpl mail = new MailImpl(MailImpl.getId(), mailetMailAddressAdapter, rcpts);
+                final MailImpl mail = new MailImpl(MailImpl.getId(), mailetMailAddressAdapter, rcpts);
 
                 // store mail in the session so we can be sure it get disposed later
                 session.setAttachment(SMTPConstants.MAIL, mail, State.Transaction);
 
                 MimeMessageCopyOnWriteProxy mimeMessageCopyOnWriteProxy = null;
+                boolean pending = false;
                 try {
                     mimeMessageCopyOnWriteProxy = new MimeMessageCopyOnWriteProxy(mmiss);
                     mail.setMessage(mimeMessageCopyOnWriteProxy);
@@ -122,6 +141,21 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
                     Response response = processExtensions(session, mail);
 
                     session.popLineHandler();
+
+                    if (response instanceof FutureResponse) {
+                        // asynchronous hooks are still using the message
+                        pending = true;
+                        final MimeMessageCopyOnWriteProxy proxy = mimeMessageCopyOnWriteProxy;
+                        ((FutureResponse) response).addListener(new ResponseListener() {
+
+                            @Override
+                            public void onResponse(FutureResponse response) {
+                                LifecycleUtil.dispose(proxy);
+                                LifecycleUtil.dispose(mmiss);
+                                LifecycleUtil.dispose(mail);
+                            }
+                        });
+                    }
                     return response;
 
                 } catch (MessagingException e) {
@@ -129,20 +163,22 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
                     session.getLogger().info("Unexpected error handling DATA stream", e);
                     return new SMTPResponse(SMTPRetCode.LOCAL_ERROR, "Unexpected error handling DATA stream.");
                 } finally {
-                    LifecycleUtil.dispose(mimeMessageCopyOnWriteProxy);
-                    LifecycleUtil.dispose(mmiss);
-                    LifecycleUtil.dispose(mail);
+                    if (!pending) {
+                        LifecycleUtil.dispose(mimeMessageCopyOnWriteProxy);
+                        LifecycleUtil.dispose(mmiss);
+                        LifecycleUtil.dispose(mail);
+                    }
                 }
 
                 // DotStuffing.
-            } else if (line[0] == 46 && line[1] == 46) {
-                out.write(line, 1, line.length - 1);
+            } else if (length > 1 && line.get(position) == 46 && line.get(position + 1) == 46) {
+                write(out, line, position + 1, length - 1);
                 // Standard write
             } else {
                 // TODO: maybe we should handle the Header/Body recognition here
                 // and if needed let a filter to cache the headers to apply some
                 // transformation before writing them to output.
-                out.write(line);
+                write(out, line, position, length);
             }
         } catch (IOException e) {
             LifecycleUtil.dispose(mmiss);
@@ -158,66 +194,137 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
         return null;
     }
 
-    protected Response processExtensions(SMTPSession session, Mail mail) {
+    /**
+     * Return the buffered {@link OutputStream} used to spool the DATA of the current transaction
+     */
+    private OutputStream getSpoolOutputStream(SMTPSession session, MimeMessageInputStreamSource mmiss) {
+        OutputStream out = (OutputStream) session.getAttachment(SPOOL_OUTPUTSTREAM, State.Transaction);
+        if (out == null) {
+            out = new BufferedOutputStream(mmiss.getWritableOutputStream(), SPOOL_BUFFER_SIZE);
+            session.setAttachment(SPOOL_OUTPUTSTREAM, out, State.Transaction);
+        }
+        return out;
+    }
+
+    /**
+     * Write the given part of the line to the {@link OutputStream}. Lines backed by an array are written straight
+     * from it.
+     */
+    private void write(OutputStream out, ByteBuffer line, int offset, int length) throws IOException {
+        if (line.hasArray()) {
+            out.write(line.array(), line.arrayOffset() + offset, length);
+        } else {
+            byte[] bytes = new byte[length];
+            ByteBuffer slice = line.duplicate();
+            slice.position(offset);
+            slice.get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    protected Response processExtensions(final SMTPSession session, final Mail mail) {
         if (mail != null && messageHandlers != null) {
+            Response response = null;
             try {
                 MimeMessageInputStreamSource mmiss = (MimeMessageInputStreamSource) session.getAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, State.Transaction);
                 OutputStream out;
                 out = mmiss.getWritableOutputStream();
-                for (MessageHook rawHandler : mHandlers) {
-                    session.getLogger().debug("executing james message handler " + rawHandler);
-                    long start = System.currentTimeMillis();
-
-                    HookResult hRes = rawHandler.onMessage(session, new MailToMailEnvelopeWrapper(mail, out));
-                    long executionTime = System.currentTimeMillis() - start;
+                response = processHooks(session, mail, new MailToMailEnvelopeWrapper(mail, out), 0);
+                return response;
+            } finally {
+                if (response instanceof FutureResponse) {
+                    ((FutureResponse) response).addListener(new ResponseListener() {
 
-                    if (rHooks != null) {
-                        for (HookResultHook rHook : rHooks) {
-                            session.getLogger().debug("executing hook " + rHook);
-                            hRes = rHook.onHookResult(session, hRes, executionTime, rawHandler);
+                        @Override
+                        public void onResponse(FutureResponse response) {
+                            cleanup(session, mail);
                         }
-                    }
-
-                    SMTPResponse response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(hRes);
+                    });
+                } else {
+                    cleanup(session, mail);
+                }
+            }
+        }
+        return null;
+    }
 
-                    // if the response is received, stop processing of command
-                    // handlers
-                    if (response != null) {
-                        return response;
-                    }
+    /**
+     * Call the {@link MessageHook}'s and then the {@link JamesMessageHook}'s, starting at the given index. A
+     * {@link FutureResponse} is returned if an asynchronous hook did not complete yet.
+     */
+    private Response processHooks(final SMTPSession session, final Mail mail, final MailEnvelope envelope, int index) {
+        int messageHookCount = mHandlers.size();
+        for (int i = index; i < messageHookCount + messageHandlers.size(); i++) {
+            final Hook rawHandler;
+            FutureHookResult futureResult;
+            final long start;
+            if (i < messageHookCount) {
+                MessageHook messageHook = mHandlers.get(i);
+                rawHandler = messageHook;
+                session.getLogger().debug("executing james message handler " + rawHandler);
+                start = System.currentTimeMillis();
+                if (messageHook instanceof AsyncMessageHook) {
+                    futureResult = ((AsyncMessageHook) messageHook).onMessageAsync(session, envelope);
+                } else {
+                    futureResult = new FutureHookResult(messageHook.onMessage(session, envelope));
+                }
+            } else {
+                JamesMessageHook messageHandler = messageHandlers.get(i - messageHookCount);
+                rawHandler = messageHandler;
+                session.getLogger().debug("executing james message handler " + rawHandler);
+                start = System.currentTimeMillis();
+                if (messageHandler instanceof AsyncJamesMessageHook) {
+                    futureResult = ((AsyncJamesMessageHook) messageHandler).onMessageAsync(session, mail);
+                } else {
+                    futureResult = new FutureHookResult(messageHandler.onMessage(session, mail));
                 }
+            }
+
+            if (!futureResult.isReady()) {
+                final int next = i + 1;
+                final FutureResponseImpl futureResponse = new FutureResponseImpl();
+                futureResult.addListener(new HookResultListener() {
 
-                for (JamesMessageHook messageHandler : messageHandlers) {
-                    session.getLogger().debug("executing james message handler " + messageHandler);
-                    long start = System.currentTimeMillis();
-                    HookResult hRes = messageHandler.onMessage(session, mail);
-                    long executionTime = System.currentTimeMillis() - start;
-                    if (rHooks != null) {
-                        for (HookResultHook rHook : rHooks) {
-                            session.getLogger().debug("executing hook " + rHook);
-                            hRes = rHook.onHookResult(session, hRes, executionTime, messageHandler);
+                    @Override
+                    public void onHookResult(FutureHookResult result) {
+                        Response response = processHookResult(session, rawHandler, result.getHookResult(), System.currentTimeMillis() - start);
+                        if (response == null) {
+                            response = processHooks(session, mail, envelope, next);
                         }
+                        futureResponse.completeWith(response);
                     }
+                });
+                return futureResponse;
+            }
 
-                    SMTPResponse response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(hRes);
+            SMTPResponse response = processHookResult(session, rawHandler, futureResult.getHookResult(), System.currentTimeMillis() - start);
 
-                    // if the response is received, stop processing of command
-                    // handlers
-                    if (response != null) {
-                        return response;
-                    }
-                }
-            } finally {
-                // Dispose the mail object and remove it
-                if (mail != null) {
-                    LifecycleUtil.dispose(mail);
-                    mail = null;
-                }
-                // do the clean up
-                session.resetState();
+            // if the response is received, stop processing of command
+            // handlers
+            if (response != null) {
+                return response;
             }
         }
-        return null;
+
+        // Not queue the message!
+        return AbstractHookableCmdHandler.calcDefaultSMTPResponse(new HookResult(HookReturnCode.DENY));
+    }
+
+    private SMTPResponse processHookResult(SMTPSession session, Hook rawHandler, HookResult hRes, long executionTime) {
+        if (rHooks != null) {
+            for (HookResultHook rHook : rHooks) {
+                session.getLogger().debug("executing hook " + rHook);
+                hRes = rHook.onHookResult(session, hRes, executionTime, rawHandler);
+            }
+        }
+        return AbstractHookableCmdHandler.calcDefaultSMTPResponse(hRes);
+    }
+
+    private void cleanup(SMTPSession session, Mail mail) {
+        // Dispose the mail object and remove it
+        LifecycleUtil.dispose(mail);
+        // do the clean up
+        session.resetState();
     }
 
     @SuppressWarnings("unchecked")
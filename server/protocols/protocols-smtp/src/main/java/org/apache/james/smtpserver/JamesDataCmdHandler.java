@@ -21,6 +21,7 @@ package org.apache.james.smtpserver;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageInputStreamSource;
 import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
@@ -32,13 +33,11 @@ import org.apache.james.protocols.smtp.core.DataCmdHandler;
 public class JamesDataCmdHandler extends DataCmdHandler {
 
     /**
-     * Handler method called upon receipt of a DATA command. Reads in message
-     * data, creates header, and delivers to mail server service for delivery.
+     * Prepare the {@link MimeMessageInputStreamSource} which the message data of the transaction is written to.
      *
-     * @param session  SMTP session object
-     * @param argument the argument passed in with the command by the SMTP client
+     * @param session SMTP session object
      */
-    protected SMTPResponse doDATA(SMTPSession session, String argument) {
+    protected Response prepareData(SMTPSession session) {
         try {
             MimeMessageInputStreamSource mmiss = new MimeMessageInputStreamSource(MailImpl.getId());
             session.setAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, mmiss, State.Transaction);
@@ -46,11 +45,7 @@ public class JamesDataCmdHandler extends DataCmdHandler {
             session.getLogger().warn("Error creating mimemessagesource for incoming data", e);
             return new SMTPResponse(SMTPRetCode.LOCAL_ERROR, "Unexpected error preparing to receive DATA.");
         }
-
-        // out = new PipedOutputStream(messageIn);
-        session.pushLineHandler(getLineHandler());
-
-        return new SMTPResponse(SMTPRetCode.DATA_READY, "Ok Send data ending with <CRLF>.<CRLF>");
+        return null;
     }
 
 }
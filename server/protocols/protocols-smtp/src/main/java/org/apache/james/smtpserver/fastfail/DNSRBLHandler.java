@@ -18,10 +18,13 @@
  ****************************************************************/
 package org.apache.james.smtpserver.fastfail;
 
-import java.net.UnknownHostException;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
@@ -29,17 +32,59 @@ import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.AsyncDNSLookup;
 import org.apache.james.protocols.api.handler.ProtocolHandler;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
+import org.apache.james.protocols.smtp.hook.HookResult;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * DNSRBL handler backed by the James {@link DNSService}.
+ * 
+ * All whitelist and blacklist lookups of a connection are issued in parallel
+ * and completed with a single timeout, without blocking the calling thread:
+ * the RCPT response is written once the answers are there. The lookups run on
+ * the executor shared with the {@link URIRBLHandler}. Answers are cached.
+ */
 public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail.DNSRBLHandler implements ProtocolHandler {
 
+    public static final long DEFAULT_LOOKUP_TIMEOUT = 5000;
+
+    public static final int DEFAULT_LOOKUP_THREADS = 16;
+
     private DNSService dns;
 
+    private long lookupTimeout = DEFAULT_LOOKUP_TIMEOUT;
+
+    private int lookupThreads = DEFAULT_LOOKUP_THREADS;
+
+    private long positiveCacheTTL = AsyncDNSLookup.DEFAULT_POSITIVE_TTL;
+
+    private long negativeCacheTTL = AsyncDNSLookup.DEFAULT_NEGATIVE_TTL;
+
+    private RBLLookupExecutor lookupExecutor;
+
+    private AsyncDNSLookup asyncLookup;
+
     @Inject
     public void setDNSService(DNSService dns) {
         this.dns = dns;
     }
 
+    /**
+     * Set the maximum time in milliseconds to wait for all the RBL lookups of a connection
+     * 
+     * @param lookupTimeout
+     */
+    public void setLookupTimeout(long lookupTimeout) {
+        this.lookupTimeout = lookupTimeout;
+    }
+
     @Override
     public void init(Configuration config) throws ConfigurationException {
         boolean validConfig = false;
@@ -65,25 +110,102 @@ public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail
         }
 
         setGetDetail(handlerConfiguration.getBoolean("getDetail", false));
+
+        setLookupTimeout(handlerConfiguration.getLong("lookupTimeout", DEFAULT_LOOKUP_TIMEOUT));
+        lookupThreads = handlerConfiguration.getInt("lookupThreads", DEFAULT_LOOKUP_THREADS);
+        if (lookupThreads < 1) {
+            throw new ConfigurationException("lookupThreads must be at least 1");
+        }
+        positiveCacheTTL = handlerConfiguration.getLong("positiveCacheTTL", AsyncDNSLookup.DEFAULT_POSITIVE_TTL);
+        negativeCacheTTL = handlerConfiguration.getLong("negativeCacheTTL", AsyncDNSLookup.DEFAULT_NEGATIVE_TTL);
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (lookupExecutor != null) {
+            RBLLookupExecutor.release(lookupExecutor);
+            lookupExecutor = null;
+            asyncLookup = null;
+        }
+    }
+
+    private synchronized AsyncDNSLookup getAsyncLookup() {
+        if (asyncLookup == null) {
+            lookupExecutor = RBLLookupExecutor.acquire(lookupThreads);
+            asyncLookup = new AsyncDNSLookup(dns, lookupExecutor.getExecutor(), positiveCacheTTL, negativeCacheTTL, AsyncDNSLookup.DEFAULT_MAX_CACHE_SIZE);
+        }
+        return asyncLookup;
+    }
+
+    private synchronized RBLLookupExecutor getLookupExecutor() {
+        getAsyncLookup();
+        return lookupExecutor;
     }
 
     @Override
-    public void destroy() {
-        // Do nothing
+    public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
+        return doRcptAsync(session, sender, rcpt).getHookResult();
     }
 
     @Override
-    protected boolean resolve(String ip) {
+    public FutureHookResult doRcptAsync(final SMTPSession session, MailAddress sender, MailAddress rcpt) {
+        final String ipAddress = session.getRemoteAddress().getAddress().getHostAddress();
+        if (!startCheck(session)) {
+            return new FutureHookResult(getRcptResult(session));
+        }
+
+        final AsyncDNSLookup lookup = getAsyncLookup();
+        final RBLLookupExecutor lookupExecutor = getLookupExecutor();
+        final FutureHookResult result = new FutureHookResult();
+        final ListenableFuture<Map<String, InetAddress>> listed = lookup.getByNames(getLookupHostnames(ipAddress), lookupTimeout, TimeUnit.MILLISECONDS, lookupExecutor.getTimer());
+        listed.addListener(new Runnable() {
+            @Override
+            public void run() {
+                final String blocklistedBy = findBlocklisting(session, ipAddress, Futures.getUnchecked(listed).keySet());
+                if (blocklistedBy == null) {
+                    result.setHookResult(getRcptResult(session));
+                } else if (isGetDetail()) {
+                    final ListenableFuture<Collection<String>> txt = lookup.findTXTRecords(blocklistedBy, lookupTimeout, TimeUnit.MILLISECONDS, lookupExecutor.getTimer());
+                    txt.addListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            setBlocklisted(session, Futures.getUnchecked(txt));
+                            result.setHookResult(getRcptResult(session));
+                        }
+                    }, MoreExecutors.sameThreadExecutor());
+                } else {
+                    setBlocklisted(session, Collections.<String>emptyList());
+                    result.setHookResult(getRcptResult(session));
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    @Override
+    protected Collection<String> resolveAll(Collection<String> hostnames) {
         try {
-            dns.getByName(ip);
-            return true;
-        } catch (UnknownHostException e) {
-            return false;
+            return getAsyncLookup().getByNames(hostnames, lookupTimeout, TimeUnit.MILLISECONDS).keySet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptySet();
         }
     }
 
+    @Override
+    protected boolean resolve(String ip) {
+        return !resolveAll(Collections.singleton(ip)).isEmpty();
+    }
+
     @Override
     protected Collection<String> resolveTXTRecords(String ip) {
-        return dns.findTXTRecords(ip);
+        try {
+            return getAsyncLookup().findTXTRecords(ip, lookupTimeout, TimeUnit.MILLISECONDS, getLookupExecutor().getTimer()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } catch (ExecutionException e) {
+            return Collections.emptyList();
+        }
     }
 }
@@ -0,0 +1,226 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.netmatcher.NetMatcher;
+import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.protocols.api.handler.ProtocolHandler;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.util.TimeConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GreylistHandler which keeps the greylist in memory instead of a database.
+ * <p>
+ * If a <code>snapshotFile</code> is configured the greylist is loaded from it
+ * on startup, written to it every <code>snapshotInterval</code> and on
+ * shutdown, so restarts do not reset the auto whitelist.
+ */
+public class InMemoryGreylistHandler extends org.apache.james.protocols.smtp.core.fastfail.InMemoryGreylistHandler implements ProtocolHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryGreylistHandler.class);
+
+    private FileSystem fileSystem;
+
+    private DNSService dnsService;
+
+    private NetMatcher wNetworks;
+
+    private File snapshotFile;
+
+    private ScheduledExecutorService scheduler;
+
+    @Inject
+    public void setFileSystem(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    @Inject
+    public void setDNSService(DNSService dnsService) {
+        this.dnsService = dnsService;
+    }
+
+    /**
+     * Set the whitelisted networks
+     * 
+     * @param wNetworks
+     *            The whitelisted networks
+     */
+    public void setWhiteListedNetworks(NetMatcher wNetworks) {
+        this.wNetworks = wNetworks;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#doRcpt(SMTPSession, MailAddress, MailAddress)
+     */
+    public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
+        if ((wNetworks == null) || (!wNetworks.matchInetNetwork(session.getRemoteAddress().getAddress().getHostAddress()))) {
+            return super.doRcpt(session, sender, rcpt);
+        } else {
+            session.getLogger().info("IpAddress " + session.getRemoteAddress().getAddress().getHostAddress() + " is whitelisted. Skip greylisting.");
+        }
+        return new HookResult(HookReturnCode.DECLINED);
+    }
+
+    @Override
+    public void init(Configuration handlerConfiguration) throws ConfigurationException {
+        try {
+            setTempBlockTime(TimeConverter.getMilliSeconds(handlerConfiguration.getString("tempBlockTime", "1 hour")));
+            setAutoWhiteListLifeTime(TimeConverter.getMilliSeconds(handlerConfiguration.getString("autoWhiteListLifeTime", "36 days")));
+            setUnseenLifeTime(TimeConverter.getMilliSeconds(handlerConfiguration.getString("unseenLifeTime", "4 hours")));
+            setBucketWidth(TimeConverter.getMilliSeconds(handlerConfiguration.getString("bucketWidth", "10 minutes")));
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+
+        String nets = handlerConfiguration.getString("whitelistedNetworks");
+        if (nets != null) {
+            String[] whitelistArray = nets.split(",");
+            List<String> wList = new ArrayList<String>(whitelistArray.length);
+            for (String aWhitelistArray : whitelistArray) {
+                wList.add(aWhitelistArray.trim());
+            }
+            setWhiteListedNetworks(new NetMatcher(wList, dnsService));
+            LOGGER.info("Whitelisted addresses: " + wNetworks.toString());
+        }
+
+        String snapshot = handlerConfiguration.getString("snapshotFile", null);
+        if (snapshot != null) {
+            long interval;
+            try {
+                snapshotFile = fileSystem.getFile(snapshot);
+                interval = TimeConverter.getMilliSeconds(handlerConfiguration.getString("snapshotInterval", "5 minutes"));
+            } catch (IOException e) {
+                throw new ConfigurationException("Unable to access snapshotFile " + snapshot, e);
+            } catch (NumberFormatException e) {
+                throw new ConfigurationException(e.getMessage());
+            }
+            loadSnapshot();
+
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Greylist snapshot writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    saveSnapshot();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * Load the snapshot. If it is missing because a save stopped between
+     * deleting it and renaming the temporary file, the complete temporary
+     * file is loaded instead
+     */
+    private void loadSnapshot() {
+        File file = snapshotFile;
+        if (!file.exists()) {
+            file = getTemporarySnapshotFile();
+            if (!file.exists()) {
+                return;
+            }
+        }
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            readSnapshot(in);
+            LOGGER.info("Loaded " + size() + " greylist entries from " + file);
+        } catch (IOException e) {
+            LOGGER.error("Unable to load greylist snapshot " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+
+    private File getTemporarySnapshotFile() {
+        return new File(snapshotFile.getPath() + ".tmp");
+    }
+
+    /**
+     * Write the snapshot to a temporary file first, so a crash never leaves a
+     * truncated snapshot behind. The old snapshot is only deleted once the
+     * temporary file is complete, see {@link #loadSnapshot()}
+     */
+    private synchronized void saveSnapshot() {
+        File tmp = getTemporarySnapshotFile();
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            writeSnapshot(out);
+            out.close();
+            out = null;
+            if (snapshotFile.exists() && !snapshotFile.delete() || !tmp.renameTo(snapshotFile)) {
+                throw new IOException("Unable to replace " + snapshotFile);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to save greylist snapshot " + snapshotFile, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+}
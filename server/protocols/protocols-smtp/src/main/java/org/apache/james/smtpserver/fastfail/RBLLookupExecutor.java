@@ -0,0 +1,96 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.smtpserver.fastfail;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.util.concurrent.NamedThreadFactory;
+
+/**
+ * Executor shared by the RBL handlers of the server to run their DNS lookups,
+ * together with the timer which enforces the lookup deadlines.
+ * 
+ * The executor is created by the first handler which acquires it and shut down
+ * once the last handler released it. Its size is the largest number of threads
+ * requested by the handlers.
+ */
+final class RBLLookupExecutor {
+
+    private static RBLLookupExecutor shared;
+
+    private static int references;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledExecutorService timer;
+
+    private RBLLookupExecutor(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("RBLLookup"));
+        executor.allowCoreThreadTimeOut(true);
+        timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("RBLLookupTimer"));
+    }
+
+    /**
+     * Acquire the shared executor, making sure it runs at least the given number of lookups at once
+     * 
+     * @param threads
+     * @return executor
+     */
+    static synchronized RBLLookupExecutor acquire(int threads) {
+        if (shared == null) {
+            shared = new RBLLookupExecutor(threads);
+        } else if (shared.executor.getMaximumPoolSize() < threads) {
+            shared.executor.setMaximumPoolSize(threads);
+            shared.executor.setCorePoolSize(threads);
+        }
+        references++;
+        return shared;
+    }
+
+    /**
+     * Release the given executor, shutting it down if it is not used anymore
+     * 
+     * @param lookupExecutor
+     */
+    static synchronized void release(RBLLookupExecutor lookupExecutor) {
+        if (lookupExecutor != shared) {
+            return;
+        }
+        references--;
+        if (references == 0) {
+            shared.executor.shutdownNow();
+            shared.timer.shutdownNow();
+            shared = null;
+        }
+    }
+
+    ThreadPoolExecutor getExecutor() {
+        return executor;
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+}
@@ -19,11 +19,14 @@
 package org.apache.james.smtpserver.fastfail;
 
 import java.io.IOException;
-import java.net.UnknownHostException;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.mail.MessagingException;
@@ -35,22 +38,37 @@ import javax.mail.internet.MimePart;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.AsyncDNSLookup;
 import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.api.handler.ProtocolHandler;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
-import org.apache.james.smtpserver.JamesMessageHook;
+import org.apache.james.smtpserver.AsyncJamesMessageHook;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
 /**
  * Extract domains from message and check against URIRBLServer. For more
  * informations see <a href="http://www.surbl.org">www.surbl.org</a>
+ * 
+ * The lookups for all domains on all servers are issued in parallel and
+ * completed with a single timeout, without blocking the calling thread. They
+ * run on the executor shared with the {@link DNSRBLHandler}. Answers are
+ * cached.
  */
-public class URIRBLHandler implements JamesMessageHook, ProtocolHandler {
+public class URIRBLHandler implements AsyncJamesMessageHook, ProtocolHandler {
+
+    public static final long DEFAULT_LOOKUP_TIMEOUT = 5000;
+
+    public static final int DEFAULT_LOOKUP_THREADS = 16;
 
     /** This log is the fall back shared by all instances */
     private static final Logger FALLBACK_LOG = LoggerFactory.getLogger(URIRBLHandler.class);
@@ -71,6 +89,18 @@ public class URIRBLHandler implements JamesMessageHook, ProtocolHandler {
 
     private boolean getDetail = false;
 
+    private long lookupTimeout = DEFAULT_LOOKUP_TIMEOUT;
+
+    private int lookupThreads = DEFAULT_LOOKUP_THREADS;
+
+    private long positiveCacheTTL = AsyncDNSLookup.DEFAULT_POSITIVE_TTL;
+
+    private long negativeCacheTTL = AsyncDNSLookup.DEFAULT_NEGATIVE_TTL;
+
+    private RBLLookupExecutor lookupExecutor;
+
+    private AsyncDNSLookup asyncLookup;
+
     /**
      * Gets the DNS service.
      * 
@@ -111,36 +141,92 @@ public class URIRBLHandler implements JamesMessageHook, ProtocolHandler {
         this.getDetail = getDetail;
     }
 
+    /**
+     * Set the maximum time in milliseconds to wait for all the lookups of a
+     * message
+     * 
+     * @param lookupTimeout
+     *            the timeout
+     */
+    public void setLookupTimeout(long lookupTimeout) {
+        this.lookupTimeout = lookupTimeout;
+    }
+
     /**
      * @see org.apache.james.smtpserver.JamesMessageHook#onMessage(org.apache.james.protocols.smtp.SMTPSession,
      *      org.apache.mailet.Mail)
      */
     public HookResult onMessage(SMTPSession session, Mail mail) {
-        if (check(session, mail)) {
-            String uRblServer = (String) session.getAttachment(URBLSERVER, State.Transaction);
-            String target = (String) session.getAttachment(LISTED_DOMAIN, State.Transaction);
-            String detail = null;
-
-            // we should try to retrieve details
-            if (getDetail) {
-                Collection<String> txt = dnsService.findTXTRecords(target + "." + uRblServer);
+        return onMessageAsync(session, mail).getHookResult();
+    }
 
-                // Check if we found a txt record
-                if (!txt.isEmpty()) {
-                    // Set the detail
-                    detail = txt.iterator().next();
+    /**
+     * @see org.apache.james.smtpserver.AsyncJamesMessageHook#onMessageAsync(org.apache.james.protocols.smtp.SMTPSession,
+     *      org.apache.mailet.Mail)
+     */
+    public FutureHookResult onMessageAsync(final SMTPSession session, Mail mail) {
+        // address -> {domain, server}
+        final Map<String, String[]> lookups = getLookups(session, mail);
+        if (lookups.isEmpty()) {
+            return new FutureHookResult(new HookResult(HookReturnCode.DECLINED));
+        }
 
+        final AsyncDNSLookup lookup = getAsyncLookup();
+        final RBLLookupExecutor lookupExecutor = getLookupExecutor();
+        final FutureHookResult result = new FutureHookResult();
+        final ListenableFuture<Map<String, InetAddress>> listed = lookup.getByNames(lookups.keySet(), lookupTimeout, TimeUnit.MILLISECONDS, lookupExecutor.getTimer());
+        listed.addListener(new Runnable() {
+            @Override
+            public void run() {
+                final String address = firstListed(lookups.keySet(), Futures.getUnchecked(listed).keySet());
+                if (address == null) {
+                    result.setHookResult(new HookResult(HookReturnCode.DECLINED));
+                    return;
+                }
+                final String[] match = lookups.get(address);
+
+                // store server name for later use
+                session.setAttachment(URBLSERVER, match[1], State.Transaction);
+                session.setAttachment(LISTED_DOMAIN, match[0], State.Transaction);
+
+                // we should try to retrieve details
+                if (getDetail) {
+                    final ListenableFuture<Collection<String>> txt = lookup.findTXTRecords(address, lookupTimeout, TimeUnit.MILLISECONDS, lookupExecutor.getTimer());
+                    txt.addListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            Collection<String> records = Futures.getUnchecked(txt);
+                            // Check if we found a txt record
+                            String detail = records.isEmpty() ? null : records.iterator().next();
+                            result.setHookResult(deny(match[0], match[1], detail));
+                        }
+                    }, MoreExecutors.sameThreadExecutor());
+                } else {
+                    result.setHookResult(deny(match[0], match[1], null));
                 }
             }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
 
-            if (detail != null) {
-                return new HookResult(HookReturnCode.DENY, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SECURITY_OTHER) + "Rejected: message contains domain " + target + " listed by " + uRblServer + " . Details: " + detail);
-            } else {
-                return new HookResult(HookReturnCode.DENY, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SECURITY_OTHER) + " Rejected: message contains domain " + target + " listed by " + uRblServer);
+    /**
+     * Return the first of the looked up addresses which is listed, so the
+     * reported domain does not depend on which answer arrived first
+     */
+    private String firstListed(Collection<String> addresses, Set<String> listedAddresses) {
+        for (String address : addresses) {
+            if (listedAddresses.contains(address)) {
+                return address;
             }
+        }
+        return null;
+    }
 
+    private HookResult deny(String target, String uRblServer, String detail) {
+        if (detail != null) {
+            return new HookResult(HookReturnCode.DENY, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SECURITY_OTHER) + "Rejected: message contains domain " + target + " listed by " + uRblServer + " . Details: " + detail);
         } else {
-            return new HookResult(HookReturnCode.DECLINED);
+            return new HookResult(HookReturnCode.DENY, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SECURITY_OTHER) + " Rejected: message contains domain " + target + " listed by " + uRblServer);
         }
     }
 
@@ -187,40 +273,24 @@ public class URIRBLHandler implements JamesMessageHook, ProtocolHandler {
     }
 
     /**
-     * Check method
+     * Return the addresses to lookup for the domains found in the message,
+     * mapped to their domain and URIRBL server
      */
-    protected boolean check(SMTPSession session, Mail mail) {
-        MimeMessage message;
-
+    private Map<String, String[]> getLookups(SMTPSession session, Mail mail) {
+        Map<String, String[]> lookups = new LinkedHashMap<String, String[]>();
         try {
-            message = mail.getMessage();
+            MimeMessage message = mail.getMessage();
 
             HashSet<String> domains = scanMailForDomains(message, session);
 
             for (String domain : domains) {
-                Iterator<String> uRbl = uriRbl.iterator();
-                String target = domain;
-
-                while (uRbl.hasNext()) {
-                    try {
-                        String uRblServer = uRbl.next();
-                        String address = target + "." + uRblServer;
-
-                        if (session.getLogger().isDebugEnabled()) {
-                            session.getLogger().debug("Lookup " + address);
-                        }
-
-                        dnsService.getByName(address);
+                for (String uRblServer : uriRbl) {
+                    String address = domain + "." + uRblServer;
 
-                        // store server name for later use
-                        session.setAttachment(URBLSERVER, uRblServer, State.Transaction);
-                        session.setAttachment(LISTED_DOMAIN, target, State.Transaction);
-
-                        return true;
-
-                    } catch (UnknownHostException uhe) {
-                        // domain not found. keep processing
+                    if (session.getLogger().isDebugEnabled()) {
+                        session.getLogger().debug("Lookup " + address);
                     }
+                    lookups.put(address, new String[] { domain, uRblServer });
                 }
             }
         } catch (MessagingException e) {
@@ -228,7 +298,20 @@ public class URIRBLHandler implements JamesMessageHook, ProtocolHandler {
         } catch (IOException e) {
             session.getLogger().error(e.getMessage());
         }
-        return false;
+        return lookups;
+    }
+
+    private synchronized AsyncDNSLookup getAsyncLookup() {
+        if (asyncLookup == null) {
+            lookupExecutor = RBLLookupExecutor.acquire(lookupThreads);
+            asyncLookup = new AsyncDNSLookup(dnsService, lookupExecutor.getExecutor(), positiveCacheTTL, negativeCacheTTL, AsyncDNSLookup.DEFAULT_MAX_CACHE_SIZE);
+        }
+        return asyncLookup;
+    }
+
+    private synchronized RBLLookupExecutor getLookupExecutor() {
+        getAsyncLookup();
+        return lookupExecutor;
     }
 
     @Override
@@ -248,11 +331,22 @@ public class URIRBLHandler implements JamesMessageHook, ProtocolHandler {
         }
 
         setGetDetail(config.getBoolean("getDetail", false));        
+
+        setLookupTimeout(config.getLong("lookupTimeout", DEFAULT_LOOKUP_TIMEOUT));
+        lookupThreads = config.getInt("lookupThreads", DEFAULT_LOOKUP_THREADS);
+        if (lookupThreads < 1) {
+            throw new ConfigurationException("lookupThreads must be at least 1");
+        }
+        positiveCacheTTL = config.getLong("positiveCacheTTL", AsyncDNSLookup.DEFAULT_POSITIVE_TTL);
+        negativeCacheTTL = config.getLong("negativeCacheTTL", AsyncDNSLookup.DEFAULT_NEGATIVE_TTL);
     }
 
     @Override
-    public void destroy() {
-        // TODO Auto-generated method stub
-        
+    public synchronized void destroy() {
+        if (lookupExecutor != null) {
+            RBLLookupExecutor.release(lookupExecutor);
+            lookupExecutor = null;
+            asyncLookup = null;
+        }
     }
 }
@@ -424,10 +424,11 @@ public class SMTPServerTest {
             capabilitieslist.add(capabilityRes[i].substring(4));
         }
 
-        assertEquals("capabilities", 3, capabilitieslist.size());
+        assertEquals("capabilities", 4, capabilitieslist.size());
         assertTrue("capabilities present PIPELINING", capabilitieslist.contains("PIPELINING"));
         assertTrue("capabilities present ENHANCEDSTATUSCODES", capabilitieslist.contains("ENHANCEDSTATUSCODES"));
         assertTrue("capabilities present 8BITMIME", capabilitieslist.contains("8BITMIME"));
+        assertTrue("capabilities present CHUNKING", capabilitieslist.contains("CHUNKING"));
 
         smtpProtocol.setSender("mail@localhost");
         smtpProtocol.addRecipient("mail@localhost");
@@ -440,6 +441,84 @@ public class SMTPServerTest {
         assertNotNull("mail received by mail server", queue.getLastMail());
     }
 
+    @Test
+    public void testLargeDotStuffedMailSend() throws Exception {
+        init(smtpConfiguration);
+
+        SMTPClient smtpProtocol = new SMTPClient();
+        smtpProtocol.connect("127.0.0.1", smtpListenerPort);
+
+        smtpProtocol.sendCommand("EHLO " + InetAddress.getLocalHost());
+        smtpProtocol.setSender("mail@localhost");
+        smtpProtocol.addRecipient("mail@localhost");
+
+        StringBuilder body = new StringBuilder();
+        // spans several spool buffers
+        for (int i = 0; i < 4000; i++) {
+            body.append(i % 2 == 0 ? "." : "..").append("line ").append(i).append("\r\n");
+        }
+
+        Writer wr = smtpProtocol.sendMessageData();
+        wr.write("Subject: test\r\n\r\n");
+        wr.write(body.toString());
+        wr.close();
+
+        assertTrue(smtpProtocol.completePendingCommand());
+        assertEquals("expected 250 ok", 250, smtpProtocol.getReplyCode());
+
+        smtpProtocol.quit();
+        smtpProtocol.disconnect();
+
+        Mail mail = queue.getLastMail();
+        assertNotNull("mail received by mail server", mail);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        mail.getMessage().writeTo(content, new String[] { "Received" });
+        assertTrue("dot-stuffing removed", content.toString().endsWith("\r\n\r\n" + body.toString()));
+    }
+
+    @Test
+    public void testPipelinedChunkedMailSend() throws Exception {
+        init(smtpConfiguration);
+
+        SMTPClient smtpProtocol = new SMTPClient();
+        smtpProtocol.connect("127.0.0.1", smtpListenerPort);
+
+        smtpProtocol.sendCommand("EHLO " + InetAddress.getLocalHost());
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 4000; i++) {
+            body.append(i % 2 == 0 ? "." : "").append("line ").append(i).append("\r\n");
+        }
+        String data = "Subject: test\r\n\r\n" + body;
+
+        // the chunks split lines, the client sends the CRLF which ends the last chunk
+        StringBuilder commands = new StringBuilder("MAIL FROM:<mail@localhost>\r\nRCPT TO:<mail@localhost>\r\n");
+        int chunks = 0;
+        for (int start = 0; start < data.length(); start += 5000) {
+            int end = Math.min(start + 5000, data.length());
+            commands.append("BDAT ").append(end - start).append(end == data.length() ? " LAST\r\n" : "\r\n");
+            commands.append(data, start, end);
+            chunks++;
+        }
+        commands.setLength(commands.length() - 2);
+
+        smtpProtocol.sendCommand(commands.toString());
+        assertEquals("expected 250 ok", 250, smtpProtocol.getReplyCode());
+        for (int i = 0; i < chunks + 1; i++) {
+            smtpProtocol.getReply();
+            assertEquals("expected 250 ok", 250, smtpProtocol.getReplyCode());
+        }
+
+        smtpProtocol.quit();
+        smtpProtocol.disconnect();
+
+        Mail mail = queue.getLastMail();
+        assertNotNull("mail received by mail server", mail);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        mail.getMessage().writeTo(content, new String[] { "Received" });
+        assertTrue("message received unchanged", content.toString().endsWith("\r\n\r\n" + body.toString()));
+    }
+
     @Test
     public void testStartTLSInEHLO() throws Exception {
         smtpConfiguration.setStartTLS();
@@ -459,10 +538,11 @@ public class SMTPServerTest {
             capabilitieslist.add(capabilityRes[i].substring(4));
         }
 
-        assertEquals("capabilities", 4, capabilitieslist.size());
+        assertEquals("capabilities", 5, capabilitieslist.size());
         assertTrue("capabilities present PIPELINING", capabilitieslist.contains("PIPELINING"));
         assertTrue("capabilities present ENHANCEDSTATUSCODES", capabilitieslist.contains("ENHANCEDSTATUSCODES"));
         assertTrue("capabilities present 8BITMIME", capabilitieslist.contains("8BITMIME"));
+        assertTrue("capabilities present CHUNKING", capabilitieslist.contains("CHUNKING"));
         assertTrue("capabilities present STARTTLS", capabilitieslist.contains("STARTTLS"));
 
         smtpProtocol.quit();
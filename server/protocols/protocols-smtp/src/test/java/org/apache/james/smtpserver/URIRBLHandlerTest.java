@@ -42,6 +42,7 @@ import org.apache.james.smtpserver.mock.MockMimeMessage;
 import org.apache.james.smtpserver.mock.mailet.MockMail;
 import org.apache.mailet.Mail;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 public class URIRBLHandlerTest {
@@ -50,6 +51,7 @@ public class URIRBLHandlerTest {
     private static final String BAD_DOMAIN2 = "bad2.domain.de";
     private static final String GOOD_DOMAIN = "good.apache.org";
     private static final String URISERVER = "multi.surbl.org.";
+    private static final String SLOW_URISERVER = "slow.surbl.org.";
     private Mail mockedMail;
 
     private SMTPSession setupMockedSMTPSession(final Mail mail) {
@@ -221,6 +223,42 @@ public class URIRBLHandlerTest {
         assertEquals("Email was rejected", response.getResult(), HookReturnCode.DENY);
     }
 
+    @Test
+    public void testBlockedByTheFirstListingServer() throws IOException, MessagingException {
+
+        ArrayList<String> servers = new ArrayList<String>();
+        servers.add(SLOW_URISERVER);
+        servers.add(URISERVER);
+
+        SMTPSession session = setupMockedSMTPSession(setupMockedMail(setupMockedMimeMessage(
+                "http://" + BAD_DOMAIN1 + "/")));
+
+        URIRBLHandler handler = new URIRBLHandler();
+
+        final DNSService dns = setupMockedDnsServer();
+        handler.setDNSService(new MockDNSService() {
+
+            @Override
+            public InetAddress getByName(String host) throws UnknownHostException {
+                if ((BAD_DOMAIN1.substring(4) + "." + SLOW_URISERVER).equals(host)) {
+                    // answer after the other server
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return InetAddress.getByName("127.0.0.1");
+                }
+                return dns.getByName(host);
+            }
+        });
+        handler.setUriRblServer(servers);
+        HookResult response = handler.onMessage(session, mockedMail);
+
+        assertEquals("Email was rejected", response.getResult(), HookReturnCode.DENY);
+        assertTrue("Rejected by the first configured server", response.getSmtpDescription().endsWith(SLOW_URISERVER));
+    }
+
     /*
      * public void testAddJunkScore() throws IOException, MessagingException {
      * 
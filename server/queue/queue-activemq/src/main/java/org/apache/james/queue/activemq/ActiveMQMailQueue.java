@@ -104,7 +104,20 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
      * @param logger
      */
     public ActiveMQMailQueue(final ConnectionFactory connectionFactory, final String queuename, boolean useBlob, final Logger logger) {
-        super(connectionFactory, queuename, logger);
+        this(connectionFactory, queuename, useBlob, false, logger);
+    }
+
+    /**
+     * Construct a new ActiveMQ based {@link MailQueue}.
+     * 
+     * @param connectionFactory
+     * @param queuename
+     * @param useBlob
+     * @param useIndex
+     * @param logger
+     */
+    public ActiveMQMailQueue(final ConnectionFactory connectionFactory, final String queuename, boolean useBlob, boolean useIndex, final Logger logger) {
+        super(connectionFactory, queuename, useIndex, logger);
         this.useBlob = useBlob;
     }
 
@@ -280,10 +293,14 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
 
     /**
      * Try to use ActiveMQ StatisticsPlugin to get size and if that fails
-     * fallback to {@link JMSMailQueue#getSize()}
+     * fallback to {@link JMSMailQueue#getSize()}. If the index is used it is
+     * always asked directly
      */
     @Override
     public long getSize() throws MailQueueException {
+        if (isIndexed()) {
+            return super.getSize();
+        }
 
         Connection connection = null;
         Session session = null;
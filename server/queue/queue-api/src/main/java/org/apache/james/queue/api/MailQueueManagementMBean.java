@@ -79,4 +79,16 @@ public interface MailQueueManagementMBean {
      */
     List<CompositeData> browse() throws Exception;
 
+    /**
+     * Allow to browse a page of the content of the queue
+     * 
+     * @param offset
+     *            the count of mails to skip
+     * @param limit
+     *            the max count of mails to return
+     * @return data
+     * @throws Exception
+     */
+    List<CompositeData> browse(int offset, int limit) throws Exception;
+
 }
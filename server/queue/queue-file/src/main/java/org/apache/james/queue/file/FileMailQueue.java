@@ -18,35 +18,31 @@
  ****************************************************************/
 package org.apache.james.queue.file;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
-import javax.mail.util.SharedFileInputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
-import org.apache.james.core.MimeMessageSource;
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.MailPrioritySupport;
 import org.apache.james.queue.api.ManageableMailQueue;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
@@ -54,196 +50,241 @@ import org.slf4j.Logger;
 /**
  * {@link ManageableMailQueue} implementation which use the fs to store {@link Mail}'s
  * <p/>
+ * The {@link Mail}'s and the operations on them are appended to a {@link MailJournal}. With sync
+ * enabled, enqueues which happen at about the same time share one <code>fsync</code>. The journal
+ * is compacted in the background.
+ * <p/>
+ * Mails which are delayed are kept in buckets by the time they may be delivered. A single task
+ * moves the keys of the due buckets to the in-memory queue. The envelope of a mail is only read
+ * when it is dequeued.
+ * <p/>
+ * The in-memory queue is a {@link PriorityKeyQueue}, which honours the {@link #MAIL_PRIORITY}
+ * attribute of the enqueued {@link Mail}'s. Mails without it get {@link #NORMAL_PRIORITY}.
+ * <p/>
  * On create of the {@link FileMailQueue} the {@link #init()} will get called. This takes care of
- * loading the needed meta-data into memory for fast access.
+ * loading the index of the queue from the journal. Mails which were stored by older versions as
+ * one file per mail are moved into the journal at this point.
  */
-public class FileMailQueue implements ManageableMailQueue {
+public class FileMailQueue implements ManageableMailQueue, MailPrioritySupport, Disposable {
+
+    /**
+     * Default time in milliseconds to wait for more enqueues before syncing the journal
+     */
+    public final static long DEFAULT_GROUP_COMMIT_DELAY = 2;
 
-    private final ConcurrentHashMap<String, FileItem> keyMappings = new ConcurrentHashMap<String, FileMailQueue.FileItem>();
-    private final BlockingQueue<String> inmemoryQueue = new LinkedBlockingQueue<String>();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    /**
+     * Default maximal size in bytes of a journal segment
+     */
+    public final static long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final PriorityKeyQueue inmemoryQueue = new PriorityKeyQueue();
+    private final TreeMap<Long, List<String>> delayed = new TreeMap<Long, List<String>>();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
     private final static AtomicLong COUNTER = new AtomicLong();
-    private final String queueDirName;
     private final File queueDir;
     private final Logger log;
 
     private final boolean sync;
-    private final static String MSG_EXTENSION = ".msg";
-    private final static String OBJECT_EXTENSION = ".obj";
-    private final static String NEXT_DELIVERY = "FileQueueNextDelivery";
+    private final long groupCommitDelay;
+    private final long maxSegmentSize;
+    private MailJournal journal;
+    private final static String JOURNAL_DIR = "journal";
+    private final static long COMPACTION_INTERVAL = 10;
+    private final static long DELAY_BUCKET = 1000;
+    private final static String MAIL_EXTENSION = ".mail";
+    private final static String LEGACY_MSG_EXTENSION = ".msg";
+    private final static String LEGACY_OBJECT_EXTENSION = ".obj";
+    private final static String LEGACY_NEXT_DELIVERY = "FileQueueNextDelivery";
     private final static int SPLITCOUNT = 10;
 
     public FileMailQueue(File parentDir, String queuename, boolean sync, Logger log) throws IOException {
+        this(parentDir, queuename, sync, DEFAULT_GROUP_COMMIT_DELAY, DEFAULT_MAX_SEGMENT_SIZE, log);
+    }
+
+    public FileMailQueue(File parentDir, String queuename, boolean sync, long groupCommitDelay, long maxSegmentSize, Logger log) throws IOException {
         this.log = log;
         this.sync = sync;
+        this.groupCommitDelay = groupCommitDelay;
+        this.maxSegmentSize = maxSegmentSize;
         this.queueDir = new File(parentDir, queuename);
-        this.queueDirName = queueDir.getAbsolutePath();
         init();
     }
 
     private void init() throws IOException {
+        journal = new MailJournal(new File(queueDir, JOURNAL_DIR), sync, groupCommitDelay, maxSegmentSize, log);
 
         for (int i = 1; i <= SPLITCOUNT; i++) {
-
             File qDir = new File(queueDir, Integer.toString(i));
-            FileUtils.forceMkdir(qDir);
-
-            String[] files = qDir.list(new FilenameFilter() {
-                @Override
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(OBJECT_EXTENSION);
-                }
-            });
-
-            for (final String name : files) {
+            if (qDir.isDirectory()) {
+                importFiles(qDir);
+            }
+        }
 
-                ObjectInputStream oin = null;
+        for (MailJournal.Entry entry : journal.entries()) {
+            schedule(entry);
+        }
 
-                try {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
 
-                    final String msgFileName = name.substring(0, name.length() - OBJECT_EXTENSION.length()) + MSG_EXTENSION;
+            @Override
+            public void run() {
+                promoteDelayed();
+            }
+        }, DELAY_BUCKET, DELAY_BUCKET, TimeUnit.MILLISECONDS);
 
-                    FileItem item = new FileItem(qDir.getAbsolutePath() + File.separator + name, qDir.getAbsolutePath() + File.separator + msgFileName);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
 
-                    oin = new ObjectInputStream(new FileInputStream(item.getObjectFile()));
-                    Mail mail = (Mail) oin.readObject();
-                    Long next = (Long) mail.getAttribute(NEXT_DELIVERY);
-                    if (next == null) {
-                        next = 0L;
-                    }
+            @Override
+            public void run() {
+                try {
+                    journal.compact();
+                } catch (IOException e) {
+                    log.error("Unable to compact the journal of " + queueDir, e);
+                }
+            }
+        }, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.SECONDS);
+    }
 
-                    final String key = mail.getName();
-                    keyMappings.put(key, item);
-                    if (next <= System.currentTimeMillis()) {
+    /**
+     * Put the mail in the queue for processing, or in the bucket of the time it may be delivered
+     */
+    private void schedule(MailJournal.Entry entry) {
+        String key = entry.getKey();
+        long nextDelivery = entry.getNextDelivery();
+        if (nextDelivery <= System.currentTimeMillis()) {
+            inmemoryQueue.add(key, entry.getPriority());
+        } else {
+            // the end of the bucket, so no mail is delivered too early
+            long bucket = (nextDelivery + DELAY_BUCKET - 1) / DELAY_BUCKET * DELAY_BUCKET;
+            synchronized (delayed) {
+                List<String> keys = delayed.get(bucket);
+                if (keys == null) {
+                    keys = new ArrayList<String>();
+                    delayed.put(bucket, keys);
+                }
+                keys.add(key);
+            }
+        }
+    }
 
-                        try {
-                            inmemoryQueue.put(key);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }
-                    } else {
+    /**
+     * Move the mails of all due buckets to the queue
+     */
+    private void promoteDelayed() {
+        List<String> due = new ArrayList<String>();
+        synchronized (delayed) {
+            Iterator<List<String>> buckets = delayed.headMap(System.currentTimeMillis(), true).values().iterator();
+            while (buckets.hasNext()) {
+                due.addAll(buckets.next());
+                buckets.remove();
+            }
+        }
+        for (String key : due) {
+            MailJournal.Entry entry = journal.get(key);
+            // skip mails which left the queue in the meantime
+            if (entry != null) {
+                schedule(entry);
+            }
+        }
+    }
 
-                        // Schedule a task which will put the mail in the queue
-                        // for processing after a given delay
-                        scheduler.schedule(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                try {
-                                    inmemoryQueue.put(key);
-                                } catch (InterruptedException e) {
-                                    Thread.currentThread().interrupt();
-                                    throw new RuntimeException("Unable to init", e);
-                                }
-                            }
-                        }, next - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
-                    }
+    /**
+     * Move the mails which older versions stored as one file per mail, either as a
+     * {@link MailEnvelope} followed by the content in a <code>.mail</code> file or as a serialized
+     * <code>.obj</code> file and a <code>.msg</code> file, into the journal
+     */
+    private void importFiles(File qDir) throws IOException {
+        String[] files = qDir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(MAIL_EXTENSION) || name.endsWith(LEGACY_OBJECT_EXTENSION);
+            }
+        });
 
-                } catch (ClassNotFoundException e1) {
-                    log.error("Unable to load Mail", e1);
-                } catch (IOException e) {
-                    log.error("Unable to load Mail", e);
-                } finally {
-                    if (oin != null) {
-                        try {
-                            oin.close();
-                        } catch (Exception e) {
-                            // ignore on close
-                        }
-                    }
+        List<String> imported = new ArrayList<String>();
+        for (String name : files) {
+            File file = new File(qDir, name);
+            InputStream in = null;
+            Mail mail = null;
+            try {
+                long next;
+                if (name.endsWith(MAIL_EXTENSION)) {
+                    in = new BufferedInputStream(new FileInputStream(file));
+                    MailEnvelope envelope = MailEnvelope.read(in);
+                    mail = envelope.getMail();
+                    next = envelope.getNextDelivery();
+                    mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(file, envelope.getContentOffset(), file.length())));
+                } else {
+                    in = new ObjectInputStream(new FileInputStream(file));
+                    mail = (Mail) ((ObjectInputStream) in).readObject();
+                    Long legacyNext = (Long) mail.removeAttribute(LEGACY_NEXT_DELIVERY);
+                    next = legacyNext == null ? 0 : legacyNext;
+                    File msgFile = new File(qDir, name.substring(0, name.length() - LEGACY_OBJECT_EXTENSION.length()) + LEGACY_MSG_EXTENSION);
+                    mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(msgFile, 0, msgFile.length())));
                 }
+                journal.add(name.substring(0, name.lastIndexOf('.')), next, getPriority(mail), mail);
+                imported.add(name);
+            } catch (ClassNotFoundException e) {
+                log.error("Unable to import Mail " + file, e);
+                continue;
+            } catch (MessagingException e) {
+                log.error("Unable to import Mail " + file, e);
+                continue;
+            } catch (IOException e) {
+                log.error("Unable to import Mail " + file, e);
+                continue;
+            } finally {
+                IOUtils.closeQuietly(in);
+                LifecycleUtil.dispose(mail);
+            }
+        }
 
+        journal.sync();
+        for (String name : imported) {
+            FileUtils.deleteQuietly(new File(qDir, name));
+            if (name.endsWith(LEGACY_OBJECT_EXTENSION)) {
+                FileUtils.deleteQuietly(new File(qDir, name.substring(0, name.length() - LEGACY_OBJECT_EXTENSION.length()) + LEGACY_MSG_EXTENSION));
             }
         }
+        qDir.delete();
     }
 
     @Override
     public void enQueue(final Mail mail, long delay, TimeUnit unit) throws MailQueueException {
-        final String key = mail.getName() + "-" + COUNTER.incrementAndGet();
-        FileOutputStream out = null;
-        FileOutputStream foout = null;
-        ObjectOutputStream oout = null;
-        try {
-            int i = (int) (Math.random() * SPLITCOUNT + 1);
-
-
-            String name = queueDirName + "/" + i + "/" + key;
+        String key;
+        do {
+            key = mail.getName() + "-" + COUNTER.incrementAndGet();
+        } while (journal.get(key) != null);
 
-            final FileItem item = new FileItem(name + OBJECT_EXTENSION, name + MSG_EXTENSION);
+        try {
+            long nextDelivery = 0;
             if (delay > 0) {
-                mail.setAttribute(NEXT_DELIVERY, System.currentTimeMillis() + unit.toMillis(delay));
+                nextDelivery = System.currentTimeMillis() + unit.toMillis(delay);
             }
-            foout = new FileOutputStream(item.getObjectFile());
-            oout = new ObjectOutputStream(foout);
-            oout.writeObject(mail);
-            oout.flush();
-            if (sync) foout.getFD().sync();
-            out = new FileOutputStream(item.getMessageFile());
-
-            mail.getMessage().writeTo(out);
-            out.flush();
-            if (sync) out.getFD().sync();
 
-            keyMappings.put(key, item);
+            // returns once the mail is synced to disk, together with the mails enqueued
+            // concurrently
+            MailJournal.Entry entry = journal.enqueue(key, nextDelivery, getPriority(mail), mail);
 
-            if (delay > 0) {
-                // The message should get delayed so schedule it for later
-                scheduler.schedule(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        try {
-                            inmemoryQueue.put(key);
-
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }
-                    }
-                }, delay, unit);
-
-            } else {
-                inmemoryQueue.put(key);
-            }
+            schedule(entry);
 
             //TODO: Think about exception handling in detail
-        } catch (FileNotFoundException e) {
-            throw new MailQueueException("Unable to enqueue mail", e);
         } catch (IOException e) {
             throw new MailQueueException("Unable to enqueue mail", e);
-
         } catch (MessagingException e) {
             throw new MailQueueException("Unable to enqueue mail", e);
-        } catch (InterruptedException e) {
-            throw new MailQueueException("Unable to enqueue mail", e);
-
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
-            }
-            if (oout != null) {
-                try {
-                    oout.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
-            }
-            if (foout != null) {
-                try {
-                    foout.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
-            }
         }
 
     }
 
+    private int getPriority(Mail mail) {
+        Object priority = mail.getAttribute(MAIL_PRIORITY);
+        if (priority instanceof Integer) {
+            return Math.max(LOW_PRIORITY, Math.min(HIGH_PRIORITY, (Integer) priority));
+        }
+        return NORMAL_PRIORITY;
+    }
+
     @Override
     public void enQueue(Mail mail) throws MailQueueException {
         enQueue(mail, 0, TimeUnit.MILLISECONDS);
@@ -252,23 +293,18 @@ public class FileMailQueue implements ManageableMailQueue {
     @Override
     public MailQueueItem deQueue() throws MailQueueException {
         try {
-            FileItem item = null;
+            MailJournal.Entry entry = null;
             String k = null;
-            while (item == null) {
+            while (entry == null) {
                 k = inmemoryQueue.take();
 
-                item = keyMappings.get(k);
+                entry = journal.get(k);
 
             }
             final String key = k;
-            final FileItem fitem = item;
-            ObjectInputStream oin = null;
+            final int priority = entry.getPriority();
             try {
-                final File objectFile = new File(fitem.getObjectFile());
-                final File msgFile = new File(fitem.getMessageFile());
-                oin = new ObjectInputStream(new FileInputStream(objectFile));
-                final Mail mail = (Mail) oin.readObject();
-                mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(msgFile)));
+                final Mail mail = journal.readMail(entry);
                 return new MailQueueItem() {
 
                     @Override
@@ -279,15 +315,13 @@ public class FileMailQueue implements ManageableMailQueue {
                     @Override
                     public void done(boolean success) throws MailQueueException {
                         if (!success) {
+                            inmemoryQueue.add(key, priority);
+                        } else {
                             try {
-                                inmemoryQueue.put(key);
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                                throw new MailQueueException("Unable to rollback", e);
+                                journal.remove(key);
+                            } catch (IOException e) {
+                                throw new MailQueueException("Unable to remove mail", e);
                             }
-                        } else {
-                            fitem.delete();
-                            keyMappings.remove(key);
                         }
 
                         LifecycleUtil.dispose(mail);
@@ -295,23 +329,10 @@ public class FileMailQueue implements ManageableMailQueue {
                 };
 
                 // TODO: Think about exception handling in detail
-            } catch (FileNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
             } catch (IOException e) {
                 throw new MailQueueException("Unable to dequeue", e);
-            } catch (ClassNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
             } catch (MessagingException e) {
                 throw new MailQueueException("Unable to dequeue", e);
-
-            } finally {
-                if (oin != null) {
-                    try {
-                        oin.close();
-                    } catch (IOException e) {
-                        // ignore on close
-                    }
-                }
             }
 
         } catch (InterruptedException e) {
@@ -320,93 +341,38 @@ public class FileMailQueue implements ManageableMailQueue {
         }
     }
 
-    private final class FileMimeMessageSource extends MimeMessageSource implements Disposable {
-
-        private File file;
-        private final SharedFileInputStream in;
-
-        public FileMimeMessageSource(File file) throws IOException {
-            this.file = file;
-            this.in = new SharedFileInputStream(file);
-        }
-
-        @Override
-        public String getSourceId() {
-            return file.getAbsolutePath();
-        }
-
-        /**
-         * Get an input stream to retrieve the data stored in the temporary file
-         *
-         * @return a <code>BufferedInputStream</code> containing the data
-         */
-        @Override
-        public InputStream getInputStream() throws IOException {
-            return in.newStream(0, -1);
-        }
-
-        @Override
-        public long getMessageSize() throws IOException {
-            return file.length();
-        }
-
-        @Override
-        public void dispose() {
-            IOUtils.closeQuietly(in);
-            file = null;
-        }
-
-    }
-
-    /**
-     * Helper class which is used to reference the path to the object and msg file
-     */
-    private final class FileItem {
-        private final String objectfile;
-        private final String messagefile;
-
-        public FileItem(String objectfile, String messagefile) {
-            this.objectfile = objectfile;
-            this.messagefile = messagefile;
-        }
-
-        public String getObjectFile() {
-            return objectfile;
-        }
-
-        public String getMessageFile() {
-            return messagefile;
-        }
-
-        public void delete() throws MailQueueException {
-            try {
-                FileUtils.forceDelete(new File(getObjectFile()));
-            } catch (IOException e) {
-                throw new MailQueueException("Unable to delete mail");
-            }
-
-            try {
-                FileUtils.forceDelete(new File(getMessageFile()));
-            } catch (IOException e) {
-                log.debug("Remove of msg file for mail failed");
-            }
-        }
-    }
-
     @Override
     public long getSize() throws MailQueueException {
-        return keyMappings.size();
+        return journal.size();
     }
 
     @Override
     public long flush() throws MailQueueException {
-        Iterator<String> keys = keyMappings.keySet().iterator();
+        List<String> keys = new ArrayList<String>();
+        synchronized (delayed) {
+            for (List<String> bucket : delayed.values()) {
+                keys.addAll(bucket);
+            }
+            delayed.clear();
+        }
         long i = 0;
-        while (keys.hasNext()) {
-            String key = keys.next();
-            if (!inmemoryQueue.contains(key)) {
-                inmemoryQueue.add(key);
-                i++;
+        for (int j = 0; j < keys.size(); j++) {
+            String key = keys.get(j);
+            try {
+                MailJournal.Entry entry = journal.get(key);
+                if (entry != null && journal.reschedule(key, 0)) {
+                    inmemoryQueue.add(key, entry.getPriority());
+                    i++;
+                }
+            } catch (IOException e) {
+                // keep the mails which were not flushed
+                for (String remaining : keys.subList(j, keys.size())) {
+                    MailJournal.Entry entry = journal.get(remaining);
+                    if (entry != null) {
+                        schedule(entry);
+                    }
+                }
+                throw new MailQueueException("Unable to flush mail", e);
             }
         }
         return i;
@@ -414,17 +380,16 @@ public class FileMailQueue implements ManageableMailQueue {
 
     @Override
     public long clear() throws MailQueueException {
-        final Iterator<Entry<String, FileItem>> items = keyMappings.entrySet().iterator();
+        final Iterator<MailJournal.Entry> entries = journal.entries().iterator();
         long count = 0;
-        while (items.hasNext()) {
-            Entry<String, FileItem> entry = items.next();
-            FileItem item = entry.getValue();
-            String key = entry.getKey();
-
-            item.delete();
-            keyMappings.remove(key);
-            count++;
-
+        while (entries.hasNext()) {
+            try {
+                if (journal.remove(entries.next().getKey())) {
+                    count++;
+                }
+            } catch (IOException e) {
+                throw new MailQueueException("Unable to delete mail", e);
+            }
         }
         return count;
     }
@@ -438,12 +403,14 @@ public class FileMailQueue implements ManageableMailQueue {
     public long remove(Type type, String value) throws MailQueueException {
         switch (type) {
             case Name:
-                FileItem item = keyMappings.remove(value);
-                if (item != null) {
-                    item.delete();
-                    return 1;
-                } else {
-                    return 0;
+                try {
+                    if (journal.remove(value)) {
+                        return 1;
+                    } else {
+                        return 0;
+                    }
+                } catch (IOException e) {
+                    throw new MailQueueException("Unable to delete mail", e);
                 }
 
             default:
@@ -455,7 +422,7 @@ public class FileMailQueue implements ManageableMailQueue {
 
     @Override
     public MailQueueIterator browse() throws MailQueueException {
-        final Iterator<FileItem> items = keyMappings.values().iterator();
+        final Iterator<MailJournal.Entry> entries = journal.entries().iterator();
         return new MailQueueIterator() {
             private MailQueueItemView item = null;
 
@@ -479,16 +446,15 @@ public class FileMailQueue implements ManageableMailQueue {
             @Override
             public boolean hasNext() {
                 if (item == null) {
-                    while (items.hasNext()) {
-                        ObjectInputStream in = null;
+                    while (entries.hasNext()) {
+                        final MailJournal.Entry entry = entries.next();
                         try {
-                            in = new ObjectInputStream(new FileInputStream(items.next().getObjectFile()));
-                            final Mail mail = (Mail) in.readObject();
+                            final Mail mail = journal.readEnvelope(entry).getMail();
                             item = new MailQueueItemView() {
 
                                 @Override
                                 public long getNextDelivery() {
-                                    return (Long) mail.getAttribute(NEXT_DELIVERY);
+                                    return entry.getNextDelivery();
                                 }
 
                                 @Override
@@ -497,21 +463,8 @@ public class FileMailQueue implements ManageableMailQueue {
                                 }
                             };
                             return true;
-                        } catch (FileNotFoundException e) {
-                            log.info("Unable to load mail", e);
                         } catch (IOException e) {
                             log.info("Unable to load mail", e);
-
-                        } catch (ClassNotFoundException e) {
-                            log.info("Unable to load mail", e);
-                        } finally {
-                            if (in != null) {
-                                try {
-                                    in.close();
-                                } catch (IOException e) {
-                                    // ignore on close
-                                }
-                            }
                         }
                     }
                     return false;
@@ -527,4 +480,14 @@ public class FileMailQueue implements ManageableMailQueue {
         };
     }
 
+    @Override
+    public void dispose() {
+        scheduler.shutdownNow();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.error("Unable to close the journal of " + queueDir, e);
+        }
+    }
+
 }
@@ -19,11 +19,13 @@
 package org.apache.james.queue.file;
 
 import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.lifecycle.api.LogEnabled;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueueFactory;
 import org.slf4j.Logger;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import java.io.IOException;
@@ -39,6 +41,8 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled {
     private FileSystem fs;
     private Logger log;
     private boolean sync = true;
+    private long groupCommitDelay = FileMailQueue.DEFAULT_GROUP_COMMIT_DELAY;
+    private long maxSegmentSize = FileMailQueue.DEFAULT_MAX_SEGMENT_SIZE;
 
     @Inject
     public void setFileSystem(FileSystem fs) {
@@ -57,13 +61,37 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled {
         this.sync = sync;
     }
 
+    /**
+     * Set the time in milliseconds a {@link FileMailQueue} waits for more enqueues before it calls
+     * <code>fsync</code>, so they are all synced at once. Only used if sync is enabled.
+     * <p/>
+     * The default is <code>2</code>
+     *
+     * @param groupCommitDelay
+     */
+    public void setGroupCommitDelay(long groupCommitDelay) {
+        this.groupCommitDelay = groupCommitDelay;
+    }
+
+    /**
+     * Set the maximal size in bytes of the journal segments of the later created
+     * {@link FileMailQueue}'s
+     * <p/>
+     * The default is 64mb
+     *
+     * @param maxSegmentSize
+     */
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
     @Override
     public MailQueue getQueue(String name) {
         MailQueue queue = queues.get(name);
         if (queue == null) {
             synchronized (queues) {
                 try {
-                    queue = new FileMailQueue(fs.getFile("file://var/store/queue"), name, sync, log);
+                    queue = new FileMailQueue(fs.getFile("file://var/store/queue"), name, sync, groupCommitDelay, maxSegmentSize, log);
                     queues.put(name, queue);
                 } catch (IOException e) {
                     throw new RuntimeException("Unable to access queue " + name, e);
@@ -73,6 +101,16 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled {
         return queue;
     }
 
+    @PreDestroy
+    public void destroy() {
+        synchronized (queues) {
+            for (MailQueue queue : queues.values()) {
+                LifecycleUtil.dispose(queue);
+            }
+            queues.clear();
+        }
+    }
+
     @Override
     public void setLog(Logger log) {
         this.log = log;
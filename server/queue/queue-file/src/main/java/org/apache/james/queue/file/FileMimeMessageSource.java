@@ -0,0 +1,74 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.Disposable;
+
+/**
+ * {@link MimeMessageSource} which reads the message from a range of a file
+ */
+final class FileMimeMessageSource extends MimeMessageSource implements Disposable {
+
+    private File file;
+    private final long start;
+    private final long end;
+    private final SharedFileInputStream in;
+
+    public FileMimeMessageSource(File file, long start, long end) throws IOException {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+        this.in = new SharedFileInputStream(file);
+    }
+
+    @Override
+    public String getSourceId() {
+        return file.getAbsolutePath() + "#" + start;
+    }
+
+    /**
+     * Get an input stream to retrieve the data stored in the file
+     *
+     * @return a <code>BufferedInputStream</code> containing the data
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return in.newStream(start, end);
+    }
+
+    @Override
+    public long getMessageSize() throws IOException {
+        return end - start;
+    }
+
+    @Override
+    public void dispose() {
+        IOUtils.closeQuietly(in);
+        file = null;
+    }
+
+}
@@ -0,0 +1,352 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.mail.internet.AddressException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * Binary envelope which is stored in front of the MIME content of a queued {@link Mail}.
+ * <p/>
+ * The layout is:
+ * <pre>
+ * int     magic ("JQME")
+ * byte    version
+ * int     length of the header which follows
+ * long    next delivery time (0 if the mail can be delivered at once, or if the
+ *         {@link MailJournal} keeps it)
+ * string  name
+ * string  sender (null for the null sender)
+ * int     recipient count, followed by the recipients as strings
+ * string  state
+ * string  error message
+ * string  remote host
+ * string  remote address
+ * long    last updated (-1 if not set)
+ * int     attribute count, followed by name, type tag and value per attribute
+ * </pre>
+ * Strings are written as the length of their UTF-8 bytes followed by the bytes, with a length
+ * of -1 for <code>null</code>. Attribute values of well known immutable types are written
+ * natively, all others fall back to Java serialization.
+ */
+final class MailEnvelope {
+
+    private final static int MAGIC = 0x4A514D45;
+    private final static byte VERSION = 1;
+    private final static int PREAMBLE_LENGTH = 4 + 1 + 4;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final static byte TYPE_NULL = 0;
+    private final static byte TYPE_STRING = 1;
+    private final static byte TYPE_INTEGER = 2;
+    private final static byte TYPE_LONG = 3;
+    private final static byte TYPE_BOOLEAN = 4;
+    private final static byte TYPE_SHORT = 5;
+    private final static byte TYPE_BYTE = 6;
+    private final static byte TYPE_FLOAT = 7;
+    private final static byte TYPE_DOUBLE = 8;
+    private final static byte TYPE_CHARACTER = 9;
+    private final static byte TYPE_DATE = 10;
+    private final static byte TYPE_MAIL_ADDRESS = 11;
+    private final static byte TYPE_BYTE_ARRAY = 12;
+    private final static byte TYPE_SERIALIZED = 127;
+
+    private final Mail mail;
+    private final long nextDelivery;
+    private final int contentOffset;
+
+    private MailEnvelope(Mail mail, long nextDelivery, int contentOffset) {
+        this.mail = mail;
+        this.nextDelivery = nextDelivery;
+        this.contentOffset = contentOffset;
+    }
+
+    /**
+     * Return the {@link Mail} without its message
+     */
+    public Mail getMail() {
+        return mail;
+    }
+
+    /**
+     * Return the time after which the {@link Mail} may be delivered, or 0
+     */
+    public long getNextDelivery() {
+        return nextDelivery;
+    }
+
+    /**
+     * Return the offset of the MIME content in the stream the envelope was read from
+     */
+    public int getContentOffset() {
+        return contentOffset;
+    }
+
+    /**
+     * Write the envelope of the given {@link Mail} to the stream. The MIME content is expected
+     * to be written right after it.
+     *
+     * @return the number of bytes written, which is the offset of the MIME content
+     */
+    public static int write(Mail mail, long nextDelivery, OutputStream out) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+        DataOutputStream hout = new DataOutputStream(header);
+        hout.writeLong(nextDelivery);
+        writeString(hout, mail.getName());
+        MailAddress sender = mail.getSender();
+        writeString(hout, sender == null ? null : sender.toString());
+        Collection<MailAddress> recipients = mail.getRecipients();
+        if (recipients == null) {
+            hout.writeInt(0);
+        } else {
+            hout.writeInt(recipients.size());
+            for (MailAddress recipient : recipients) {
+                writeString(hout, recipient.toString());
+            }
+        }
+        writeString(hout, mail.getState());
+        writeString(hout, mail.getErrorMessage());
+        writeString(hout, mail.getRemoteHost());
+        writeString(hout, mail.getRemoteAddr());
+        Date lastUpdated = mail.getLastUpdated();
+        hout.writeLong(lastUpdated == null ? -1 : lastUpdated.getTime());
+
+        List<String> names = new ArrayList<String>();
+        Iterator<String> it = mail.getAttributeNames();
+        while (it.hasNext()) {
+            names.add(it.next());
+        }
+        hout.writeInt(names.size());
+        for (String name : names) {
+            writeString(hout, name);
+            writeAttribute(hout, mail.getAttribute(name));
+        }
+        hout.flush();
+
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeByte(VERSION);
+        dout.writeInt(header.size());
+        header.writeTo(dout);
+        dout.flush();
+        return PREAMBLE_LENGTH + header.size();
+    }
+
+    /**
+     * Read the envelope from the stream. The stream is left positioned at the start of the MIME
+     * content.
+     */
+    public static MailEnvelope read(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        int length = readPreamble(din);
+        byte[] header = new byte[length];
+        din.readFully(header);
+        DataInputStream hin = new DataInputStream(new ByteArrayInputStream(header));
+
+        long nextDelivery = hin.readLong();
+        MailImpl mail = new MailImpl();
+        mail.setName(readString(hin));
+        try {
+            String sender = readString(hin);
+            mail.setSender(sender == null ? null : new MailAddress(sender));
+            int count = hin.readInt();
+            List<MailAddress> recipients = new ArrayList<MailAddress>(count);
+            for (int i = 0; i < count; i++) {
+                recipients.add(new MailAddress(readString(hin)));
+            }
+            mail.setRecipients(recipients);
+        } catch (AddressException e) {
+            throw new IOException("Error parsing address: " + e.getMessage());
+        }
+        mail.setState(readString(hin));
+        mail.setErrorMessage(readString(hin));
+        mail.setRemoteHost(readString(hin));
+        mail.setRemoteAddr(readString(hin));
+        long lastUpdated = hin.readLong();
+        if (lastUpdated >= 0) {
+            mail.setLastUpdated(new Date(lastUpdated));
+        }
+        int count = hin.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = readString(hin);
+            mail.setAttribute(name, readAttribute(hin));
+        }
+        return new MailEnvelope(mail, nextDelivery, PREAMBLE_LENGTH + length);
+    }
+
+    private static int readPreamble(DataInputStream din) throws IOException {
+        if (din.readInt() != MAGIC) {
+            throw new IOException("Not a mail envelope");
+        }
+        byte version = din.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported mail envelope version " + version);
+        }
+        int length = din.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid mail envelope length " + length);
+        }
+        return length;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeAttribute(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Short) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Character) {
+            out.writeByte(TYPE_CHARACTER);
+            out.writeChar((Character) value);
+        } else if (value.getClass() == Date.class) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value.getClass() == MailAddress.class) {
+            out.writeByte(TYPE_MAIL_ADDRESS);
+            writeString(out, value.toString());
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(TYPE_BYTE_ARRAY);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(bytes);
+            oout.writeObject(value);
+            oout.close();
+            out.writeByte(TYPE_SERIALIZED);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    private static Serializable readAttribute(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_INTEGER:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_SHORT:
+                return in.readShort();
+            case TYPE_BYTE:
+                return in.readByte();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_CHARACTER:
+                return in.readChar();
+            case TYPE_DATE:
+                return new Date(in.readLong());
+            case TYPE_MAIL_ADDRESS:
+                try {
+                    return new MailAddress(readString(in));
+                } catch (AddressException e) {
+                    throw new IOException("Error parsing address: " + e.getMessage());
+                }
+            case TYPE_BYTE_ARRAY: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case TYPE_SERIALIZED: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                try {
+                    return (Serializable) oin.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unable to read attribute: " + e.getMessage());
+                } finally {
+                    oin.close();
+                }
+            }
+            default:
+                throw new IOException("Unknown attribute type " + type);
+        }
+    }
+}
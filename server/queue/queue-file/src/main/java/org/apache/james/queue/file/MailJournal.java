@@ -0,0 +1,1016 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import javax.mail.MessagingException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+
+/**
+ * Append-only journal which stores the {@link Mail}'s of a {@link FileMailQueue} and the
+ * operations done on them.
+ * <p/>
+ * The journal is split in segment files. Each record is written as its type, the length of its
+ * payload, a CRC32 of the payload and the payload itself:
+ * <ul>
+ * <li>{@link #ENQUEUE}: the key, the next delivery time, the priority and the {@link MailEnvelope}
+ * followed by the MIME content</li>
+ * <li>{@link #DONE}: the key of a mail which left the queue</li>
+ * <li>{@link #REQUEUE}: the key and the new next delivery time of a mail</li>
+ * </ul>
+ * The index of the mails in the queue is kept in memory. It is checkpointed to an index file
+ * from time to time and when the journal is closed. On startup the index file is loaded and only
+ * the records appended after the checkpoint are replayed. If there is no usable index file, all
+ * segments are replayed. Only the key and the next delivery time of a mail are read for this, the
+ * envelope is read on demand.
+ * <p/>
+ * Small mails are serialized before the lock of the journal is taken. Larger ones are streamed to
+ * the segment while holding the lock, with a placeholder length which is patched together with
+ * the CRC once the content was written. So the memory used by an enqueue is bounded, and
+ * producers of large mails are throttled by the disk instead of buffering their content.
+ * <p/>
+ * If sync is enabled, {@link #enqueue(String, long, Mail)} only returns once the record is on
+ * disk. Concurrent enqueues share one <code>fsync</code>: the first waiting thread syncs the
+ * journal, after waiting for the configured group commit delay so more records can join.
+ * <p/>
+ * {@link #compact()} reclaims space. Segments are only deleted oldest first, as their
+ * {@link #DONE} records may refer to mails in older segments, and only once a checkpoint was
+ * written after them. Mails which are still in the queue are copied to the head of the journal
+ * first if the oldest segment is mostly unused.
+ */
+final class MailJournal {
+
+    final static byte ENQUEUE = 1;
+    final static byte DONE = 2;
+    final static byte REQUEUE = 3;
+
+    private final static String SEGMENT_EXTENSION = ".journal";
+    private final static String INDEX_FILE = "index";
+    private final static String INDEX_TMP_FILE = "index.tmp";
+    private final static int INDEX_MAGIC = 0x4A514D49;
+    private final static byte INDEX_VERSION = 2;
+    private final static long CHECKPOINT_INTERVAL = 60 * 1000;
+    private final static int RECORD_HEADER_LENGTH = 1 + 4 + 4;
+    private final static double COMPACTION_THRESHOLD = 0.5;
+    private final static long STREAM_THRESHOLD = 128 * 1024;
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File dir;
+    private final boolean sync;
+    private final long groupCommitDelay;
+    private final long maxSegmentSize;
+    private final Logger log;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    // guarded by this
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment current;
+    private FileChannel channel;
+    private long written;
+
+    // guarded by syncLock
+    private final Object syncLock = new Object();
+    private long synced;
+    private boolean syncing;
+
+    private final List<Segment> deleted = new ArrayList<Segment>();
+
+    // the segment from which on the journal must be replayed with the last index file, guarded
+    // by this
+    private long checkpointSegment;
+    private long lastCheckpoint;
+    private final Object checkpointLock = new Object();
+
+    public MailJournal(File dir, boolean sync, long groupCommitDelay, long maxSegmentSize, Logger log) throws IOException {
+        this.dir = dir;
+        this.sync = sync;
+        this.groupCommitDelay = groupCommitDelay;
+        this.maxSegmentSize = maxSegmentSize;
+        this.log = log;
+        FileUtils.forceMkdir(dir);
+        recover();
+        synchronized (this) {
+            long id = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).id + 1;
+            openSegment(id);
+        }
+    }
+
+    /**
+     * A mail which is stored in the journal
+     */
+    final static class Entry {
+        private final String key;
+        private volatile Location location;
+        private volatile long nextDelivery;
+        private final int priority;
+
+        private Entry(String key, Location location, long nextDelivery, int priority) {
+            this.key = key;
+            this.location = location;
+            this.nextDelivery = nextDelivery;
+            this.priority = priority;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getNextDelivery() {
+            return nextDelivery;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+    }
+
+    /**
+     * The position of an {@link #ENQUEUE} record and of the envelope in it
+     */
+    private final static class Location {
+        private final Segment segment;
+        private final long position;
+        private final int length;
+        private final long dataOffset;
+
+        private Location(Segment segment, long position, int length, long dataOffset) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.dataOffset = dataOffset;
+        }
+
+        private long end() {
+            return position + length;
+        }
+    }
+
+    private final static class Segment {
+        private final long id;
+        private final File file;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private volatile long size;
+
+        private Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Return the mail stored with the given key, or <code>null</code>
+     */
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Append the given {@link Mail} to the journal and wait until it is synced if needed
+     */
+    public Entry enqueue(String key, long nextDelivery, int priority, Mail mail) throws IOException, MessagingException {
+        Entry entry = add(key, nextDelivery, priority, mail);
+        sync();
+        return entry;
+    }
+
+    /**
+     * Append the given {@link Mail} to the journal without waiting for a sync
+     */
+    public Entry add(String key, long nextDelivery, int priority, final Mail mail) throws IOException, MessagingException {
+        Content content = new Content() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException, MessagingException {
+                // the journal records are authoritative for the next delivery, which changes on
+                // every retry, so the envelope does not keep a copy which would get stale
+                MailEnvelope.write(mail, 0, out);
+                mail.getMessage().writeTo(out);
+            }
+        };
+        long size = mail.getMessageSize();
+        ByteArrayOutputStream payload = null;
+        int dataOffset = 0;
+        if (size >= 0 && size <= STREAM_THRESHOLD) {
+            payload = new ByteArrayOutputStream((int) size + 1024);
+            DataOutputStream out = new DataOutputStream(payload);
+            writeKey(out, key, nextDelivery);
+            out.writeByte(priority);
+            dataOffset = out.size();
+            content.writeTo(out);
+            out.flush();
+        }
+
+        synchronized (this) {
+            Location location;
+            if (payload != null) {
+                location = append(ENQUEUE, payload, dataOffset);
+            } else {
+                location = appendStreamed(key, nextDelivery, priority, size, content);
+            }
+            Entry entry = new Entry(key, location, nextDelivery, priority);
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                previous.location.segment.liveBytes.addAndGet(-previous.location.length);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Wait until all records appended so far are synced, if sync is enabled
+     */
+    public void sync() throws IOException {
+        if (sync) {
+            long position;
+            synchronized (this) {
+                position = written;
+            }
+            awaitSync(position);
+        }
+    }
+
+    /**
+     * Remove the mail with the given key from the journal
+     *
+     * @return <code>true</code> if the mail was in the journal
+     */
+    public boolean remove(String key) throws IOException {
+        synchronized (this) {
+            Entry entry = entries.remove(key);
+            if (entry == null) {
+                return false;
+            }
+            entry.location.segment.liveBytes.addAndGet(-entry.location.length);
+            append(DONE, keyPayload(key, -1), -1);
+            return true;
+        }
+    }
+
+    /**
+     * Change the next delivery time of the mail with the given key
+     */
+    public boolean reschedule(String key, long nextDelivery) throws IOException {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return false;
+            }
+            entry.nextDelivery = nextDelivery;
+            append(REQUEUE, keyPayload(key, nextDelivery), -1);
+            return true;
+        }
+    }
+
+    /**
+     * Read the envelope of the given entry. The returned {@link Mail} has no message.
+     */
+    public MailEnvelope readEnvelope(Entry entry) throws IOException {
+        IOException failure = null;
+        // retry if the mail was moved by a compaction in the meantime
+        for (int i = 0; i < 3; i++) {
+            Location location = entry.location;
+            InputStream in = null;
+            try {
+                in = openStream(location.segment.file, location.position + location.dataOffset);
+                return MailEnvelope.read(new BufferedInputStream(in));
+            } catch (IOException e) {
+                if (location == entry.location) {
+                    throw e;
+                }
+                failure = e;
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Read the given entry, including the message
+     */
+    public Mail readMail(Entry entry) throws IOException, MessagingException {
+        IOException failure = null;
+        for (int i = 0; i < 3; i++) {
+            Location location = entry.location;
+            InputStream in = null;
+            try {
+                long start = location.position + location.dataOffset;
+                in = openStream(location.segment.file, start);
+                MailEnvelope envelope = MailEnvelope.read(new BufferedInputStream(in));
+                Mail mail = envelope.getMail();
+                mail.setMessage(new MimeMessageCopyOnWriteProxy(
+                        new FileMimeMessageSource(location.segment.file, start + envelope.getContentOffset(), location.end())));
+                return mail;
+            } catch (IOException e) {
+                if (location == entry.location) {
+                    throw e;
+                }
+                failure = e;
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        throw failure;
+    }
+
+    private InputStream openStream(File file, long position) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(position);
+            return in;
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the oldest segments which are no longer needed. Mails which are still in the queue
+     * are moved to the head of the journal if the oldest segment is mostly unused.
+     */
+    public void compact() throws IOException {
+        // segments are deleted one run late, so readers which looked up a location just before
+        // it was moved can still open it
+        Iterator<Segment> it = deleted.iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (!segment.file.exists() || segment.file.delete()) {
+                it.remove();
+            }
+        }
+
+        while (true) {
+            Segment oldest;
+            synchronized (this) {
+                if (segments.size() < 2) {
+                    return;
+                }
+                oldest = segments.get(0);
+            }
+            if (!isCheckpointed(oldest)) {
+                return;
+            }
+            if (oldest.liveBytes.get() > 0) {
+                if (oldest.liveBytes.get() > oldest.size * COMPACTION_THRESHOLD) {
+                    return;
+                }
+                for (Entry entry : entries.values()) {
+                    if (entry.location.segment == oldest) {
+                        relocate(entry);
+                    }
+                }
+                if (oldest.liveBytes.get() > 0) {
+                    return;
+                }
+                sync();
+            }
+            synchronized (this) {
+                segments.remove(oldest);
+            }
+            deleted.add(oldest);
+        }
+    }
+
+    /**
+     * Return <code>true</code> if the index file does not need the given segment. A new
+     * checkpoint is written if needed and the last one is old enough.
+     */
+    private boolean isCheckpointed(Segment segment) throws IOException {
+        synchronized (this) {
+            if (segment.id < checkpointSegment) {
+                return true;
+            }
+            if (System.currentTimeMillis() - lastCheckpoint < CHECKPOINT_INTERVAL) {
+                return false;
+            }
+        }
+        checkpoint();
+        synchronized (this) {
+            return segment.id < checkpointSegment;
+        }
+    }
+
+    /**
+     * Write the index of the journal to the index file
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            writeIndex();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        List<Entry> snapshot;
+        List<Location> locations;
+        List<Long> nextDeliveries;
+        List<Integer> priorities;
+        long segmentId;
+        long position;
+        synchronized (this) {
+            if (channel == null) {
+                throw new IOException("Journal is closed");
+            }
+            snapshot = new ArrayList<Entry>(entries.values());
+            locations = new ArrayList<Location>(snapshot.size());
+            nextDeliveries = new ArrayList<Long>(snapshot.size());
+            priorities = new ArrayList<Integer>(snapshot.size());
+            for (Entry entry : snapshot) {
+                locations.add(entry.location);
+                nextDeliveries.add(entry.nextDelivery);
+                priorities.add(entry.priority);
+            }
+            segmentId = current.id;
+            position = current.size;
+        }
+        // the records the index refers to must be on disk before the index
+        sync();
+
+        File tmp = new File(dir, INDEX_TMP_FILE);
+        FileOutputStream fout = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream cout = new CheckedOutputStream(new BufferedOutputStream(fout, 65536), new CRC32());
+            DataOutputStream out = new DataOutputStream(cout);
+            out.writeInt(INDEX_MAGIC);
+            out.writeByte(INDEX_VERSION);
+            out.writeLong(segmentId);
+            out.writeLong(position);
+            out.writeInt(snapshot.size());
+            for (int i = 0; i < snapshot.size(); i++) {
+                Location location = locations.get(i);
+                writeKey(out, snapshot.get(i).key, nextDeliveries.get(i));
+                out.writeByte(priorities.get(i));
+                out.writeLong(location.segment.id);
+                out.writeLong(location.position);
+                out.writeInt(location.length);
+                out.writeInt((int) location.dataOffset);
+            }
+            out.flush();
+            out.writeInt((int) cout.getChecksum().getValue());
+            out.flush();
+            if (sync) {
+                fout.getFD().sync();
+            }
+        } finally {
+            IOUtils.closeQuietly(fout);
+        }
+        File index = new File(dir, INDEX_FILE);
+        if (!tmp.renameTo(index)) {
+            FileUtils.deleteQuietly(index);
+            if (!tmp.renameTo(index)) {
+                throw new IOException("Unable to rename " + tmp + " to " + index);
+            }
+        }
+
+        synchronized (this) {
+            checkpointSegment = segmentId;
+            lastCheckpoint = System.currentTimeMillis();
+        }
+    }
+
+    private void relocate(Entry entry) throws IOException {
+        final Location location = entry.location;
+        synchronized (this) {
+            // the mail may have left the queue or been moved in the meantime
+            if (entries.get(entry.key) != entry || entry.location != location) {
+                return;
+            }
+            try {
+                entry.location = appendStreamed(entry.key, entry.nextDelivery, entry.priority, location.length, new Content() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        InputStream in = openStream(location.segment.file, location.position + location.dataOffset);
+                        try {
+                            IOUtils.copyLarge(in, out, 0, location.end() - location.position - location.dataOffset, new byte[BUFFER_SIZE]);
+                        } finally {
+                            IOUtils.closeQuietly(in);
+                        }
+                    }
+                });
+            } catch (MessagingException e) {
+                throw new IOException("Unable to move mail " + entry.key, e);
+            }
+            location.segment.liveBytes.addAndGet(-location.length);
+        }
+    }
+
+    /**
+     * Close the journal. Records which were not synced yet are synced if sync is enabled.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+        }
+        try {
+            checkpoint();
+        } finally {
+            synchronized (this) {
+                if (channel != null) {
+                    if (sync) {
+                        channel.force(false);
+                    }
+                    channel.close();
+                    channel = null;
+                }
+            }
+        }
+    }
+
+    private ByteArrayOutputStream keyPayload(String key, long nextDelivery) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(payload);
+        writeKey(out, key, nextDelivery);
+        out.flush();
+        return payload;
+    }
+
+    private static void writeKey(DataOutputStream out, String key, long nextDelivery) throws IOException {
+        byte[] bytes = key.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeLong(nextDelivery);
+    }
+
+    /**
+     * Append a record to the current segment. Must be called while holding the lock on this.
+     *
+     * @param dataOffset the offset of the envelope in the payload
+     */
+    private Location append(byte type, ByteArrayOutputStream payload, int dataOffset) throws IOException {
+        if (channel == null) {
+            throw new IOException("Journal is closed");
+        }
+        int length = RECORD_HEADER_LENGTH + payload.size();
+        if (current.size > 0 && current.size + length > maxSegmentSize) {
+            rollSegment();
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] data = payload.toByteArray();
+        crc.update(data);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        header.put(type).putInt(data.length).putInt((int) crc.getValue());
+        header.flip();
+        ByteBuffer body = ByteBuffer.wrap(data);
+        long position = current.size;
+        while (header.hasRemaining() || body.hasRemaining()) {
+            channel.write(new ByteBuffer[] {header, body});
+        }
+        current.size += length;
+        written += length;
+
+        if (type != ENQUEUE) {
+            return null;
+        }
+        current.liveBytes.addAndGet(length);
+        return new Location(current, position, length, RECORD_HEADER_LENGTH + dataOffset);
+    }
+
+    /**
+     * Stream an {@link #ENQUEUE} record to the current segment. Must be called while holding the
+     * lock on this.
+     *
+     * @param sizeEstimate the expected size of the content, or -1 if it is unknown
+     */
+    private Location appendStreamed(String key, long nextDelivery, int priority, long sizeEstimate, Content content) throws IOException, MessagingException {
+        if (channel == null) {
+            throw new IOException("Journal is closed");
+        }
+        if (current.size > 0 && current.size + RECORD_HEADER_LENGTH + sizeEstimate > maxSegmentSize) {
+            rollSegment();
+        }
+
+        long position = current.size;
+        boolean complete = false;
+        try {
+            // a crash before the header is patched leaves a record with an invalid length, which
+            // ends the replay of the segment like any other incomplete record
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            header.put(ENQUEUE).putInt(-1).putInt(0);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            RecordOutputStream record = new RecordOutputStream(channel);
+            DataOutputStream out = new DataOutputStream(record);
+            writeKey(out, key, nextDelivery);
+            out.writeByte(priority);
+            int dataOffset = out.size();
+            content.writeTo(out);
+            out.flush();
+            long payloadLength = record.getCount();
+            if (payloadLength > Integer.MAX_VALUE - RECORD_HEADER_LENGTH) {
+                throw new IOException("Mail " + key + " is too large for the journal");
+            }
+
+            header.clear();
+            header.put(ENQUEUE).putInt((int) payloadLength).putInt((int) record.getChecksum());
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, position + header.position());
+            }
+            complete = true;
+
+            int length = RECORD_HEADER_LENGTH + (int) payloadLength;
+            current.size += length;
+            written += length;
+            current.liveBytes.addAndGet(length);
+            return new Location(current, position, length, RECORD_HEADER_LENGTH + dataOffset);
+        } finally {
+            if (!complete) {
+                // drop the partial record, it would hide the records appended after it
+                try {
+                    channel.truncate(position);
+                    channel.position(position);
+                } catch (IOException e) {
+                    log.error("Unable to drop an incomplete record from journal segment " + current.file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The content of an {@link #ENQUEUE} record after the key and the priority
+     */
+    private interface Content {
+        void writeTo(OutputStream out) throws IOException, MessagingException;
+    }
+
+    /**
+     * Write the payload of a record to the journal channel through a bounded buffer, computing its
+     * CRC on the way
+     */
+    private final static class RecordOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private long count;
+
+        private RecordOutputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+            crc.update(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            count += len;
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int chunk = Math.min(len, buffer.remaining());
+                buffer.put(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private long getCount() {
+            return count;
+        }
+
+        private long getChecksum() {
+            return crc.getValue();
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        if (sync) {
+            channel.force(false);
+            synchronized (syncLock) {
+                synced = Math.max(synced, written);
+            }
+        }
+        channel.close();
+        openSegment(current.id + 1);
+    }
+
+    private void openSegment(long id) throws IOException {
+        Segment segment = new Segment(id, new File(dir, String.format("%016d", id) + SEGMENT_EXTENSION));
+        channel = new RandomAccessFile(segment.file, "rw").getChannel();
+        channel.truncate(0);
+        current = segment;
+        segments.add(segment);
+    }
+
+    /**
+     * Wait until the journal is synced up to the given position. One of the waiting threads syncs
+     * the journal for all others.
+     */
+    private void awaitSync(long position) throws IOException {
+        synchronized (syncLock) {
+            while (synced < position) {
+                if (!syncing) {
+                    syncing = true;
+                    break;
+                }
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for journal sync");
+                }
+            }
+            if (synced >= position) {
+                return;
+            }
+        }
+
+        try {
+            if (groupCommitDelay > 0) {
+                try {
+                    Thread.sleep(groupCommitDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for journal sync");
+                }
+            }
+            long target;
+            FileChannel toSync;
+            synchronized (this) {
+                target = written;
+                toSync = channel;
+            }
+            if (toSync == null) {
+                throw new IOException("Journal is closed");
+            }
+            try {
+                toSync.force(false);
+            } catch (ClosedChannelException e) {
+                // the segment was rolled and synced in the meantime
+            }
+            synchronized (syncLock) {
+                synced = Math.max(synced, target);
+            }
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Rebuild the index from the index file and the segments
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_EXTENSION);
+            }
+        });
+        Arrays.sort(files);
+        Map<Long, Segment> segmentsById = new HashMap<Long, Segment>();
+        for (File file : files) {
+            String name = file.getName();
+            Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length())), file);
+            segment.size = file.length();
+            segments.add(segment);
+            segmentsById.put(segment.id, segment);
+        }
+
+        long startSegment = 0;
+        long startPosition = 0;
+        long[] start = loadIndex(segmentsById);
+        if (start != null) {
+            startSegment = start[0];
+            startPosition = start[1];
+            checkpointSegment = startSegment;
+        } else {
+            entries.clear();
+            for (Segment segment : segments) {
+                segment.liveBytes.set(0);
+            }
+        }
+        lastCheckpoint = System.currentTimeMillis();
+
+        for (Segment segment : segments) {
+            if (segment.id > startSegment) {
+                replay(segment, 0);
+            } else if (segment.id == startSegment) {
+                replay(segment, startPosition);
+            }
+        }
+    }
+
+    /**
+     * Load the index file
+     *
+     * @return the segment id and position from which on the journal must be replayed, or
+     *         <code>null</code> if there is no usable index file
+     */
+    private long[] loadIndex(Map<Long, Segment> segmentsById) {
+        File index = new File(dir, INDEX_FILE);
+        if (!index.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            CheckedInputStream cin = new CheckedInputStream(new BufferedInputStream(new FileInputStream(index), 65536), new CRC32());
+            in = new DataInputStream(cin);
+            if (in.readInt() != INDEX_MAGIC || in.readByte() != INDEX_VERSION) {
+                log.warn("Unknown index file " + index + ", replaying the whole journal");
+                return null;
+            }
+            long segmentId = in.readLong();
+            long position = in.readLong();
+            Segment startSegment = segmentsById.get(segmentId);
+            if (startSegment == null || startSegment.size < position) {
+                log.warn("Index file " + index + " does not match the journal, replaying the whole journal");
+                return null;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                long nextDelivery = in.readLong();
+                int priority = in.readByte();
+                Segment segment = segmentsById.get(in.readLong());
+                long recordPosition = in.readLong();
+                int length = in.readInt();
+                int dataOffset = in.readInt();
+                if (segment == null) {
+                    // the segment was compacted after the checkpoint, so the mail was moved or
+                    // left the queue in a record which is replayed
+                    continue;
+                }
+                if (recordPosition + length > segment.size) {
+                    log.warn("Index file " + index + " does not match the journal, replaying the whole journal");
+                    return null;
+                }
+                apply(ENQUEUE, new String(key, UTF_8), nextDelivery, priority, segment, recordPosition, length, dataOffset);
+            }
+            int crc = (int) cin.getChecksum().getValue();
+            if (in.readInt() != crc) {
+                log.warn("Corrupted index file " + index + ", replaying the whole journal");
+                return null;
+            }
+            return new long[] {segmentId, position};
+        } catch (IOException e) {
+            log.warn("Unable to read index file " + index + ", replaying the whole journal", e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void replay(Segment segment, long position) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 65536));
+        try {
+            IOUtils.skipFully(in, position);
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < 0 || position + RECORD_HEADER_LENGTH + length > segment.size) {
+                    throw new EOFException();
+                }
+
+                CheckedInputStream cin = new CheckedInputStream(new BoundedInputStream(in, length), new CRC32());
+                cin.getChecksum().reset();
+                DataInputStream din = new DataInputStream(cin);
+                byte[] key = new byte[din.readInt()];
+                din.readFully(key);
+                long nextDelivery = din.readLong();
+                long dataOffset = RECORD_HEADER_LENGTH + 4 + key.length + 8;
+                int priority = 0;
+                if (type == ENQUEUE) {
+                    priority = din.readByte();
+                    dataOffset++;
+                }
+                IOUtils.skipFully(cin, RECORD_HEADER_LENGTH + length - dataOffset);
+                if ((int) cin.getChecksum().getValue() != crc) {
+                    log.error("Invalid record in journal segment " + segment.file + " at " + position + ", ignoring the rest of the segment");
+                    return;
+                }
+
+                apply(type, new String(key, UTF_8), nextDelivery, priority, segment, position, RECORD_HEADER_LENGTH + length, dataOffset);
+                position += RECORD_HEADER_LENGTH + length;
+            }
+        } catch (EOFException e) {
+            // a record which was not completely written before a crash
+            log.warn("Incomplete record in journal segment " + segment.file + " at " + position + ", ignoring the rest of the segment");
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void apply(byte type, String key, long nextDelivery, int priority, Segment segment, long position, int length, long dataOffset) {
+        switch (type) {
+            case ENQUEUE: {
+                Entry previous = entries.put(key, new Entry(key, new Location(segment, position, length, dataOffset), nextDelivery, priority));
+                if (previous != null) {
+                    previous.location.segment.liveBytes.addAndGet(-previous.location.length);
+                }
+                segment.liveBytes.addAndGet(length);
+                break;
+            }
+            case DONE: {
+                Entry previous = entries.remove(key);
+                if (previous != null) {
+                    previous.location.segment.liveBytes.addAndGet(-previous.location.length);
+                }
+                break;
+            }
+            case REQUEUE: {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    entry.nextDelivery = nextDelivery;
+                }
+                break;
+            }
+            default:
+                log.warn("Unknown record type " + type + " in journal segment " + segment.file);
+        }
+    }
+
+}
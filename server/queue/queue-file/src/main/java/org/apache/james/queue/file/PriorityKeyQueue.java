@@ -0,0 +1,114 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.james.queue.api.MailPrioritySupport;
+
+/**
+ * Blocking queue of mail keys with one FIFO level per priority, from
+ * {@link MailPrioritySupport#LOW_PRIORITY} to {@link MailPrioritySupport#HIGH_PRIORITY}.
+ * <p/>
+ * The levels share the takes by weight, each level getting twice the share of the level below
+ * it while both have keys waiting. Every level keeps a virtual time which advances by the inverse
+ * of its weight for each key taken from it, and the key of the level which would finish first is
+ * taken, the higher level winning a tie. A level which was empty starts again from the virtual
+ * time of the last taken key, so it gets no credit for the time it was idle. So lower levels never
+ * starve, but however long they waited they can not take more than their share from keys with a
+ * higher priority. Within a level keys are taken in the order they were added.
+ */
+final class PriorityKeyQueue {
+
+    private final static int LEVELS = MailPrioritySupport.HIGH_PRIORITY - MailPrioritySupport.LOW_PRIORITY + 1;
+
+    private final ArrayDeque<String>[] levels;
+    private final long[] pass = new long[LEVELS];
+    private long virtualTime;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public PriorityKeyQueue() {
+        this.levels = new ArrayDeque[LEVELS];
+        for (int i = 0; i < LEVELS; i++) {
+            levels[i] = new ArrayDeque<String>();
+        }
+    }
+
+    /**
+     * Add the key with the given priority. Priorities out of range are treated as the nearest
+     * valid one.
+     */
+    public void add(String key, int priority) {
+        int level = Math.max(MailPrioritySupport.LOW_PRIORITY, Math.min(MailPrioritySupport.HIGH_PRIORITY, priority)) - MailPrioritySupport.LOW_PRIORITY;
+        lock.lock();
+        try {
+            if (levels[level].isEmpty()) {
+                pass[level] = Math.max(pass[level], virtualTime);
+            }
+            levels[level].addLast(key);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next key, waiting until one is available
+     */
+    public String take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            int selected = -1;
+            long best = Long.MAX_VALUE;
+            for (int i = LEVELS - 1; i >= 0; i--) {
+                if (!levels[i].isEmpty()) {
+                    long finish = pass[i] + stride(i);
+                    // on a tie the higher level wins
+                    if (finish < best) {
+                        best = finish;
+                        selected = i;
+                    }
+                }
+            }
+            virtualTime = pass[selected];
+            pass[selected] = best;
+            size--;
+            return levels[selected].pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the virtual time a key of the given level costs, the inverse of its weight
+     */
+    private static long stride(int level) {
+        return 1L << (LEVELS - 1 - level);
+    }
+
+}
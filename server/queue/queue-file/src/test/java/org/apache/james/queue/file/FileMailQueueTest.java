@@ -0,0 +1,245 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueItemView;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class FileMailQueueTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileMailQueueTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MailImpl createMail(String name) throws Exception {
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        message.setSubject("subject of " + name);
+        message.setText("body of " + name);
+        message.saveChanges();
+        MailImpl mail = new MailImpl(name, new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt@localhost")), message);
+        mail.setAttribute("attribute", name);
+        return mail;
+    }
+
+    private FileMailQueue createQueue() throws Exception {
+        return new FileMailQueue(folder.getRoot(), "test", true, LOGGER);
+    }
+
+    private List<String> sortedFiles(File dir) {
+        List<String> files = new ArrayList<String>(Arrays.asList(dir.list()));
+        Collections.sort(files);
+        return files;
+    }
+
+    private String content(Mail mail) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mail.getMessage().writeTo(out);
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void dequeueShouldReturnEnqueuedMail() throws Exception {
+        FileMailQueue queue = createQueue();
+        MailImpl mail = createMail("mail1");
+        String expected = content(mail);
+        queue.enQueue(mail);
+
+        MailQueueItem item = queue.deQueue();
+
+        assertEquals("mail1", item.getMail().getName());
+        assertEquals("mail1", item.getMail().getAttribute("attribute"));
+        assertEquals(expected, content(item.getMail()));
+        item.done(true);
+        assertEquals(0, queue.getSize());
+        queue.dispose();
+    }
+
+    @Test
+    public void queueShouldOnlyStoreJournalSegments() throws Exception {
+        FileMailQueue queue = createQueue();
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"));
+        queue.dispose();
+
+        assertEquals(Arrays.asList("journal"), Arrays.asList(new File(folder.getRoot(), "test").list()));
+        assertEquals(Arrays.asList("0000000000000001.journal", "index"), sortedFiles(new File(new File(folder.getRoot(), "test"), "journal")));
+    }
+
+    @Test
+    public void doneMailsShouldNotBeLoadedOnRestart() throws Exception {
+        FileMailQueue queue = createQueue();
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"));
+        queue.deQueue().done(true);
+        queue.dispose();
+
+        FileMailQueue restarted = createQueue();
+
+        assertEquals(1, restarted.getSize());
+        assertEquals("mail2", restarted.deQueue().getMail().getName());
+        restarted.dispose();
+    }
+
+    @Test
+    public void dequeueShouldHonourMailPriority() throws Exception {
+        FileMailQueue queue = createQueue();
+        MailImpl low = createMail("low");
+        low.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+        MailImpl high = createMail("high");
+        high.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.HIGH_PRIORITY);
+        queue.enQueue(low);
+        queue.enQueue(createMail("normal"));
+        queue.enQueue(high);
+
+        assertEquals("high", queue.deQueue().getMail().getName());
+        assertEquals("normal", queue.deQueue().getMail().getName());
+        assertEquals("low", queue.deQueue().getMail().getName());
+        queue.dispose();
+    }
+
+    @Test(timeout = 10000)
+    public void delayedMailShouldBeDequeuedOnceDue() throws Exception {
+        FileMailQueue queue = createQueue();
+        long start = System.currentTimeMillis();
+        queue.enQueue(createMail("delayed"), 1500, TimeUnit.MILLISECONDS);
+        queue.enQueue(createMail("mail1"));
+
+        assertEquals("mail1", queue.deQueue().getMail().getName());
+        assertEquals("delayed", queue.deQueue().getMail().getName());
+        assertTrue(System.currentTimeMillis() - start >= 1500);
+        queue.dispose();
+    }
+
+    @Test(timeout = 10000)
+    public void flushShouldBeKeptOnRestart() throws Exception {
+        FileMailQueue queue = createQueue();
+        queue.enQueue(createMail("mail1"), 1, TimeUnit.HOURS);
+        assertEquals(1, queue.flush());
+        queue.dispose();
+
+        FileMailQueue restarted = createQueue();
+
+        assertEquals("mail1", restarted.deQueue().getMail().getName());
+        restarted.dispose();
+    }
+
+    @Test
+    public void mailsShouldBeLoadedOnRestart() throws Exception {
+        FileMailQueue queue = createQueue();
+        MailImpl mail = createMail("mail1");
+        String expected = content(mail);
+        queue.enQueue(mail);
+        queue.enQueue(createMail("mail2"), 1, TimeUnit.HOURS);
+        queue.dispose();
+
+        FileMailQueue restarted = createQueue();
+
+        assertEquals(2, restarted.getSize());
+        MailQueueItem item = restarted.deQueue();
+        assertEquals("mail1", item.getMail().getName());
+        assertEquals(expected, content(item.getMail()));
+        item.done(true);
+
+        MailQueueIterator browse = restarted.browse();
+        assertTrue(browse.hasNext());
+        MailQueueItemView view = browse.next();
+        assertEquals("mail2", view.getMail().getName());
+        assertTrue(view.getNextDelivery() > System.currentTimeMillis());
+        assertFalse(browse.hasNext());
+        restarted.dispose();
+    }
+
+    @Test
+    public void legacyFilesShouldBeConverted() throws Exception {
+        File dir = new File(new File(folder.getRoot(), "test"), "1");
+        assertTrue(dir.mkdirs());
+        MailImpl mail = createMail("legacy");
+        String expected = content(mail);
+
+        ObjectOutputStream oout = new ObjectOutputStream(new FileOutputStream(new File(dir, "legacy-1.obj")));
+        oout.writeObject(mail);
+        oout.close();
+        FileOutputStream out = new FileOutputStream(new File(dir, "legacy-1.msg"));
+        mail.getMessage().writeTo(out);
+        out.close();
+
+        FileMailQueue queue = createQueue();
+
+        assertFalse(dir.exists());
+        MailQueueItem item = queue.deQueue();
+        assertEquals("legacy", item.getMail().getName());
+        assertEquals("legacy", item.getMail().getAttribute("attribute"));
+        assertEquals(expected, content(item.getMail()));
+        item.done(true);
+        queue.dispose();
+    }
+
+    @Test
+    public void mailFilesShouldBeImported() throws Exception {
+        File dir = new File(new File(folder.getRoot(), "test"), "2");
+        assertTrue(dir.mkdirs());
+        MailImpl mail = createMail("single");
+        String expected = content(mail);
+
+        OutputStream out = new FileOutputStream(new File(dir, "single-1.mail"));
+        MailEnvelope.write(mail, 0, out);
+        mail.getMessage().writeTo(out);
+        out.close();
+
+        FileMailQueue queue = createQueue();
+
+        assertFalse(dir.exists());
+        MailQueueItem item = queue.deQueue();
+        assertEquals("single", item.getMail().getName());
+        assertEquals(expected, content(item.getMail()));
+        item.done(true);
+        queue.dispose();
+    }
+
+}
@@ -0,0 +1,127 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.core.MailImpl;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.Test;
+
+public class MailEnvelopeTest {
+
+    private MailImpl createMail() throws Exception {
+        MailImpl mail = new MailImpl("name", new MailAddress("sender@localhost"),
+                Arrays.asList(new MailAddress("rcpt1@localhost"), new MailAddress("rcpt2@localhost")));
+        mail.setState(Mail.TRANSPORT);
+        mail.setErrorMessage("error");
+        mail.setRemoteHost("remote.host");
+        mail.setRemoteAddr("10.0.0.1");
+        mail.setLastUpdated(new Date(1234567L));
+        return mail;
+    }
+
+    private MailEnvelope roundTrip(Mail mail, long nextDelivery, byte[] content) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int offset = MailEnvelope.write(mail, nextDelivery, out);
+        out.write(content);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        MailEnvelope envelope = MailEnvelope.read(in);
+        assertEquals(offset, envelope.getContentOffset());
+        assertArrayEquals(content, IOUtils.toByteArray(in));
+        return envelope;
+    }
+
+    @Test
+    public void envelopeShouldRoundTrip() throws Exception {
+        MailImpl mail = createMail();
+
+        MailEnvelope envelope = roundTrip(mail, 42L, "Subject: test\r\n\r\nbody".getBytes("US-ASCII"));
+        Mail read = envelope.getMail();
+
+        assertEquals(42L, envelope.getNextDelivery());
+        assertEquals("name", read.getName());
+        assertEquals(mail.getSender(), read.getSender());
+        assertEquals(new ArrayList<MailAddress>(mail.getRecipients()), new ArrayList<MailAddress>(read.getRecipients()));
+        assertEquals(Mail.TRANSPORT, read.getState());
+        assertEquals("error", read.getErrorMessage());
+        assertEquals("remote.host", read.getRemoteHost());
+        assertEquals("10.0.0.1", read.getRemoteAddr());
+        assertEquals(new Date(1234567L), read.getLastUpdated());
+    }
+
+    @Test
+    public void envelopeShouldKeepNullSenderAndNullValues() throws Exception {
+        MailImpl mail = createMail();
+        mail.setSender(null);
+        mail.setErrorMessage(null);
+
+        Mail read = roundTrip(mail, 0, new byte[0]).getMail();
+
+        assertNull(read.getSender());
+        assertNull(read.getErrorMessage());
+    }
+
+    @Test
+    public void envelopeShouldKeepTypedAttributes() throws Exception {
+        MailImpl mail = createMail();
+        mail.setAttribute("string", "été");
+        mail.setAttribute("int", 1);
+        mail.setAttribute("long", 2L);
+        mail.setAttribute("boolean", true);
+        mail.setAttribute("short", (short) 3);
+        mail.setAttribute("byte", (byte) 4);
+        mail.setAttribute("float", 5.5f);
+        mail.setAttribute("double", 6.5d);
+        mail.setAttribute("char", 'c');
+        mail.setAttribute("date", new Date(7L));
+        mail.setAttribute("address", new MailAddress("attr@localhost"));
+        mail.setAttribute("bytes", new byte[] {1, 2, 3});
+        mail.setAttribute("list", new ArrayList<String>(Arrays.asList("a", "b")));
+
+        Mail read = roundTrip(mail, 0, new byte[0]).getMail();
+
+        assertEquals("été", read.getAttribute("string"));
+        assertEquals(1, read.getAttribute("int"));
+        assertEquals(2L, read.getAttribute("long"));
+        assertEquals(true, read.getAttribute("boolean"));
+        assertEquals((short) 3, read.getAttribute("short"));
+        assertEquals((byte) 4, read.getAttribute("byte"));
+        assertEquals(5.5f, read.getAttribute("float"));
+        assertEquals(6.5d, read.getAttribute("double"));
+        assertEquals('c', read.getAttribute("char"));
+        assertEquals(new Date(7L), read.getAttribute("date"));
+        assertEquals(new MailAddress("attr@localhost"), read.getAttribute("address"));
+        assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) read.getAttribute("bytes"));
+        assertEquals(Arrays.asList("a", "b"), read.getAttribute("list"));
+    }
+
+}
@@ -0,0 +1,360 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class MailJournalTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailJournalTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MailImpl createMail(String name) throws Exception {
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        message.setSubject("subject of " + name);
+        message.setText("body of " + name);
+        message.saveChanges();
+        return new MailImpl(name, new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt@localhost")), message);
+    }
+
+    private MailImpl createLargeMail(String name, int lines) throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line ").append(i).append(" of the body of ").append(name).append("\r\n");
+        }
+        MailImpl mail = createMail(name);
+        mail.getMessage().setText(text.toString());
+        mail.getMessage().saveChanges();
+        return mail;
+    }
+
+    private MailJournal createJournal(long maxSegmentSize) throws Exception {
+        return new MailJournal(folder.getRoot(), true, 1, maxSegmentSize, LOGGER);
+    }
+
+    private String content(Mail mail) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mail.getMessage().writeTo(out);
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void journalShouldBeReplayedOnRestart() throws Exception {
+        MailJournal journal = createJournal(1024 * 1024);
+        journal.enqueue("key1", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail1"));
+        journal.enqueue("key2", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail2"));
+        journal.enqueue("key3", 0, MailPrioritySupport.HIGH_PRIORITY, createMail("mail3"));
+        journal.remove("key2");
+        journal.reschedule("key3", 42);
+        journal.close();
+
+        MailJournal restarted = createJournal(1024 * 1024);
+
+        assertEquals(2, restarted.size());
+        assertNull(restarted.get("key2"));
+        assertEquals(0, restarted.get("key1").getNextDelivery());
+        assertEquals(42, restarted.get("key3").getNextDelivery());
+        assertEquals(MailPrioritySupport.HIGH_PRIORITY, restarted.get("key3").getPriority());
+        Mail mail = restarted.readMail(restarted.get("key3"));
+        assertEquals("mail3", mail.getName());
+        assertEquals("subject of mail3", mail.getMessage().getSubject());
+        assertTrue(content(mail).contains("body of mail3"));
+        restarted.close();
+    }
+
+    @Test
+    public void nextDeliveryShouldOnlyBeKeptByTheJournal() throws Exception {
+        MailJournal journal = createJournal(1024 * 1024);
+        MailJournal.Entry entry = journal.enqueue("key1", 42, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail1"));
+        journal.reschedule("key1", 84);
+
+        assertEquals(84, entry.getNextDelivery());
+        assertEquals(0, journal.readEnvelope(entry).getNextDelivery());
+        journal.close();
+    }
+
+    @Test
+    public void incompleteRecordShouldBeIgnoredOnRestart() throws Exception {
+        MailJournal journal = createJournal(1024 * 1024);
+        journal.enqueue("key1", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail1"));
+        journal.close();
+
+        File segment = new File(folder.getRoot(), "0000000000000001.journal");
+        FileOutputStream out = new FileOutputStream(segment, true);
+        out.write(new byte[] {MailJournal.ENQUEUE, 0, 0, 1, 0, 1, 2});
+        out.close();
+
+        MailJournal restarted = createJournal(1024 * 1024);
+
+        assertEquals(1, restarted.size());
+        assertNotNull(restarted.get("key1"));
+        restarted.enqueue("key2", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail2"));
+        restarted.close();
+
+        assertEquals(2, createJournal(1024 * 1024).size());
+    }
+
+    @Test
+    public void largeMailsShouldBeStreamedAndReplayed() throws Exception {
+        MailJournal journal = createJournal(1024 * 1024);
+        MailImpl large = createLargeMail("mail1", 20000);
+        journal.enqueue("key1", 42, MailPrioritySupport.HIGH_PRIORITY, large);
+        journal.enqueue("key2", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail2"));
+        String expected = content(large);
+        assertTrue(expected.length() > 256 * 1024);
+        assertEquals(expected, content(journal.readMail(journal.get("key1"))));
+        journal.close();
+        new File(folder.getRoot(), "index").delete();
+
+        MailJournal restarted = createJournal(1024 * 1024);
+
+        assertEquals(2, restarted.size());
+        assertEquals(42, restarted.get("key1").getNextDelivery());
+        assertEquals(MailPrioritySupport.HIGH_PRIORITY, restarted.get("key1").getPriority());
+        assertEquals(expected, content(restarted.readMail(restarted.get("key1"))));
+        assertEquals("mail2", restarted.readMail(restarted.get("key2")).getName());
+        restarted.close();
+    }
+
+    @Test
+    public void failedStreamedEnqueueShouldNotHideLaterRecords() throws Exception {
+        MailJournal journal = createJournal(1024 * 1024);
+        journal.enqueue("key1", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail1"));
+        final MimeMessage message = createLargeMail("mail2", 20000).getMessage();
+        MimeMessage failing = new MimeMessage(message) {
+            @Override
+            public void writeTo(OutputStream os) throws IOException, javax.mail.MessagingException {
+                message.writeTo(new OutputStream() {
+                    private int count;
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        throw new IOException("content is not readable");
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        count += len;
+                        if (count > 200 * 1024) {
+                            throw new IOException("content is not readable");
+                        }
+                    }
+                });
+            }
+        };
+        try {
+            journal.enqueue("key2", 0, MailPrioritySupport.NORMAL_PRIORITY,
+                    new MailImpl("mail2", new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt@localhost")), failing));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        journal.enqueue("key3", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail3"));
+        journal.close();
+        new File(folder.getRoot(), "index").delete();
+
+        MailJournal restarted = createJournal(1024 * 1024);
+
+        assertEquals(2, restarted.size());
+        assertNull(restarted.get("key2"));
+        assertEquals("mail3", restarted.readMail(restarted.get("key3")).getName());
+        restarted.close();
+    }
+
+    @Test
+    public void largeMailsShouldBeMovedByCompaction() throws Exception {
+        MailJournal journal = createJournal(2 * 1024 * 1024);
+        MailImpl large = createLargeMail("mail0", 20000);
+        String expected = content(large);
+        journal.enqueue("key0", 0, MailPrioritySupport.NORMAL_PRIORITY, large);
+        for (int i = 1; i < 400; i++) {
+            journal.enqueue("key" + i, 0, MailPrioritySupport.NORMAL_PRIORITY, createLargeMail("mail" + i, 200));
+        }
+        int segments = countSegments();
+        assertTrue(segments > 1);
+        for (int i = 1; i < 400; i++) {
+            journal.remove("key" + i);
+        }
+        journal.checkpoint();
+        journal.compact();
+        journal.compact();
+
+        assertTrue(countSegments() < segments);
+        assertEquals(expected, content(journal.readMail(journal.get("key0"))));
+        journal.close();
+        new File(folder.getRoot(), "index").delete();
+
+        MailJournal restarted = createJournal(64 * 1024);
+
+        assertEquals(1, restarted.size());
+        assertEquals(expected, content(restarted.readMail(restarted.get("key0"))));
+        restarted.close();
+    }
+
+    @Test
+    public void concurrentEnqueuesShouldAllBeStored() throws Exception {
+        final MailJournal journal = createJournal(64 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 8; i++) {
+            final int thread = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 50; j++) {
+                        journal.enqueue("key" + thread + "-" + j, 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail" + thread + "-" + j));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        journal.close();
+
+        MailJournal restarted = createJournal(64 * 1024);
+
+        assertEquals(400, restarted.size());
+        assertEquals("mail7-49", restarted.readMail(restarted.get("key7-49")).getName());
+        restarted.close();
+    }
+
+    @Test
+    public void compactionShouldDeleteUnusedSegmentsAndMoveLiveMails() throws Exception {
+        MailJournal journal = createJournal(2048);
+        for (int i = 0; i < 50; i++) {
+            journal.enqueue("key" + i, 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail" + i));
+        }
+        for (int i = 1; i < 50; i++) {
+            journal.remove("key" + i);
+        }
+        int segments = countSegments();
+        assertTrue(segments > 5);
+
+        // only segments before the last checkpoint can be deleted
+        journal.compact();
+        journal.compact();
+        assertEquals(segments, countSegments());
+
+        journal.checkpoint();
+        journal.compact();
+        // segments are deleted by the following run
+        journal.compact();
+
+        assertTrue(countSegments() < segments);
+        assertEquals("mail0", journal.readMail(journal.get("key0")).getName());
+        journal.close();
+
+        MailJournal restarted = createJournal(2048);
+
+        assertEquals(1, restarted.size());
+        assertTrue(content(restarted.readMail(restarted.get("key0"))).contains("body of mail0"));
+        restarted.close();
+    }
+
+    @Test
+    public void recordsAfterTheCheckpointShouldBeReplayed() throws Exception {
+        MailJournal journal = createJournal(1024 * 1024);
+        journal.enqueue("key1", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail1"));
+        journal.enqueue("key2", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail2"));
+        journal.checkpoint();
+        journal.remove("key1");
+        journal.enqueue("key3", 0, MailPrioritySupport.LOW_PRIORITY, createMail("mail3"));
+        journal.reschedule("key2", 42);
+        // simulate a crash, the journal is not closed
+
+        MailJournal restarted = createJournal(1024 * 1024);
+
+        assertEquals(2, restarted.size());
+        assertNull(restarted.get("key1"));
+        assertEquals(42, restarted.get("key2").getNextDelivery());
+        assertEquals(MailPrioritySupport.NORMAL_PRIORITY, restarted.get("key2").getPriority());
+        assertEquals(MailPrioritySupport.LOW_PRIORITY, restarted.get("key3").getPriority());
+        assertEquals("mail3", restarted.readMail(restarted.get("key3")).getName());
+        restarted.close();
+        journal.close();
+    }
+
+    @Test
+    public void corruptedIndexShouldBeIgnored() throws Exception {
+        MailJournal journal = createJournal(1024 * 1024);
+        journal.enqueue("key1", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail1"));
+        journal.enqueue("key2", 0, MailPrioritySupport.NORMAL_PRIORITY, createMail("mail2"));
+        journal.remove("key1");
+        journal.close();
+
+        RandomAccessFile index = new RandomAccessFile(new File(folder.getRoot(), "index"), "rw");
+        index.seek(index.length() - 1);
+        index.write(index.read() + 1);
+        index.close();
+
+        MailJournal restarted = createJournal(1024 * 1024);
+
+        assertEquals(1, restarted.size());
+        assertEquals("mail2", restarted.readMail(restarted.get("key2")).getName());
+        restarted.close();
+    }
+
+    private int countSegments() {
+        return folder.getRoot().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".journal");
+            }
+        }).length;
+    }
+
+}
@@ -0,0 +1,100 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.junit.Test;
+
+public class PriorityKeyQueueTest {
+
+    @Test
+    public void takeShouldReturnHigherPrioritiesFirst() throws Exception {
+        PriorityKeyQueue queue = new PriorityKeyQueue();
+        queue.add("low", MailPrioritySupport.LOW_PRIORITY);
+        queue.add("normal", MailPrioritySupport.NORMAL_PRIORITY);
+        queue.add("high", MailPrioritySupport.HIGH_PRIORITY);
+
+        assertEquals("high", queue.take());
+        assertEquals("normal", queue.take());
+        assertEquals("low", queue.take());
+    }
+
+    @Test
+    public void takeShouldKeepTheOrderWithinAPriority() throws Exception {
+        PriorityKeyQueue queue = new PriorityKeyQueue();
+        queue.add("1", MailPrioritySupport.NORMAL_PRIORITY);
+        queue.add("2", MailPrioritySupport.NORMAL_PRIORITY);
+        queue.add("3", MailPrioritySupport.NORMAL_PRIORITY);
+
+        assertEquals("1", queue.take());
+        assertEquals("2", queue.take());
+        assertEquals("3", queue.take());
+    }
+
+    @Test
+    public void outOfRangePrioritiesShouldBeClamped() throws Exception {
+        PriorityKeyQueue queue = new PriorityKeyQueue();
+        queue.add("normal", MailPrioritySupport.NORMAL_PRIORITY);
+        queue.add("tooLow", -5);
+        queue.add("tooHigh", 42);
+
+        assertEquals("tooHigh", queue.take());
+        assertEquals("normal", queue.take());
+        assertEquals("tooLow", queue.take());
+    }
+
+    @Test
+    public void lowerPrioritiesShouldNotStarve() throws Exception {
+        PriorityKeyQueue queue = new PriorityKeyQueue();
+        queue.add("low", MailPrioritySupport.LOW_PRIORITY);
+        for (int i = 0; i < 1000; i++) {
+            queue.add("high" + i, MailPrioritySupport.HIGH_PRIORITY);
+        }
+
+        int taken = 1;
+        while (!queue.take().equals("low")) {
+            taken++;
+        }
+        // a low priority key gets 1/512 of the share of a high priority one
+        assertEquals(513, taken);
+    }
+
+    @Test
+    public void backlogOfWaitingLowPrioritiesShouldNotOutrankNewHighPriorities() throws Exception {
+        PriorityKeyQueue queue = new PriorityKeyQueue();
+        for (int i = 0; i < 100; i++) {
+            queue.add("low" + i, MailPrioritySupport.LOW_PRIORITY);
+        }
+        Thread.sleep(50);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("low" + i, queue.take());
+        }
+        queue.add("high1", MailPrioritySupport.HIGH_PRIORITY);
+        queue.add("normal", MailPrioritySupport.NORMAL_PRIORITY);
+        queue.add("high2", MailPrioritySupport.HIGH_PRIORITY);
+
+        assertEquals("high1", queue.take());
+        assertEquals("high2", queue.take());
+        assertEquals("normal", queue.take());
+        assertEquals("low10", queue.take());
+    }
+
+}
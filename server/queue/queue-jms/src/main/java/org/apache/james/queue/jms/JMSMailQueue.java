@@ -20,6 +20,8 @@ package org.apache.james.queue.jms;
 
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.queue.api.MailPrioritySupport;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.ManageableMailQueue;
@@ -41,10 +43,13 @@ import javax.jms.Session;
 import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -53,6 +58,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -65,6 +71,12 @@ import java.util.concurrent.TimeUnit;
  * It use {@link ObjectMessage} with a byte array as payload to store the
  * {@link Mail} objects.
  * </p>
+ * <p>
+ * Optional a {@link JMSMailQueueIndex} can be used to serve
+ * {@link #getSize()}, {@link #browse()} and {@link #remove(Type, String)}
+ * without enumerating the JMS Queue. This is only safe if no other process
+ * produces or consumes the JMS Queue.
+ * </p>
  */
 public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPrioritySupport {
 
@@ -73,10 +85,43 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     protected final Logger logger;
     public final static String FORCE_DELIVERY = "FORCE_DELIVERY";
 
+    /**
+     * Max count of queue ids which are used in one selector when removing
+     * mails via the index
+     */
+    private final static int REMOVE_BATCH_SIZE = 100;
+
+    /**
+     * Time in milliseconds to wait for a message which is expected to be
+     * dispatched to a consumer
+     */
+    private final static long RECEIVE_TIMEOUT = 2000;
+
+    private final JMSMailQueueIndex index;
+    private final Object indexBuildLock = new Object();
+
     public JMSMailQueue(final ConnectionFactory connectionFactory, final String queueName, final Logger logger) {
+        this(connectionFactory, queueName, false, logger);
+    }
+
+    /**
+     * Construct a new JMS based {@link MailQueue}.
+     *
+     * @param connectionFactory
+     * @param queueName
+     * @param useIndex
+     *            keep a {@link JMSMailQueueIndex} of the queued mails
+     * @param logger
+     */
+    public JMSMailQueue(final ConnectionFactory connectionFactory, final String queueName, boolean useIndex, final Logger logger) {
         this.connectionFactory = connectionFactory;
         this.queueName = queueName;
         this.logger = logger;
+        if (useIndex) {
+            this.index = new JMSMailQueueIndex();
+        } else {
+            this.index = null;
+        }
     }
 
     /**
@@ -110,7 +155,11 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                 message = consumer.receive(10000);
 
                 if (message != null) {
-                    return createMailQueueItem(connection, session, consumer, message);
+                    MailQueueItem item = createMailQueueItem(connection, session, consumer, message);
+                    if (index != null) {
+                        item = new IndexedMailQueueItem(item, getQueueId(message));
+                    }
+                    return item;
                 } else {
                     session.commit();
 
@@ -177,6 +226,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
         Connection connection = null;
         Session session = null;
+        String queueId = null;
 
         long mydelay = 0;
 
@@ -198,9 +248,19 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
 
             Map<String, Object> props = getJMSProperties(mail, mydelay);
 
+            if (index != null) {
+                // add the entry before the message is sent, a consumer may take
+                // it and remove the entry before produceMail returns
+                queueId = (String) props.get(JAMES_QUEUE_ID);
+                index.add(createIndexEntry(queueId, mail, (Long) props.get(JAMES_MAIL_MESSAGE_SIZE), (Long) props.get(JAMES_NEXT_DELIVERY)));
+            }
+
             produceMail(session, props, msgPrio, mail);
 
         } catch (Exception e) {
+            if (queueId != null) {
+                index.remove(queueId);
+            }
             if (session != null) {
                 try {
                     session.rollback();
@@ -292,6 +352,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
 
         }
         props.put(JAMES_NEXT_DELIVERY, nextDelivery);
+        props.put(JAMES_QUEUE_ID, UUID.randomUUID().toString());
         props.put(JAMES_MAIL_ERROR_MESSAGE, mail.getErrorMessage());
         props.put(JAMES_MAIL_LAST_UPDATED, mail.getLastUpdated().getTime());
         props.put(JAMES_MAIL_MESSAGE_SIZE, mail.getMessageSize());
@@ -482,6 +543,10 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     @SuppressWarnings("unchecked")
     @Override
     public long getSize() throws MailQueueException {
+        if (index != null) {
+            return getIndex().size();
+        }
+
         Connection connection = null;
         Session session = null;
         QueueBrowser browser = null;
@@ -535,7 +600,6 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         Message message = null;
         MessageConsumer consumer = null;
         MessageProducer producer = null;
-        boolean first = true;
         long count = 0;
         try {
             connection = connectionFactory.createConnection();
@@ -543,24 +607,20 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
 
             session = connection.createSession(true, Session.SESSION_TRANSACTED);
             Queue queue = session.createQueue(queueName);
+            int expected = countMessages(session, queue, null);
             consumer = session.createConsumer(queue);
             producer = session.createProducer(queue);
 
-            while (first || message != null) {
-                if (first) {
-                    // give the consumer 2000 ms to receive messages
-                    message = consumer.receive(2000);
-                } else {
-                    message = consumer.receiveNoWait();
-                }
-                first = false;
-
-                if (message != null) {
-                    Message m = copy(session, message);
-                    m.setBooleanProperty(FORCE_DELIVERY, true);
-                    producer.send(m, message.getJMSDeliveryMode(), message.getJMSPriority(), message.getJMSExpiration());
-                    count++;
+            while ((message = receive(consumer, count < expected)) != null) {
+                Message m = copy(session, message);
+                m.setBooleanProperty(FORCE_DELIVERY, true);
+                // the copy gets a new JMSMessageID, so messages sent by
+                // older versions keep their old one as queue id
+                if (!m.propertyExists(JAMES_QUEUE_ID)) {
+                    m.setStringProperty(JAMES_QUEUE_ID, message.getJMSMessageID());
                 }
+                producer.send(m, message.getJMSDeliveryMode(), message.getJMSPriority(), message.getJMSExpiration());
+                count++;
             }
             session.commit();
             return count;
@@ -630,7 +690,6 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         Session session = null;
         Message message = null;
         MessageConsumer consumer = null;
-        boolean first = true;
         List<Message> messages = new ArrayList<Message>();
 
         try {
@@ -639,20 +698,18 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
 
             session = connection.createSession(true, Session.SESSION_TRANSACTED);
             Queue queue = session.createQueue(queueName);
+            int expected = countMessages(session, queue, selector);
             consumer = session.createConsumer(queue, selector);
-            while (first || message != null) {
-                if (first) {
-                    // give the consumer 2000 ms to receive messages
-                    message = consumer.receive(2000);
-                } else {
-                    message = consumer.receiveNoWait();
-                }
-                first = false;
-                if (message != null) {
-                    messages.add(message);
-                }
+            while ((message = receive(consumer, messages.size() < expected)) != null) {
+                messages.add(message);
             }
             session.commit();
+
+            if (index != null) {
+                for (Message m : messages) {
+                    index.remove(getQueueId(m));
+                }
+            }
             return messages;
         } catch (Exception e) {
             try {
@@ -688,6 +745,49 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         }
     }
 
+    /**
+     * Count the messages which match the given selector by browsing the JMS
+     * Queue
+     *
+     * @param session
+     * @param queue
+     * @param selector
+     * @return count
+     * @throws JMSException
+     */
+    private int countMessages(Session session, Queue queue, String selector) throws JMSException {
+        QueueBrowser browser = session.createBrowser(queue, selector);
+        try {
+            int count = 0;
+            Enumeration<?> messages = browser.getEnumeration();
+            while (messages.hasMoreElements()) {
+                messages.nextElement();
+                count++;
+            }
+            return count;
+        } finally {
+            browser.close();
+        }
+    }
+
+    /**
+     * Receive the next message. The broker may not have dispatched all
+     * messages to a new consumer yet, so it is waited for a message as long as
+     * more are expected. Otherwise only the messages which are already there
+     * are returned
+     *
+     * @param consumer
+     * @param expectMore
+     * @return message or <code>null</code>
+     * @throws JMSException
+     */
+    private Message receive(MessageConsumer consumer, boolean expectMore) throws JMSException {
+        if (expectMore) {
+            return consumer.receive(RECEIVE_TIMEOUT);
+        }
+        return consumer.receiveNoWait();
+    }
+
     /**
      * Create a copy of the given {@link Message}. This includes the properties
      * and the payload
@@ -713,6 +813,10 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
 
     @Override
     public long remove(Type type, String value) throws MailQueueException {
+        if (index != null) {
+            return removeWithQueueIds(getIndex().select(type, value));
+        }
+
         switch (type) {
             case Name:
                 return count(removeWithSelector(JAMES_MAIL_NAME + " = '" + value + "'"));
@@ -729,6 +833,10 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     @Override
     @SuppressWarnings("unchecked")
     public MailQueueIterator browse() throws MailQueueException {
+        if (index != null) {
+            return browseIndex();
+        }
+
         Connection connection = null;
         Session session = null;
         QueueBrowser browser = null;
@@ -840,4 +948,344 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         }
     }
 
+    /**
+     * Remove the messages with the given queue ids. The ids are split in
+     * batches to keep the selectors small
+     *
+     * @param queueIds
+     * @return count
+     * @throws MailQueueException
+     */
+    protected long removeWithQueueIds(List<String> queueIds) throws MailQueueException {
+        long count = 0;
+        for (int i = 0; i < queueIds.size(); i += REMOVE_BATCH_SIZE) {
+            count += count(removeWithSelector(queueIdSelector(queueIds.subList(i, Math.min(i + REMOVE_BATCH_SIZE, queueIds.size())))));
+        }
+        return count;
+    }
+
+    /**
+     * Return a selector which matches the messages with the given queue ids.
+     * Messages sent by older versions are matched by their JMSMessageID
+     *
+     * @param queueIds
+     * @return selector
+     */
+    private String queueIdSelector(List<String> queueIds) {
+        StringBuilder ids = new StringBuilder();
+        for (int a = 0; a < queueIds.size(); a++) {
+            if (a > 0) {
+                ids.append(", ");
+            }
+            ids.append("'").append(queueIds.get(a)).append("'");
+        }
+        return JAMES_QUEUE_ID + " IN (" + ids + ") OR JMSMessageID IN (" + ids + ")";
+    }
+
+    /**
+     * Return the queue id of the given message. Messages sent by older
+     * versions have no {@link #JAMES_QUEUE_ID} and are identified by their
+     * JMSMessageID
+     *
+     * @param message
+     * @return queueId
+     * @throws JMSException
+     */
+    protected String getQueueId(Message message) throws JMSException {
+        String queueId = message.getStringProperty(JAMES_QUEUE_ID);
+        if (queueId == null) {
+            return message.getJMSMessageID();
+        }
+        return queueId;
+    }
+
+    /**
+     * Return <code>true</code> if a {@link JMSMailQueueIndex} is used
+     *
+     * @return indexed
+     */
+    protected boolean isIndexed() {
+        return index != null;
+    }
+
+    /**
+     * Return the {@link JMSMailQueueIndex} and build it first if this was not
+     * done before
+     *
+     * @return index
+     * @throws MailQueueException
+     */
+    private JMSMailQueueIndex getIndex() throws MailQueueException {
+        synchronized (indexBuildLock) {
+            if (!index.isBuilt()) {
+                buildIndex();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Build the {@link JMSMailQueueIndex} by browsing the JMS Queue. Only the
+     * message properties are read, the payloads are left untouched
+     *
+     * @throws MailQueueException
+     */
+    @SuppressWarnings("unchecked")
+    private void buildIndex() throws MailQueueException {
+        Connection connection = null;
+        Session session = null;
+        QueueBrowser browser = null;
+        index.startBuild();
+        try {
+            connection = connectionFactory.createConnection();
+            connection.start();
+            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            Queue queue = session.createQueue(queueName);
+
+            browser = session.createBrowser(queue);
+
+            List<JMSMailQueueIndex.Entry> entries = new ArrayList<JMSMailQueueIndex.Entry>();
+            Enumeration<Message> messages = browser.getEnumeration();
+            while (messages.hasMoreElements()) {
+                Message m = messages.nextElement();
+                MailImpl mail = new MailImpl();
+                populateMail(m, mail);
+                entries.add(createIndexEntry(getQueueId(m), mail, m.getLongProperty(JAMES_MAIL_MESSAGE_SIZE), m.getLongProperty(JAMES_NEXT_DELIVERY)));
+            }
+            index.finishBuild(entries);
+        } catch (Exception e) {
+            index.abortBuild();
+            logger.error("Unable to build index of queue " + queueName, e);
+            throw new MailQueueException("Unable to build index of queue " + queueName, e);
+        } finally {
+            try {
+                if (browser != null)
+                    browser.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+
+            try {
+                if (session != null)
+                    session.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * Create the {@link JMSMailQueueIndex.Entry} for the given {@link Mail}.
+     * The attribute values are converted the same way as they are stored in
+     * the JMS Message
+     *
+     * @param queueId
+     * @param mail
+     * @param messageSize
+     * @param nextDelivery
+     * @return entry
+     */
+    protected JMSMailQueueIndex.Entry createIndexEntry(String queueId, Mail mail, long messageSize, long nextDelivery) {
+        Map<String, Serializable> attributes = new HashMap<String, Serializable>();
+        Iterator<String> attrNames = mail.getAttributeNames();
+        while (attrNames.hasNext()) {
+            String attrName = attrNames.next();
+            Object value = convertAttributeValue(mail.getAttribute(attrName));
+            if (value != null) {
+                attributes.put(attrName, (Serializable) value);
+            }
+        }
+        return new JMSMailQueueIndex.Entry(queueId, mail.getName(), mail.getSender(), mail.getRecipients(), mail.getState(), mail.getErrorMessage(), mail.getRemoteHost(), mail.getRemoteAddr(), mail.getLastUpdated(), attributes, messageSize, nextDelivery);
+    }
+
+    /**
+     * Browse the {@link JMSMailQueueIndex}. The content of the returned mails
+     * is only loaded from the JMS Queue when it is accessed
+     *
+     * @return iterator
+     * @throws MailQueueException
+     */
+    private MailQueueIterator browseIndex() throws MailQueueException {
+        final Iterator<JMSMailQueueIndex.Entry> entries = getIndex().getEntries().iterator();
+
+        return new MailQueueIterator() {
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Read-only");
+            }
+
+            @Override
+            public MailQueueItemView next() {
+                while (hasNext()) {
+                    final JMSMailQueueIndex.Entry entry = entries.next();
+                    final Mail mail = entry.createMail();
+                    try {
+                        mail.setMessage(new MimeMessageCopyOnWriteProxy(new IndexedMimeMessageSource(entry.getQueueId(), entry.getMessageSize())));
+                        return new MailQueueItemView() {
+
+                            @Override
+                            public long getNextDelivery() {
+                                return entry.getNextDelivery();
+                            }
+
+                            @Override
+                            public Mail getMail() {
+                                return mail;
+                            }
+                        };
+                    } catch (MessagingException e) {
+                        logger.error("Unable to browse queue", e);
+                    }
+                }
+
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public void close() {
+                // nothing to close
+            }
+        };
+    }
+
+    /**
+     * Load the content of the message with the given queue id from the JMS
+     * Queue
+     *
+     * @param queueId
+     * @return content
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private byte[] loadMessageContent(String queueId) throws IOException {
+        Connection connection = null;
+        Session session = null;
+        QueueBrowser browser = null;
+        MailImpl mail = null;
+        try {
+            connection = connectionFactory.createConnection();
+            connection.start();
+            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            Queue queue = session.createQueue(queueName);
+
+            browser = session.createBrowser(queue, queueIdSelector(Collections.singletonList(queueId)));
+
+            Enumeration<Message> messages = browser.getEnumeration();
+            if (!messages.hasMoreElements()) {
+                throw new IOException("Message " + queueId + " is not stored in queue " + queueName + " anymore");
+            }
+            mail = new MailImpl();
+            populateMailMimeMessage(messages.nextElement(), mail);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            mail.getMessage().writeTo(out);
+            return out.toByteArray();
+        } catch (JMSException e) {
+            throw new IOException("Unable to load message " + queueId + " from queue " + queueName, e);
+        } catch (MessagingException e) {
+            throw new IOException("Unable to load message " + queueId + " from queue " + queueName, e);
+        } finally {
+            LifecycleUtil.dispose(mail);
+
+            try {
+                if (browser != null)
+                    browser.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+
+            try {
+                if (session != null)
+                    session.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * {@link MimeMessageSource} which loads the content of a queued message on
+     * first access. The size is taken from the {@link JMSMailQueueIndex}
+     */
+    private final class IndexedMimeMessageSource extends MimeMessageSource {
+
+        private final String queueId;
+        private final long messageSize;
+        private SharedByteArrayInputStream in;
+
+        public IndexedMimeMessageSource(String queueId, long messageSize) {
+            this.queueId = queueId;
+            this.messageSize = messageSize;
+        }
+
+        @Override
+        public String getSourceId() {
+            return queueId;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new SharedByteArrayInputStream(loadMessageContent(queueId));
+            }
+            return in.newStream(0, -1);
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            if (messageSize > -1) {
+                return messageSize;
+            }
+            return super.getMessageSize();
+        }
+    }
+
+    /**
+     * {@link MailQueueItem} which removes the message from the
+     * {@link JMSMailQueueIndex} once the dequeue was committed
+     */
+    private final class IndexedMailQueueItem implements MailQueueItem {
+
+        private final MailQueueItem item;
+        private final String queueId;
+
+        public IndexedMailQueueItem(MailQueueItem item, String queueId) {
+            this.item = item;
+            this.queueId = queueId;
+        }
+
+        @Override
+        public Mail getMail() {
+            return item.getMail();
+        }
+
+        @Override
+        public void done(boolean success) throws MailQueueException {
+            item.done(success);
+            if (success) {
+                index.remove(queueId);
+            }
+        }
+    }
+
 }
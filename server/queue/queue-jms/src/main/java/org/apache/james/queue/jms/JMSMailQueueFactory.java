@@ -30,14 +30,25 @@ import org.apache.james.queue.library.AbstractMailQueueFactory;
 public class JMSMailQueueFactory extends AbstractMailQueueFactory {
 
     protected ConnectionFactory connectionFactory;
+    protected boolean useIndex = false;
 
     public void setConnectionFactory(ConnectionFactory connectionFactory) {
         this.connectionFactory = connectionFactory;
     }
 
+    /**
+     * Keep a {@link JMSMailQueueIndex} of the queued mails. This should only
+     * be enabled if no other process uses the same JMS Queues
+     *
+     * @param useIndex
+     */
+    public void setUseIndex(boolean useIndex) {
+        this.useIndex = useIndex;
+    }
+
     @Override
     protected MailQueue createMailQueue(String name) {
-        return new JMSMailQueue(connectionFactory, name, log);
+        return new JMSMailQueue(connectionFactory, name, useIndex, log);
     }
     
 }
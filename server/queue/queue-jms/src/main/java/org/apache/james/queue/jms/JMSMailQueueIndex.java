@@ -0,0 +1,278 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.ManageableMailQueue.Type;
+import org.apache.mailet.MailAddress;
+
+/**
+ * <p>
+ * In-memory index over the metadata of the mails stored in a
+ * {@link JMSMailQueue}. It is updated on enqueue, dequeue, flush and remove,
+ * so the management operations can be served without enumerating the JMS
+ * queue and reading the message payloads. The entries are keyed by the
+ * {@link JMSSupport#JAMES_QUEUE_ID} of the messages, which stays the same
+ * when a message is re-sent.
+ * </p>
+ * <p>
+ * The index is built from the JMS queue the first time it is needed. Only the
+ * message properties are read for this. Removals which happen while the build
+ * is running are tracked, so messages which were seen by the build but are
+ * already gone do not end up in the index.
+ * </p>
+ * <p>
+ * The index only knows about the operations done through this instance, so it
+ * must only be used if no other process produces or consumes the JMS queue.
+ * </p>
+ */
+public class JMSMailQueueIndex {
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private Set<String> removedDuringBuild;
+    private boolean built;
+
+    /**
+     * Return <code>true</code> if the index was built from the JMS queue
+     * 
+     * @return built
+     */
+    public synchronized boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Mark the start of a build. From now on every removal is tracked until
+     * {@link #finishBuild(List)} or {@link #abortBuild()} is called
+     */
+    public synchronized void startBuild() {
+        removedDuringBuild = new HashSet<String>();
+    }
+
+    /**
+     * Merge the entries read from the JMS queue into the index. The scanned
+     * entries keep the order of the queue, entries which were added in the
+     * meantime and were not seen by the build are appended.
+     * 
+     * @param scanned
+     */
+    public synchronized void finishBuild(List<Entry> scanned) {
+        Map<String, Entry> merged = new LinkedHashMap<String, Entry>();
+        for (Entry entry : scanned) {
+            if (!removedDuringBuild.contains(entry.getQueueId())) {
+                merged.put(entry.getQueueId(), entry);
+            }
+        }
+        for (Entry entry : entries.values()) {
+            if (!merged.containsKey(entry.getQueueId())) {
+                merged.put(entry.getQueueId(), entry);
+            }
+        }
+        entries.clear();
+        entries.putAll(merged);
+        removedDuringBuild = null;
+        built = true;
+    }
+
+    /**
+     * Abort a build which was started with {@link #startBuild()}
+     */
+    public synchronized void abortBuild() {
+        removedDuringBuild = null;
+    }
+
+    /**
+     * Add the entry of a mail which is stored in the JMS queue. This is done
+     * before the message is sent, so a consumer can not take it before
+     * 
+     * @param entry
+     */
+    public synchronized void add(Entry entry) {
+        entries.put(entry.getQueueId(), entry);
+    }
+
+    /**
+     * Remove the entry of the message with the given queue id
+     * 
+     * @param queueId
+     */
+    public synchronized void remove(String queueId) {
+        entries.remove(queueId);
+        if (removedDuringBuild != null) {
+            removedDuringBuild.add(queueId);
+        }
+    }
+
+    /**
+     * Return the count of indexed messages
+     * 
+     * @return size
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return a snapshot of all entries in the order they were added
+     * 
+     * @return entries
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Return the queue ids of all messages which match the given value
+     * 
+     * @param type
+     * @param value
+     * @return queueIds
+     */
+    public synchronized List<String> select(Type type, String value) {
+        List<String> ids = new ArrayList<String>();
+        for (Entry entry : entries.values()) {
+            if (entry.matches(type, value)) {
+                ids.add(entry.getQueueId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * The metadata of a queued mail. This is everything except the
+     * {@link javax.mail.internet.MimeMessage}
+     */
+    public static final class Entry {
+        private final String queueId;
+        private final String name;
+        private final MailAddress sender;
+        private final List<MailAddress> recipients;
+        private final String state;
+        private final String errorMessage;
+        private final String remoteHost;
+        private final String remoteAddr;
+        private final long lastUpdated;
+        private final Map<String, Serializable> attributes;
+        private final long messageSize;
+        private final long nextDelivery;
+
+        public Entry(String queueId, String name, MailAddress sender, Collection<MailAddress> recipients, String state, String errorMessage, String remoteHost, String remoteAddr, Date lastUpdated, Map<String, Serializable> attributes, long messageSize, long nextDelivery) {
+            this.queueId = queueId;
+            this.name = name;
+            this.sender = sender;
+            this.recipients = Collections.unmodifiableList(new ArrayList<MailAddress>(recipients));
+            this.state = state;
+            this.errorMessage = errorMessage;
+            this.remoteHost = remoteHost;
+            this.remoteAddr = remoteAddr;
+            this.lastUpdated = lastUpdated == null ? -1 : lastUpdated.getTime();
+            this.attributes = Collections.unmodifiableMap(new HashMap<String, Serializable>(attributes));
+            this.messageSize = messageSize;
+            this.nextDelivery = nextDelivery;
+        }
+
+        public String getQueueId() {
+            return queueId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public MailAddress getSender() {
+            return sender;
+        }
+
+        public List<MailAddress> getRecipients() {
+            return recipients;
+        }
+
+        public long getMessageSize() {
+            return messageSize;
+        }
+
+        public long getNextDelivery() {
+            return nextDelivery;
+        }
+
+        /**
+         * Return <code>true</code> if the mail matches the given value
+         * 
+         * @param type
+         * @param value
+         * @return matches
+         */
+        public boolean matches(Type type, String value) {
+            switch (type) {
+            case Name:
+                return value.equals(name);
+            case Sender:
+                return sender == null ? value.length() == 0 : value.equals(sender.toString());
+            case Recipient:
+                for (MailAddress recipient : recipients) {
+                    if (value.equals(recipient.toString())) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * Create a new {@link MailImpl} which is populated with the metadata
+         * of this entry. The returned {@link MailImpl} has no message set
+         * 
+         * @return mail
+         */
+        public MailImpl createMail() {
+            MailImpl mail = new MailImpl();
+            mail.setName(name);
+            mail.setSender(sender);
+            mail.setRecipients(new ArrayList<MailAddress>(recipients));
+            mail.setState(state);
+            mail.setErrorMessage(errorMessage);
+            mail.setRemoteHost(remoteHost);
+            mail.setRemoteAddr(remoteAddr);
+            if (lastUpdated > -1) {
+                mail.setLastUpdated(new Date(lastUpdated));
+            }
+            Iterator<Map.Entry<String, Serializable>> attrs = attributes.entrySet().iterator();
+            while (attrs.hasNext()) {
+                Map.Entry<String, Serializable> attr = attrs.next();
+                mail.setAttribute(attr.getKey(), attr.getValue());
+            }
+            return mail;
+        }
+    }
+}
@@ -62,4 +62,11 @@ public interface JMSSupport {
     /** JMS Property which holds next delivery time as long (ms) */
     String JAMES_NEXT_DELIVERY = "JAMES_NEXT_DELIVERY";
 
+    /**
+     * JMS Property which holds the id of the mail in the queue as String.
+     * Unlike the JMSMessageID it is known before the message is sent and kept
+     * when the message is re-sent
+     */
+    String JAMES_QUEUE_ID = "JAMES_QUEUE_ID";
+
 }
@@ -111,13 +111,23 @@ public class MailQueueManagement extends StandardMBean implements MailQueueManag
 
     @Override
     public List<CompositeData> browse() throws Exception {
+        return browse(0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<CompositeData> browse(int offset, int limit) throws Exception {
         MailQueueIterator it = queue.browse();
         List<CompositeData> data = new ArrayList<CompositeData>();
         String[] names = new String[]{"name", "sender", "state", "recipients", "size", "lastUpdated", "remoteAddress", "remoteHost", "errorMessage", "attributes", "nextDelivery"};
         String[] descs = new String[]{"Unique name", "Sender", "Current state", "Recipients", "Size in bytes", "Timestamp of last update", "IPAddress of the sender", "Hostname of the sender", "Errormessage if any", "Attributes stored", "Timestamp of when the next delivery attempt will be make"};
         OpenType<?>[] types = new OpenType<?>[]{SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.LONG};
 
-        while (it.hasNext()) {
+        // skip the mails before the requested page
+        for (int i = 0; i < offset && it.hasNext(); i++) {
+            it.next();
+        }
+
+        while (it.hasNext() && data.size() < limit) {
 
             MailQueueItemView mView = it.next();
             Mail m = mView.getMail();
@@ -0,0 +1,175 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Session;
+import javax.mail.MessagingException;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.james.queue.library.MailQueueManagement;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run the {@link JMSMailQueue} tests with the {@link JMSMailQueueIndex}
+ * enabled
+ */
+public class IndexedJMSMailQueueTest extends JMSMailQueueTest {
+
+    @Override
+    protected JMSMailQueue createQueue(ConnectionFactory factory, String queueName) {
+        Logger log = LoggerFactory.getLogger(IndexedJMSMailQueueTest.class);
+        return new JMSMailQueue(factory, queueName, true, log);
+    }
+
+    @Test
+    public void testIndexBuiltFromQueue() throws Exception {
+        Logger log = LoggerFactory.getLogger(IndexedJMSMailQueueTest.class);
+        JMSMailQueue plainQueue = new JMSMailQueue(createConnectionFactory(), QUEUE_NAME, log);
+
+        MailImpl mail = createMail();
+        mail.setRecipients(Arrays.asList(new MailAddress("remove@me1")));
+        MailImpl mail2 = createMail();
+
+        // enqueue without the index, so the indexed queue needs to read them from the JMS Queue
+        plainQueue.enQueue(mail);
+        plainQueue.enQueue(mail2);
+
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        JMSMailQueue queue = getQueue();
+        assertEquals(2, queue.getSize());
+
+        MailQueueIterator it = queue.browse();
+        checkMail(mail, it.next().getMail());
+        checkMail(mail2, it.next().getMail());
+        assertFalse(it.hasNext());
+        it.close();
+
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Recipient, "remove@me1"));
+        assertEquals(1, queue.getSize());
+        assertEquals(1, plainQueue.getSize());
+
+        assertEquals(1, queue.clear());
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testBrowsePage() throws Exception {
+        JMSMailQueue queue = getQueue();
+        MailQueueManagement management = new MailQueueManagement(queue);
+
+        MailImpl mail = createMail();
+        mail.setName("mail1");
+        MailImpl mail2 = createMail();
+        mail2.setName("mail2");
+        MailImpl mail3 = createMail();
+        mail3.setName("mail3");
+
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        queue.enQueue(mail3);
+
+        List<CompositeData> page = management.browse(1, 1);
+        assertEquals(1, page.size());
+        assertEquals("mail2", page.get(0).get("name"));
+        assertEquals(mail2.getMessageSize(), page.get(0).get("size"));
+
+        assertEquals(1, management.browse(2, 10).size());
+        assertEquals(3, management.browse().size());
+
+        assertEquals(3, queue.clear());
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testIndexEntryAddedBeforeSend() throws Exception {
+        Logger log = LoggerFactory.getLogger(IndexedJMSMailQueueTest.class);
+        final long[] sizeOnSend = new long[1];
+        JMSMailQueue queue = new JMSMailQueue(createConnectionFactory(), QUEUE_NAME, true, log) {
+            @Override
+            protected void produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
+                sizeOnSend[0] = getSize();
+                super.produceMail(session, props, msgPrio, mail);
+            }
+        };
+
+        queue.enQueue(createMail());
+
+        assertEquals(1, sizeOnSend[0]);
+        assertEquals(1, queue.getSize());
+        assertEquals(1, queue.clear());
+    }
+
+    @Test
+    public void testIndexEntryRemovedOnFailedSend() throws Exception {
+        Logger log = LoggerFactory.getLogger(IndexedJMSMailQueueTest.class);
+        JMSMailQueue queue = new JMSMailQueue(createConnectionFactory(), QUEUE_NAME, true, log) {
+            @Override
+            protected void produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException {
+                throw new JMSException("Unable to send");
+            }
+        };
+
+        try {
+            queue.enQueue(createMail());
+            fail("The enqueue should fail");
+        } catch (MailQueueException e) {
+            // expected
+        }
+
+        assertEquals(0, queue.getSize());
+        assertFalse(queue.browse().hasNext());
+    }
+
+    @Test
+    public void testFlushKeepsIndex() throws MessagingException, InterruptedException, IOException {
+        JMSMailQueue queue = getQueue();
+
+        MailImpl mail = createMail();
+        mail.setSender(new MailAddress("remove@me1"));
+        queue.enQueue(mail, 30, TimeUnit.SECONDS);
+
+        assertEquals(1, queue.flush());
+        assertEquals(1, queue.getSize());
+
+        // the flushed copy got a new JMSMessageID but keeps its queue id
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Sender, "remove@me1"));
+        assertEquals(0, queue.getSize());
+    }
+}